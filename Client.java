@@ -1,8 +1,11 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.ConnectException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.Scanner;
 
@@ -13,14 +16,18 @@ import java.util.Scanner;
 public class Client {
     private static final String SERVER_ADDRESS = "localhost";
     private static final int SERVER_PORT = 12345;
-    private static String myPlayerId;
+    private static int myPlayerId = -1;
     private static final Scanner consoleScanner = new Scanner(System.in);
-    private static Maze currentMaze;
+    private static final ClientGameState gameState = new ClientGameState();
+    private static boolean mazePlayable; // the tiles around us have arrived since the last MAZE_START
+    private static String serverAddress;
+    private static volatile ClientUdpChannel udp; // set if the server offers UDP movement
 
     public static void main(String[] args) {
         Scanner sc = new Scanner(System.in);
         String serverIP = args.length > 0 ? args[0] : "";
         final String playerName;
+        int roomId = args.length > 2 ? Integer.parseInt(args[2]) : Protocol.DEFAULT_ROOM;
 
         if (serverIP.isEmpty()) {
             System.out.print("Enter server IP (e.g. 192.168.31.191): ");
@@ -34,33 +41,50 @@ public class Client {
             playerName = sc.nextLine().trim();
         }
 
+        serverAddress = serverIP;
         try (Socket socket = new Socket(serverIP, SERVER_PORT);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
 
             System.out.println("Connected to " + serverIP + ":" + SERVER_PORT);
 
             // Send player name to the server and ensure it's flushed immediately
-            out.writeObject(playerName);
-            out.flush(); // Flush after every writeObject to avoid network delays
+            // Ask for UDP movement too; the server offers it if it has it enabled
+            Protocol.writeFrame(out, Protocol.encodeHello(playerName, roomId, Protocol.HELLO_UDP));
 
             // Listen for server updates in a separate thread
             new Thread(() -> {
                 try {
                     while (true) {
-                        Object serverMessage = in.readObject();
-                        handleServerMessage(serverMessage, playerName);
+                        handleServerMessage(Protocol.readFrame(in, Protocol.MAX_SERVER_FRAME), out);
                     }
-                } catch (IOException | ClassNotFoundException e) {
+                } catch (IOException | RuntimeException e) {
                     System.err.println("Disconnected from server: " + e.getMessage());
+                    System.exit(1);
                 }
             }).start();
 
             // Main loop to handle user commands
             while (true) {
-                String command = consoleScanner.nextLine();
-                out.writeObject(command);
-                out.flush(); // Flush after every command for real-time updates
+                String command = consoleScanner.nextLine().trim();
+                byte[] lobbyFrame = parseLobbyCommand(command);
+                if (lobbyFrame != null) {
+                    Protocol.writeFrame(out, lobbyFrame);
+                    continue;
+                }
+                int direction = Protocol.parseDirection(command);
+                if (direction < 0) {
+                    System.out.print("Unknown command. Your command (up/down/left/right, rooms, join <id>, create <name>, lobby): ");
+                    continue;
+                }
+                // Show the move straight away; the server's ACK confirms or corrects it
+                int seq = gameState.predictMove(direction);
+                ClientUdpChannel udp = Client.udp;
+                if (udp == null || !udp.sendMove(direction, seq)) {
+                    Protocol.writeFrame(out, Protocol.encodeMove(direction, seq)); // Flushed for real-time updates
+                }
+                clearConsole();
+                printGameState(gameState.getPlayers());
             }
         } catch (ConnectException ce) {
             System.err.println("Could not connect to " + serverIP + ":" + SERVER_PORT + "  -> " + ce.getMessage());
@@ -71,37 +95,123 @@ public class Client {
     }
 
     /**
-     * Processes messages received from the server.
+     * Turns a lobby command ("rooms", "join 3", "create Friday", "lobby") into a frame,
+     * or returns null if the command isn't one.
      */
-    private static void handleServerMessage(Object message, String localPlayerName) {
-        if (message instanceof Maze maze) {
-            currentMaze = maze;
-        } else if (message instanceof Map<?, ?> playersMap) {
-            @SuppressWarnings("unchecked")
-            Map<String, Player> players = (Map<String, Player>) playersMap;
-            
-            // Find our own player ID from the received map
-            if (myPlayerId == null) {
-                for (Player player : players.values()) {
-                    if (player.getName().equals(localPlayerName)) {
-                        myPlayerId = player.getId();
-                        break;
-                    }
+    private static byte[] parseLobbyCommand(String command) {
+        String[] parts = command.split("\\s+", 2);
+        switch (parts[0].toLowerCase()) {
+            case "rooms":
+                return Protocol.encodeListRooms();
+            case "lobby":
+                return Protocol.encodeJoinRoom(Protocol.NO_ROOM);
+            case "join":
+                try {
+                    return parts.length > 1 ? Protocol.encodeJoinRoom(Integer.parseInt(parts[1].trim())) : null;
+                } catch (NumberFormatException e) {
+                    return null;
                 }
-            }
-            
-            clearConsole();
-            printGameState(players);
-        } else if (message instanceof String winMessage && winMessage.startsWith("WINNER")) {
-            System.out.println("\n*** " + winMessage + " ***");
-            System.exit(0);
+            case "create":
+                return parts.length > 1 ? Protocol.encodeCreateRoom(parts[1].trim()) : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Processes frames received from the server.
+     */
+    private static void handleServerMessage(ByteBuffer frame, DataOutputStream out) throws IOException {
+        switch (frame.get()) {
+            case Protocol.WELCOME:
+                myPlayerId = frame.getInt();
+                int roomId = frame.getInt();
+                gameState.setMyPlayerId(myPlayerId, roomId);
+                if (roomId == Protocol.NO_ROOM) {
+                    System.out.println("You are in the lobby. Commands: rooms, join <id>, create <name>");
+                } else {
+                    System.out.println("Joined room " + roomId + ".");
+                }
+                break;
+            case Protocol.ROOM_LIST:
+                System.out.println("\n--- Rooms ---");
+                for (RoomInfo room : Protocol.decodeRoomList(frame)) {
+                    System.out.println(room.id() + ": " + room.name() + " (" + room.players() + " players"
+                        + (room.winner().isEmpty() ? "" : ", won by " + room.winner()) + ")");
+                }
+                break;
+            case Protocol.SNAPSHOT:
+                gameState.applySnapshot(frame);
+                clearConsole();
+                printGameState(gameState.getPlayers());
+                break;
+            case Protocol.MAZE_START:
+                gameState.applyMazeStart(frame);
+                mazePlayable = false;
+                break;
+            case Protocol.MAZE_TILE:
+                gameState.applyMazeTile(frame);
+                Player me = gameState.getPlayers().get(myPlayerId);
+                if (!mazePlayable && me != null && gameState.isAreaKnown(me.getPosition())) {
+                    mazePlayable = true;
+                    long millis = (System.nanoTime() - gameState.getMazeStartNanos()) / 1_000_000;
+                    clearConsole();
+                    System.out.println("(maze around you loaded in " + millis + " ms)");
+                    printGameState(gameState.getPlayers());
+                } else if (gameState.isMazeComplete()) {
+                    clearConsole();
+                    printGameState(gameState.getPlayers());
+                }
+                break;
+            case Protocol.MAZE_DIFF:
+                gameState.applyMazeDiff(frame);
+                if (mazePlayable) {
+                    clearConsole();
+                    System.out.println("(part of the maze has shifted)");
+                    printGameState(gameState.getPlayers());
+                }
+                break;
+            case Protocol.DELTA:
+                if (!gameState.applyDelta(frame)) {
+                    Protocol.writeFrame(out, Protocol.encodeResync()); // missed an update, start over
+                    break;
+                }
+                clearConsole();
+                printGameState(gameState.getPlayers());
+                break;
+            case Protocol.ACK:
+                gameState.applyAck(frame);
+                break;
+            case Protocol.UDP_OFFER:
+                int port = frame.getShort() & 0xFFFF;
+                try {
+                    udp = ClientUdpChannel.open(serverAddress, port, frame.getLong(), gameState, () -> {
+                        clearConsole();
+                        printGameState(gameState.getPlayers());
+                    });
+                } catch (IOException e) {
+                    System.err.println("UDP unavailable, moving over TCP: " + e.getMessage());
+                }
+                break;
+            case Protocol.WINNER:
+                System.out.println("\n*** WINNER: " + Protocol.readString(frame) + " ***");
+                System.exit(0);
+                break;
+            case Protocol.ERROR:
+                // Fatal errors are followed by the server closing the connection
+                System.err.println("Server error: " + Protocol.readString(frame));
+                break;
+            default:
+                // Ignore frames this client doesn't understand
+                break;
         }
     }
 
     /**
      * Prints the current game state to the console, including the maze and players.
      */
-    private static void printGameState(Map<String, Player> players) {
+    private static void printGameState(Map<Integer, Player> players) {
+        Maze currentMaze = gameState.getMaze();
         if (currentMaze == null) {
             System.out.println("Waiting for maze data...");
             return;
@@ -126,7 +236,7 @@ public class Client {
 
         for (Player p : players.values()) {
             Position pos = p.getPosition();
-            char playerChar = (p.getId().equals(myPlayerId)) ? 'P' : 'O';
+            char playerChar = (p.getId() == myPlayerId) ? 'P' : 'O';
             displayGrid[pos.y()][pos.x()] = playerChar;
         }
 
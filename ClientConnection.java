@@ -0,0 +1,29 @@
+/**
+ * A connected client that the game logic can push updates to.
+ * Each server engine provides its own implementation, so the game rules in
+ * {@link Server} don't need to know how the bytes reach the socket.
+ *
+ * Frames are queued on the client's {@link OutboundQueue} and written by its own
+ * writer, so sending never blocks on a slow socket. The same frame arrays are shared
+ * between clients and must not be modified.
+ */
+interface ClientConnection {
+
+    /**
+     * Queues a control frame (WELCOME, WINNER, ERROR) that is always delivered.
+     */
+    void send(byte[] frame);
+
+    /**
+     * Queues a SNAPSHOT or DELTA frame. Returns false if the client is too far behind
+     * and the frame was dropped; it then needs a snapshot on the next broadcast.
+     */
+    boolean sendState(byte[] frame, boolean snapshot);
+
+    OutboundQueue getOutboundQueue();
+
+    /**
+     * Disconnects the client. The player is removed from the game as usual.
+     */
+    void close();
+}
@@ -0,0 +1,391 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The client's copy of the game state, kept up to date from SNAPSHOT and DELTA frames,
+ * and of the maze, filled in tile by tile from MAZE_START and MAZE_TILE frames and
+ * patched by MAZE_DIFF. Shared by the console and Swing clients.
+ *
+ * Cells of tiles that haven't arrived yet are walls, so a client can draw the maze and
+ * let the player move as soon as the tiles around them are in.
+ *
+ * The client's own moves are predicted: {@link #predictMove} moves the player straight
+ * away with the same rule the server uses, and the position shown stays ahead of the
+ * server by the moves it hasn't acknowledged yet. Each ACK resets the player to where the
+ * server has them and replays the moves still in flight, so a wrong guess (a wall that
+ * only just arrived, an earthquake) is corrected without the player noticing a round trip.
+ * Once every move is acknowledged the prediction is dropped, and the player is shown
+ * where the server has them again, so being moved by the server (out of a wall an
+ * earthquake closed, or by a snapshot after a resync) shows up straight away.
+ *
+ * With the UDP side channel, positions also arrive as UDP_POSITIONS datagrams, which
+ * carry the state version they were taken at. Whichever of the two streams is newer wins:
+ * a datagram older than the TCP state is dropped, and MOVED events in a DELTA the
+ * datagrams have already overtaken are skipped.
+ *
+ * Frames are applied by the TCP reader and datagrams by the UDP receiver, one at a time
+ * under the state lock; moves may be predicted from any thread.
+ */
+public class ClientGameState {
+    private volatile Maze maze;
+    private int mazeId = -1;
+    private int tileColumns, tileRows;
+    private boolean[] tilesKnown;
+    private int knownTiles;
+    private long mazeStartNanos;
+    private final Map<Integer, Player> players = new LinkedHashMap<>();
+    private volatile Map<Integer, Player> playersView = Collections.emptyMap();
+    private int version = -1;
+    private int positionsVersion = -1; // state version of the newest UDP positions applied
+    private int roomId = Protocol.NO_ROOM;
+    private final ReentrantLock stateLock = new ReentrantLock(); // taken before predictionLock
+
+    // Prediction, guarded by predictionLock
+    private final ReentrantLock predictionLock = new ReentrantLock();
+    private final ArrayDeque<PendingMove> pendingMoves = new ArrayDeque<>();
+    private Position predicted; // where we show ourselves, or null while no move is in flight
+    private int myPlayerId = -1;
+    private int nextSeq = 1;
+    private int lastAckSeq; // newest move the server has acknowledged
+    private long corrections;
+    private static final int MAX_PENDING_MOVES = 256;
+
+    /** A move sent to the server but not acknowledged yet, and where we guessed it took us. */
+    private record PendingMove(int seq, int direction, Position predicted) {
+    }
+
+    /**
+     * Replaces the whole state with a SNAPSHOT frame (positioned after the opcode).
+     */
+    public void applySnapshot(ByteBuffer frame) {
+        stateLock.lock();
+        try {
+            version = frame.getInt();
+            players.clear();
+            players.putAll(Protocol.decodePlayers(frame));
+            publish();
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Applies a DELTA frame (positioned after the opcode).
+     * Returns false if the delta doesn't follow on from our version, in which case
+     * the caller should send RESYNC and wait for the next snapshot.
+     */
+    public boolean applyDelta(ByteBuffer frame) {
+        stateLock.lock();
+        try {
+            return applyDeltaLocked(frame);
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    private boolean applyDeltaLocked(ByteBuffer frame) {
+        int fromVersion = frame.getInt();
+        int toVersion = frame.getInt();
+        if (toVersion <= version) {
+            return true; // already covered by a newer snapshot
+        }
+        if (fromVersion != version) {
+            return false;
+        }
+
+        boolean movesOvertaken = toVersion <= positionsVersion; // UDP got here first
+        int count = frame.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            byte type = frame.get();
+            int id = frame.getInt();
+            switch (type) {
+                case GameEvent.JOINED -> {
+                    Position pos = new Position(frame.getInt(), frame.getInt());
+                    players.put(id, new Player(id, Protocol.readString(frame), pos));
+                }
+                case GameEvent.LEFT -> players.remove(id);
+                case GameEvent.MOVED -> {
+                    Position pos = new Position(frame.getInt(), frame.getInt());
+                    Player player = players.get(id);
+                    if (player != null && !movesOvertaken) {
+                        players.put(id, new Player(id, player.getName(), pos));
+                    }
+                }
+                default -> throw new IllegalArgumentException("Unknown event type " + type);
+            }
+        }
+        version = toVersion;
+        publish();
+        return true;
+    }
+
+    /**
+     * Starts a new, still unknown maze from a MAZE_START frame (positioned after the opcode).
+     */
+    public void applyMazeStart(ByteBuffer frame) {
+        int id = frame.getInt();
+        int width = frame.getInt();
+        int height = frame.getInt();
+        Position exit = new Position(frame.getInt(), frame.getInt());
+        int tileSize = frame.getShort() & 0xFFFF;
+        if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid maze size " + width + "x" + height);
+        }
+        if (tileSize != Protocol.TILE_SIZE) {
+            throw new IllegalArgumentException("Unsupported tile size " + tileSize);
+        }
+
+        mazeId = id;
+        tileColumns = (width + tileSize - 1) / tileSize;
+        tileRows = (height + tileSize - 1) / tileSize;
+        tilesKnown = new boolean[tileColumns * tileRows];
+        knownTiles = 0;
+        mazeStartNanos = System.nanoTime();
+        maze = new Maze(width, height, exit);
+    }
+
+    /**
+     * Fills in one tile of the maze from a MAZE_TILE frame (positioned after the opcode).
+     * Tiles of a maze that has since been replaced are ignored.
+     */
+    public void applyMazeTile(ByteBuffer frame) {
+        int id = frame.getInt();
+        int column = frame.getShort() & 0xFFFF;
+        int row = frame.getShort() & 0xFFFF;
+        if (id != mazeId || column >= tileColumns || row >= tileRows) return;
+        Protocol.decodeMazeTile(frame, maze, column, row);
+        int tile = row * tileColumns + column;
+        if (!tilesKnown[tile]) {
+            tilesKnown[tile] = true;
+            knownTiles++;
+        }
+    }
+
+    /**
+     * Copies the walls an earthquake changed from a MAZE_DIFF frame (positioned after the
+     * opcode). Diffs for a maze that has since been replaced are ignored; one that covers
+     * tiles not received yet is overwritten when they arrive, with the same walls.
+     */
+    public void applyMazeDiff(ByteBuffer frame) {
+        if (frame.getInt() != mazeId) return;
+        Protocol.decodeMazeDiff(frame, maze);
+    }
+
+    /**
+     * Returns true once the tile holding the position and the tiles around it have all
+     * arrived, i.e. the player can see where they are going.
+     */
+    public boolean isAreaKnown(Position pos) {
+        if (tilesKnown == null) return false;
+        int column = pos.x() / Protocol.TILE_SIZE;
+        int row = pos.y() / Protocol.TILE_SIZE;
+        for (int r = Math.max(row - 1, 0); r <= Math.min(row + 1, tileRows - 1); r++) {
+            for (int c = Math.max(column - 1, 0); c <= Math.min(column + 1, tileColumns - 1); c++) {
+                if (!tilesKnown[r * tileColumns + c]) return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns true once every tile of the current maze has arrived. */
+    public boolean isMazeComplete() {
+        return tilesKnown != null && knownTiles == tilesKnown.length;
+    }
+
+    /** When the current maze's MAZE_START arrived, from {@link System#nanoTime()}. */
+    public long getMazeStartNanos() {
+        return mazeStartNanos;
+    }
+
+    /**
+     * Applies a UDP_POSITIONS datagram (positioned after the opcode): moves the players it
+     * lists and reconciles our own moves with the acknowledgement it carries. Datagrams for
+     * another room, or older than what we already have, are dropped.
+     */
+    public void applyPositions(ByteBuffer datagram) {
+        stateLock.lock();
+        try {
+            int packetRoom = datagram.getInt();
+            int packetVersion = datagram.getInt();
+            if (packetRoom != roomId || packetVersion < version || packetVersion < positionsVersion) {
+                return;
+            }
+            positionsVersion = packetVersion;
+            int ackSeq = datagram.getInt();
+            Position own = new Position(datagram.getInt(), datagram.getInt());
+            int count = datagram.getShort() & 0xFFFF;
+            for (int i = 0; i < count; i++) {
+                int id = datagram.getInt();
+                Position pos = new Position(datagram.getInt(), datagram.getInt());
+                Player player = players.get(id);
+                if (player != null) {
+                    players.put(id, new Player(id, player.getName(), pos));
+                }
+            }
+            Player me = players.get(myPlayerId);
+            if (me != null) {
+                players.put(myPlayerId, new Player(myPlayerId, me.getName(), own));
+            }
+            reconcile(ackSeq, own);
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Sets which player is us and which room we are in, after a WELCOME. Moves still in
+     * flight belonged to the old room and are forgotten.
+     */
+    public void setMyPlayerId(int playerId, int roomId) {
+        stateLock.lock();
+        predictionLock.lock();
+        try {
+            myPlayerId = playerId;
+            this.roomId = roomId;
+            positionsVersion = -1;
+            pendingMoves.clear();
+            predicted = null;
+            lastAckSeq = 0;
+        } finally {
+            predictionLock.unlock();
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Moves our player one step right away and returns the sequence number to send with
+     * the MOVE. Nothing is predicted until we know where we are.
+     */
+    public int predictMove(int direction) {
+        predictionLock.lock();
+        try {
+            int seq = nextSeq++;
+            Maze maze = this.maze;
+            Player me = playersView.get(myPlayerId);
+            if (maze == null || me == null) return seq;
+
+            Position from = predicted != null ? predicted : me.getPosition();
+            predicted = maze.step(from, direction);
+            if (pendingMoves.size() == MAX_PENDING_MOVES) {
+                pendingMoves.pollFirst(); // the server stopped answering; don't grow forever
+            }
+            pendingMoves.addLast(new PendingMove(seq, direction, predicted));
+
+            Map<Integer, Player> view = new LinkedHashMap<>(playersView);
+            view.put(myPlayerId, new Player(myPlayerId, me.getName(), predicted));
+            playersView = Collections.unmodifiableMap(view);
+            return seq;
+        } finally {
+            predictionLock.unlock();
+        }
+    }
+
+    /**
+     * Reconciles with an ACK frame (positioned after the opcode): starts again from where
+     * the server has us after that move and replays the moves it hasn't seen yet.
+     */
+    public void applyAck(ByteBuffer frame) {
+        int seq = frame.getInt();
+        Position confirmed = new Position(frame.getInt(), frame.getInt());
+        stateLock.lock();
+        try {
+            reconcile(seq, confirmed);
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Drops the moves up to seq, which left us at confirmed, and replays the rest on top.
+     * If none are left, confirmed is where we are and nothing is predicted. Acknowledgements
+     * older than one already applied are ignored. Called under the state lock.
+     */
+    private void reconcile(int seq, Position confirmed) {
+        predictionLock.lock();
+        try {
+            if (seq >= lastAckSeq) {
+                lastAckSeq = seq;
+                while (!pendingMoves.isEmpty() && pendingMoves.peekFirst().seq() <= seq) {
+                    PendingMove move = pendingMoves.pollFirst();
+                    if (move.seq() == seq && !move.predicted().equals(confirmed)) {
+                        corrections++;
+                    }
+                }
+                Position pos = confirmed;
+                Maze maze = this.maze;
+                int count = maze == null ? 0 : pendingMoves.size();
+                for (int i = 0; i < count; i++) {
+                    PendingMove move = pendingMoves.pollFirst();
+                    pos = maze.step(pos, move.direction());
+                    pendingMoves.addLast(new PendingMove(move.seq(), move.direction(), pos));
+                }
+                if (pendingMoves.isEmpty()) {
+                    predicted = null;
+                    Player me = players.get(myPlayerId);
+                    if (me != null) {
+                        players.put(myPlayerId, new Player(myPlayerId, me.getName(), confirmed));
+                    }
+                } else {
+                    predicted = pos;
+                }
+            }
+        } finally {
+            predictionLock.unlock();
+        }
+        publish();
+    }
+
+    /**
+     * Hands out a fresh read-only copy, so rendering threads never see a map being updated.
+     * While moves are in flight, our own player is shown where we predict them to be.
+     */
+    private void publish() {
+        predictionLock.lock();
+        try {
+            Map<Integer, Player> view = new LinkedHashMap<>(players);
+            Player me = view.get(myPlayerId);
+            if (me != null && predicted != null && !pendingMoves.isEmpty()) {
+                view.put(myPlayerId, new Player(myPlayerId, me.getName(), predicted));
+            }
+            playersView = Collections.unmodifiableMap(view);
+        } finally {
+            predictionLock.unlock();
+        }
+    }
+
+    public Maze getMaze() {
+        return maze;
+    }
+
+    public Map<Integer, Player> getPlayers() {
+        return playersView;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /** The newest move the server has acknowledged, or 0. */
+    public int getLastAckSeq() {
+        predictionLock.lock();
+        try {
+            return lastAckSeq;
+        } finally {
+            predictionLock.unlock();
+        }
+    }
+
+    /** How many of our predicted moves the server disagreed with. */
+    public long getCorrections() {
+        predictionLock.lock();
+        try {
+            return corrections;
+        } finally {
+            predictionLock.unlock();
+        }
+    }
+}
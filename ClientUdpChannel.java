@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The client end of the UDP side channel (see {@link UdpChannel}), shared by the console
+ * and Swing clients.
+ *
+ * Opened when the server answers HELLO with a UDP_OFFER. It keeps sending UDP_BIND for
+ * about a second; if no UDP_BOUND comes back (a firewall, say) it gives up and the client
+ * carries on moving over TCP. Once bound, every move is sent as a UDP_INPUT that repeats
+ * the last few moves the server hasn't acknowledged, and the same datagram is sent again
+ * every {@link #RESEND_MILLIS} ms while any are outstanding, so a lost datagram is covered
+ * by the next one instead of a retransmission. Moves that fall out of the window during a
+ * long outage are never applied; the ACK in the next positions puts the player back.
+ */
+public class ClientUdpChannel implements Runnable {
+    private static final long RESEND_MILLIS = 50;
+    private static final int BIND_ATTEMPTS = 20; // one per RESEND_MILLIS
+
+    private final DatagramChannel channel;
+    private final long token;
+    private final ClientGameState state;
+    private final Runnable onUpdate;
+    private final ScheduledExecutorService timer;
+    private volatile boolean bound;
+    private int bindAttempts; // timer thread only
+
+    // The most recent moves, a ring of directions ending at newestSeq; guarded by inputLock
+    private final ReentrantLock inputLock = new ReentrantLock();
+    private final byte[] recent = new byte[Protocol.UDP_REDUNDANT_INPUTS];
+    private final byte[] scratch = new byte[Protocol.UDP_REDUNDANT_INPUTS];
+    private int recentCount;
+    private int newestSeq;
+
+    private ClientUdpChannel(DatagramChannel channel, long token, ClientGameState state, Runnable onUpdate) {
+        this.channel = channel;
+        this.token = token;
+        this.state = state;
+        this.onUpdate = onUpdate;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "udp-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens the channel to the port the server offered and starts binding in the
+     * background. onUpdate runs on the receiving thread after each positions datagram.
+     */
+    public static ClientUdpChannel open(String host, int port, long token, ClientGameState state,
+                                        Runnable onUpdate) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.connect(new InetSocketAddress(host, port));
+        ClientUdpChannel udp = new ClientUdpChannel(channel, token, state, onUpdate);
+        Thread receiver = new Thread(udp, "udp-receive");
+        receiver.setDaemon(true);
+        receiver.start();
+        udp.timer.scheduleAtFixedRate(udp::onTimer, 0, RESEND_MILLIS, TimeUnit.MILLISECONDS);
+        return udp;
+    }
+
+    /** True once the server has confirmed the binding and moves go by UDP. */
+    public boolean isBound() {
+        return bound;
+    }
+
+    /**
+     * Sends a move the client has just predicted. Returns false if the channel isn't bound
+     * (yet, or at all), in which case the caller sends the MOVE over TCP.
+     */
+    public boolean sendMove(int direction, int seq) {
+        if (!bound) return false;
+        inputLock.lock();
+        try {
+            if (seq != newestSeq + 1) {
+                recentCount = 0; // moves before this one went by TCP
+            }
+            recent[seq % recent.length] = (byte) direction;
+            newestSeq = seq;
+            recentCount = Math.min(recentCount + 1, recent.length);
+            sendInputs();
+        } finally {
+            inputLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Sends the moves the server hasn't acknowledged yet, oldest first. Called with inputLock held.
+     */
+    private void sendInputs() {
+        int count = Math.min(recentCount, newestSeq - state.getLastAckSeq());
+        if (count <= 0) return;
+        for (int i = 0; i < count; i++) {
+            int seq = newestSeq - count + 1 + i;
+            scratch[i] = recent[seq % recent.length];
+        }
+        try {
+            channel.write(ByteBuffer.wrap(Protocol.encodeUdpInput(token, newestSeq, scratch, count)));
+        } catch (IOException e) {
+            // Treated like a lost datagram; the next resend tries again
+        }
+    }
+
+    /**
+     * Repeats UDP_BIND until the server answers, then resends unacknowledged moves.
+     */
+    private void onTimer() {
+        try {
+            if (!bound) {
+                if (++bindAttempts > BIND_ATTEMPTS) {
+                    System.err.println("No answer on UDP, moving over TCP.");
+                    close();
+                    return;
+                }
+                channel.write(ByteBuffer.wrap(Protocol.encodeUdpBind(token)));
+                return;
+            }
+            inputLock.lock();
+            try {
+                sendInputs();
+            } finally {
+                inputLock.unlock();
+            }
+        } catch (IOException e) {
+            // The next attempt tries again
+        }
+    }
+
+    /**
+     * Receives datagrams until the channel is closed.
+     */
+    @Override
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(Protocol.MAX_DATAGRAM);
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                channel.read(buffer);
+                buffer.flip();
+                if (!buffer.hasRemaining()) continue;
+                switch (buffer.get()) {
+                    case Protocol.UDP_BOUND -> bound = true;
+                    case Protocol.UDP_POSITIONS -> {
+                        state.applyPositions(buffer);
+                        onUpdate.run();
+                    }
+                    default -> {
+                    }
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                // A malformed datagram, or the port is unreachable (ICMP); keep listening
+            }
+        }
+    }
+
+    public void close() {
+        bound = false;
+        timer.shutdown();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The original generator: a randomized depth-first search from the top-left cell. It makes
+ * long, winding corridors with few branches. Its stack can grow to a byte for every four
+ * cells, so it needs memory in proportion to the whole maze while it carves.
+ *
+ * Mazes with at least a given number of cells are carved in tiles on a fork/join pool
+ * instead (see {@link TiledMazeGenerator}), which gives a different maze for the same seed;
+ * the choice depends on the size alone, so the maze still only depends on size and seed.
+ */
+final class DepthFirstMazeGenerator implements MazeGenerator {
+    // Mazes this big or bigger, and at least TiledMazeGenerator.MIN_WIDTH wide, are tiled by default
+    static final long TILED_CELLS = 4L << 20;
+    // The directions carvePath tries, as steps in x and y: down, up, right, left
+    private static final int[] DX = {0, 0, 1, -1};
+    private static final int[] DY = {1, -1, 0, 0};
+    // ORDERS[shuffle * 4 + i] is the i-th direction a cell tries, for each of the 24 shuffles
+    private static final byte[] ORDERS = orders();
+
+    private final long tiledCells;
+    private final ForkJoinPool pool;
+
+    /**
+     * A generator that tiles mazes of at least tiledCells cells on the pool. The
+     * benchmarks use this to force one way or the other.
+     */
+    DepthFirstMazeGenerator(long tiledCells, ForkJoinPool pool) {
+        this.tiledCells = tiledCells;
+        this.pool = pool;
+    }
+
+    @Override
+    public int id() {
+        return 0;
+    }
+
+    @Override
+    public String name() {
+        return "dfs";
+    }
+
+    /**
+     * Carves out paths from the top-left cell; the random choices come from the seed, so
+     * generating again gives the same maze.
+     */
+    @Override
+    public void carve(long[] walls, int width, int height, long seed) {
+        if ((long) width * height >= tiledCells && width >= TiledMazeGenerator.MIN_WIDTH) {
+            TiledMazeGenerator.carve(walls, width, height, seed, pool);
+            return;
+        }
+
+        // Carve paths using a simple random walk from a starting point
+        carvePath(walls, width, 0, 0, width, height, 1, 1, new Random(seed));
+    }
+
+    /**
+     * Carves paths through the maze from a cell with a randomized depth-first search: each
+     * cell tries the cells two steps away in a shuffled order, carves into any it hasn't
+     * reached yet, and goes on from there, coming back once all four directions are tried.
+     *
+     * Only cells inside [minX, maxX) x [minY, maxY) are carved into, so a tile of a bigger
+     * maze can be carved on its own; nothing outside it is written.
+     *
+     * The search keeps its own stack instead of recursing, so it works for any size on any
+     * thread. A stack frame is one byte: the shuffle the cell drew and the direction it is
+     * on. The cell itself isn't kept, since it is two steps back from the next one, so the
+     * stack never holds more than one byte for every four cells of the maze.
+     */
+    static void carvePath(long[] walls, int width, int minX, int minY, int maxX, int maxY,
+                          int x, int y, Random random) {
+        Maze.clearWall(walls, y * width + x); // Carve out the starting point
+        byte[] stack = new byte[256];
+        int top = 0;
+        stack[0] = shuffle(random);
+        while (true) {
+            int frame = stack[top];
+            int direction = ORDERS[frame];
+            int newX = x + DX[direction] * 2;
+            int newY = y + DY[direction] * 2;
+            int next = newY * width + newX;
+            if (newX >= minX && newX < maxX && newY >= minY && newY < maxY && (walls[next >>> 6] >>> next & 1) != 0) {
+                Maze.clearWall(walls, (y + DY[direction]) * width + x + DX[direction]); // Carve path
+                Maze.clearWall(walls, next); // Carve next cell
+                x = newX;
+                y = newY;
+                if (++top == stack.length) {
+                    stack = Arrays.copyOf(stack, top * 2);
+                }
+                stack[top] = shuffle(random);
+                continue;
+            }
+            // Move on to the next direction, going back out of every cell that has tried all four
+            while ((frame & 3) == 3) {
+                if (--top < 0) return;
+                frame = stack[top];
+                direction = ORDERS[frame];
+                x -= DX[direction] * 2;
+                y -= DY[direction] * 2;
+            }
+            stack[top] = (byte) (frame + 1);
+        }
+    }
+
+    /**
+     * Randomizes the order a cell tries the four directions in, to create a less predictable
+     * maze. Returns the first stack frame for the cell: its shuffle times four.
+     * Draws the same numbers as a Fisher-Yates shuffle of the four directions would.
+     */
+    private static byte shuffle(Random random) {
+        int a = random.nextInt(4);
+        int b = random.nextInt(3);
+        int c = random.nextInt(2);
+        return (byte) ((a * 6 + b * 2 + c) * 4);
+    }
+
+    /**
+     * The direction orders of all 24 shuffles: the four directions shuffled with the swaps
+     * that {@link #shuffle}'s three numbers stand for.
+     */
+    private static byte[] orders() {
+        byte[] orders = new byte[24 * 4];
+        for (int a = 0; a < 4; a++) {
+            for (int b = 0; b < 3; b++) {
+                for (int c = 0; c < 2; c++) {
+                    byte[] order = {0, 1, 2, 3};
+                    swap(order, a, 3);
+                    swap(order, b, 2);
+                    swap(order, c, 1);
+                    System.arraycopy(order, 0, orders, (a * 6 + b * 2 + c) * 4, 4);
+                }
+            }
+        }
+        return orders;
+    }
+
+    private static void swap(byte[] array, int i, int j) {
+        byte temp = array[i];
+        array[i] = array[j];
+        array[j] = temp;
+    }
+}
@@ -0,0 +1,289 @@
+import java.util.Arrays;
+
+/**
+ * How many moves every open position of a maze is from the exit, so hints, bots, spawn
+ * checks and leaderboards can look it up instead of searching.
+ *
+ * Only the cells, the positions with both coordinates odd, are stored: one int each, a
+ * quarter of the positions. Every other open position is a passage between two cells, or
+ * next to the exit, so its distance is one more than its nearest neighbour's and costs two
+ * more lookups. A 4001x4001 maze has 4M cells and takes 16 MB.
+ *
+ * The field is filled by a breadth-first search from the exit. The exit can be next to a
+ * cell or to a passage between two, so the search starts from every cell the exit reaches
+ * without passing another one, each at its own distance (0, 1 or 2). When part of the maze
+ * changes, {@link #update} only searches again where the distances can have changed.
+ */
+final class DistanceField {
+    /** The distance of a position the exit can't be reached from, or of a wall. */
+    static final int UNREACHABLE = -1;
+    // Steps for each direction: down, up, right, left
+    private static final int[] DX = {0, 0, 1, -1};
+    private static final int[] DY = {1, -1, 0, 0};
+
+    private final Maze maze;
+    private final int columns; // cells across
+    private final int rows;    // cells down
+    private final int[] distances; // by cell j * columns + i, at (2i + 1, 2j + 1); or UNREACHABLE
+
+    // The search's work lists; they are only needed while it runs
+    private long[] seeds;  // distance << 32 | cell, sorted
+    private int seedCount;
+    private int[] queue;   // a ring of cells
+    private int head;
+    private int size;
+
+    /**
+     * Computes the distances of a whole maze.
+     */
+    DistanceField(Maze maze) {
+        this.maze = maze;
+        this.columns = maze.getWidth() / 2;
+        this.rows = maze.getHeight() / 2;
+        this.distances = new int[columns * rows];
+        rebuild();
+    }
+
+    private void rebuild() {
+        Arrays.fill(distances, UNREACHABLE);
+        seedCount = 0;
+        addExitSeeds();
+        search();
+    }
+
+    /**
+     * The number of moves from a position to the exit: 0 at the exit itself, and
+     * {@link #UNREACHABLE} for walls, positions outside the maze and open positions the
+     * exit can't be reached from.
+     */
+    int distance(int x, int y) {
+        Position exit = maze.getExitPosition();
+        if (x == exit.x() && y == exit.y()) return 0;
+        if (maze.isWall(x, y)) return UNREACHABLE;
+        if ((x & y & 1) == 1) return distances[cell(x, y)];
+        // A passage, or an open position next to the exit: one past its nearest neighbour
+        int best = Integer.MAX_VALUE;
+        for (int direction = 0; direction < 4; direction++) {
+            int nx = x + DX[direction];
+            int ny = y + DY[direction];
+            int d;
+            if (nx == exit.x() && ny == exit.y()) {
+                d = 0;
+            } else if ((nx & ny & 1) == 1 && isCell(nx, ny)) {
+                d = distances[cell(nx, ny)];
+            } else {
+                continue;
+            }
+            if (d != UNREACHABLE && d < best) best = d;
+        }
+        return best == Integer.MAX_VALUE ? UNREACHABLE : best + 1;
+    }
+
+    /**
+     * The number of cells the exit can't be reached from; 0 in every maze a generator makes.
+     */
+    int unreachableCells() {
+        int count = 0;
+        for (int distance : distances) {
+            if (distance == UNREACHABLE) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Brings the distances up to date after the walls in [minX, maxX) x [minY, maxY)
+     * changed and nothing else did.
+     *
+     * The cells in or next to the rectangle are forgotten, and so is every cell whose
+     * distance came through one of them: walking outward, a neighbour exactly one cell
+     * further from the exit is forgotten too. That may forget more than it has to, never
+     * less. The forgotten cells are then searched again from the remembered cells around
+     * them, and the search also carries any shortcut the change opened out into the rest
+     * of the maze. The work is in proportion to the cells forgotten, not to the maze.
+     *
+     * In a perfect maze every cell beyond the rectangle, seen from the exit, is forgotten,
+     * since its only way out leads through it. That is usually a few cells, but a change
+     * on the main path cuts off most of the maze; once a quarter of the cells are
+     * forgotten, the whole field is computed again instead, which is quicker by then.
+     */
+    void update(int minX, int minY, int maxX, int maxY) {
+        // Cells within one position of the rectangle: every passage that changed is between two of them
+        int i0 = Math.max(0, (minX - 2) / 2);
+        int j0 = Math.max(0, (minY - 2) / 2);
+        int i1 = Math.min(columns, (maxX + 1) / 2);
+        int j1 = Math.min(rows, (maxY + 1) / 2);
+        if (i0 >= i1 || j0 >= j1) return;
+
+        // Forget them, and everything whose distance came through them. The walk keeps
+        // each forgotten cell with its old distance on the seed list, used as a stack
+        int[] forgotten = new int[(i1 - i0) * (j1 - j0)];
+        int forgottenCount = 0;
+        for (int j = j0; j < j1; j++) {
+            for (int i = i0; i < i1; i++) {
+                int cell = j * columns + i;
+                forgotten[forgottenCount++] = cell;
+                forget(cell);
+            }
+        }
+        int limit = distances.length / 4;
+        while (seedCount > 0) {
+            if (forgottenCount > limit) {
+                rebuild();
+                return;
+            }
+            long entry = seeds[--seedCount];
+            int cell = (int) entry;
+            int before = (int) (entry >>> 32);
+            int i = cell % columns;
+            int j = cell / columns;
+            for (int direction = 0; direction < 4; direction++) {
+                int next = neighbour(cell, i, j, direction);
+                if (next >= 0 && distances[next] == before + 2) {
+                    if (forgottenCount == forgotten.length) {
+                        forgotten = Arrays.copyOf(forgotten, forgottenCount * 2);
+                    }
+                    forgotten[forgottenCount++] = next;
+                    forget(next);
+                }
+            }
+        }
+
+        // Search again from the remembered cells around the forgotten ones, and from the exit
+        addExitSeeds();
+        for (int k = 0; k < forgottenCount; k++) {
+            int cell = forgotten[k];
+            int i = cell % columns;
+            int j = cell / columns;
+            for (int direction = 0; direction < 4; direction++) {
+                int next = neighbour(cell, i, j, direction);
+                if (next >= 0 && distances[next] != UNREACHABLE) {
+                    push((long) distances[next] << 32 | next);
+                }
+            }
+        }
+        search();
+    }
+
+    /**
+     * Marks a cell's distance unknown, and pushes it with the distance it had.
+     */
+    private void forget(int cell) {
+        int before = distances[cell];
+        if (before == UNREACHABLE) return;
+        distances[cell] = UNREACHABLE;
+        push((long) before << 32 | cell);
+    }
+
+    /**
+     * Seeds the cells the exit reaches without passing another cell.
+     */
+    private void addExitSeeds() {
+        Position exit = maze.getExitPosition();
+        int x = exit.x();
+        int y = exit.y();
+        if ((x & y & 1) == 1 && isCell(x, y)) {
+            push(cell(x, y));
+            return;
+        }
+        for (int direction = 0; direction < 4; direction++) {
+            int nx = x + DX[direction];
+            int ny = y + DY[direction];
+            if (maze.isWall(nx, ny)) continue;
+            if ((nx & ny & 1) == 1) {
+                push(1L << 32 | cell(nx, ny));
+                continue;
+            }
+            // A passage: the cells on its far sides are two moves away
+            for (int side = 0; side < 4; side++) {
+                int cx = nx + DX[side];
+                int cy = ny + DY[side];
+                if ((cx & cy & 1) == 1 && isCell(cx, cy) && !(cx == x && cy == y)) {
+                    push(2L << 32 | cell(cx, cy));
+                }
+            }
+        }
+    }
+
+    /**
+     * Breadth-first search from the seeds, which may start at different distances: they
+     * are sorted and taken in turn with the queue, whichever is nearer, so cells are still
+     * reached in order of distance. A cell's distance only ever goes down.
+     */
+    private void search() {
+        if (seedCount == 0) return;
+        Arrays.sort(seeds, 0, seedCount);
+        int nextSeed = 0;
+        head = 0;
+        size = 0;
+        while (nextSeed < seedCount || size > 0) {
+            int cell;
+            int distance;
+            long seed = nextSeed < seedCount ? seeds[nextSeed] : Long.MAX_VALUE;
+            if (size == 0 || (seed >>> 32) <= distances[queue[head]]) {
+                nextSeed++;
+                cell = (int) seed;
+                distance = (int) (seed >>> 32);
+                if (distances[cell] != UNREACHABLE && distances[cell] < distance) continue;
+                distances[cell] = distance;
+            } else {
+                cell = queue[head];
+                head = (head + 1) & (queue.length - 1);
+                size--;
+                distance = distances[cell];
+            }
+            int i = cell % columns;
+            int j = cell / columns;
+            for (int direction = 0; direction < 4; direction++) {
+                int next = neighbour(cell, i, j, direction);
+                if (next >= 0 && (distances[next] == UNREACHABLE || distances[next] > distance + 2)) {
+                    distances[next] = distance + 2;
+                    enqueue(next);
+                }
+            }
+        }
+        seedCount = 0;
+        seeds = null;
+        queue = null;
+    }
+
+    /**
+     * The cell one step in a direction from cell (i, j) that an open passage leads to, or -1.
+     */
+    private int neighbour(int cell, int i, int j, int direction) {
+        int dx = DX[direction];
+        int dy = DY[direction];
+        if (i + dx < 0 || i + dx >= columns || j + dy < 0 || j + dy >= rows) return -1;
+        return maze.isWall(2 * i + 1 + dx, 2 * j + 1 + dy) ? -1 : cell + dy * columns + dx;
+    }
+
+    private boolean isCell(int x, int y) {
+        return x > 0 && y > 0 && x / 2 < columns && y / 2 < rows;
+    }
+
+    private int cell(int x, int y) {
+        return y / 2 * columns + x / 2;
+    }
+
+    private void push(long entry) {
+        if (seeds == null) {
+            seeds = new long[64];
+        } else if (seedCount == seeds.length) {
+            seeds = Arrays.copyOf(seeds, seedCount * 2);
+        }
+        seeds[seedCount++] = entry;
+    }
+
+    private void enqueue(int cell) {
+        if (queue == null) {
+            queue = new int[64];
+        } else if (size == queue.length) {
+            int[] bigger = new int[queue.length * 2];
+            for (int k = 0; k < size; k++) {
+                bigger[k] = queue[(head + k) & (queue.length - 1)];
+            }
+            queue = bigger;
+            head = 0;
+        }
+        queue[(head + size++) & (queue.length - 1)] = cell;
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.Random;
+
+/**
+ * Checks {@link DistanceField#update} against computing the field from scratch.
+ *
+ * For every generator it makes mazes of a few sizes, odd and even, builds their distance
+ * fields, then has a run of earthquakes carve one to three random regions into each, the
+ * way a room with earthquake regions does (see {@link Maze#carveRegion}). After every
+ * earthquake the field, brought up to date for the rectangle around its regions, has to
+ * give the same distance at every position as a field computed from scratch for the maze
+ * as it now is. Regions pile up, so later ones land on mazes that earlier ones have given
+ * loops, and some are big enough or near enough the exit that the update falls back to a
+ * full rebuild, or the field is dropped; all of these are covered.
+ *
+ * It stops at the first position that differs and exits with status 1, so it can be run
+ * after any change to the field or to the generators. An argument it doesn't know exits
+ * with status 2, so a mistyped option can't pass for a check.
+ *
+ * Usage: java DistanceFieldCheck [--mazes=20] [--earthquakes=30] [--seed=1]
+ */
+public class DistanceFieldCheck {
+    private static final int[][] SIZES = { { 21, 11 }, { 41, 41 }, { 100, 60 }, { 201, 201 }, { 401, 301 } };
+
+    public static void main(String[] args) {
+        int mazes = 20;
+        int earthquakes = 30;
+        long seed = 1;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--mazes=")) {
+                mazes = Integer.parseInt(value);
+            } else if (arg.startsWith("--earthquakes=")) {
+                earthquakes = Integer.parseInt(value);
+            } else if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(value);
+            } else {
+                System.err.println("Usage: java DistanceFieldCheck [--mazes=20] [--earthquakes=30] [--seed=1]");
+                System.exit(2);
+            }
+        }
+
+        Random random = new Random(seed);
+        long updates = 0;
+        long positions = 0;
+        for (int id = 0; id < 4; id++) {
+            MazeGenerator generator = MazeGenerator.byId(id);
+            for (int n = 0; n < mazes; n++) {
+                int[] size = SIZES[n % SIZES.length];
+                Maze maze = new Maze(size[0], size[1], random.nextLong(), generator);
+                String failure = compare(maze, "maze " + n + " as generated");
+                for (int e = 0; e < earthquakes && failure == null; e++) {
+                    StringBuilder carved = new StringBuilder();
+                    for (int r = random.nextInt(3); r >= 0; r--) {
+                        int regionSize = 1 + random.nextInt(Math.max(size[0], size[1]) / 2);
+                        MazeRegion region = MazeRegion.random(size[0], size[1], regionSize, random);
+                        maze.carveRegion(region, region.carve(generator));
+                        carved.append(' ').append(region);
+                    }
+                    failure = compare(maze, "maze " + n + " after" + carved);
+                    updates++;
+                    positions += (long) size[0] * size[1];
+                }
+                if (failure != null) {
+                    System.out.println(generator.name() + " " + size[0] + "x" + size[1] + " seed "
+                        + maze.getSeed() + ", " + failure);
+                    System.exit(1);
+                }
+            }
+            System.out.println(generator.name() + ": " + mazes + " mazes, " + mazes * earthquakes
+                + " earthquakes, every update matches a rebuild");
+        }
+        System.out.printf("%d updates checked, %d positions compared%n", updates, positions);
+    }
+
+    /**
+     * Compares the maze's own field, building it first if needed, with a fresh one.
+     * Returns where they first differ, or null if they agree everywhere.
+     */
+    private static String compare(Maze maze, String when) {
+        DistanceField expected = new DistanceField(maze);
+        for (int y = 0; y < maze.getHeight(); y++) {
+            for (int x = 0; x < maze.getWidth(); x++) {
+                int actual = maze.distanceToExit(x, y);
+                int rebuilt = expected.distance(x, y);
+                if (actual != rebuilt) {
+                    return when + ": (" + x + ", " + y + ") is " + actual + " after the update, "
+                        + rebuilt + " rebuilt";
+                }
+            }
+        }
+        return null;
+    }
+}
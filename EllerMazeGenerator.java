@@ -0,0 +1,139 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Eller's algorithm, which builds the maze one row of cells at a time and never looks at
+ * a row again. Each cell of the current row belongs to a set: the cells it is already
+ * connected to through the rows above. Neighbouring cells in different sets are joined at
+ * random, then every set carries on into the next row through at least one passage down,
+ * and the cells nobody came down into start sets of their own. The last row joins every
+ * set that is left, so the maze is perfect.
+ *
+ * Only the current row's sets are kept, a few ints per column, so the working memory
+ * depends on the width alone. {@link #stream} hands each row of walls on as soon as it is
+ * done, so a maze can be written to disk or the network without ever being held whole.
+ */
+final class EllerMazeGenerator implements MazeGenerator {
+
+    @Override
+    public int id() {
+        return 3;
+    }
+
+    @Override
+    public String name() {
+        return "eller";
+    }
+
+    @Override
+    public void carve(long[] walls, int width, int height, long seed) {
+        stream(width, height, seed, (row, y) -> {
+            for (int word = 0; word < row.length; word++) {
+                long open = ~row[word];
+                if (word == row.length - 1 && (width & 63) != 0) {
+                    open &= (1L << width) - 1;
+                }
+                while (open != 0) {
+                    Maze.clearWall(walls, y * width + word * 64 + Long.numberOfTrailingZeros(open));
+                    open &= open - 1;
+                }
+            }
+        });
+    }
+
+    /**
+     * Generates the maze of a size and seed row by row, from y = 0 to height - 1, handing
+     * each to the sink with its y as soon as it is done. A row is its walls, bit x set for
+     * a wall, in an array that is reused for the next row. Gives the same maze as
+     * {@link #carve}.
+     */
+    static void stream(int width, int height, long seed, ObjIntConsumer<long[]> sink) {
+        int columns = width / 2;
+        int rows = height / 2;
+        Random random = new Random(seed);
+        long[] line = new long[(width + 63) >>> 6];
+        int[] set = new int[columns];       // each cell's set, which is a root in parent
+        int[] parent = new int[columns];    // union-find over the sets, indexed by set
+        int[] remaining = new int[columns]; // by set: its cells not yet considered for a passage down
+        boolean[] down = new boolean[columns]; // by set: it has a passage down already
+        for (int i = 0; i < columns; i++) {
+            set[i] = i;
+            parent[i] = i;
+        }
+
+        Arrays.fill(line, -1L);
+        sink.accept(line, 0);
+        int y = 1;
+        for (int row = 0; row < rows; row++) {
+            boolean last = row == rows - 1;
+
+            // The cells, joined to their right-hand neighbours at random
+            Arrays.fill(line, -1L);
+            for (int i = 0; i < columns; i++) {
+                clear(line, 2 * i + 1);
+            }
+            for (int i = 0; i < columns - 1; i++) {
+                int a = find(parent, set[i]);
+                int b = find(parent, set[i + 1]);
+                if (a != b && (last || random.nextBoolean())) {
+                    parent[a] = b;
+                    clear(line, 2 * i + 2);
+                }
+            }
+            sink.accept(line, y++);
+            if (last) break;
+
+            // Passages down: at random, and at least one from each set
+            for (int i = 0; i < columns; i++) {
+                set[i] = find(parent, set[i]);
+                remaining[set[i]]++;
+            }
+            Arrays.fill(line, -1L);
+            for (int i = 0; i < columns; i++) {
+                int s = set[i];
+                remaining[s]--;
+                if (random.nextBoolean() || (remaining[s] == 0 && !down[s])) {
+                    down[s] = true;
+                    clear(line, 2 * i + 1);
+                } else {
+                    set[i] = -1;
+                }
+            }
+            sink.accept(line, y++);
+
+            // Cells with no passage down into them start new sets, numbered from the unused ones
+            Arrays.fill(down, false);
+            for (int i = 0; i < columns; i++) {
+                if (set[i] >= 0) down[set[i]] = true;
+            }
+            for (int i = 0, free = 0; i < columns; i++) {
+                if (set[i] < 0) {
+                    while (down[free]) free++;
+                    set[i] = free;
+                    down[free] = true;
+                }
+                parent[set[i]] = set[i];
+            }
+            Arrays.fill(down, false);
+        }
+
+        // The bottom wall, if the height leaves room for one
+        Arrays.fill(line, -1L);
+        while (y < height) {
+            sink.accept(line, y++);
+        }
+    }
+
+    private static void clear(long[] line, int x) {
+        line[x >>> 6] &= ~(1L << x);
+    }
+
+    private static int find(int[] parent, int set) {
+        while (parent[set] != set) {
+            parent[set] = parent[parent[set]];
+            set = parent[set];
+        }
+        return set;
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ * A single change to the shared game state, sent to clients inside a DELTA frame.
+ * Events carry absolute positions, so applying the same event twice is harmless.
+ */
+public record GameEvent(byte type, int playerId, int x, int y, String name) {
+    public static final byte JOINED = 1; // int id, int x, int y, string name
+    public static final byte LEFT = 2;   // int id
+    public static final byte MOVED = 3;  // int id, int x, int y
+
+    public static GameEvent joined(Player player) {
+        Position pos = player.getPosition();
+        return new GameEvent(JOINED, player.getId(), pos.x(), pos.y(), player.getName());
+    }
+
+    public static GameEvent left(int playerId) {
+        return new GameEvent(LEFT, playerId, 0, 0, null);
+    }
+
+    public static GameEvent moved(int playerId, Position pos) {
+        return new GameEvent(MOVED, playerId, pos.x(), pos.y(), null);
+    }
+}
@@ -0,0 +1,413 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only journal of every room's state changes, so a server that dies can come
+ * back with the same rooms, mazes and players (see {@link #recover}).
+ *
+ * Each room collects a tick's changes in its own {@link Batch}: the coalesced JOINED,
+ * LEFT and MOVED events it broadcasts, the seed of a new maze, the regions an earthquake
+ * carved again in it, and the winner. At the end of the tick the batch is copied into a
+ * memory-mapped segment file in one go, with a length and a CRC so a batch cut short by
+ * a crash is recognised and ignored. The copy is the only work done under the journal's
+ * lock. Mapped pages belong to the operating system, so everything appended survives the
+ * JVM dying; {@link #force} (once a second) also gets it onto the disk in case the
+ * machine goes down.
+ *
+ * Segments are never rewritten. When one is full the journal moves on to the next
+ * generation, and every room writes a CHECKPOINT (its name, maze, winner and players) on
+ * its next tick. Once all live rooms have, the older segments are deleted, so the journal
+ * stays about one segment long however long the server runs.
+ */
+public class GameJournal {
+    // Record types. The first three are GameEvent's, so tick events are written as they are
+    static final byte JOINED = GameEvent.JOINED; // int id, int x, int y, string name
+    static final byte LEFT = GameEvent.LEFT;     // int id
+    static final byte MOVED = GameEvent.MOVED;   // int id, int x, int y
+    static final byte MAZE = 4;       // int mazeId, int width, int height, long seed, byte generator
+    static final byte WINNER = 5;     // string name
+    static final byte CHECKPOINT = 6; // string room name; the room's MAZE, REGIONs, WINNER and JOINEDs follow
+    static final byte CLOSED = 7;     // no payload; the room is gone
+    static final byte REGION = 8;     // int x, int y, int width, int height, long seed; see MazeRegion
+
+    static final int SEGMENT_SIZE = 64 << 20;
+    private static final int MAGIC = 0x4C4D4A31; // "LMJ1"
+    // 3: REGION records; 2: MAZE records name their generator; 1 is read as depth-first
+    private static final int FORMAT = 3;
+    static final int SEGMENT_HEADER = 16;  // int magic, int format, long generation
+    private static final int BATCH_HEADER = 8;     // int length, int crc; then int roomId and the records
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".bin";
+
+    private final Path directory;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long generation;
+    // Everything below is guarded by lock
+    private Path segmentPath;
+    private MappedByteBuffer segment;
+    private final List<Path> olderSegments = new ArrayList<>();
+    private final Set<Integer> liveRooms = new HashSet<>();
+    private final Set<Integer> pendingCheckpoints = new HashSet<>(); // live rooms not yet checkpointed here
+
+    /**
+     * Starts a new segment after the ones already in the directory. Those are kept until
+     * every room named in {@link #expectRooms} has written a checkpoint into the new one.
+     */
+    public GameJournal(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        TreeMap<Long, Path> existing = listSegments(directory);
+        olderSegments.addAll(existing.values());
+        openSegment(existing.isEmpty() ? 1 : existing.lastKey() + 1);
+    }
+
+    /**
+     * Marks rooms restored by {@link #recover} as live. The segments they came from are
+     * deleted once each of them has checkpointed.
+     */
+    public void expectRooms(Collection<Integer> roomIds) {
+        lock.lock();
+        try {
+            liveRooms.addAll(roomIds);
+            pendingCheckpoints.addAll(roomIds);
+            deleteOlderSegmentsIfDone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The segment being written. A room seeing this change writes a checkpoint. */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Appends a finished batch and returns the generation it went into. Called by a room at
+     * the end of its tick.
+     */
+    public long append(Batch batch) {
+        int size = batch.finish();
+        lock.lock();
+        try {
+            if (segment.remaining() < size) {
+                rollOver(size);
+            }
+            segment.put(batch.buf.array(), 0, size);
+            if (batch.checkpoint) {
+                liveRooms.add(batch.roomId);
+                pendingCheckpoints.remove(batch.roomId);
+                deleteOlderSegmentsIfDone();
+            }
+            if (batch.closed) {
+                liveRooms.remove(batch.roomId);
+                pendingCheckpoints.remove(batch.roomId);
+                deleteOlderSegmentsIfDone();
+            }
+            return generation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the appended batches through to the disk. Called from a background timer;
+     * only needed to survive the machine going down, not just the server.
+     */
+    public void force() {
+        MappedByteBuffer current;
+        lock.lock();
+        try {
+            current = segment;
+        } finally {
+            lock.unlock();
+        }
+        current.force();
+    }
+
+    private void rollOver(int needed) {
+        olderSegments.add(segmentPath);
+        try {
+            openSegment(generation + 1, needed);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not start journal segment " + (generation + 1), e);
+        }
+        pendingCheckpoints.clear();
+        pendingCheckpoints.addAll(liveRooms);
+        Log.info("Journal moved on to segment " + generation + ", waiting for " + liveRooms.size()
+            + " rooms to checkpoint");
+        deleteOlderSegmentsIfDone();
+    }
+
+    private void openSegment(long newGeneration) throws IOException {
+        openSegment(newGeneration, 0);
+    }
+
+    private void openSegment(long newGeneration, int needed) throws IOException {
+        Path path = directory.resolve(String.format("%s%016d%s", PREFIX, newGeneration, SUFFIX));
+        int size = Math.max(SEGMENT_SIZE, SEGMENT_HEADER + needed);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size); // stays valid after close
+        }
+        segment.putInt(MAGIC).putInt(FORMAT).putLong(newGeneration);
+        segmentPath = path;
+        generation = newGeneration;
+    }
+
+    private void deleteOlderSegmentsIfDone() {
+        if (!pendingCheckpoints.isEmpty() || olderSegments.isEmpty()) return;
+        for (Path path : olderSegments) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                Log.warn("Could not delete old journal segment " + path + ": " + e.getMessage());
+            }
+        }
+        olderSegments.clear();
+    }
+
+    private static TreeMap<Long, Path> listSegments(Path directory) throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())),
+                        file);
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Replays every segment in the directory, oldest first, and returns the rooms that were
+     * open when the server stopped, by ID. A batch that fails its length or CRC check ends
+     * its segment: it is the one being written when the server died.
+     */
+    public static Map<Integer, RecoveredRoom> recover(Path directory) throws IOException {
+        Map<Integer, RecoveredRoom> rooms = new TreeMap<>();
+        if (!Files.isDirectory(directory)) return rooms;
+        CRC32C crc = new CRC32C();
+        for (Path path : listSegments(directory).values()) {
+            ByteBuffer segment;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            int format = segment.remaining() < SEGMENT_HEADER || segment.getInt() != MAGIC ? 0 : segment.getInt();
+            if (format < 1 || format > FORMAT) {
+                Log.warn("Skipping " + path + ": not a journal segment");
+                continue;
+            }
+            segment.getLong(); // generation, already known from the name
+            while (segment.remaining() >= BATCH_HEADER) {
+                int length = segment.getInt();
+                int checksum = segment.getInt();
+                if (length < 4 || length > segment.remaining()) break;
+                ByteBuffer records = segment.slice(segment.position(), length);
+                crc.reset();
+                crc.update(records.duplicate());
+                if ((int) crc.getValue() != checksum) break;
+                segment.position(segment.position() + length);
+                replay(rooms, records, format);
+            }
+        }
+        return rooms;
+    }
+
+    private static void replay(Map<Integer, RecoveredRoom> rooms, ByteBuffer records, int format) {
+        int roomId = records.getInt();
+        RecoveredRoom room = rooms.computeIfAbsent(roomId, RecoveredRoom::new);
+        while (records.hasRemaining()) {
+            byte type = records.get();
+            switch (type) {
+                case JOINED -> {
+                    int id = records.getInt();
+                    Position pos = new Position(records.getInt(), records.getInt());
+                    room.players.put(id, new Player(id, Protocol.readString(records), pos));
+                }
+                case LEFT -> room.players.remove(records.getInt());
+                case MOVED -> {
+                    Player player = room.players.get(records.getInt());
+                    Position pos = new Position(records.getInt(), records.getInt());
+                    if (player != null) {
+                        player.setPosition(pos);
+                    }
+                }
+                case MAZE -> {
+                    room.mazeId = records.getInt();
+                    room.mazeWidth = records.getInt();
+                    room.mazeHeight = records.getInt();
+                    room.mazeSeed = records.getLong();
+                    room.mazeGenerator = format == 1 ? 0 : records.get();
+                    room.mazeRegions.clear();
+                }
+                case REGION -> room.mazeRegions.add(new MazeRegion(records.getInt(), records.getInt(),
+                    records.getInt(), records.getInt(), records.getLong()));
+                case WINNER -> room.winner = Protocol.readString(records);
+                case CHECKPOINT -> {
+                    room.name = Protocol.readString(records);
+                    room.players.clear();
+                    room.winner = null;
+                }
+                case CLOSED -> {
+                    rooms.remove(roomId);
+                    return;
+                }
+                default -> throw new IllegalStateException("Unknown journal record " + type + " for room " + roomId);
+            }
+        }
+    }
+
+    /**
+     * A room as the journal last saw it. Its players are no longer connected.
+     */
+    public static final class RecoveredRoom {
+        final int id;
+        String name = "";
+        int mazeId = 1;
+        int mazeWidth;
+        int mazeHeight;
+        long mazeSeed;
+        int mazeGenerator;
+        final List<MazeRegion> mazeRegions = new ArrayList<>(); // carved again since, oldest first
+        String winner;
+        final Map<Integer, Player> players = new LinkedHashMap<>();
+
+        RecoveredRoom(int id) {
+            this.id = id;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Map<Integer, Player> getPlayers() {
+            return players;
+        }
+    }
+
+    /**
+     * One room's records for one append, built on the room's own thread. Writing a MOVED
+     * allocates nothing; only names are encoded through a temporary array.
+     */
+    static final class Batch {
+        private final int roomId;
+        private final CRC32C crc = new CRC32C();
+        private ByteBuffer buf = ByteBuffer.allocate(4096);
+        private boolean checkpoint;
+        private boolean closed;
+
+        Batch(int roomId) {
+            this.roomId = roomId;
+            reset();
+        }
+
+        void reset() {
+            buf.clear();
+            buf.position(BATCH_HEADER);
+            buf.putInt(roomId);
+            checkpoint = false;
+            closed = false;
+        }
+
+        boolean isEmpty() {
+            return buf.position() == BATCH_HEADER + 4;
+        }
+
+        void event(GameEvent event) {
+            ensure(13);
+            buf.put(event.type()).putInt(event.playerId());
+            if (event.type() == GameEvent.JOINED) {
+                buf.putInt(event.x()).putInt(event.y());
+                putString(event.name());
+            } else if (event.type() == GameEvent.MOVED) {
+                buf.putInt(event.x()).putInt(event.y());
+            }
+        }
+
+        void maze(int mazeId, Maze maze) {
+            ensure(22);
+            buf.put(MAZE).putInt(mazeId).putInt(maze.getWidth()).putInt(maze.getHeight()).putLong(maze.getSeed())
+                .put((byte) maze.getGenerator().id());
+        }
+
+        void region(MazeRegion region) {
+            ensure(25);
+            buf.put(REGION).putInt(region.x()).putInt(region.y()).putInt(region.width()).putInt(region.height())
+                .putLong(region.seed());
+        }
+
+        void winner(String name) {
+            ensure(1);
+            buf.put(WINNER);
+            putString(name);
+        }
+
+        /**
+         * Starts a checkpoint; the caller follows it with the maze and its regions, the
+         * winner and every player.
+         */
+        void checkpoint(String roomName) {
+            ensure(1);
+            buf.put(CHECKPOINT);
+            putString(roomName);
+            checkpoint = true;
+        }
+
+        boolean hasCheckpoint() {
+            return checkpoint;
+        }
+
+        void closed() {
+            ensure(1);
+            buf.put(CLOSED);
+            closed = true;
+        }
+
+        private void putString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(bytes.length, 0xFFFF);
+            ensure(2 + length);
+            buf.putShort((short) length).put(bytes, 0, length);
+        }
+
+        private void ensure(int extra) {
+            if (buf.remaining() < extra) {
+                int position = buf.position();
+                buf = ByteBuffer.wrap(Arrays.copyOf(buf.array(), Math.max(buf.capacity() * 2, position + extra)));
+                buf.position(position);
+            }
+        }
+
+        /** Fills in the length and CRC and returns the size of the batch. */
+        int finish() {
+            int size = buf.position();
+            int length = size - BATCH_HEADER;
+            crc.reset();
+            crc.update(buf.array(), BATCH_HEADER, length);
+            buf.putInt(0, length).putInt(4, (int) crc.getValue());
+            return size;
+        }
+    }
+}
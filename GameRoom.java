@@ -0,0 +1,1116 @@
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One match: its own maze, players, earthquake schedule and winner.
+ *
+ * A room ticks on the simulation thread it was pinned to by the {@link Lobby}; every
+ * change to its state happens there. Players are added and removed from the connection
+ * threads under the room's lock, so a player switching rooms never gets a frame from the
+ * old room after the WELCOME of the new one.
+ *
+ * With a view radius set, each client only hears about the players inside the square
+ * viewport around its own position. Others are announced with JOINED when they come into
+ * view and LEFT when they go out of it, and moves are only sent while in view. Frames are
+ * then encoded per client; without a radius every client shares the same frames.
+ *
+ * The maze is streamed separately from the players: each client gets a MAZE_START when it
+ * joins and after every earthquake, then the tiles nearest to it first, a few per tick and
+ * only while its outbound queue is short (see {@link MazeTiles}). With a maze buffer, the
+ * next mazes are built and encoded ahead of time by a {@link MazePipeline}, and an
+ * earthquake only swaps the next one in. With earthquake regions set, an earthquake
+ * instead carves a few regions of the maze again in place (see {@link MazeRegion}) and
+ * every client gets just their walls, as MAZE_DIFF frames, so its cost follows the size
+ * of the regions rather than of the maze.
+ *
+ * Clients bound to the {@link UdpChannel} also get a UDP_POSITIONS datagram after every
+ * tick that changed something for them, in place of the ACK frame. It repeats the
+ * positions the TCP frames carry, so a lost datagram is made up for by the next one or,
+ * at worst, by the reliable stream.
+ *
+ * With a {@link GameJournal}, each tick's changes are appended to it in one batch. A room
+ * restored from the journal after a crash starts with its old maze and with its players
+ * absent: each gets their place back by connecting with the same name within
+ * {@link #RECONNECT_GRACE_NANOS}, after which the rest are dropped.
+ *
+ * Every random choice a room makes, its mazes and where players start, comes from its own
+ * generator seeded when the room is created. Given the seed and the same inputs in the
+ * same order, a room plays out the same way, which is what the {@link MatchRecorder}
+ * records and the {@link ReplayRunner} checks.
+ */
+public class GameRoom {
+    // Tiles are only streamed to a client while fewer frames than this are waiting for it
+    private static final int TILE_WINDOW = 16;
+    private static final int POSITIONS_PER_DATAGRAM =
+        (Protocol.MAX_DATAGRAM - Protocol.UDP_POSITIONS_HEADER) / Protocol.UDP_POSITION_ENTRY;
+    private static final long EARTHQUAKE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+    static final long RECONNECT_GRACE_NANOS = TimeUnit.MINUTES.toNanos(2);
+
+    private final int id;
+    private final String name;
+    private final Executor background; // builds new mazes off the simulation thread
+    private final ServerMetrics metrics = Server.getMetrics();
+    private final GameJournal journal = Server.getJournal(); // null unless started with --journal
+    private final RoomSettings settings;
+    private final int viewRadius;      // 0 means every client sees every player
+    private final long seed;
+    private final Random random;       // guarded by stateLock
+    private final MatchRecorder recorder; // null unless started with --record; guarded by stateLock
+    private volatile Maze maze;
+    private final Map<Integer, Player> players = new ConcurrentHashMap<>();
+    private final Map<Integer, ClientConnection> clientOutputs = new ConcurrentHashMap<>();
+    // Last state version each client was sent; NEEDS_SNAPSHOT if it must get a full snapshot
+    private final Map<Integer, Integer> clientVersions = new ConcurrentHashMap<>();
+    private static final int NEEDS_SNAPSHOT = -1;
+    // Changes since the last broadcast, sent to up-to-date clients as a DELTA
+    private final Queue<GameEvent> pendingEvents = new ConcurrentLinkedQueue<>();
+    // Moves waiting for the next tick, and the maze or regions the next earthquake will swap in
+    private final Queue<PlayerCommand> pendingCommands = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<Maze> pendingMaze = new AtomicReference<>();
+    private final AtomicReference<CarvedRegions> pendingRegions = new AtomicReference<>();
+    private final MazePipeline pipeline; // null without a maze buffer, or with earthquake regions
+    private final AtomicBoolean earthquakeRunning = new AtomicBoolean(false);
+    private final ReentrantLock stateLock = new ReentrantLock();
+    private final List<ClientConnection> stalledClients = new ArrayList<>(); // simulation thread only
+
+    // Everything below is guarded by stateLock
+    private int stateVersion = 0;
+    private final List<GameEvent> tickEvents = new ArrayList<>(); // reused each broadcast
+    private final Set<Integer> movedThisTick = new HashSet<>(); // scratch for coalesce
+    private long lastEncodeNanos, lastSendNanos; // timings of the last broadcast
+    // Area-of-interest filtering, only used with a view radius
+    private SpatialGrid grid;
+    private final Map<Integer, ClientView> clientViews = new HashMap<>();
+    private final Map<Integer, GameEvent> movesThisTick = new HashMap<>();
+    private final List<GameEvent> clientEvents = new ArrayList<>();
+    private final List<Player> visiblePlayers = new ArrayList<>();
+    private final Map<Integer, Integer> lastMoveSeqs = new HashMap<>(); // player -> last MOVE applied this tick
+    private final Map<Integer, Integer> appliedSeqs = new HashMap<>();  // player -> last MOVE ever applied
+    // UDP positions: the state version each bound client was last sent, and scratch buffers
+    private final Map<Integer, Integer> udpVersions = new HashMap<>();
+    private final ByteBuffer datagram = ByteBuffer.allocate(Protocol.MAX_DATAGRAM);
+    private ByteBuffer positionEntries = ByteBuffer.allocate(64 * Protocol.UDP_POSITION_ENTRY);
+    // The current maze as tiles, and how far each client has got through them
+    private MazeTiles tiles;
+    private final Map<Integer, MazeTiles.Stream> tileStreams = new HashMap<>();
+    private final List<MazeRegion> mazeRegions = new ArrayList<>(); // carved into the maze since it was built
+    private long regionsHash; // of their seeds, in order, for stateHash
+    private long nextEarthquakeNanos = System.nanoTime() + EARTHQUAKE_INTERVAL_NANOS;
+    private long earthquakeStartNanos; // of the earthquake still waiting for its maze or regions, or 0
+    // This tick's journal records, and the journal segment this room last checkpointed into
+    private final GameJournal.Batch journalBatch;
+    private long journalGeneration = -1;
+    // Players restored from the journal who haven't reconnected yet, and how long they may take
+    private final Map<Integer, Player> absentPlayers = new HashMap<>();
+    private long absentDeadlineNanos;
+    private volatile String winner;
+    private boolean closed;
+    private TickStats tickStats;
+    private ScheduledFuture<?> tickTask;
+
+    /**
+     * Creates a room whose random choices all come from the seed. It is recorded if the
+     * server was started with --record.
+     */
+    public GameRoom(int id, String name, RoomSettings settings, long seed, Executor background) {
+        this.id = id;
+        this.name = name;
+        this.settings = settings;
+        this.viewRadius = settings.viewRadius();
+        this.background = background;
+        this.seed = seed;
+        this.random = new Random(seed);
+        this.maze = new Maze(settings.mazeWidth(), settings.mazeHeight(), random.nextLong(), settings.mazeGenerator());
+        this.tiles = new MazeTiles(1, maze);
+        this.pipeline = hasPipeline(settings) ? new MazePipeline(id, settings, random.nextLong(), 2, background) : null;
+        this.journalBatch = journal == null ? null : new GameJournal.Batch(id);
+        Path recordDirectory = Server.getRecordDirectory();
+        this.recorder = recordDirectory == null ? null : MatchRecorder.open(recordDirectory, id, name, seed, settings);
+    }
+
+    /**
+     * Restores a room from the journal: the same maze, with any regions earthquakes carved
+     * into it carved again, winner and players, who are kept absent until they reconnect.
+     * Later earthquakes use the given settings and seed. Restored rooms aren't recorded,
+     * since a recording has to start from an empty room.
+     */
+    public GameRoom(GameJournal.RecoveredRoom recovered, RoomSettings settings, long seed, Executor background) {
+        this.id = recovered.id;
+        this.name = recovered.name;
+        this.settings = settings;
+        this.viewRadius = settings.viewRadius();
+        this.background = background;
+        this.seed = seed;
+        this.random = new Random(seed);
+        this.recorder = null;
+        this.maze = new Maze(recovered.mazeWidth, recovered.mazeHeight, recovered.mazeSeed,
+            MazeGenerator.byId(recovered.mazeGenerator));
+        for (MazeRegion region : recovered.mazeRegions) {
+            maze.carveRegion(region, region.carve(maze.getGenerator()));
+            mazeRegions.add(region);
+        }
+        this.tiles = new MazeTiles(recovered.mazeId, maze);
+        this.pipeline = hasPipeline(settings)
+            ? new MazePipeline(id, settings, random.nextLong(), recovered.mazeId + 1, background) : null;
+        this.winner = recovered.winner;
+        this.journalBatch = journal == null ? null : new GameJournal.Batch(id);
+        this.absentPlayers.putAll(recovered.players);
+        this.absentDeadlineNanos = System.nanoTime() + RECONNECT_GRACE_NANOS;
+    }
+
+    private static boolean hasPipeline(RoomSettings settings) {
+        return settings.mazeBuffer() > 0 && settings.earthquakeRegions() == 0;
+    }
+
+    /**
+     * Starts ticking on the given simulation thread. Ticks are timed into the thread's stats.
+     */
+    void start(ScheduledExecutorService simThread, TickStats stats) {
+        this.tickStats = stats;
+        this.tickTask = simThread.scheduleAtFixedRate(this::tick,
+            stats.getPeriodNanos(), stats.getPeriodNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Adds a player to the room and sends the WELCOME and MAZE_START; the next ticks send
+     * the snapshot and start streaming the maze.
+     * Returns false if the room has already been closed.
+     */
+    boolean join(int playerId, String playerName, ClientConnection connection) {
+        stateLock.lock();
+        try {
+            if (closed) return false;
+            admit(new Player(playerId, playerName, findStartLocation()), connection);
+            if (recorder != null) {
+                recorder.join(playerId, playerName);
+            }
+        } finally {
+            stateLock.unlock();
+        }
+        Log.info("Player " + playerName + " joined room " + id + " (" + name + ").");
+        return true;
+    }
+
+    /**
+     * Puts the player restored from the journal with this ID back where they were, taking
+     * them out of the absent players in the same step. Returns false if they are no longer
+     * absent, because they were given up on or the room has been closed since.
+     */
+    boolean rejoin(int playerId, ClientConnection connection) {
+        Player player;
+        stateLock.lock();
+        try {
+            if (closed) return false;
+            player = absentPlayers.remove(playerId);
+            if (player == null) return false;
+            admit(player, connection);
+        } finally {
+            stateLock.unlock();
+        }
+        Log.info("Player " + player.getName() + " rejoined room " + id + " (" + name + ") at "
+            + player.getPosition() + ".");
+        return true;
+    }
+
+    /**
+     * Returns the ID of the absent player restored from the journal with this name, or -1.
+     * They stay absent until {@link #rejoin}, so they are still checkpointed and still given
+     * up on if whoever found them goes away first.
+     */
+    int findAbsent(String playerName) {
+        stateLock.lock();
+        try {
+            for (Player player : absentPlayers.values()) {
+                if (player.getName().equals(playerName)) return player.getId();
+            }
+            return -1;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /** Adds a player and sends the WELCOME and MAZE_START. Called under stateLock. */
+    private void admit(Player player, ClientConnection connection) {
+        int playerId = player.getId();
+        players.put(playerId, player);
+        pendingEvents.add(GameEvent.joined(player));
+        connection.send(Protocol.encodeWelcome(playerId, id));
+        connection.send(tiles.getStartFrame());
+        tileStreams.put(playerId, new MazeTiles.Stream(tiles));
+        clientVersions.put(playerId, NEEDS_SNAPSHOT);
+        clientOutputs.put(playerId, connection);
+    }
+
+    /**
+     * Removes a player. Everyone left hears about it on the next tick.
+     * Once this returns, no more frames from this room are queued for the player.
+     */
+    void leave(int playerId) {
+        stateLock.lock();
+        try {
+            clientOutputs.remove(playerId);
+            clientVersions.remove(playerId);
+            clientViews.remove(playerId);
+            tileStreams.remove(playerId);
+            appliedSeqs.remove(playerId);
+            udpVersions.remove(playerId);
+            if (players.remove(playerId) != null) {
+                pendingEvents.add(GameEvent.left(playerId));
+                if (recorder != null) {
+                    recorder.leave(playerId);
+                }
+            }
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the room if nobody is in it or still expected back after a restart. Returns
+     * true if it was closed; later joins fail.
+     */
+    boolean closeIfEmpty() {
+        stateLock.lock();
+        try {
+            if (!players.isEmpty() || !absentPlayers.isEmpty()) return false;
+            closed = true;
+            if (tickTask != null) {
+                tickTask.cancel(false);
+            }
+            if (journalBatch != null) {
+                journalBatch.closed();
+                journal.append(journalBatch);
+                journalBatch.reset();
+            }
+            if (recorder != null) {
+                recorder.close();
+            }
+            return true;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a move for the next tick. The sequence number is acknowledged once it is applied.
+     */
+    void queueMove(int playerId, int direction, int seq) {
+        pendingCommands.add(new PlayerCommand(playerId, direction, seq));
+    }
+
+    /**
+     * Makes the next tick send the player a full snapshot (after a RESYNC).
+     */
+    void requestSnapshot(int playerId) {
+        clientVersions.replace(playerId, NEEDS_SNAPSHOT);
+    }
+
+    /**
+     * Runs one simulation step: swaps in a new maze if an earthquake is ready, applies
+     * every command queued since the last tick in arrival order, then sends all clients
+     * a single coalesced update, an ACK (or UDP positions) to everyone who moved, and the
+     * next few tiles of the maze. The tick's changes then go to the journal in one batch.
+     */
+    void tick() {
+        runTick(false, false, false);
+    }
+
+    /**
+     * Runs one tick of a replayed match. Whether it swaps in the pending maze and starts an
+     * earthquake comes from the recording instead of the clock; build the room with an
+     * executor that runs tasks straight away, so an earthquake's maze is ready in time.
+     */
+    void replayTick(boolean swapMaze, boolean startEarthquake) {
+        runTick(true, swapMaze, startEarthquake);
+    }
+
+    private void runTick(boolean replay, boolean swapMaze, boolean startEarthquake) {
+        stateLock.lock();
+        try {
+            long start = System.nanoTime();
+            if (journal != null && journal.getGeneration() != journalGeneration) {
+                writeCheckpoint();
+            }
+            if (!absentPlayers.isEmpty() && start - absentDeadlineNanos > 0) {
+                dropAbsentPlayers();
+            }
+            if (!replay || swapMaze) {
+                Maze nextMaze = pendingMaze.getAndSet(null);
+                if (nextMaze != null) {
+                    long swapStart = System.nanoTime();
+                    replaceMaze(new MazeTiles(tiles.getMazeId() + 1, nextMaze));
+                    metrics.earthquake.record(System.nanoTime() - swapStart);
+                }
+                CarvedRegions carved = pendingRegions.getAndSet(null);
+                if (carved != null && carved.maze() == maze) {
+                    long carveStart = System.nanoTime();
+                    carveRegions(carved);
+                    metrics.earthquake.record(System.nanoTime() - carveStart);
+                }
+            }
+            if (replay ? startEarthquake : isEarthquakeDue(start)) {
+                startEarthquake();
+            }
+            if (pipeline != null && earthquakeStartNanos != 0 && (!replay || swapMaze)) {
+                long swapStart = System.nanoTime();
+                MazeTiles nextTiles = pipeline.take();
+                if (nextTiles != null) {
+                    replaceMaze(nextTiles);
+                    earthquakeRunning.set(false);
+                    metrics.earthquake.record(System.nanoTime() - swapStart);
+                }
+            }
+
+            int commandCount = 0;
+            PlayerCommand command;
+            while ((command = pendingCommands.poll()) != null) {
+                long commandStart = System.nanoTime();
+                processCommand(command.playerId(), command.direction());
+                metrics.processCommand.record(System.nanoTime() - commandStart);
+                lastMoveSeqs.put(command.playerId(), command.seq());
+                appliedSeqs.put(command.playerId(), command.seq());
+                if (recorder != null) {
+                    recorder.move(command.playerId(), command.direction());
+                }
+                commandCount++;
+            }
+            long applyNanos = System.nanoTime() - start;
+
+            broadcastGameState();
+            long streamStart = System.nanoTime();
+            sendPositions();
+            sendAcks();
+            streamTiles();
+            lastSendNanos += System.nanoTime() - streamStart;
+            if (tickStats != null) { // replays don't run on a simulation thread
+                tickStats.record(commandCount, applyNanos, lastEncodeNanos, lastSendNanos);
+            }
+            appendJournal();
+            if (recorder != null) {
+                recorder.endTick(stateHash(), start);
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel the scheduled tick and freeze the room
+            Log.error("Error during tick of room " + id + ": " + e, e);
+        } finally {
+            stateLock.unlock();
+        }
+
+        // Disconnect clients that stopped reading only after releasing the lock, since
+        // closing a connection leaves this room
+        for (int i = 0; i < stalledClients.size(); i++) {
+            stalledClients.get(i).close();
+        }
+        stalledClients.clear();
+    }
+
+    /**
+     * Writes everything needed to rebuild the room into the journal's current segment:
+     * its name, maze and the regions carved into it, winner and every player, absent ones
+     * included. Done on the first tick and whenever the journal starts a new segment, so
+     * older ones can be deleted.
+     */
+    private void writeCheckpoint() {
+        journalBatch.checkpoint(name);
+        journalBatch.maze(tiles.getMazeId(), maze);
+        for (MazeRegion region : mazeRegions) {
+            journalBatch.region(region);
+        }
+        if (winner != null) {
+            journalBatch.winner(winner);
+        }
+        for (Player player : players.values()) {
+            journalBatch.event(GameEvent.joined(player));
+        }
+        for (Player player : absentPlayers.values()) {
+            journalBatch.event(GameEvent.joined(player));
+        }
+    }
+
+    /**
+     * Appends this tick's journal records, if there are any.
+     */
+    private void appendJournal() {
+        if (journalBatch == null || journalBatch.isEmpty()) return;
+        long start = System.nanoTime();
+        long generation = journal.append(journalBatch);
+        if (journalBatch.hasCheckpoint()) {
+            journalGeneration = generation;
+        }
+        journalBatch.reset();
+        metrics.journal.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Gives up on the players restored from the journal who haven't reconnected in time.
+     */
+    private void dropAbsentPlayers() {
+        for (Integer playerId : absentPlayers.keySet()) {
+            pendingEvents.add(GameEvent.left(playerId));
+        }
+        Log.info(absentPlayers.size() + " players did not come back to room " + id + " after the restart.");
+        absentPlayers.clear();
+    }
+
+    /**
+     * Swaps in the maze an earthquake built and restarts every client's tile stream.
+     * The MAZE_START goes out straight away, so clients stop using the old walls before
+     * any later update reaches them.
+     */
+    private void replaceMaze(MazeTiles nextTiles) {
+        maze = nextTiles.getMaze();
+        tiles = nextTiles;
+        mazeRegions.clear();
+        regionsHash = 0;
+        if (journalBatch != null) {
+            journalBatch.maze(tiles.getMazeId(), maze);
+        }
+        if (recorder != null) {
+            recorder.maze(maze.getSeed());
+        }
+        byte[] start = tiles.getStartFrame();
+        for (Map.Entry<Integer, ClientConnection> client : clientOutputs.entrySet()) {
+            client.getValue().send(start);
+            tileStreams.put(client.getKey(), new MazeTiles.Stream(tiles));
+        }
+        recordEarthquakeLatency();
+    }
+
+    /**
+     * Records how long the earthquake took from being due to its new walls going out.
+     */
+    private void recordEarthquakeLatency() {
+        if (earthquakeStartNanos != 0) {
+            metrics.earthquakeLatency.record(System.nanoTime() - earthquakeStartNanos);
+            earthquakeStartNanos = 0;
+        }
+    }
+
+    /**
+     * Copies the regions an earthquake carved into the maze and sends every client their
+     * new walls as MAZE_DIFF frames, a band of rows at a time for a region too big for one.
+     * The cached tiles they overlap are dropped, so clients still streaming the maze get
+     * the new walls. Anyone left standing in a passage that closed is put on the cell next
+     * to it, which is always open.
+     */
+    private void carveRegions(CarvedRegions carved) {
+        long diffBytes = 0;
+        for (int r = 0; r < carved.regions().size(); r++) {
+            MazeRegion region = carved.regions().get(r);
+            maze.carveRegion(region, carved.walls().get(r));
+            tiles.invalidate(region.x(), region.y(), region.width(), region.height());
+            mazeRegions.add(region);
+            regionsHash = mix(regionsHash + region.seed());
+            if (journalBatch != null) {
+                journalBatch.region(region);
+            }
+            int bandRows = Math.max(1, Protocol.MAX_DIFF_CELLS / region.width());
+            int bottom = region.y() + region.height();
+            for (int y = region.y(); y < bottom; y += bandRows) {
+                byte[] diff = Protocol.encodeMazeDiff(tiles.getMazeId(), maze, region.x(), y,
+                    region.width(), Math.min(bandRows, bottom - y));
+                diffBytes += diff.length;
+                for (ClientConnection connection : clientOutputs.values()) {
+                    connection.send(diff);
+                }
+            }
+        }
+        for (Player player : players.values()) {
+            if (moveOutOfWall(player)) {
+                pendingEvents.add(GameEvent.moved(player.getId(), player.getPosition()));
+            }
+        }
+        for (Player player : absentPlayers.values()) {
+            if (moveOutOfWall(player) && journalBatch != null) {
+                journalBatch.event(GameEvent.moved(player.getId(), player.getPosition()));
+            }
+        }
+        if (recorder != null) {
+            recorder.regions();
+        }
+        recordEarthquakeLatency();
+        if (!clientOutputs.isEmpty()) {
+            metrics.earthquakeDiffBytes.record(diffBytes);
+        }
+    }
+
+    /**
+     * Moves a player standing in a wall to the cell up and to the left of it: a passage
+     * that closed is always between two cells, and cells are always open.
+     */
+    private boolean moveOutOfWall(Player player) {
+        Position pos = player.getPosition();
+        if (!maze.isWall(pos.x(), pos.y()) || pos.equals(maze.getExitPosition())) return false;
+        player.setPosition(new Position((pos.x() - 1) | 1, (pos.y() - 1) | 1));
+        return true;
+    }
+
+    /**
+     * Tells each player who moved this tick where the server has them after their last
+     * move. Clients that predict their own moves check their guess against this, and
+     * replay any moves the server hasn't applied yet.
+     */
+    private void sendAcks() {
+        UdpChannel udp = Server.getUdp();
+        for (Map.Entry<Integer, Integer> move : lastMoveSeqs.entrySet()) {
+            ClientConnection connection = clientOutputs.get(move.getKey());
+            Player player = players.get(move.getKey());
+            if (udp != null && udp.isBound(move.getKey())) {
+                continue; // acknowledged in the UDP positions
+            }
+            if (connection != null && player != null) {
+                connection.send(Protocol.encodeAck(move.getValue(), player.getPosition()));
+            }
+        }
+        lastMoveSeqs.clear();
+    }
+
+    /**
+     * Sends every UDP-bound client the positions it can see, with its own position and the
+     * last move applied for it, if anything changed since the last datagram or it sent
+     * input since (so it may have missed the last one). Without a view radius the entries
+     * are the same for everyone and written once; with one, each client gets the players
+     * it has been told about over TCP, since it has no names for the others.
+     */
+    private void sendPositions() {
+        UdpChannel udp = Server.getUdp();
+        if (udp == null) return;
+        int sharedCount = -1;
+        for (Integer playerId : clientOutputs.keySet()) {
+            if (!udp.isBound(playerId)) continue;
+            boolean requested = udp.takePositionsRequest(playerId);
+            Integer sentVersion = udpVersions.get(playerId);
+            if (!requested && !lastMoveSeqs.containsKey(playerId)
+                && sentVersion != null && sentVersion == stateVersion) {
+                continue;
+            }
+            Player self = players.get(playerId);
+            if (self == null) continue;
+
+            int count;
+            if (viewRadius > 0) {
+                count = 0;
+                positionEntries.clear();
+                ClientView view = clientViews.get(playerId);
+                for (int i = 0; view != null && i < view.count; i++) {
+                    Player player = players.get(view.ids[i]);
+                    if (player != null) {
+                        putPositionEntry(player);
+                        count++;
+                    }
+                }
+            } else {
+                if (sharedCount < 0) {
+                    sharedCount = 0;
+                    positionEntries.clear();
+                    for (Player player : players.values()) {
+                        putPositionEntry(player);
+                        sharedCount++;
+                    }
+                }
+                count = sharedCount;
+            }
+
+            // Large rooms are split over several datagrams, each with the full header
+            int ackSeq = appliedSeqs.getOrDefault(playerId, 0);
+            int sent = 0;
+            do {
+                int n = Math.min(count - sent, POSITIONS_PER_DATAGRAM);
+                datagram.clear();
+                Protocol.writePositionsHeader(datagram, id, stateVersion, ackSeq, self.getPosition(), n);
+                datagram.put(positionEntries.array(), sent * Protocol.UDP_POSITION_ENTRY,
+                    n * Protocol.UDP_POSITION_ENTRY);
+                datagram.flip();
+                udp.send(playerId, datagram);
+                sent += n;
+            } while (sent < count);
+            udpVersions.put(playerId, stateVersion);
+        }
+    }
+
+    private void putPositionEntry(Player player) {
+        if (positionEntries.remaining() < Protocol.UDP_POSITION_ENTRY) {
+            ByteBuffer larger = ByteBuffer.allocate(positionEntries.capacity() * 2);
+            positionEntries.flip();
+            positionEntries = larger.put(positionEntries);
+        }
+        Position pos = player.getPosition();
+        positionEntries.putInt(player.getId()).putInt(pos.x()).putInt(pos.y());
+    }
+
+    /**
+     * Sends each client the next tiles of the maze, nearest to the player first.
+     * Flow control is the client's own outbound queue: nothing more is streamed while
+     * {@link #TILE_WINDOW} frames are already waiting, so a slow connection is never
+     * buried under maze data and its game updates keep getting through.
+     */
+    private void streamTiles() {
+        for (Map.Entry<Integer, MazeTiles.Stream> entry : tileStreams.entrySet()) {
+            MazeTiles.Stream stream = entry.getValue();
+            if (stream.isComplete()) continue;
+            ClientConnection connection = clientOutputs.get(entry.getKey());
+            Player player = players.get(entry.getKey());
+            if (connection == null || player == null) continue;
+
+            OutboundQueue queue = connection.getOutboundQueue();
+            Position pos = player.getPosition();
+            for (int sent = 0; sent < settings.tilesPerTick() && queue.getDepth() < TILE_WINDOW; sent++) {
+                int tile = stream.next(pos.x(), pos.y());
+                if (tile < 0) break;
+                connection.send(tiles.getTileFrame(tile));
+            }
+        }
+    }
+
+    /**
+     * Returns true when the room's earthquake is due and no earlier one is still being
+     * built. Empty rooms skip their earthquakes.
+     */
+    private boolean isEarthquakeDue(long now) {
+        if (now - nextEarthquakeNanos < 0) return false; // nanoTime values only compare by difference
+        nextEarthquakeNanos = now + EARTHQUAKE_INTERVAL_NANOS;
+        return !players.isEmpty() && earthquakeRunning.compareAndSet(false, true);
+    }
+
+    /**
+     * Starts building the next maze in the background, or carving the next regions. The
+     * seeds and regions are drawn here, on the simulation thread, so the room's random
+     * choices stay in a repeatable order. With a maze buffer there is nothing to start:
+     * the tick swaps in the next ready maze, now or as soon as it is finished.
+     */
+    private void startEarthquake() {
+        if (recorder != null) {
+            recorder.earthquake();
+        }
+        earthquakeStartNanos = System.nanoTime();
+        if (pipeline != null) {
+            Log.info("Earthquake in room " + id + "! The maze is shifting...");
+            return;
+        }
+        if (settings.earthquakeRegions() > 0) {
+            Maze target = maze;
+            List<MazeRegion> regions = new ArrayList<>(settings.earthquakeRegions());
+            for (int i = 0; i < settings.earthquakeRegions(); i++) {
+                regions.add(MazeRegion.random(target.getWidth(), target.getHeight(),
+                    settings.earthquakeRegionSize(), random));
+            }
+            background.execute(() -> triggerRegionEarthquake(target, regions));
+            return;
+        }
+        long mazeSeed = random.nextLong();
+        background.execute(() -> triggerEarthquake(mazeSeed));
+    }
+
+    /**
+     * Sends every client whatever it needs to catch up with the current game state.
+     * Called once per tick. Clients that are up to date get one DELTA with the events since
+     * the last broadcast; new clients and clients that asked for a RESYNC get a full
+     * SNAPSHOT. Without a view radius both frames are encoded at
+     * most once per broadcast; with one, see {@link #encodeView}.
+     */
+    private void broadcastGameState() {
+        long start = System.nanoTime();
+        long encodeNanos = 0;
+        long bytes = 0;
+        List<GameEvent> events = tickEvents;
+        events.clear();
+        GameEvent event;
+        while ((event = pendingEvents.poll()) != null) {
+            events.add(event);
+        }
+        coalesce(events);
+        if (journalBatch != null) {
+            for (int i = 0; i < events.size(); i++) {
+                journalBatch.event(events.get(i));
+            }
+        }
+
+        int fromVersion = stateVersion;
+        if (!events.isEmpty()) {
+            stateVersion++;
+        }
+        Integer newVersion = stateVersion; // boxed once, not once per client
+        // Each frame is encoded once and the same array is queued for every client
+        byte[] delta = events.isEmpty() || viewRadius > 0
+            ? null : Protocol.encodeDelta(fromVersion, stateVersion, events);
+        byte[] snapshot = null;
+        boolean indexed = false;
+        encodeNanos += System.nanoTime() - start;
+
+        int slowClientTimeoutMillis = Server.getSlowClientTimeoutMillis();
+        for (Integer playerId : clientOutputs.keySet()) {
+            ClientConnection connection = clientOutputs.get(playerId);
+            if (connection == null) {
+                continue; // just left
+            }
+            // Every client, even one that only gets control frames this tick
+            if (connection.getOutboundQueue().isStalled(slowClientTimeoutMillis)) {
+                Log.info("Player " + playerId + " is too far behind. Disconnecting.");
+                stalledClients.add(connection);
+                continue;
+            }
+            Integer clientVersion = clientVersions.get(playerId);
+            if (clientVersion == null || clientVersion == stateVersion) {
+                continue; // already up to date (or just left)
+            }
+
+            boolean sendSnapshot;
+            byte[] frame;
+            if (viewRadius > 0) {
+                sendSnapshot = clientVersion == NEEDS_SNAPSHOT;
+                long encodeStart = System.nanoTime();
+                if (!indexed) {
+                    indexPlayers(events);
+                    indexed = true;
+                }
+                frame = encodeView(playerId, clientVersion, sendSnapshot);
+                encodeNanos += System.nanoTime() - encodeStart;
+                if (frame == null) {
+                    continue; // nothing this client can see has changed
+                }
+            } else {
+                sendSnapshot = delta == null || clientVersion != fromVersion;
+                if (sendSnapshot && snapshot == null) {
+                    long encodeStart = System.nanoTime();
+                    snapshot = Protocol.encodeSnapshot(stateVersion, players.values());
+                    encodeNanos += System.nanoTime() - encodeStart;
+                }
+                frame = sendSnapshot ? snapshot : delta;
+            }
+
+            if (connection.sendState(frame, sendSnapshot)) {
+                bytes += frame.length;
+                clientVersions.replace(playerId, newVersion);
+                if (viewRadius > 0) {
+                    clientViews.get(playerId).commit();
+                }
+            } else {
+                clientVersions.replace(playerId, NEEDS_SNAPSHOT); // fell behind, resync later
+            }
+        }
+        events.clear();
+
+        long broadcastNanos = System.nanoTime() - start;
+        lastEncodeNanos = encodeNanos;
+        lastSendNanos = broadcastNanos - encodeNanos;
+        metrics.broadcast.record(broadcastNanos);
+        if (bytes > 0) {
+            metrics.broadcastBytes.record(bytes);
+        }
+    }
+
+    /**
+     * Files every player in the spatial grid and indexes this tick's moves by player.
+     */
+    private void indexPlayers(List<GameEvent> events) {
+        Maze maze = this.maze;
+        if (grid == null || !grid.fits(maze.getWidth(), maze.getHeight())) {
+            grid = new SpatialGrid(maze.getWidth(), maze.getHeight(), viewRadius);
+        }
+        grid.clear();
+        for (Player player : players.values()) {
+            Position pos = player.getPosition();
+            grid.add(player.getId(), pos.x(), pos.y());
+        }
+        movesThisTick.clear();
+        for (GameEvent event : events) {
+            if (event.type() == GameEvent.MOVED) {
+                movesThisTick.put(event.playerId(), event);
+            }
+        }
+    }
+
+    /**
+     * Encodes what one client needs to see: a snapshot holding only the players in its
+     * viewport, or a delta made by comparing who is in view now with who the client
+     * already knows about. Returns null if nothing in view has changed.
+     * The client's view is only updated once the frame has been queued.
+     */
+    private byte[] encodeView(int playerId, int clientVersion, boolean snapshot) {
+        Player self = players.get(playerId);
+        if (self == null) return null;
+        ClientView view = clientViews.computeIfAbsent(playerId, id -> new ClientView());
+        Position pos = self.getPosition();
+        int count = grid.query(pos.x(), pos.y(), viewRadius);
+        int[] inView = view.prepare(grid.getResults(), count);
+
+        if (snapshot) {
+            visiblePlayers.clear();
+            for (int i = 0; i < count; i++) {
+                Player player = players.get(inView[i]);
+                if (player != null) {
+                    visiblePlayers.add(player);
+                }
+            }
+            return Protocol.encodeSnapshot(stateVersion, visiblePlayers);
+        }
+
+        // Both ID lists are sorted, so one merge pass finds who entered, left or moved
+        clientEvents.clear();
+        int[] known = view.ids;
+        int i = 0, j = 0;
+        while (i < view.count || j < count) {
+            int knownId = i < view.count ? known[i] : Integer.MAX_VALUE;
+            int visibleId = j < count ? inView[j] : Integer.MAX_VALUE;
+            if (knownId < visibleId) {
+                clientEvents.add(GameEvent.left(knownId));
+                i++;
+            } else if (visibleId < knownId) {
+                Player player = players.get(visibleId);
+                if (player != null) {
+                    clientEvents.add(GameEvent.joined(player));
+                }
+                j++;
+            } else {
+                GameEvent move = movesThisTick.get(knownId);
+                if (move != null) {
+                    clientEvents.add(move);
+                }
+                i++;
+                j++;
+            }
+        }
+        if (clientEvents.isEmpty()) return null;
+        return Protocol.encodeDelta(clientVersion, stateVersion, clientEvents);
+    }
+
+    /**
+     * The players a client has been told about, as sorted IDs, plus the next set being
+     * prepared for the frame that is about to be queued.
+     */
+    private static final class ClientView {
+        int[] ids = new int[16];
+        int count;
+        private int[] nextIds = new int[16];
+        private int nextCount;
+
+        int[] prepare(int[] found, int n) {
+            if (nextIds.length < n) {
+                nextIds = new int[Integer.highestOneBit(n) << 1];
+            }
+            System.arraycopy(found, 0, nextIds, 0, n);
+            Arrays.sort(nextIds, 0, n);
+            nextCount = n;
+            return nextIds;
+        }
+
+        void commit() {
+            int[] previous = ids;
+            ids = nextIds;
+            count = nextCount;
+            nextIds = previous;
+        }
+    }
+
+    /**
+     * Drops every MOVED event that a later MOVED for the same player supersedes, so a
+     * player who moved several times during one tick costs one event.
+     */
+    private void coalesce(List<GameEvent> events) {
+        if (events.size() < 2) return;
+        // Walk backwards keeping the last move of each player, packing the kept events
+        // towards the end of the list so no second list is needed
+        int kept = events.size();
+        for (int i = events.size() - 1; i >= 0; i--) {
+            GameEvent event = events.get(i);
+            if (event.type() == GameEvent.MOVED && !movedThisTick.add(event.playerId())) {
+                continue;
+            }
+            events.set(--kept, event);
+        }
+        events.subList(0, kept).clear();
+        movedThisTick.clear();
+    }
+
+    /**
+     * Triggers an earthquake that regenerates the maze.
+     * The new maze is built here, off the simulation thread; the next tick swaps it in.
+     */
+    private void triggerEarthquake(long mazeSeed) {
+        try {
+            Log.info("Earthquake in room " + id + "! The maze is shifting...");
+            long start = System.nanoTime();
+            pendingMaze.set(new Maze(settings.mazeWidth(), settings.mazeHeight(), mazeSeed, settings.mazeGenerator()));
+            metrics.mazeBuild.record(System.nanoTime() - start);
+        } finally {
+            earthquakeRunning.set(false);
+        }
+    }
+
+    /**
+     * Triggers an earthquake that carves regions of the maze again. They are carved here,
+     * off the simulation thread, each into an array of its own; the next tick copies them
+     * in, as long as the maze hasn't been replaced since.
+     */
+    private void triggerRegionEarthquake(Maze target, List<MazeRegion> regions) {
+        try {
+            Log.info("Earthquake in room " + id + "! " + regions.size()
+                + (regions.size() == 1 ? " part" : " parts") + " of the maze are shifting...");
+            long start = System.nanoTime();
+            List<long[]> walls = new ArrayList<>(regions.size());
+            for (MazeRegion region : regions) {
+                walls.add(region.carve(target.getGenerator()));
+            }
+            pendingRegions.set(new CarvedRegions(target, regions, walls));
+            metrics.mazeBuild.record(System.nanoTime() - start);
+        } finally {
+            earthquakeRunning.set(false);
+        }
+    }
+
+    /**
+     * Regions carved for a maze, waiting for the next tick to copy them in.
+     */
+    private record CarvedRegions(Maze maze, List<MazeRegion> regions, List<long[]> walls) {
+    }
+
+    /**
+     * A move received from a client, waiting to be applied on the next tick.
+     */
+    private record PlayerCommand(int playerId, int direction, int seq) {
+    }
+
+    /**
+     * Processes a move received from a client.
+     * Move tracing is only built when the log is at debug level, so with it off (the
+     * default) this allocates nothing beyond the new position.
+     */
+    private void processCommand(int playerId, int direction) {
+        Player player = players.get(playerId);
+        if (player == null) return;
+
+        Position currentPos = player.getPosition();
+        Position exitPos = maze.getExitPosition();
+        boolean trace = Log.isDebugEnabled();
+
+        if (trace) {
+            Log.debug(">>> Command from " + player.getName() + " = " + direction + " current=" + currentPos);
+        }
+
+        // Game logic: Move player if the next cell is not a wall, or if it's the exit cell.
+        // Clients predict their own moves with the same rule.
+        Position newPos = maze.step(currentPos, direction);
+
+        if (!newPos.equals(currentPos)) {
+            player.setPosition(newPos);
+            pendingEvents.add(GameEvent.moved(playerId, newPos));
+            if (trace) {
+                Log.debug(">>> " + player.getName() + " moved to " + newPos);
+            }
+
+            // Check for win condition
+            if (newPos.equals(exitPos)) {
+                Log.info("Player " + player.getName() + " reached the exit in room " + id + "!");
+                winner = player.getName();
+                if (journalBatch != null) {
+                    journalBatch.winner(winner);
+                }
+                broadcastWinner(player.getName());
+            }
+        } else if (trace) {
+            Log.debug(">>> " + player.getName() + " move blocked");
+        }
+    }
+
+    /**
+     * Finds a random empty space for a new player to spawn. Called under stateLock.
+     */
+    private Position findStartLocation() {
+        Maze maze = this.maze;
+        int x, y;
+        do {
+            x = random.nextInt(maze.getWidth());
+            y = random.nextInt(maze.getHeight());
+        } while (maze.isWall(x, y) || maze.getExitPosition().equals(new Position(x, y)));
+        return new Position(x, y);
+    }
+
+    /**
+     * Broadcasts a winner message to everyone in the room.
+     */
+    private void broadcastWinner(String winnerName) {
+        byte[] winFrame = Protocol.encodeWinner(winnerName);
+        for (ClientConnection connection : clientOutputs.values()) {
+            connection.send(winFrame);
+        }
+    }
+
+    /**
+     * A hash of everything a client can see: the maze and the regions carved into it, the
+     * winner, the state version and where every player is. A replay that ends a tick with
+     * the same hash as the recording agrees with it. Players are summed rather than
+     * chained, so map order doesn't matter. Called under stateLock, or between ticks by a
+     * replay.
+     */
+    long stateHash() {
+        long hash = mix(maze.getSeed() ^ tiles.getMazeId());
+        hash = mix(hash + regionsHash);
+        hash = mix(hash + stateVersion);
+        hash = mix(hash + (winner == null ? 0 : winner.hashCode()));
+        long playerSum = 0;
+        for (Player player : players.values()) {
+            Position pos = player.getPosition();
+            playerSum += mix(mix(player.getId()) + ((long) pos.x() << 32 | (pos.y() & 0xFFFFFFFFL)));
+        }
+        return mix(hash + playerSum);
+    }
+
+    /** SplitMix64's finalizer: every input bit affects every output bit. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /** The seed every random choice in the room comes from. */
+    public long getSeed() {
+        return seed;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPlayerCount() {
+        return players.size();
+    }
+
+    /** Mazes built ahead for the next earthquakes; 0 without a maze buffer. */
+    public int getReadyMazeCount() {
+        return pipeline == null ? 0 : pipeline.getDepth();
+    }
+
+    /**
+     * Returns the name of the last player to reach the exit, or null if nobody has yet.
+     */
+    public String getWinner() {
+        return winner;
+    }
+
+    public RoomInfo getInfo() {
+        String lastWinner = winner;
+        return new RoomInfo(id, name, players.size(), lastWinner == null ? "" : lastWinner);
+    }
+}
@@ -0,0 +1,202 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long players wait for the maze against a running server.
+ *
+ * Connects a number of clients at once and records, for each, the time from sending HELLO
+ * until the tiles around the player have arrived (the first playable frame) and until the
+ * whole maze has. It then waits for the room's next earthquakes and records the time from
+ * each MAZE_START to the new maze being playable around the player. Earthquakes that only
+ * carve regions of the maze again leave it playable throughout; for those it records the
+ * size of the MAZE_DIFF frames instead. Start the server with a large --maze-size to see
+ * the effect of streaming.
+ *
+ * Usage: java JoinBenchmark [--host=localhost] [--clients=50] [--room=1] [--earthquakes=1]
+ */
+public class JoinBenchmark {
+    private static final int PORT = 12345;
+
+    public static void main(String[] args) throws Exception {
+        String host = "localhost";
+        int clientCount = 50;
+        int roomId = Protocol.DEFAULT_ROOM;
+        int earthquakes = 1;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--host=")) {
+                host = value;
+            } else if (arg.startsWith("--clients=")) {
+                clientCount = Integer.parseInt(value);
+            } else if (arg.startsWith("--room=")) {
+                roomId = Integer.parseInt(value);
+            } else if (arg.startsWith("--earthquakes=")) {
+                earthquakes = Integer.parseInt(value);
+            } else {
+                System.err.println("Usage: java JoinBenchmark [--host=localhost] [--clients=50] [--room=1]"
+                    + " [--earthquakes=1]");
+                return;
+            }
+        }
+
+        CountDownLatch done = new CountDownLatch(clientCount);
+        List<Bot> bots = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            Bot bot = new Bot(host, "bench-" + i, roomId, earthquakes, done);
+            bots.add(bot);
+            new Thread(bot, "bench-" + i).start();
+        }
+        // Earthquakes come every 30 seconds
+        if (!done.await(15 + 35L * earthquakes, TimeUnit.SECONDS)) {
+            System.out.println("Timed out; reporting the clients that finished.");
+        }
+
+        List<Long> joinPlayable = new ArrayList<>(), joinComplete = new ArrayList<>();
+        List<Long> joinBytes = new ArrayList<>(), quakePlayable = new ArrayList<>(), diffBytes = new ArrayList<>();
+        for (Bot bot : bots) {
+            if (bot.joinPlayableNanos >= 0) joinPlayable.add(bot.joinPlayableNanos);
+            if (bot.joinCompleteNanos >= 0) joinComplete.add(bot.joinCompleteNanos);
+            if (bot.joinPlayableNanos >= 0) joinBytes.add(bot.bytesWhenPlayable);
+            synchronized (bot.quakePlayableNanos) {
+                quakePlayable.addAll(bot.quakePlayableNanos);
+                diffBytes.addAll(bot.diffBytes);
+            }
+        }
+        System.out.printf("%d clients, maze %s%n", clientCount, bots.get(0).mazeSize);
+        System.out.printf("%-30s %6s %10s %10s %10s%n", "", "n", "p50", "p95", "max");
+        printMillis("join -> playable (ms)", joinPlayable);
+        printMillis("join -> whole maze (ms)", joinComplete);
+        printMillis("earthquake -> playable (ms)", quakePlayable);
+        printCount("bytes received until playable", joinBytes);
+        printCount("bytes per maze diff", diffBytes);
+        System.exit(0);
+    }
+
+    private static void printMillis(String label, List<Long> nanos) {
+        if (nanos.isEmpty()) {
+            System.out.printf("%-30s %6d%n", label, 0);
+            return;
+        }
+        long[] sorted = sort(nanos);
+        System.out.printf("%-30s %6d %10.1f %10.1f %10.1f%n", label, sorted.length,
+            percentile(sorted, 50) / 1e6, percentile(sorted, 95) / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static void printCount(String label, List<Long> values) {
+        if (values.isEmpty()) return;
+        long[] sorted = sort(values);
+        System.out.printf("%-30s %6d %10d %10d %10d%n", label, sorted.length,
+            percentile(sorted, 50), percentile(sorted, 95), sorted[sorted.length - 1]);
+    }
+
+    private static long[] sort(List<Long> values) {
+        long[] sorted = values.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    /**
+     * One client that joins, watches the maze arrive and records when it became playable.
+     */
+    private static final class Bot implements Runnable {
+        private final String host;
+        private final String name;
+        private final int roomId;
+        private final int earthquakes;
+        private final CountDownLatch done;
+        private final ClientGameState state = new ClientGameState();
+        volatile long joinPlayableNanos = -1, joinCompleteNanos = -1, bytesWhenPlayable;
+        final List<Long> quakePlayableNanos = new ArrayList<>();
+        final List<Long> diffBytes = new ArrayList<>(); // guarded by quakePlayableNanos
+        volatile String mazeSize = "?";
+
+        Bot(String host, String name, int roomId, int earthquakes, CountDownLatch done) {
+            this.host = host;
+            this.name = name;
+            this.roomId = roomId;
+            this.earthquakes = earthquakes;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = new Socket(host, PORT);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                long helloNanos = System.nanoTime();
+                Protocol.writeFrame(out, Protocol.encodeHello(name, roomId));
+                int playerId = -1, mazes = 0, diffs = 0;
+                long bytes = 0;
+                boolean playable = false;
+                while (true) {
+                    ByteBuffer frame = Protocol.readFrame(in, Protocol.MAX_SERVER_FRAME);
+                    bytes += 4 + frame.remaining();
+                    switch (frame.get()) {
+                        case Protocol.WELCOME -> playerId = frame.getInt();
+                        case Protocol.MAZE_START -> {
+                            state.applyMazeStart(frame);
+                            mazeSize = state.getMaze().getWidth() + "x" + state.getMaze().getHeight();
+                            mazes++;
+                            playable = false;
+                        }
+                        case Protocol.MAZE_TILE -> state.applyMazeTile(frame);
+                        case Protocol.MAZE_DIFF -> {
+                            synchronized (quakePlayableNanos) {
+                                diffBytes.add(5L + frame.remaining()); // with the length and opcode
+                            }
+                            state.applyMazeDiff(frame);
+                            diffs++;
+                        }
+                        case Protocol.SNAPSHOT -> state.applySnapshot(frame);
+                        case Protocol.DELTA -> {
+                            if (!state.applyDelta(frame)) {
+                                Protocol.writeFrame(out, Protocol.encodeResync());
+                            }
+                        }
+                        case Protocol.ERROR -> throw new IOException(Protocol.readString(frame));
+                        default -> {
+                        }
+                    }
+
+                    long now = System.nanoTime();
+                    Player me = state.getPlayers().get(playerId);
+                    if (!playable && me != null && state.isAreaKnown(me.getPosition())) {
+                        playable = true;
+                        if (mazes == 1) {
+                            joinPlayableNanos = now - helloNanos;
+                            bytesWhenPlayable = bytes;
+                        } else {
+                            synchronized (quakePlayableNanos) {
+                                quakePlayableNanos.add(now - state.getMazeStartNanos());
+                            }
+                        }
+                    }
+                    if (mazes == 1 && joinCompleteNanos < 0 && state.isMazeComplete()) {
+                        joinCompleteNanos = now - helloNanos;
+                    }
+                    if (playable && mazes - 1 + diffs >= earthquakes && (mazes > 1 || joinCompleteNanos >= 0)) {
+                        return;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println(name + ": " + e);
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+}
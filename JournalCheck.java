@@ -0,0 +1,270 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * Checks {@link GameJournal} end to end in a temporary directory: appending and
+ * recovering, rolling over to a new segment, deleting the old segments once every live
+ * room has checkpointed, recovering across segments and after a restart, ignoring a batch
+ * that fails its CRC, and forgetting a CLOSED room. It then restores a room into a
+ * {@link Lobby} and checks that a player who reconnects, drops before rejoining and
+ * reconnects again still gets their old place back.
+ *
+ * Rolling over writes a little more than one 64 MB segment. It stops at the first check
+ * that fails and exits with status 1.
+ *
+ * Usage: java JournalCheck
+ */
+public class JournalCheck {
+    private static final Position START = new Position(1, 1);
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("journal-check");
+        try {
+            appendAndRecover(directory.resolve("append"));
+            rollOver(directory.resolve("rollover"));
+            restart(directory.resolve("restart"));
+            tornBatch(directory.resolve("torn"));
+            reconnect(directory.resolve("reconnect"));
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+        System.out.println("Every journal check passed");
+    }
+
+    /** Two rooms with players who move; one of them closes. */
+    private static void appendAndRecover(Path directory) throws IOException {
+        GameJournal journal = new GameJournal(directory);
+        GameJournal.Batch one = checkpoint(journal, 1, "one", 1, 2, 3);
+        GameJournal.Batch two = checkpoint(journal, 2, "two", 4);
+        one.event(GameEvent.moved(2, new Position(3, 1)));
+        one.event(GameEvent.left(3));
+        journal.append(one);
+        one.reset();
+        two.closed();
+        journal.append(two);
+
+        Map<Integer, GameJournal.RecoveredRoom> rooms = GameJournal.recover(directory);
+        check(rooms.keySet().equals(Set.of(1)), "only room 1 is recovered, got " + rooms.keySet());
+        GameJournal.RecoveredRoom room = rooms.get(1);
+        check(room.name.equals("one") && room.mazeWidth == 21 && room.mazeHeight == 11,
+            "room 1 keeps its name and maze, got " + room.name + " " + room.mazeWidth + "x" + room.mazeHeight);
+        check(room.players.keySet().equals(Set.of(1, 2)), "room 1 has players 1 and 2, got " + room.players.keySet());
+        check(room.players.get(2).getPosition().equals(new Position(3, 1)),
+            "player 2 is where they last moved, got " + room.players.get(2).getPosition());
+        System.out.println("append: moves, LEFT and CLOSED recovered");
+    }
+
+    /**
+     * Fills a segment with one room's moves while another stays quiet, then has each
+     * checkpoint in turn. The old segment has to outlive the first checkpoint and be gone
+     * after the second, and recovery has to read both segments while they are there.
+     */
+    private static void rollOver(Path directory) throws IOException {
+        GameJournal journal = new GameJournal(directory);
+        GameJournal.Batch busy = checkpoint(journal, 1, "busy", 1);
+        checkpoint(journal, 2, "quiet", 2);
+        long generation = journal.getGeneration();
+        int x = 1;
+        long written = 0;
+        while (journal.getGeneration() == generation) {
+            for (int i = 0; i < 1000; i++) {
+                busy.event(GameEvent.moved(1, new Position(x, 1)));
+                x = x == 19 ? 1 : x + 2;
+            }
+            written += busy.finish();
+            journal.append(busy);
+            busy.reset();
+        }
+        Position last = new Position(x == 1 ? 19 : x - 2, 1);
+        check(journal.getGeneration() == generation + 1,
+            "rolled over to generation " + (generation + 1) + ", got " + journal.getGeneration());
+        check(segments(directory).size() == 2, "the old segment is kept until the rooms checkpoint");
+
+        Map<Integer, GameJournal.RecoveredRoom> rooms = GameJournal.recover(directory);
+        check(rooms.keySet().equals(Set.of(1, 2)), "both rooms recovered across segments, got " + rooms.keySet());
+        check(rooms.get(1).players.get(1).getPosition().equals(last),
+            "the last move, in the new segment, is recovered, got " + rooms.get(1).players.get(1).getPosition());
+
+        checkpoint(journal, 1, "busy", 1);
+        check(segments(directory).size() == 2, "the old segment waits for the quiet room's checkpoint");
+        checkpoint(journal, 2, "quiet", 2);
+        check(segments(directory).size() == 1, "the old segment is deleted once every room has checkpointed");
+        rooms = GameJournal.recover(directory);
+        check(rooms.keySet().equals(Set.of(1, 2)), "both rooms recovered from the checkpoints, got " + rooms.keySet());
+        System.out.printf("rollover: %d MB in, moved on to segment %d, old one deleted after both checkpoints%n",
+            written >> 20, journal.getGeneration());
+    }
+
+    /**
+     * Recovers, starts a journal in the same directory as a restarted server does, and
+     * checks that the old segment is kept until the restored room has checkpointed.
+     */
+    private static void restart(Path directory) throws IOException {
+        GameJournal before = new GameJournal(directory);
+        GameJournal.Batch batch = checkpoint(before, 7, "restored", 1, 2);
+        batch.event(GameEvent.moved(1, new Position(3, 1)));
+        before.append(batch);
+
+        Map<Integer, GameJournal.RecoveredRoom> rooms = GameJournal.recover(directory);
+        GameJournal after = new GameJournal(directory);
+        after.expectRooms(rooms.keySet());
+        check(after.getGeneration() == before.getGeneration() + 1, "a restarted journal starts a new segment");
+        check(segments(directory).size() == 2, "the segment recovered from is kept until the room checkpoints");
+        rooms = GameJournal.recover(directory);
+        check(rooms.get(7).players.get(1).getPosition().equals(new Position(3, 1)),
+            "a second crash before the checkpoint still recovers the room");
+
+        checkpoint(after, 7, "restored", 1, 2);
+        check(segments(directory).size() == 1, "the old segment is deleted after the restored room's checkpoint");
+        rooms = GameJournal.recover(directory);
+        check(rooms.keySet().equals(Set.of(7)) && rooms.get(7).players.size() == 2,
+            "the room is recovered from its checkpoint alone");
+        System.out.println("restart: old segment kept until the restored room checkpointed");
+    }
+
+    /**
+     * Corrupts the last batch, as a crash in the middle of copying it would, and checks
+     * that recovery keeps everything before it and nothing of it.
+     */
+    private static void tornBatch(Path directory) throws IOException {
+        GameJournal journal = new GameJournal(directory);
+        GameJournal.Batch batch = new GameJournal.Batch(1);
+        batch.checkpoint("torn");
+        batch.maze(1, new Maze(21, 11, 1));
+        batch.event(GameEvent.joined(new Player(1, "player-1", START)));
+        batch.event(GameEvent.moved(1, new Position(3, 1)));
+        long offset = GameJournal.SEGMENT_HEADER + batch.finish();
+        journal.append(batch);
+        batch.reset();
+        batch.event(GameEvent.moved(1, new Position(5, 1)));
+        batch.event(GameEvent.left(1));
+        int size = batch.finish();
+        journal.append(batch);
+
+        try (FileChannel channel = FileChannel.open(segments(directory).get(0), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            long position = offset + size - 1;
+            channel.read(last, position);
+            last.put(0, (byte) (last.get(0) ^ 1)).rewind();
+            channel.write(last, position);
+        }
+
+        GameJournal.RecoveredRoom room = GameJournal.recover(directory).get(1);
+        check(room != null && room.players.containsKey(1), "the corrupt batch's LEFT is ignored");
+        check(room.players.get(1).getPosition().equals(new Position(3, 1)),
+            "the batch before the corrupt one is kept, got " + room.players.get(1).getPosition());
+        System.out.println("torn batch: ignored, everything before it recovered");
+    }
+
+    /**
+     * Restores a room with one absent player into a lobby. Their first connection drops
+     * before joining; the next one has to get the same ID and place, and a second
+     * connection with the name while that one holds it has to get a new ID.
+     */
+    private static void reconnect(Path directory) throws Exception {
+        GameJournal journal = new GameJournal(directory);
+        GameJournal.Batch batch = checkpoint(journal, 5, "restored", 1);
+        batch.event(GameEvent.moved(1, new Position(3, 1)));
+        journal.append(batch);
+        Map<Integer, GameJournal.RecoveredRoom> recovered = GameJournal.recover(directory);
+
+        ExecutorService background = Executors.newSingleThreadExecutor();
+        Lobby lobby = new Lobby(1, 30, 4, RoomSettings.DEFAULT, background, 1, recovered);
+        try {
+            int first = lobby.connect("player-1", new DiscardingConnection());
+            check(first == 1, "the first connection takes over player 1, got " + first);
+            lobby.disconnect(first);
+
+            int second = lobby.connect("player-1", new DiscardingConnection());
+            check(second == 1, "a connection after one that dropped before joining still gets player 1, got "
+                + second);
+            int third = lobby.connect("player-1", new DiscardingConnection());
+            check(third != 1, "only one connection at a time holds player 1");
+
+            lobby.joinRoom(second, Protocol.DEFAULT_ROOM);
+            GameRoom room = lobby.roomOf(second);
+            check(room != null && room.getId() == 5 && room.getPlayerCount() == 1,
+                "player 1 goes back to room 5, not the room they asked for");
+            lobby.disconnect(third);
+        } finally {
+            lobby.shutdown();
+            background.shutdownNow();
+        }
+        System.out.println("reconnect: a connection that drops before joining leaves the player absent");
+    }
+
+    /**
+     * Appends a checkpoint for a room with a 21x11 maze and the given players at the start,
+     * and returns the room's batch, empty again.
+     */
+    private static GameJournal.Batch checkpoint(GameJournal journal, int roomId, String name, int... playerIds) {
+        GameJournal.Batch batch = new GameJournal.Batch(roomId);
+        batch.checkpoint(name);
+        batch.maze(1, new Maze(21, 11, roomId));
+        for (int playerId : playerIds) {
+            batch.event(GameEvent.joined(new Player(playerId, "player-" + playerId, START)));
+        }
+        journal.append(batch);
+        batch.reset();
+        return batch;
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "journal-*.bin")) {
+            files.forEach(segments::add);
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private static void check(boolean passed, String what) {
+        if (!passed) {
+            System.out.println("FAILED: " + what);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * A reconnecting player's connection: frames are accepted and thrown away.
+     */
+    private static final class DiscardingConnection implements ClientConnection {
+        private final OutboundQueue queue = new OutboundQueue(1);
+
+        @Override
+        public void send(byte[] frame) {
+        }
+
+        @Override
+        public boolean sendState(byte[] frame, boolean snapshot) {
+            return true;
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return queue;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
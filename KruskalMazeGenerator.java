@@ -0,0 +1,71 @@
+import java.util.Random;
+
+/**
+ * Randomized Kruskal's algorithm: every wall between two cells is taken in a random order
+ * and knocked down if the cells on either side aren't connected yet, which a union-find
+ * over the cells keeps track of. The mazes branch everywhere, with many short dead ends.
+ *
+ * It needs an int per cell for the union-find and up to two for the list of walls, so a
+ * 10001x10001 maze takes about 300 MB while it is carved.
+ */
+final class KruskalMazeGenerator implements MazeGenerator {
+
+    @Override
+    public int id() {
+        return 1;
+    }
+
+    @Override
+    public String name() {
+        return "kruskal";
+    }
+
+    @Override
+    public void carve(long[] walls, int width, int height, long seed) {
+        int columns = width / 2;
+        int rows = height / 2;
+        int cells = columns * rows;
+        if (cells == 0) return;
+
+        // A wall is the cell on its left or top, times two, plus 1 if it is below the cell
+        int[] edges = new int[2 * cells];
+        int count = 0;
+        int[] parent = new int[cells];
+        for (int cell = 0; cell < cells; cell++) {
+            int column = cell % columns;
+            int row = cell / columns;
+            Maze.clearWall(walls, (2 * row + 1) * width + 2 * column + 1);
+            parent[cell] = cell;
+            if (column < columns - 1) edges[count++] = cell * 2;
+            if (row < rows - 1) edges[count++] = cell * 2 + 1;
+        }
+        Random random = new Random(seed);
+        for (int i = count - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int temp = edges[i];
+            edges[i] = edges[j];
+            edges[j] = temp;
+        }
+
+        for (int i = 0, joined = 0; i < count && joined < cells - 1; i++) {
+            int cell = edges[i] >>> 1;
+            boolean below = (edges[i] & 1) != 0;
+            int a = find(parent, cell);
+            int b = find(parent, below ? cell + columns : cell + 1);
+            if (a == b) continue;
+            parent[a] = b;
+            joined++;
+            int x = 2 * (cell % columns) + 1;
+            int y = 2 * (cell / columns) + 1;
+            Maze.clearWall(walls, below ? (y + 1) * width + x : y * width + x + 1);
+        }
+    }
+
+    private static int find(int[] parent, int cell) {
+        while (parent[cell] != cell) {
+            parent[cell] = parent[parent[cell]];
+            cell = parent[cell];
+        }
+        return cell;
+    }
+}
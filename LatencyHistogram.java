@@ -0,0 +1,110 @@
+/**
+ * A histogram of latencies in microseconds with log-linear buckets, in the style of
+ * HdrHistogram: values below 128 us are counted exactly, and above that each power of two
+ * is split into 64 buckets, so any recorded value is known to within about 1.6% however
+ * large it is. Recording is a few shifts and an array increment, with nothing allocated.
+ *
+ * Not thread-safe; give each thread its own and {@link #add} them together afterwards.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;  // exact values below this
+    private static final int HALF = SUB_BUCKETS / 2;                // buckets per power of two above it
+    private static final long MAX_VALUE = (1L << 36) - 1;           // about 19 hours; larger values are clamped
+
+    private final long[] counts = new long[bucketIndex(MAX_VALUE) + 1];
+    private long total;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /** Records one latency, in microseconds. */
+    public void record(long micros) {
+        long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+        counts[bucketIndex(value)]++;
+        total++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /** Records one latency given in nanoseconds. */
+    public void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    /** Adds every value recorded in another histogram to this one. */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    /** The largest value that falls in the given bucket. */
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long sub = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Returns the value at the given percentile (0 to 100): the top of the bucket the
+     * percentile falls in, never more than the largest value recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    public long getCount() {
+        return total;
+    }
+
+    public long getMin() {
+        return total == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return total == 0 ? 0 : (double) sum / total;
+    }
+
+    /**
+     * Calls the visitor with the upper bound and count of every bucket that has values,
+     * smallest first, e.g. to write the whole distribution out.
+     */
+    public void forEachBucket(BucketVisitor visitor) {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                visitor.visit(bucketUpperBound(i), counts[i]);
+            }
+        }
+    }
+
+    /** Receives the non-empty buckets from {@link #forEachBucket}. */
+    public interface BucketVisitor {
+        void visit(long upperBoundMicros, long count);
+    }
+}
@@ -0,0 +1,584 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load generator: opens many simulated players against a running server and
+ * measures how quickly their moves come back.
+ *
+ * The players speak the normal client protocol over a few selector threads, so thousands
+ * of them fit in one process. Each sends moves at a fixed rate, either in random
+ * directions or by following the wall on its left, and records two latencies:
+ * <ul>
+ *   <li>move to ACK: from sending a MOVE until the server acknowledges it</li>
+ *   <li>move to broadcast: from the oldest unacknowledged MOVE until a DELTA or SNAPSHOT
+ *       shows the player somewhere new, i.e. until everyone else could have seen it</li>
+ * </ul>
+ * Moves, frames and bytes are counted too. Nothing is counted while the players are still
+ * connecting or during the warm-up, and at the end a JSON report is written so results of
+ * two builds can be compared.
+ *
+ * The wall follower keeps no copy of the maze: like a player in the dark it turns left
+ * whenever it can and right when it bumps into a wall, which it learns from the ACK.
+ * So it only sends its next move once the previous one has been acknowledged.
+ *
+ * Usage: java LoadTest [--host=localhost] [--clients=1000] [--rate=5] [--strategy=random|wall]
+ *                      [--seconds=30] [--warmup=5] [--room=1] [--connect-rate=500]
+ *                      [--io-threads=2] [--report=loadtest-report.json]
+ */
+public class LoadTest {
+    private static final int PORT = 12345;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /** How a simulated player picks its moves. */
+    enum Strategy { RANDOM, WALL }
+
+    private String host = "localhost";
+    private int clients = 1000;
+    private double rate = 5;
+    private Strategy strategy = Strategy.RANDOM;
+    private int seconds = 30;
+    private int warmupSeconds = 5;
+    private int roomId = Protocol.DEFAULT_ROOM;
+    private int connectRate = 500;
+    private int ioThreads = 2;
+    private String reportPath = "loadtest-report.json";
+
+    private volatile boolean measuring;
+    private volatile boolean stopping;
+    private final AtomicLong connected = new AtomicLong();
+    private final AtomicLong disconnected = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        try {
+            test.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java LoadTest [--host=localhost] [--clients=1000] [--rate=5]"
+                + " [--strategy=random|wall] [--seconds=30] [--warmup=5] [--room=1] [--connect-rate=500]"
+                + " [--io-threads=2] [--report=loadtest-report.json]");
+            return;
+        }
+        test.run();
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--host=")) {
+                host = value;
+            } else if (arg.startsWith("--clients=")) {
+                clients = Integer.parseInt(value);
+            } else if (arg.startsWith("--rate=")) {
+                rate = Double.parseDouble(value);
+            } else if (arg.startsWith("--strategy=")) {
+                strategy = Strategy.valueOf(value.toUpperCase());
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(value);
+            } else if (arg.startsWith("--warmup=")) {
+                warmupSeconds = Integer.parseInt(value);
+            } else if (arg.startsWith("--room=")) {
+                roomId = Integer.parseInt(value);
+            } else if (arg.startsWith("--connect-rate=")) {
+                connectRate = Integer.parseInt(value);
+            } else if (arg.startsWith("--io-threads=")) {
+                ioThreads = Integer.parseInt(value);
+            } else if (arg.startsWith("--report=")) {
+                reportPath = value;
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (clients <= 0 || rate <= 0 || seconds <= 0 || warmupSeconds < 0 || connectRate <= 0 || ioThreads <= 0) {
+            throw new IllegalArgumentException("Counts, rates and durations must be positive");
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+        IoLoop[] loops = new IoLoop[ioThreads];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(i);
+            loops[i].thread.start();
+        }
+
+        // Connect at a steady rate so the server's accept backlog isn't overrun
+        System.out.printf("Connecting %d players (%s, %.1f moves/s each)...%n",
+            clients, strategy.name().toLowerCase(), rate);
+        InetSocketAddress address = new InetSocketAddress(host, PORT);
+        long connectStart = System.nanoTime();
+        long intervalNanos = 1_000_000_000L / connectRate;
+        for (int i = 0; i < clients; i++) {
+            long due = connectStart + i * intervalNanos;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            try {
+                SocketChannel channel = SocketChannel.open(address);
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                loops[i % loops.length].register(new Bot("load-" + i, channel, new Random(i)));
+                connected.incrementAndGet();
+            } catch (IOException e) {
+                System.err.println("Connection " + i + " failed: " + e.getMessage());
+            }
+        }
+        System.out.printf("%d connected in %.1f s, warming up for %d s%n",
+            connected.get(), (System.nanoTime() - connectStart) / 1e9, warmupSeconds);
+        TimeUnit.SECONDS.sleep(warmupSeconds);
+
+        measuring = true;
+        long start = System.nanoTime();
+        for (int elapsed = 0; elapsed < seconds; elapsed++) {
+            TimeUnit.SECONDS.sleep(1);
+            if ((elapsed + 1) % 5 == 0 || elapsed + 1 == seconds) {
+                long moves = 0, acks = 0;
+                for (IoLoop loop : loops) {
+                    moves += loop.movesSent.get();
+                    acks += loop.acksReceived.get();
+                }
+                System.out.printf("%3d s: %d moves sent, %d acknowledged, %d disconnected%n",
+                    elapsed + 1, moves, acks, disconnected.get());
+            }
+        }
+        measuring = false;
+        double duration = (System.nanoTime() - start) / 1e9;
+        stopping = true;
+        for (IoLoop loop : loops) {
+            loop.selector.wakeup();
+            loop.thread.join();
+        }
+
+        Results results = new Results(duration);
+        for (IoLoop loop : loops) {
+            results.add(loop);
+        }
+        results.print();
+        try (Writer out = new FileWriter(reportPath)) {
+            out.write(results.toJson());
+        }
+        System.out.println("Report written to " + reportPath);
+    }
+
+    /**
+     * One selector thread driving a share of the simulated players. Everything a player
+     * records is kept per loop and only read once the loops have stopped, apart from the
+     * two counters shown while the test runs.
+     */
+    private final class IoLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final Queue<Bot> newBots = new ConcurrentLinkedQueue<>();
+        final List<Bot> bots = new ArrayList<>();
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        final LatencyHistogram ackLatency = new LatencyHistogram();
+        final LatencyHistogram broadcastLatency = new LatencyHistogram();
+        final AtomicLong movesSent = new AtomicLong();
+        final AtomicLong acksReceived = new AtomicLong();
+        long framesReceived, bytesReceived, bytesSent, resyncs, winners, blockedMoves;
+
+        IoLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "load-io-" + index);
+        }
+
+        void register(Bot bot) {
+            newBots.add(bot);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopping) {
+                    Bot bot;
+                    while ((bot = newBots.poll()) != null) {
+                        bot.key = bot.channel.register(selector, SelectionKey.OP_READ, bot);
+                        bot.loop = this;
+                        bots.add(bot);
+                        bot.send(Protocol.encodeHello(bot.name, roomId));
+                    }
+
+                    selector.select(2);
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Bot ready = (Bot) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                ready.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                ready.flush();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            ready.close(e.toString());
+                        }
+                    }
+                    selector.selectedKeys().clear();
+
+                    long now = System.nanoTime();
+                    for (int i = 0; i < bots.size(); i++) {
+                        Bot next = bots.get(i);
+                        try {
+                            next.maybeMove(now);
+                        } catch (IOException e) {
+                            next.close(e.getMessage());
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Load loop failed: " + e);
+            } finally {
+                for (Bot bot : bots) {
+                    bot.closeQuietly();
+                }
+            }
+        }
+    }
+
+    /**
+     * One simulated player. Owned by its loop's thread.
+     */
+    private final class Bot {
+        final String name;
+        final SocketChannel channel;
+        final Random random;
+        SelectionKey key;
+        IoLoop loop;
+
+        // Incoming frame being assembled, and frames waiting to be written
+        private ByteBuffer frame = ByteBuffer.allocate(4);
+        private boolean readingLength = true;
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+
+        private int playerId = -1;
+        private int version = -1;
+        private Position position;
+        private boolean inRoom;
+        private long nextMoveNanos;
+        private final long moveIntervalNanos;
+        private int nextSeq = 1;
+        private final ArrayDeque<long[]> unacked = new ArrayDeque<>(); // {seq, sentNanos}
+        // Wall following: the direction we are heading and the one we are trying
+        private int heading;
+        private int trying = -1;
+
+        Bot(String name, SocketChannel channel, Random random) {
+            this.name = name;
+            this.channel = channel;
+            this.random = random;
+            this.moveIntervalNanos = (long) (1e9 / rate);
+            this.heading = random.nextInt(4);
+        }
+
+        /** Sends the next move if one is due. */
+        void maybeMove(long now) throws IOException {
+            if (!inRoom || position == null || now < nextMoveNanos) return;
+            if (nextMoveNanos == 0) {
+                nextMoveNanos = now + (long) (random.nextDouble() * moveIntervalNanos); // spread players out
+                return;
+            }
+            nextMoveNanos += moveIntervalNanos;
+            if (nextMoveNanos < now) {
+                nextMoveNanos = now + moveIntervalNanos; // fell behind; don't send a burst
+            }
+
+            int direction;
+            if (strategy == Strategy.WALL) {
+                if (!unacked.isEmpty()) return; // still waiting to feel whether the last step worked
+                trying = trying < 0 ? (heading + 3) % 4 : trying; // left of the heading first
+                direction = trying;
+            } else {
+                direction = random.nextInt(4);
+            }
+            int seq = nextSeq++;
+            unacked.addLast(new long[] { seq, now });
+            send(Protocol.encodeMove(direction, seq));
+            if (measuring) loop.movesSent.incrementAndGet();
+        }
+
+        /** Turns left after every step taken, right after every bump. */
+        private void followWall(boolean moved) {
+            if (trying < 0) return;
+            if (moved) {
+                heading = trying;
+                trying = (heading + 3) % 4;
+            } else {
+                trying = (trying + 1) % 4;
+            }
+        }
+
+        void send(byte[] bytes) throws IOException {
+            outbound.addLast(ByteBuffer.wrap(bytes));
+            if (measuring) loop.bytesSent += bytes.length;
+            flush();
+        }
+
+        void flush() throws IOException {
+            while (!outbound.isEmpty()) {
+                ByteBuffer head = outbound.peekFirst();
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.pollFirst();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void onReadable() throws IOException {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (n < 0) throw new IOException("closed by the server");
+            if (measuring) loop.bytesReceived += n;
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                int chunk = Math.min(buffer.remaining(), frame.remaining());
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + chunk);
+                frame.put(buffer);
+                buffer.limit(limit);
+                if (frame.hasRemaining()) break;
+
+                frame.flip();
+                if (readingLength) {
+                    int length = frame.getInt();
+                    if (length <= 0 || length > Protocol.MAX_SERVER_FRAME) {
+                        throw new IOException("bad frame length " + length);
+                    }
+                    frame = ByteBuffer.allocate(length);
+                    readingLength = false;
+                } else {
+                    onFrame(frame);
+                    frame = ByteBuffer.allocate(4);
+                    readingLength = true;
+                }
+            }
+        }
+
+        private void onFrame(ByteBuffer frame) throws IOException {
+            if (measuring) loop.framesReceived++;
+            long now = System.nanoTime();
+            switch (frame.get()) {
+                case Protocol.WELCOME -> {
+                    playerId = frame.getInt();
+                    inRoom = frame.getInt() != Protocol.NO_ROOM;
+                }
+                case Protocol.SNAPSHOT -> {
+                    version = frame.getInt();
+                    Player me = Protocol.decodePlayers(frame).get(playerId);
+                    if (me != null) {
+                        onSeenAt(me.getPosition(), now);
+                    }
+                }
+                case Protocol.DELTA -> onDelta(frame, now);
+                case Protocol.ACK -> {
+                    int seq = frame.getInt();
+                    Position pos = new Position(frame.getInt(), frame.getInt());
+                    boolean moved = !pos.equals(position);
+                    while (!unacked.isEmpty() && unacked.peekFirst()[0] <= seq) {
+                        long[] move = unacked.pollFirst();
+                        if (measuring) {
+                            loop.ackLatency.recordNanos(now - move[1]);
+                            loop.acksReceived.incrementAndGet();
+                        }
+                    }
+                    if (!moved && measuring) loop.blockedMoves++;
+                    position = pos;
+                    followWall(moved);
+                }
+                case Protocol.WINNER -> {
+                    if (measuring) loop.winners++;
+                }
+                case Protocol.ERROR -> throw new IOException("server error: " + Protocol.readString(frame));
+                default -> {
+                    // Maze data, room lists: only counted
+                }
+            }
+        }
+
+        /**
+         * Follows the delta chain, asking for a snapshot when it breaks, and looks for our
+         * own moves in it.
+         */
+        private void onDelta(ByteBuffer frame, long now) throws IOException {
+            int fromVersion = frame.getInt();
+            int toVersion = frame.getInt();
+            if (toVersion <= version) return;
+            if (fromVersion != version) {
+                version = -1; // ignore deltas until the snapshot
+                send(Protocol.encodeResync());
+                if (measuring) loop.resyncs++;
+                return;
+            }
+            version = toVersion;
+            int count = frame.getShort() & 0xFFFF;
+            for (int i = 0; i < count; i++) {
+                byte type = frame.get();
+                int id = frame.getInt();
+                if (type == GameEvent.LEFT) continue;
+                Position pos = new Position(frame.getInt(), frame.getInt());
+                if (type == GameEvent.JOINED) {
+                    int nameLength = frame.getShort() & 0xFFFF;
+                    frame.position(frame.position() + nameLength); // skip the name
+                }
+                if (id == playerId) {
+                    onSeenAt(pos, now);
+                }
+            }
+        }
+
+        /** A broadcast showed us at pos; if that's somewhere new, our oldest pending move has been seen. */
+        private void onSeenAt(Position pos, long now) {
+            if (position == null) {
+                position = pos;
+                return;
+            }
+            if (!pos.equals(position) && !unacked.isEmpty() && measuring) {
+                loop.broadcastLatency.recordNanos(now - unacked.peekFirst()[1]);
+            }
+        }
+
+        void close(String reason) {
+            if (!stopping) {
+                disconnected.incrementAndGet();
+                System.err.println(name + " disconnected: " + reason);
+            }
+            closeQuietly();
+            inRoom = false;
+        }
+
+        void closeQuietly() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Everything the loops recorded, merged, and the report built from it.
+     */
+    private final class Results {
+        final double duration;
+        final LatencyHistogram ackLatency = new LatencyHistogram();
+        final LatencyHistogram broadcastLatency = new LatencyHistogram();
+        long moves, acks, frames, bytesReceived, bytesSent, resyncs, winners, blockedMoves;
+
+        Results(double duration) {
+            this.duration = duration;
+        }
+
+        void add(IoLoop loop) {
+            ackLatency.add(loop.ackLatency);
+            broadcastLatency.add(loop.broadcastLatency);
+            moves += loop.movesSent.get();
+            acks += loop.acksReceived.get();
+            frames += loop.framesReceived;
+            bytesReceived += loop.bytesReceived;
+            bytesSent += loop.bytesSent;
+            resyncs += loop.resyncs;
+            winners += loop.winners;
+            blockedMoves += loop.blockedMoves;
+        }
+
+        void print() {
+            System.out.printf("%nPlayers: %d connected, %d disconnected during the test%n",
+                connected.get(), disconnected.get());
+            System.out.printf("Moves: %.0f/s sent, %.0f/s acknowledged (%d blocked by walls)%n",
+                moves / duration, acks / duration, blockedMoves);
+            System.out.printf("Received: %.0f frames/s, %.1f KB/s; sent %.1f KB/s; %d resyncs%n",
+                frames / duration, bytesReceived / duration / 1024, bytesSent / duration / 1024, resyncs);
+            System.out.printf("%-20s %9s %9s %9s %9s %9s %9s%n", "latency (ms)", "count", "p50", "p90", "p99",
+                "p99.9", "max");
+            printLatency("move -> ack", ackLatency);
+            printLatency("move -> broadcast", broadcastLatency);
+        }
+
+        private void printLatency(String label, LatencyHistogram histogram) {
+            System.out.printf("%-20s %9d %9.2f %9.2f %9.2f %9.2f %9.2f%n", label, histogram.getCount(),
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMax() / 1000.0);
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{\n");
+            json.append("  \"config\": {")
+                .append("\"host\": \"").append(host.replace("\\", "\\\\").replace("\"", "\\\"")).append("\", ")
+                .append("\"clients\": ").append(clients).append(", ")
+                .append("\"movesPerSecondPerClient\": ").append(number(rate)).append(", ")
+                .append("\"strategy\": \"").append(strategy.name().toLowerCase()).append("\", ")
+                .append("\"seconds\": ").append(seconds).append(", ")
+                .append("\"warmupSeconds\": ").append(warmupSeconds).append(", ")
+                .append("\"room\": ").append(roomId).append("},\n");
+            json.append("  \"durationSeconds\": ").append(number(duration)).append(",\n");
+            json.append("  \"connected\": ").append(connected.get()).append(",\n");
+            json.append("  \"disconnected\": ").append(disconnected.get()).append(",\n");
+            json.append("  \"moves\": {\"sent\": ").append(moves)
+                .append(", \"acknowledged\": ").append(acks)
+                .append(", \"blocked\": ").append(blockedMoves)
+                .append(", \"sentPerSecond\": ").append(number(moves / duration))
+                .append(", \"acknowledgedPerSecond\": ").append(number(acks / duration)).append("},\n");
+            json.append("  \"received\": {\"frames\": ").append(frames)
+                .append(", \"bytes\": ").append(bytesReceived)
+                .append(", \"framesPerSecond\": ").append(number(frames / duration))
+                .append(", \"bytesPerSecond\": ").append(number(bytesReceived / duration))
+                .append(", \"resyncs\": ").append(resyncs)
+                .append(", \"winners\": ").append(winners).append("},\n");
+            json.append("  \"sent\": {\"bytes\": ").append(bytesSent)
+                .append(", \"bytesPerSecond\": ").append(number(bytesSent / duration)).append("},\n");
+            json.append("  \"latencyMicros\": {\n");
+            json.append("    \"moveToAck\": ").append(histogramJson(ackLatency)).append(",\n");
+            json.append("    \"moveToBroadcast\": ").append(histogramJson(broadcastLatency)).append("\n");
+            json.append("  }\n");
+            json.append("}\n");
+            return json.toString();
+        }
+
+        private String histogramJson(LatencyHistogram histogram) {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"count\": ").append(histogram.getCount())
+                .append(", \"min\": ").append(histogram.getMin())
+                .append(", \"mean\": ").append(number(histogram.getMean()))
+                .append(", \"p50\": ").append(histogram.getValueAtPercentile(50))
+                .append(", \"p90\": ").append(histogram.getValueAtPercentile(90))
+                .append(", \"p99\": ").append(histogram.getValueAtPercentile(99))
+                .append(", \"p999\": ").append(histogram.getValueAtPercentile(99.9))
+                .append(", \"max\": ").append(histogram.getMax())
+                .append(",\n      \"buckets\": [");
+            boolean[] first = { true };
+            histogram.forEachBucket((upperBound, count) -> {
+                json.append(first[0] ? "" : ", ").append('[').append(upperBound).append(", ").append(count).append(']');
+                first[0] = false;
+            });
+            return json.append("]}").toString();
+        }
+
+        private String number(double value) {
+            return String.format(Locale.ROOT, "%.2f", value);
+        }
+    }
+}
@@ -0,0 +1,403 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The rooms hosted by the server and the players connected to it.
+ *
+ * Each room is pinned to one of a fixed number of simulation threads, picked as the
+ * thread with the fewest rooms when the room is created, and always ticks there. A room
+ * with a lot going on can only slow down the few rooms sharing its thread, and no room
+ * state is ever touched by two simulation threads.
+ *
+ * A player who has sent HELLO is in the lobby until they join a room, and goes back to
+ * it when they join room {@link Protocol#NO_ROOM}. Room {@link Protocol#DEFAULT_ROOM}
+ * always exists; other rooms are closed when their last player leaves.
+ *
+ * After a restart from the {@link GameJournal}, a player who connects with the name of a
+ * player waiting in a restored room takes that player over: the same ID, room and
+ * position, whatever room their HELLO asked for.
+ *
+ * Each room gets its own seed, drawn from the lobby's generator as it is created, so a
+ * server started with the same seed gives its rooms the same seeds in the same order.
+ */
+public class Lobby {
+    private final Map<Integer, GameRoom> rooms = new ConcurrentHashMap<>();
+    private final Map<Integer, Member> members = new ConcurrentHashMap<>();
+    private final AtomicInteger nextPlayerId = new AtomicInteger(1);
+    private final AtomicInteger nextRoomId = new AtomicInteger(Protocol.DEFAULT_ROOM);
+    private final ScheduledExecutorService[] simThreads;
+    private final TickStats[] simStats;
+    private final ReentrantLock roomsLock = new ReentrantLock(); // guards creating and closing rooms
+    private final int[] roomsPerThread; // guarded by roomsLock
+    private final Map<Integer, Integer> roomThreads = new ConcurrentHashMap<>(); // room ID -> sim thread
+    private final int maxRooms;
+    private final RoomSettings settings;
+    private final Executor background;
+    private final Random roomSeeds; // guarded by roomsLock
+
+    /**
+     * A connected player and the room they are in, or null while in the lobby.
+     */
+    private static final class Member {
+        final int id;
+        final String name;
+        final ClientConnection connection;
+        final ReentrantLock lock = new ReentrantLock();
+        GameRoom room;            // guarded by lock
+        boolean connected = true; // guarded by lock
+        GameRoom reclaimedRoom;   // guarded by lock; where this ID is waiting, restored from the journal
+
+        Member(int id, String name, ClientConnection connection) {
+            this.id = id;
+            this.name = name;
+            this.connection = connection;
+        }
+    }
+
+    /**
+     * Creates the lobby with its simulation threads and the default room.
+     * Every room is created with the given settings, and generates its earthquake mazes
+     * on the background executor. Room seeds come from the given seed.
+     */
+    public Lobby(int simThreadCount, int tickRate, int maxRooms, RoomSettings settings, Executor background,
+                 long seed) {
+        this(simThreadCount, tickRate, maxRooms, settings, background, seed, Map.of());
+    }
+
+    /**
+     * Creates the lobby with the rooms restored from the journal, plus the default room if
+     * it wasn't among them. New rooms and players get IDs above the restored ones.
+     */
+    public Lobby(int simThreadCount, int tickRate, int maxRooms, RoomSettings settings, Executor background,
+                 long seed, Map<Integer, GameJournal.RecoveredRoom> recovered) {
+        this.simThreads = new ScheduledExecutorService[simThreadCount];
+        this.simStats = new TickStats[simThreadCount];
+        this.roomsPerThread = new int[simThreadCount];
+        this.maxRooms = maxRooms;
+        this.settings = settings;
+        this.background = background;
+        this.roomSeeds = new Random(seed);
+        for (int i = 0; i < simThreadCount; i++) {
+            String threadName = "sim-" + i;
+            simThreads[i] = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, threadName));
+            simStats[i] = new TickStats(tickRate);
+        }
+        if (!recovered.containsKey(Protocol.DEFAULT_ROOM)) {
+            createRoom("Main");
+        }
+        int lastPlayerId = 0;
+        for (GameJournal.RecoveredRoom restored : recovered.values()) {
+            GameRoom room;
+            roomsLock.lock();
+            try {
+                room = new GameRoom(restored, settings, roomSeeds.nextLong(), background);
+                start(room);
+            } finally {
+                roomsLock.unlock();
+            }
+            nextRoomId.accumulateAndGet(room.getId() + 1, Math::max);
+            for (int playerId : restored.getPlayers().keySet()) {
+                lastPlayerId = Math.max(lastPlayerId, playerId);
+            }
+            Log.info("Room " + room.getId() + " (" + room.getName() + ") restored with "
+                + restored.getPlayers().size() + " players waiting to reconnect.");
+        }
+        nextPlayerId.accumulateAndGet(lastPlayerId + 1, Math::max);
+    }
+
+    /**
+     * Creates and starts a room, or returns null if the server already hosts the maximum.
+     */
+    public GameRoom createRoom(String name) {
+        GameRoom room;
+        int thread;
+        roomsLock.lock();
+        try {
+            if (rooms.size() >= maxRooms) return null;
+            room = new GameRoom(nextRoomId.getAndIncrement(), name, settings, roomSeeds.nextLong(), background);
+            thread = start(room);
+        } finally {
+            roomsLock.unlock();
+        }
+        Log.info("Room " + room.getId() + " (" + name + ") created on sim-" + thread + " with seed "
+            + room.getSeed() + ".");
+        return room;
+    }
+
+    /**
+     * Pins a new room to the simulation thread with the fewest rooms and starts it.
+     * Returns the thread's index. Called under roomsLock.
+     */
+    private int start(GameRoom room) {
+        int thread = 0;
+        for (int i = 1; i < roomsPerThread.length; i++) {
+            if (roomsPerThread[i] < roomsPerThread[thread]) {
+                thread = i;
+            }
+        }
+        rooms.put(room.getId(), room);
+        roomsPerThread[thread]++;
+        roomThreads.put(room.getId(), thread);
+        room.start(simThreads[thread], simStats[thread]);
+        return thread;
+    }
+
+    private void closeIfEmpty(GameRoom room) {
+        if (room.getId() == Protocol.DEFAULT_ROOM) return;
+        roomsLock.lock();
+        try {
+            if (!rooms.containsKey(room.getId()) || !room.closeIfEmpty()) return;
+            rooms.remove(room.getId());
+            roomsPerThread[roomThreads.remove(room.getId())]--;
+        } finally {
+            roomsLock.unlock();
+        }
+        Log.info("Room " + room.getId() + " (" + room.getName() + ") closed.");
+    }
+
+    /**
+     * Registers a player who has just said HELLO and returns their ID. They start in the
+     * lobby, unless they are taking over a player restored from the journal, who keeps
+     * their ID and goes back to their room on the following {@link #joinRoom}. Only one
+     * connection at a time can hold that ID; the player stays absent in their room until
+     * then, so a connection that drops first leaves them there for the next one.
+     */
+    public int connect(String name, ClientConnection connection) {
+        for (GameRoom room : rooms.values()) {
+            int absentId = room.findAbsent(name);
+            if (absentId < 0) continue;
+            Member member = new Member(absentId, name, connection);
+            member.reclaimedRoom = room;
+            if (members.putIfAbsent(absentId, member) == null) {
+                Log.info("Player " + name + " reconnected as player " + absentId + ".");
+                return absentId;
+            }
+        }
+        int playerId = nextPlayerId.getAndIncrement();
+        members.put(playerId, new Member(playerId, name, connection));
+        Log.info("Player " + name + " connected.");
+        return playerId;
+    }
+
+    /**
+     * Removes a disconnected player from their room and from the lobby.
+     */
+    public void disconnect(int playerId) {
+        Member member = members.remove(playerId);
+        if (member == null) return;
+        member.lock.lock();
+        try {
+            member.connected = false;
+            leaveRoom(member);
+        } finally {
+            member.lock.unlock();
+        }
+    }
+
+    /**
+     * Moves a player to another room, or back to the lobby for {@link Protocol#NO_ROOM}.
+     * If the room doesn't exist the player gets an ERROR and ends up in the lobby.
+     */
+    public void joinRoom(int playerId, int roomId) {
+        Member member = members.get(playerId);
+        if (member == null) return;
+        member.lock.lock();
+        try {
+            if (!member.connected) return;
+            leaveRoom(member);
+            if (member.reclaimedRoom != null) {
+                GameRoom reclaimed = member.reclaimedRoom;
+                member.reclaimedRoom = null;
+                if (reclaimed.rejoin(member.id, member.connection)) {
+                    member.room = reclaimed;
+                    return;
+                }
+            }
+            GameRoom room = rooms.get(roomId);
+            if (room != null && room.join(member.id, member.name, member.connection)) {
+                member.room = room;
+                return;
+            }
+            if (roomId != Protocol.NO_ROOM) {
+                member.connection.send(Protocol.encodeError("No room " + roomId));
+            }
+            member.connection.send(Protocol.encodeWelcome(playerId, Protocol.NO_ROOM));
+        } finally {
+            member.lock.unlock();
+        }
+    }
+
+    /**
+     * Creates a room on behalf of a player and moves them into it.
+     */
+    public void createRoom(int playerId, String roomName) {
+        Member member = members.get(playerId);
+        if (member == null) return;
+        GameRoom room = createRoom(roomName);
+        if (room == null) {
+            member.connection.send(Protocol.encodeError("The server is full (" + maxRooms + " rooms)"));
+            return;
+        }
+        joinRoom(playerId, room.getId());
+    }
+
+    private void leaveRoom(Member member) {
+        GameRoom room = member.room;
+        if (room == null) return;
+        member.room = null;
+        room.leave(member.id);
+        closeIfEmpty(room);
+    }
+
+    /**
+     * Sends a player the list of rooms.
+     */
+    public void listRooms(int playerId) {
+        Member member = members.get(playerId);
+        if (member != null) {
+            member.connection.send(Protocol.encodeRoomList(getRoomInfo()));
+        }
+    }
+
+    public List<RoomInfo> getRoomInfo() {
+        List<RoomInfo> list = new ArrayList<>();
+        for (GameRoom room : rooms.values()) {
+            list.add(room.getInfo());
+        }
+        list.sort((a, b) -> Integer.compare(a.id(), b.id()));
+        return list;
+    }
+
+    /**
+     * Returns the room a player is in, or null if they are in the lobby.
+     */
+    public GameRoom roomOf(int playerId) {
+        Member member = members.get(playerId);
+        if (member == null) return null;
+        member.lock.lock();
+        try {
+            return member.room;
+        } finally {
+            member.lock.unlock();
+        }
+    }
+
+    public GameRoom getRoom(int roomId) {
+        return rooms.get(roomId);
+    }
+
+    public int getRoomCount() {
+        return rooms.size();
+    }
+
+    public int getPlayerCount() {
+        return members.size();
+    }
+
+    /** Mazes built ahead for the next earthquakes, over every room. */
+    public int getReadyMazeCount() {
+        int ready = 0;
+        for (GameRoom room : rooms.values()) {
+            ready += room.getReadyMazeCount();
+        }
+        return ready;
+    }
+
+    /**
+     * Returns how many frames are waiting in each connected player's outbound queue.
+     */
+    public Map<Integer, Integer> getQueueDepths() {
+        Map<Integer, Integer> depths = new TreeMap<>();
+        for (Member member : members.values()) {
+            depths.put(member.id, member.connection.getOutboundQueue().getDepth());
+        }
+        return depths;
+    }
+
+    public int getSimThreadCount() {
+        return simThreads.length;
+    }
+
+    /** Tick timings of one simulation thread, covering every room pinned to it. */
+    public TickStats getTickStats(int simThread) {
+        return simStats[simThread];
+    }
+
+    /**
+     * Closes the rooms left empty, e.g. restored rooms nobody came back to. Called now and
+     * then by the server; rooms are otherwise only closed when a player leaves them.
+     */
+    public void closeAbandonedRooms() {
+        for (GameRoom room : rooms.values()) {
+            if (room.getPlayerCount() == 0) {
+                closeIfEmpty(room);
+            }
+        }
+    }
+
+    /**
+     * Returns the periodic log lines: tick timings per simulation thread and a summary
+     * of all outbound queues. Tick stats restart with each call.
+     */
+    public String summarize() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(rooms.size()).append(" rooms, ").append(members.size()).append(" players\n");
+        roomsLock.lock();
+        try {
+            for (int i = 0; i < simThreads.length; i++) {
+                summary.append("sim-").append(i).append(" (").append(roomsPerThread[i]).append(" rooms) ")
+                    .append(simStats[i].summarizeAndReset()).append('\n');
+            }
+        } finally {
+            roomsLock.unlock();
+        }
+        summary.append(summarizeClientQueues());
+        return summary.toString();
+    }
+
+    /**
+     * Summarizes the outbound queues of all connected clients for the periodic log line.
+     */
+    private String summarizeClientQueues() {
+        int clients = 0, totalDepth = 0, maxDepth = 0, slowestPlayer = 0;
+        long dropped = 0, maxLatency = 0;
+        for (Member member : members.values()) {
+            OutboundQueue queue = member.connection.getOutboundQueue();
+            int depth = queue.getDepth();
+            clients++;
+            totalDepth += depth;
+            dropped += queue.getDroppedFrames();
+            maxLatency = Math.max(maxLatency, queue.getMaxWriteLatencyNanos());
+            if (depth > maxDepth) {
+                maxDepth = depth;
+                slowestPlayer = member.id;
+            }
+        }
+        return String.format("Outbound queues: %d clients, %d frames queued, max depth %d (player %d), "
+                + "%d frames dropped, max write latency %.1fms",
+            clients, totalDepth, maxDepth, slowestPlayer, dropped, maxLatency / 1_000_000.0);
+    }
+
+    /**
+     * Stops the simulation threads and waits for running ticks to finish.
+     * Used by the benchmark between runs.
+     */
+    public void shutdown() throws InterruptedException {
+        for (ScheduledExecutorService thread : simThreads) {
+            thread.shutdownNow();
+        }
+        for (ScheduledExecutorService thread : simThreads) {
+            thread.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+}
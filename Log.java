@@ -0,0 +1,174 @@
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * The server's log. Messages below the current level are dropped before anything is
+ * built; the rest go into a lock-free ring and are printed by a background thread, so a
+ * simulation or connection thread never waits on the console.
+ *
+ * On hot paths, check {@link #isDebugEnabled()} before building the message, or pass a
+ * {@link Supplier} that only runs when the level is on. With debug off, a guarded call is
+ * one volatile read and allocates nothing.
+ *
+ * If the ring fills up because the console can't keep up, new messages are dropped and
+ * counted rather than blocking the game; the writer reports how many it lost. INFO and
+ * DEBUG go to standard output, WARN and ERROR to standard error.
+ */
+public final class Log {
+    /** Message levels, from the most verbose. */
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int CAPACITY = 8192; // a power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final Level[] LEVELS = Level.values();
+
+    private static volatile Level level = Level.INFO;
+
+    // A bounded multi-producer, single-consumer ring. A slot may be written when its
+    // sequence equals the claimed position, and read once the writer has set it one past
+    // that; the reader then sets it a full lap ahead to hand it back.
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final String[] messages = new String[CAPACITY];
+    private static final byte[] levels = new byte[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head;                       // guarded by the class lock
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    /** Changes the level; takes effect for the next message on every thread. */
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0;
+    }
+
+    public static boolean isDebugEnabled() {
+        return level == Level.DEBUG;
+    }
+
+    public static void debug(String message) {
+        if (isDebugEnabled()) {
+            offer(Level.DEBUG, message);
+        }
+    }
+
+    /** Builds and logs the message only if debug is on. */
+    public static void debug(Supplier<String> message) {
+        if (isDebugEnabled()) {
+            offer(Level.DEBUG, message.get());
+        }
+    }
+
+    public static void info(String message) {
+        if (isEnabled(Level.INFO)) {
+            offer(Level.INFO, message);
+        }
+    }
+
+    public static void warn(String message) {
+        if (isEnabled(Level.WARN)) {
+            offer(Level.WARN, message);
+        }
+    }
+
+    public static void error(String message) {
+        offer(Level.ERROR, message);
+    }
+
+    /** Logs an error with the exception's stack trace. */
+    public static void error(String message, Throwable error) {
+        StringWriter trace = new StringWriter();
+        error.printStackTrace(new PrintWriter(trace));
+        offer(Level.ERROR, message + System.lineSeparator() + trace.toString().stripTrailing());
+    }
+
+    private static void offer(Level messageLevel, String message) {
+        long position = tail.get();
+        int slot;
+        while (true) {
+            slot = (int) (position & MASK);
+            long available = sequences.get(slot) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) break;
+                position = tail.get();
+            } else if (available < 0) {
+                dropped.increment(); // the writer is a full lap behind
+                return;
+            } else {
+                position = tail.get(); // another thread took this slot
+            }
+        }
+        messages[slot] = message;
+        levels[slot] = (byte) messageLevel.ordinal();
+        sequences.lazySet(slot, position + 1); // publishes the message to the writer
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            if (!drain()) {
+                LockSupport.parkNanos(1_000_000L);
+            }
+        }
+    }
+
+    /**
+     * Prints everything in the ring. Returns false if it was empty.
+     * Used by the writer thread, and by the shutdown hook to flush what's left.
+     */
+    private static synchronized boolean drain() {
+        StringBuilder out = null;
+        StringBuilder err = null;
+        while (true) {
+            int slot = (int) (head & MASK);
+            if (sequences.get(slot) != head + 1) break;
+            String message = messages[slot];
+            Level messageLevel = LEVELS[levels[slot]];
+            messages[slot] = null;
+            sequences.lazySet(slot, head + CAPACITY);
+            head++;
+            if (messageLevel.compareTo(Level.WARN) >= 0) {
+                err = (err == null ? new StringBuilder() : err).append(message).append(System.lineSeparator());
+            } else {
+                out = (out == null ? new StringBuilder() : out).append(message).append(System.lineSeparator());
+            }
+        }
+        long lost = dropped.sumThenReset();
+        if (lost > 0) {
+            err = (err == null ? new StringBuilder() : err)
+                .append("(" + lost + " log messages dropped, the console can't keep up)")
+                .append(System.lineSeparator());
+        }
+        if (out != null) {
+            System.out.print(out);
+            System.out.flush();
+        }
+        if (err != null) {
+            System.err.print(err);
+            System.err.flush();
+        }
+        return out != null || err != null;
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records one room's match as the inputs that drove it, so the {@link ReplayRunner} can
+ * play it again and check that it comes out the same.
+ *
+ * Everything random in a room comes from a generator seeded when the room is created, so
+ * the seed, the room's settings and the order of its inputs are enough to rebuild every
+ * tick. The recording holds: players joining and leaving, in the order the room took
+ * them; each tick's moves in the order they were applied; the ticks that started an
+ * earthquake or swapped in its maze or regions, since both depend on the clock and the
+ * background thread; and a hash of the room's state at the end of each tick to compare
+ * against.
+ *
+ * The room writes to its recorder under its own lock, so the records are in exactly the
+ * order the simulation saw them. They are buffered and written out at the end of a tick
+ * every 64 KB or every second, so a tick never waits on the disk for more than that. If
+ * writing fails the recording stops and the game carries on.
+ */
+public class MatchRecorder {
+    // Record types
+    static final byte JOIN = 1;       // int playerId, string name; between ticks
+    static final byte LEAVE = 2;      // int playerId; between ticks
+    static final byte MOVE = 3;       // int playerId, byte direction; during a tick, in the order applied
+    static final byte MAZE = 4;       // long seed; the tick started by swapping in an earthquake's maze
+    static final byte EARTHQUAKE = 5; // no payload; the tick started an earthquake
+    static final byte TICK = 6;       // long stateHash; the end of a tick
+    static final byte REGIONS = 7;    // no payload; the tick started by carving an earthquake's regions in place
+
+    static final int MAGIC = 0x4C4D5231; // "LMR1"
+    static final int FORMAT = 4; // 4: then the maze buffer; 3: the earthquake regions; 2: the maze generator
+    static final String SUFFIX = ".match";
+    private static final int FLUSH_BYTES = 64 << 10;
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Path path;
+    private FileChannel channel; // null once closed or failed
+    private ByteBuffer buf = ByteBuffer.allocate(FLUSH_BYTES + 4096);
+    private long lastFlushNanos = System.nanoTime();
+
+    private MatchRecorder(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+    }
+
+    /**
+     * Starts recording a new room into a file of its own in the directory. Returns null,
+     * and logs why, if the file can't be created.
+     */
+    static MatchRecorder open(Path directory, int roomId, String roomName, long seed, RoomSettings settings) {
+        Path path = directory.resolve("room-" + roomId + "-" + System.currentTimeMillis() + SUFFIX);
+        try {
+            Files.createDirectories(directory);
+            FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            MatchRecorder recorder = new MatchRecorder(path, channel);
+            recorder.buf.putInt(MAGIC).putInt(FORMAT).putInt(roomId).putLong(seed)
+                .putInt(settings.mazeWidth()).putInt(settings.mazeHeight())
+                .putInt(settings.viewRadius()).putInt(settings.tilesPerTick());
+            recorder.putString(roomName);
+            recorder.buf.put((byte) settings.mazeGenerator().id())
+                .putInt(settings.earthquakeRegions()).putInt(settings.earthquakeRegionSize())
+                .putInt(settings.mazeBuffer());
+            Log.info("Recording room " + roomId + " to " + path);
+            return recorder;
+        } catch (IOException e) {
+            Log.error("Could not record room " + roomId + " to " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    void join(int playerId, String name) {
+        ensure(5);
+        buf.put(JOIN).putInt(playerId);
+        putString(name);
+    }
+
+    void leave(int playerId) {
+        ensure(5);
+        buf.put(LEAVE).putInt(playerId);
+    }
+
+    void move(int playerId, int direction) {
+        ensure(6);
+        buf.put(MOVE).putInt(playerId).put((byte) direction);
+    }
+
+    void maze(long seed) {
+        ensure(9);
+        buf.put(MAZE).putLong(seed);
+    }
+
+    void regions() {
+        ensure(1);
+        buf.put(REGIONS);
+    }
+
+    void earthquake() {
+        ensure(1);
+        buf.put(EARTHQUAKE);
+    }
+
+    /**
+     * Ends the tick with the room's state hash, and writes the buffer out if it is big or
+     * old enough.
+     */
+    void endTick(long stateHash, long now) {
+        ensure(9);
+        buf.put(TICK).putLong(stateHash);
+        if (buf.position() >= FLUSH_BYTES || now - lastFlushNanos >= FLUSH_INTERVAL_NANOS) {
+            flush();
+            lastFlushNanos = now;
+        }
+    }
+
+    /** Writes out what is left and closes the file. Called when the room closes. */
+    void close() {
+        flush();
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Could not close the recording " + path + ": " + e.getMessage());
+        }
+        channel = null;
+    }
+
+    private void flush() {
+        buf.flip();
+        try {
+            while (channel != null && buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        } catch (IOException e) {
+            Log.error("Recording to " + path + " failed, it stops here: " + e.getMessage());
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // already failing
+            }
+            channel = null;
+        }
+        buf.clear();
+    }
+
+    private void putString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, 0xFFFF);
+        ensure(2 + length);
+        buf.putShort((short) length).put(bytes, 0, length);
+    }
+
+    private void ensure(int extra) {
+        if (buf.remaining() < extra) {
+            int position = buf.position();
+            buf = ByteBuffer.wrap(Arrays.copyOf(buf.array(), Math.max(buf.capacity() * 2, position + extra)));
+            buf.position(position);
+        }
+    }
+}
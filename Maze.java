@@ -1,98 +1,261 @@
 import java.io.Serializable;
-import java.util.Random;
+import java.util.Arrays;
 
 /**
  * Represents the maze in the game.
  * This class handles maze generation and provides methods to check wall and exit locations.
+ *
+ * The walls are kept one bit per cell, so a 10,000x10,000 maze takes 12.5 MB. How the
+ * paths are carved is up to a {@link MazeGenerator}; they all leave the same layout, with
+ * the cells at odd coordinates and the top-left corner always a wall.
  */
 public class Maze implements Serializable {
-    private static final long serialVersionUID = 1L; // Recommended for Serializable classes
+    private static final long serialVersionUID = 2L; // 2: the walls became a bitset
+
     private final int width;
     private final int height;
-    private final boolean[][] walls;
+    private final long[] walls; // bit y * width + x is set for a wall
     private final Position exitPosition;
-    private static final Random random = new Random();
+    private final long seed;
+    private final byte generator; // MazeGenerator.id(); 0, depth-first, in mazes saved before there was a choice
+    private final boolean received; // from the server, so it has no distance field
+    private boolean perfect;        // as generated: one path between any two positions
+    // Built the first time it is asked for, after deserializing too; null until then
+    private transient volatile DistanceField distances;
+    // The rectangle around every region carved since the field was last brought up to date
+    private transient boolean stale;
+    private transient int staleMinX, staleMinY, staleMaxX, staleMaxY;
+
+    /**
+     * Generates the maze for a seed. The same size and seed always give the same maze, so
+     * the server's journal only has to record the seed. Rooms draw the seeds from their
+     * own random generator (see {@link GameRoom}).
+     */
+    public Maze(int width, int height, long seed) {
+        this(width, height, seed, MazeGenerator.DEPTH_FIRST);
+    }
 
-    public Maze(int width, int height) {
+    /**
+     * Generates the maze for a seed with the given generator. The same size, seed and
+     * generator always give the same maze.
+     */
+    public Maze(int width, int height, long seed, MazeGenerator generator) {
         this.width = width;
         this.height = height;
-        this.walls = new boolean[height][width];
-        generateMaze();
+        this.seed = seed;
+        this.generator = (byte) generator.id();
+        this.walls = new long[wordsFor(width, height)];
+        Arrays.fill(walls, -1L); // Start with all walls
+        generator.carve(walls, width, height, seed);
         this.exitPosition = findExit();
+        this.received = false;
+        this.perfect = true;
     }
 
     /**
-     * Generates a basic maze using a simple randomized algorithm.
-     * Starts with a grid of walls and carves out paths.
+     * Starts a maze that is being received over the network, with every cell a wall until
+     * its tile arrives and is filled in with {@link #setWall}.
      */
-    public void generateMaze() {
-        // Start with all walls
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                walls[y][x] = true;
+    public Maze(int width, int height, Position exitPosition) {
+        this.width = width;
+        this.height = height;
+        this.walls = new long[wordsFor(width, height)];
+        Arrays.fill(walls, -1L);
+        this.exitPosition = exitPosition;
+        this.seed = 0; // not known to the client
+        this.generator = 0;
+        this.received = true;
+    }
+
+    private static int wordsFor(int width, int height) {
+        long cells = (long) width * height;
+        if (width <= 0 || height <= 0 || cells > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid maze size " + width + "x" + height);
+        }
+        return (int) ((cells + 63) >>> 6);
+    }
+
+    /**
+     * Finds a valid exit position for the maze.
+     * It looks for the first empty cell on the maze's border.
+     */
+    private Position findExit() {
+        // Find an empty space on the right-most wall
+        for (int y = height - 2; y > 0; y--) {
+            if (!isWall(width - 2, y)) {
+                return new Position(width - 1, y);
             }
         }
+        return new Position(width - 1, height - 2);
+    }
 
-        // Carve paths using a simple random walk from a starting point
-        int startX = 1;
-        int startY = 1;
-        walls[startY][startX] = false; // Carve out the starting point
-        carvePath(startX, startY);
+    /**
+     * Checks if a given position is a wall. Positions outside the maze count as walls.
+     * There are no branches: for a position outside, one of x, y, width - 1 - x and
+     * height - 1 - y is negative, and the lookup then reads the top-left corner instead,
+     * which the generator never carves.
+     */
+    public boolean isWall(int x, int y) {
+        int outside = (x | y | (width - 1 - x) | (height - 1 - y)) >>> 31;
+        int i = (y * width + x) & (outside - 1);
+        return (walls[i >>> 6] >>> i & 1) != 0;
     }
 
     /**
-     * Recursive method to carve a path through the maze.
-     * This is a simplified version of a depth-first search (DFS) algorithm.
+     * The number of moves from a position to the exit: 0 at the exit, and
+     * {@link DistanceField#UNREACHABLE} (-1) for walls, positions outside the maze, and
+     * every position of a maze received from the server, which has no field.
+     *
+     * The field is computed the first time this is called, which takes about as long as
+     * generating the maze did, and kept from then on. Regions carved into the maze since
+     * the last call are brought up to date first (see {@link #carveRegion}). Like the
+     * walls, the field belongs to the thread that owns the maze; two threads asking first
+     * at the same time may both build it, and either copy is right.
      */
-    private void carvePath(int x, int y) {
-        int[][] directions = {{0, 1}, {0, -1}, {1, 0}, {-1, 0}};
-        shuffle(directions); // Randomize the directions to create a less predictable maze
-
-        for (int[] direction : directions) {
-            int newX = x + direction[0] * 2;
-            int newY = y + direction[1] * 2;
-            if (newX >= 0 && newX < width && newY >= 0 && newY < height && walls[newY][newX]) {
-                walls[y + direction[1]][x + direction[0]] = false; // Carve path
-                walls[newY][newX] = false; // Carve next cell
-                carvePath(newX, newY);
-            }
+    public int distanceToExit(int x, int y) {
+        DistanceField field = distances();
+        return field == null ? DistanceField.UNREACHABLE : field.distance(x, y);
+    }
+
+    private DistanceField distances() {
+        DistanceField field = distances;
+        if (field == null && !received) {
+            field = new DistanceField(this);
+            distances = field;
+        } else if (field != null && stale) {
+            stale = false;
+            field.update(staleMinX, staleMinY, staleMaxX, staleMaxY);
+        }
+        return field;
+    }
+
+    /**
+     * Builds the distance field, or brings it up to date with the regions carved since,
+     * so that {@link #currentDistances} finds it. For the thread that owns the maze, at a
+     * time it can afford to: building takes about as long as generating the maze did.
+     */
+    void prepareDistances() {
+        distances();
+    }
+
+    /**
+     * The distance field, if it has been built and is up to date with every region carved
+     * into the maze; otherwise null. Never builds or updates it, so it costs nothing.
+     */
+    DistanceField currentDistances() {
+        DistanceField field = distances;
+        return field == null || stale ? null : field;
+    }
+
+    /**
+     * Checks that the exit can be reached from every cell. Unless the maze already has its
+     * distance field, the check computes one of its own and doesn't keep it. True for a
+     * maze received from the server, which can't be checked.
+     */
+    boolean isConnected() {
+        if (received) return true;
+        DistanceField field = distances != null ? distances() : new DistanceField(this);
+        return field.unreachableCells() == 0;
+    }
+
+    /**
+     * Updates the distances to the exit after the walls in [minX, maxX) x [minY, maxY)
+     * were changed, redoing only the part of the field the change can reach. Nothing to
+     * do if the field hasn't been built yet.
+     */
+    void updateDistances(int minX, int minY, int maxX, int maxY) {
+        DistanceField field = distances == null ? null : distances();
+        if (field != null) {
+            field.update(minX, minY, maxX, maxY);
         }
     }
 
     /**
-     * Helper method to shuffle an array.
+     * True while the maze is as its generator carved it, a perfect maze: there is one path
+     * between any two open positions. Changing any wall, as carving a region does, may add
+     * loops, so it makes this false for good.
      */
-    private void shuffle(int[][] array) {
-        for (int i = array.length - 1; i > 0; i--) {
-            int index = random.nextInt(i + 1);
-            int[] temp = array[index];
-            array[index] = array[i];
-            array[i] = temp;
+    boolean isPerfect() {
+        return perfect;
+    }
+
+    /**
+     * Sets one cell: of a maze received over the network, or of a region being carved again.
+     */
+    void setWall(int x, int y, boolean wall) {
+        perfect = false;
+        int i = y * width + x;
+        if (wall) {
+            walls[i >>> 6] |= 1L << i;
+        } else {
+            walls[i >>> 6] &= ~(1L << i);
         }
     }
 
     /**
-     * Finds a valid exit position for the maze.
-     * It looks for the first empty cell on the maze's border.
+     * Copies a region carved by {@link MazeRegion#carve} into the maze. Only the region's
+     * own positions are written; the wall around the carved box is left out.
+     *
+     * The distances to the exit are not touched here: updating them can cost as much as
+     * computing them again, however small the region, and a room carves regions on its
+     * simulation thread. The region is only noted, and the field is updated the next time
+     * a distance is asked for, once for the rectangle around every region carved since.
+     * Once that rectangle covers a quarter of the maze the field is dropped instead, and
+     * computed again when it is next needed.
      */
-    private Position findExit() {
-        // Find an empty space on the right-most wall
-        for (int y = height - 2; y > 0; y--) {
-            if (!walls[y][width - 2]) {
-                return new Position(width - 1, y);
+    void carveRegion(MazeRegion region, long[] carved) {
+        int boxWidth = region.width() + 2;
+        for (int ty = 0; ty < region.height(); ty++) {
+            for (int tx = 0; tx < region.width(); tx++) {
+                int i = (ty + 1) * boxWidth + tx + 1;
+                setWall(region.x() + tx, region.y() + ty, (carved[i >>> 6] >>> i & 1) != 0);
             }
         }
-        return new Position(width - 1, height - 2);
+        markStale(region.x(), region.y(), region.x() + region.width(), region.y() + region.height());
+    }
+
+    private void markStale(int minX, int minY, int maxX, int maxY) {
+        if (distances == null) return;
+        if (stale) {
+            minX = Math.min(minX, staleMinX);
+            minY = Math.min(minY, staleMinY);
+            maxX = Math.max(maxX, staleMaxX);
+            maxY = Math.max(maxY, staleMaxY);
+        }
+        if ((long) (maxX - minX) * (maxY - minY) * 4 > (long) width * height) {
+            distances = null;
+            stale = false;
+            return;
+        }
+        stale = true;
+        staleMinX = minX;
+        staleMinY = minY;
+        staleMaxX = maxX;
+        staleMaxY = maxY;
+    }
+
+    /** Opens bit i of a maze's walls, for the generators. */
+    static void clearWall(long[] walls, int i) {
+        walls[i >>> 6] &= ~(1L << i);
     }
 
     /**
-     * Checks if a given position is a wall.
+     * Returns where one step from a position in a direction ends up: the next cell if it
+     * is open or is the exit, otherwise the same position. The server applies moves with
+     * this, and clients use it to predict their own moves before the server confirms them.
      */
-    public boolean isWall(int x, int y) {
-        if (x < 0 || x >= width || y < 0 || y >= height) {
-            return true; // Treat out-of-bounds as a wall
+    public Position step(Position from, int direction) {
+        Position to;
+        switch (direction) {
+            case Protocol.DIR_UP -> to = new Position(from.x(), from.y() - 1);
+            case Protocol.DIR_DOWN -> to = new Position(from.x(), from.y() + 1);
+            case Protocol.DIR_LEFT -> to = new Position(from.x() - 1, from.y());
+            case Protocol.DIR_RIGHT -> to = new Position(from.x() + 1, from.y());
+            default -> {
+                return from;
+            }
         }
-        return walls[y][x];
+        return !isWall(to.x(), to.y()) || to.equals(exitPosition) ? to : from;
     }
 
     public Position getExitPosition() {
@@ -107,6 +270,16 @@ public class Maze implements Serializable {
         return height;
     }
 
+    /** The seed the maze was generated from, or 0 for a maze received from the server. */
+    public long getSeed() {
+        return seed;
+    }
+
+    /** The generator that carved the maze; depth-first for a maze received from the server. */
+    public MazeGenerator getGenerator() {
+        return MazeGenerator.byId(generator);
+    }
+
     /**
      * Converts the maze grid to a string representation for printing.
      * This is crucial for the console-based display.
@@ -0,0 +1,70 @@
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A way of carving a maze. Every generator works on the same layout: the cells are the
+ * positions with both coordinates odd, each cell is opened, and each carved passage is
+ * the position between two neighbouring cells. The top-left corner is never opened, which
+ * {@link Maze#isWall} relies on. Every generator makes a perfect maze, with exactly one
+ * path between any two cells, and the same size and seed always give the same maze.
+ *
+ * The generators differ in the mazes they make and in what they need to make them:
+ * <ul>
+ * <li>{@link #DEPTH_FIRST}: long winding corridors with few branches; a stack of up to a
+ *     byte for every four cells. Huge mazes are carved in tiles on several threads.</li>
+ * <li>{@link #KRUSKAL}: many short dead ends; an int per cell for the union-find and two
+ *     for the shuffled walls.</li>
+ * <li>{@link #WILSON}: a uniformly random maze, every perfect maze as likely as any other;
+ *     a byte per cell. The slowest, since its random walks wander.</li>
+ * <li>{@link #ELLER}: built one row at a time, with a few ints per column of working
+ *     memory, so rows can be written out as they are made (see
+ *     {@link EllerMazeGenerator#stream}).</li>
+ * </ul>
+ */
+public interface MazeGenerator {
+    MazeGenerator DEPTH_FIRST = new DepthFirstMazeGenerator(DepthFirstMazeGenerator.TILED_CELLS,
+        ForkJoinPool.commonPool());
+    MazeGenerator KRUSKAL = new KruskalMazeGenerator();
+    MazeGenerator WILSON = new WilsonMazeGenerator();
+    MazeGenerator ELLER = new EllerMazeGenerator();
+
+    /**
+     * Carves a maze into walls that are all set, one bit per position, bit y * width + x.
+     */
+    void carve(long[] walls, int width, int height, long seed);
+
+    /** The generator's number in the game journal and match recordings. */
+    int id();
+
+    /** The generator's name on the command line. */
+    String name();
+
+    /**
+     * The generator with a journal number.
+     *
+     * @throws IllegalArgumentException if there is none
+     */
+    static MazeGenerator byId(int id) {
+        return switch (id) {
+            case 0 -> DEPTH_FIRST;
+            case 1 -> KRUSKAL;
+            case 2 -> WILSON;
+            case 3 -> ELLER;
+            default -> throw new IllegalArgumentException("Unknown maze generator " + id);
+        };
+    }
+
+    /**
+     * The generator with a command line name: dfs, kruskal, wilson or eller.
+     *
+     * @throws IllegalArgumentException if there is none
+     */
+    static MazeGenerator byName(String name) {
+        for (int id = 0; id < 4; id++) {
+            MazeGenerator generator = byId(id);
+            if (generator.name().equalsIgnoreCase(name)) {
+                return generator;
+            }
+        }
+        throw new IllegalArgumentException("Unknown maze generator " + name + "; expected dfs, kruskal, wilson or eller");
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The next few mazes of a room, built before its earthquakes need them.
+ *
+ * A producer on the background executor keeps a bounded buffer of ready mazes full: each
+ * generated, checked to reach the exit from every cell, and cut into tiles that are all
+ * encoded. The check computes a distance field that isn't kept, so a ready maze doesn't
+ * hold one until something asks for it. An earthquake then takes the next one and sends what
+ * was encoded already, so its cost on the simulation thread doesn't depend on the maze
+ * size, and a big maze arrives as soon as the earthquake is due instead of seconds later.
+ * If the producer falls behind, the earthquake waits for the next maze to be finished.
+ *
+ * The mazes come from a generator of their own, seeded by the room, and are numbered in
+ * the order they are built. Only the producer draws from it, one maze at a time, so the
+ * mazes and their order are the same however the producer is scheduled, and a replayed
+ * match gets the same mazes as the recorded one.
+ *
+ * A ready maze costs its walls plus its encoded tiles: about 4 MB at 4001x4001, so keep
+ * the buffer at one or two for large mazes.
+ */
+final class MazePipeline {
+    private final RoomSettings settings;
+    private final Executor background;
+    private final ServerMetrics metrics = Server.getMetrics();
+    private final Random seeds;       // drawn by the producer only
+    private final ArrayBlockingQueue<MazeTiles> ready;
+    private final AtomicBoolean producing = new AtomicBoolean(false);
+    private int nextMazeId;           // producer only
+    private final int roomId;
+
+    /**
+     * Starts filling the buffer; the first maze taken is numbered firstMazeId.
+     */
+    MazePipeline(int roomId, RoomSettings settings, long seed, int firstMazeId, Executor background) {
+        this.roomId = roomId;
+        this.settings = settings;
+        this.background = background;
+        this.seeds = new Random(seed);
+        this.nextMazeId = firstMazeId;
+        this.ready = new ArrayBlockingQueue<>(settings.mazeBuffer());
+        refill();
+    }
+
+    /**
+     * Takes the next ready maze, as tiles, or returns null if it isn't finished yet. The
+     * producer starts on a replacement straight away.
+     */
+    MazeTiles take() {
+        MazeTiles tiles = ready.poll();
+        refill();
+        return tiles;
+    }
+
+    /** How many mazes are ready. */
+    int getDepth() {
+        return ready.size();
+    }
+
+    private void refill() {
+        if (ready.remainingCapacity() > 0 && producing.compareAndSet(false, true)) {
+            background.execute(this::produce);
+        }
+    }
+
+    /**
+     * Builds mazes until the buffer is full. A maze the exit can't be reached from
+     * everywhere is dropped with an error, which would mean a broken generator.
+     */
+    private void produce() {
+        try {
+            while (ready.remainingCapacity() > 0) {
+                long start = System.nanoTime();
+                int mazeId = nextMazeId++;
+                Maze maze = new Maze(settings.mazeWidth(), settings.mazeHeight(), seeds.nextLong(),
+                    settings.mazeGenerator());
+                if (!maze.isConnected()) {
+                    Log.error("Maze " + mazeId + " of room " + roomId + " leaves cells cut off from the exit; "
+                        + "skipping it");
+                    continue;
+                }
+                MazeTiles tiles = new MazeTiles(mazeId, maze);
+                tiles.encodeAll();
+                metrics.mazeBuild.record(System.nanoTime() - start);
+                ready.add(tiles);
+            }
+        } finally {
+            producing.set(false);
+        }
+        // A maze taken after the loop saw a full buffer would otherwise not be replaced
+        if (ready.remainingCapacity() > 0) {
+            refill();
+        }
+    }
+}
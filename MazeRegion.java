@@ -0,0 +1,50 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A rectangle of a maze that an earthquake carves again in place, leaving the rest as
+ * it was. (x, y) is its top-left cell and width and height cover whole cells and the
+ * passages between them, so both are odd; the walls around it are not part of it.
+ *
+ * The region is carved as a small maze of its own, with the maze's generator and the
+ * region's seed, and copied in. Every cell in it is still open and every cell is joined
+ * to every other through the region, while the passages on its border are left alone.
+ * Everything that could reach the exit before still can: any path that left through the
+ * border comes back the same way, and crosses the region on a new route. The exit itself
+ * is never inside a region. New loops may appear where two border passages now meet
+ * inside, so a maze that has had earthquakes is no longer perfect.
+ *
+ * Only the placement and seed need keeping, so the journal stores 24 bytes per region
+ * and recovery carves it again the same way.
+ */
+record MazeRegion(int x, int y, int width, int height, long seed) {
+
+    /**
+     * Picks a region of about size x size positions at a random place inside a maze,
+     * smaller if the maze is. The right and bottom borders are never touched.
+     */
+    static MazeRegion random(int mazeWidth, int mazeHeight, int size, Random random) {
+        int columns = (mazeWidth - 1) / 2; // cells with a wall to their right, inside the border
+        int rows = (mazeHeight - 1) / 2;
+        int regionColumns = Math.min(columns, Math.max(1, (size + 1) / 2));
+        int regionRows = Math.min(rows, Math.max(1, (size + 1) / 2));
+        int column = random.nextInt(columns - regionColumns + 1);
+        int row = random.nextInt(rows - regionRows + 1);
+        return new MazeRegion(2 * column + 1, 2 * row + 1, 2 * regionColumns - 1, 2 * regionRows - 1,
+            random.nextLong());
+    }
+
+    /**
+     * Carves the region with a generator into a walls array of its own, the region with a
+     * wall all round, (width + 2) x (height + 2) bits; see {@link Maze#carveRegion}. Safe to
+     * call off the simulation thread, since the maze isn't touched.
+     */
+    long[] carve(MazeGenerator generator) {
+        int boxWidth = width + 2;
+        int boxHeight = height + 2;
+        long[] walls = new long[(int) (((long) boxWidth * boxHeight + 63) >>> 6)];
+        Arrays.fill(walls, -1L);
+        generator.carve(walls, boxWidth, boxHeight, seed);
+        return walls;
+    }
+}
@@ -3,16 +3,19 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.List;
 
 public class MazeRunnerSwingClient extends JFrame {
     private String playerName;
-    private String myPlayerId;
+    private int myPlayerId = -1;
+    private ClientGameState gameState = new ClientGameState();
     private Maze currentMaze;
-    private Map<String, Player> players;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private Map<Integer, Player> players;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private volatile ClientUdpChannel udp; // set if the server offers UDP movement
 
     private static String SERVER_ADDRESS = "localhost";
     private static final int SERVER_PORT = 12345;
@@ -266,40 +269,29 @@ public class MazeRunnerSwingClient extends JFrame {
             public void keyPressed(KeyEvent e) {
                 if (!gameStarted || out == null) return;
 
-                String command = null;
+                int direction = -1;
                 switch (e.getKeyCode()) {
-                    case KeyEvent.VK_UP -> {
-                        command = "up";
-                        lastDir = DIR_UP;
-                    }
-                    case KeyEvent.VK_DOWN -> {
-                        command = "down";
-                        lastDir = DIR_DOWN;
-                    }
-                    case KeyEvent.VK_LEFT -> {
-                        command = "left";
-                        lastDir = DIR_LEFT;
-                    }
-                    case KeyEvent.VK_RIGHT -> {
-                        command = "right";
-                        lastDir = DIR_RIGHT;
-                    }
+                    case KeyEvent.VK_UP -> direction = Protocol.DIR_UP;
+                    case KeyEvent.VK_DOWN -> direction = Protocol.DIR_DOWN;
+                    case KeyEvent.VK_LEFT -> direction = Protocol.DIR_LEFT;
+                    case KeyEvent.VK_RIGHT -> direction = Protocol.DIR_RIGHT;
                 }
 
-                if (command != null) {
+                if (direction >= 0) {
+                    lastDir = direction;
+                    // Move the sprite now rather than after a round trip; the server's ACK
+                    // confirms the move or puts us back
+                    int seq = gameState.predictMove(direction);
                     try {
-                        out.writeObject(command);
-                        out.flush();
+                        ClientUdpChannel udp = MazeRunnerSwingClient.this.udp;
+                        if (udp == null || !udp.sendMove(direction, seq)) {
+                            Protocol.writeFrame(out, Protocol.encodeMove(direction, seq));
+                        }
                     } catch (IOException ex) {
                         showError("Error sending command: " + ex.getMessage());
                     }
-                    // Update local player's position and check collections after sending command
-                    if (players != null && myPlayerId != null) {
-                        Player me = players.get(myPlayerId);
-                        if (me != null) {
-                            checkCoinCollection(me.getPosition());
-                        }
-                    }
+                    // Update local player's position and check collections at the predicted spot
+                    updatePlayers();
                     mazePanel.repaint();
                 }
             }
@@ -309,11 +301,16 @@ public class MazeRunnerSwingClient extends JFrame {
     }
 
     private void clearNetwork() {
+        if (udp != null) {
+            udp.close();
+            udp = null;
+        }
         out = null;
         in = null;
+        gameState = new ClientGameState();
         players = null;
         currentMaze = null;
-        myPlayerId = null;
+        myPlayerId = -1;
     }
 
     private void startGameTimer() {
@@ -363,16 +360,16 @@ public class MazeRunnerSwingClient extends JFrame {
 
     private void setupNetwork() {
         try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT)) {
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
-            out.writeObject(playerName);
-            out.flush();
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Protocol.writeFrame(out, Protocol.encodeHello(playerName, Protocol.DEFAULT_ROOM, Protocol.HELLO_UDP));
 
             while (true) {
-                Object message = in.readObject();
-                handleServerMessage(message);
+                if (!handleServerMessage(Protocol.readFrame(in, Protocol.MAX_SERVER_FRAME))) {
+                    return; // Exit the listening thread
+                }
             }
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException | RuntimeException e) {
             if (!disconnectedIntentionally) {
                 showError("Disconnected from server: " + e.getMessage());
                 cardLayout.show(cardsPanel, "start");
@@ -381,56 +378,102 @@ public class MazeRunnerSwingClient extends JFrame {
         }
     }
 
-    private void handleServerMessage(Object message) {
-        if (message instanceof Maze maze) {
-            currentMaze = maze;
-            if (!coinsGenerated) {
-                generateCoins();
-                coinsGenerated = true;
+    /**
+     * Applies one frame from the server. Returns false once the game is over.
+     */
+    private boolean handleServerMessage(ByteBuffer frame) {
+        switch (frame.get()) {
+            case Protocol.WELCOME -> {
+                myPlayerId = frame.getInt();
+                gameState.setMyPlayerId(myPlayerId, frame.getInt());
+            }
+            case Protocol.UDP_OFFER -> {
+                int port = frame.getShort() & 0xFFFF;
+                try {
+                    udp = ClientUdpChannel.open(SERVER_ADDRESS, port, frame.getLong(), gameState,
+                        () -> SwingUtilities.invokeLater(this::updatePlayers));
+                } catch (IOException e) {
+                    System.err.println("UDP unavailable, moving over TCP: " + e.getMessage());
+                }
+            }
+            case Protocol.ACK -> {
+                gameState.applyAck(frame);
+                updatePlayers();
+            }
+            case Protocol.SNAPSHOT -> {
+                gameState.applySnapshot(frame);
+                updatePlayers();
+            }
+            case Protocol.MAZE_START -> {
+                gameState.applyMazeStart(frame);
+                currentMaze = gameState.getMaze();
+                updateCellSize();
+                // Handle earthquake: maze reshuffled - no popup, just update timestamp
+                lastEarthquakeShown = System.currentTimeMillis();
             }
-            updateCellSize();
-            // Handle earthquake: maze reshuffled - no popup, just update timestamp
-            lastEarthquakeShown = System.currentTimeMillis();
-        } else if (message instanceof Map<?, ?> map) {
-            @SuppressWarnings("unchecked")
-            Map<String, Player> updatedPlayers = (Map<String, Player>) map;
-            players = updatedPlayers;
-
-            if (myPlayerId == null) {
-                for (Player p : players.values()) {
-                    if (p.getName().equals(playerName)) {
-                        myPlayerId = p.getId();
-                        break;
+            case Protocol.MAZE_TILE -> {
+                gameState.applyMazeTile(frame);
+                // Coins can only be placed once we know where the walls are
+                if (!coinsGenerated && gameState.isMazeComplete()) {
+                    generateCoins();
+                    coinsGenerated = true;
+                }
+            }
+            case Protocol.MAZE_DIFF -> {
+                // Part of the maze shifted in place; the repaint below shows the new walls
+                gameState.applyMazeDiff(frame);
+                lastEarthquakeShown = System.currentTimeMillis();
+            }
+            case Protocol.DELTA -> {
+                if (!gameState.applyDelta(frame)) {
+                    // Missed an update; ask for a fresh snapshot and keep showing the old state
+                    try {
+                        Protocol.writeFrame(out, Protocol.encodeResync());
+                    } catch (IOException e) {
+                        showError("Error requesting game state: " + e.getMessage());
                     }
+                    return true;
                 }
+                updatePlayers();
             }
-
-            if (myPlayerId != null) {
-                Player me = players.get(myPlayerId);
-                if (me != null) {
-                    checkCoinCollection(me.getPosition());
+            case Protocol.WINNER -> {
+                String str = "WINNER: " + Protocol.readString(frame);
+                JOptionPane.showMessageDialog(this, str, "Game Over", JOptionPane.INFORMATION_MESSAGE);
+                previousScoresArea.append(playerName + ": WIN\n");
+                cardLayout.show(cardsPanel, "start");
+                gameStarted = false;
+                disconnectedIntentionally = true;
+                // Disconnect gracefully
+                try {
+                    if (out != null) out.close();
+                    if (in != null) in.close();
+                } catch (IOException e) {
+                    // Ignore
                 }
+                return false;
             }
-        } else if (message instanceof String str && str.startsWith("WINNER")) {
-            JOptionPane.showMessageDialog(this, str, "Game Over", JOptionPane.INFORMATION_MESSAGE);
-            previousScoresArea.append(playerName + ": WIN\n");
-            cardLayout.show(cardsPanel, "start");
-            gameStarted = false;
-            disconnectedIntentionally = true;
-            // Disconnect gracefully
-            try {
-                if (out != null) out.close();
-                if (in != null) in.close();
-            } catch (IOException e) {
-                // Ignore
+            case Protocol.ERROR -> showError("Server error: " + Protocol.readString(frame));
+            default -> {
+                // Ignore frames this client doesn't understand
             }
-            return; // Exit the listening thread
         }
 
         SwingUtilities.invokeLater(() -> {
             mazePanel.repaint();
             updateStatusLabel();
         });
+        return true;
+    }
+
+    private void updatePlayers() {
+        players = gameState.getPlayers();
+
+        if (myPlayerId >= 0) {
+            Player me = players.get(myPlayerId);
+            if (me != null) {
+                checkCoinCollection(me.getPosition());
+            }
+        }
     }
 
     private void generateCoins() {
@@ -492,7 +535,7 @@ public class MazeRunnerSwingClient extends JFrame {
     }
 
     private void spawnCoinBag() {
-        if (currentMaze == null) return;
+        if (currentMaze == null || !gameState.isMazeComplete()) return;
         Random rand = new Random();
         int w = currentMaze.getWidth();
         int h = currentMaze.getHeight();
@@ -515,7 +558,7 @@ public class MazeRunnerSwingClient extends JFrame {
     }
 
     private void spawnTimeBonus() {
-        if (currentMaze == null) return;
+        if (currentMaze == null || !gameState.isMazeComplete()) return;
         Random rand = new Random();
         int w = currentMaze.getWidth();
         int h = currentMaze.getHeight();
@@ -544,7 +587,7 @@ public class MazeRunnerSwingClient extends JFrame {
         } else {
             StringBuilder sb = new StringBuilder("<html>Connected Players: ");
             for (Player p : players.values()) {
-                if (p.getId().equals(myPlayerId)) {
+                if (p.getId() == myPlayerId) {
                     sb.append("<b>").append(p.getName()).append("</b>, ");
                 } else {
                     sb.append(p.getName()).append(", ");
@@ -684,7 +727,7 @@ public class MazeRunnerSwingClient extends JFrame {
 
             for (Player p : players.values()) {
                 Position pos = p.getPosition();
-                if (p.getId().equals(myPlayerId))
+                if (p.getId() == myPlayerId)
                     marioIcons[lastDir].paintIcon(this, g, pos.x() * dynamicCellSize, pos.y() * dynamicCellSize);
                 else
                     playerIconDefault.paintIcon(this, g, pos.x() * dynamicCellSize, pos.y() * dynamicCellSize);
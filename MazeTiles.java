@@ -0,0 +1,161 @@
+/**
+ * A maze cut into square tiles of {@link Protocol#TILE_SIZE} cells for streaming to clients.
+ *
+ * A big maze is never sent in one piece: every client gets a MAZE_START, then the tiles
+ * one by one, nearest to the player first, so the area around the player arrives within
+ * a tick or two and the rest follows as the connection keeps up. Each tile is encoded the
+ * first time any client needs it and the same frame is then shared by every client, until
+ * an earthquake carves part of it again.
+ *
+ * Only used by the room's simulation thread, under the room's lock, once the room has it.
+ * A {@link MazePipeline} builds the tiles of the next mazes on a background thread first,
+ * with every tile already encoded, and hands them over through a concurrent queue.
+ */
+public class MazeTiles {
+    private final int mazeId;
+    private final Maze maze;
+    private final int columns;
+    private final int rows;
+    private final byte[] startFrame;
+    private final byte[][] tileFrames; // encoded on first use
+
+    public MazeTiles(int mazeId, Maze maze) {
+        this.mazeId = mazeId;
+        this.maze = maze;
+        this.columns = (maze.getWidth() + Protocol.TILE_SIZE - 1) / Protocol.TILE_SIZE;
+        this.rows = (maze.getHeight() + Protocol.TILE_SIZE - 1) / Protocol.TILE_SIZE;
+        this.startFrame = Protocol.encodeMazeStart(mazeId, maze);
+        this.tileFrames = new byte[columns * rows][];
+    }
+
+    public int getMazeId() {
+        return mazeId;
+    }
+
+    public Maze getMaze() {
+        return maze;
+    }
+
+    /** The MAZE_START frame every client gets before the tiles. */
+    public byte[] getStartFrame() {
+        return startFrame;
+    }
+
+    public int getTileCount() {
+        return tileFrames.length;
+    }
+
+    /** The MAZE_TILE frame for a tile, numbered row by row. */
+    public byte[] getTileFrame(int tile) {
+        byte[] frame = tileFrames[tile];
+        if (frame == null) {
+            frame = Protocol.encodeMazeTile(mazeId, maze, tile % columns, tile / columns);
+            tileFrames[tile] = frame;
+        }
+        return frame;
+    }
+
+    /**
+     * Encodes every tile that hasn't been yet, so none has to be when it is streamed.
+     */
+    public void encodeAll() {
+        for (int tile = 0; tile < tileFrames.length; tile++) {
+            getTileFrame(tile);
+        }
+    }
+
+    /**
+     * Forgets the encoded tiles that overlap a rectangle of the maze whose walls changed,
+     * so they are encoded again the next time a client needs them.
+     */
+    public void invalidate(int x, int y, int width, int height) {
+        int firstColumn = x / Protocol.TILE_SIZE;
+        int firstRow = y / Protocol.TILE_SIZE;
+        int lastColumn = Math.min(columns - 1, (x + width - 1) / Protocol.TILE_SIZE);
+        int lastRow = Math.min(rows - 1, (y + height - 1) / Protocol.TILE_SIZE);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                tileFrames[row * columns + column] = null;
+            }
+        }
+    }
+
+    /**
+     * How far one client has got through the tiles. Tiles are handed out in rings around
+     * the tile the player is standing on, so whatever is nearest arrives first even if
+     * the player moves while the maze is still streaming.
+     */
+    public static final class Stream {
+        private final MazeTiles tiles;
+        private final boolean[] sent;
+        private int sentCount;
+        private int centerColumn = -1, centerRow = -1;
+        private int completeRings; // rings around the center that have all been sent
+
+        public Stream(MazeTiles tiles) {
+            this.tiles = tiles;
+            this.sent = new boolean[tiles.tileFrames.length];
+        }
+
+        public MazeTiles getTiles() {
+            return tiles;
+        }
+
+        public boolean isComplete() {
+            return sentCount == sent.length;
+        }
+
+        /**
+         * Picks the unsent tile nearest to the given cell, marks it sent and returns its
+         * number, or -1 once every tile has been sent.
+         */
+        public int next(int x, int y) {
+            if (isComplete()) return -1;
+            int column = clamp(x / Protocol.TILE_SIZE, tiles.columns);
+            int row = clamp(y / Protocol.TILE_SIZE, tiles.rows);
+            if (column != centerColumn || row != centerRow) {
+                centerColumn = column;
+                centerRow = row;
+                completeRings = 0;
+            }
+            int maxRing = Math.max(tiles.columns, tiles.rows);
+            for (int ring = completeRings; ring < maxRing; ring++) {
+                int tile = unsentInRing(ring);
+                if (tile >= 0) {
+                    sent[tile] = true;
+                    sentCount++;
+                    return tile;
+                }
+                completeRings = ring + 1;
+            }
+            return -1;
+        }
+
+        /** Returns an unsent tile on the square ring at the given distance, or -1. */
+        private int unsentInRing(int ring) {
+            int top = centerRow - ring, bottom = centerRow + ring;
+            int left = centerColumn - ring, right = centerColumn + ring;
+            for (int column = Math.max(left, 0); column <= Math.min(right, tiles.columns - 1); column++) {
+                int tile = unsent(column, top);
+                if (tile < 0) tile = unsent(column, bottom);
+                if (tile >= 0) return tile;
+            }
+            for (int row = Math.max(top + 1, 0); row <= Math.min(bottom - 1, tiles.rows - 1); row++) {
+                int tile = unsent(left, row);
+                if (tile < 0) tile = unsent(right, row);
+                if (tile >= 0) return tile;
+            }
+            return -1;
+        }
+
+        private int unsent(int column, int row) {
+            if (column < 0 || column >= tiles.columns || row < 0 || row >= tiles.rows) return -1;
+            int tile = row * tiles.columns + column;
+            return sent[tile] ? -1 : tile;
+        }
+
+        private static int clamp(int value, int count) {
+            return Math.min(Math.max(value, 0), count - 1);
+        }
+    }
+}
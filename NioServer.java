@@ -0,0 +1,323 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Server engine built on a Selector event loop.
+ * Instead of one blocked thread per player, a small fixed set of I/O threads each
+ * multiplex many non-blocking SocketChannels. The game rules still live in {@link Server}.
+ */
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private final ServerSocketChannel serverChannel;
+    private final IoLoop[] loops;
+    private int nextLoop = 0;
+
+    public NioServer(ServerSocketChannel serverChannel, int ioThreads) throws IOException {
+        this.serverChannel = serverChannel;
+        this.loops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new IoLoop(i);
+        }
+    }
+
+    /**
+     * Starts the I/O threads and accepts connections on the calling thread.
+     * New channels are handed to the I/O loops round-robin.
+     */
+    public void run() throws IOException {
+        for (IoLoop loop : loops) {
+            loop.start();
+        }
+        Log.info("NIO engine running with " + loops.length + " I/O threads");
+
+        while (serverChannel.isOpen()) {
+            SocketChannel channel = serverChannel.accept();
+            InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+            Log.info("Player connected from " + remote.getAddress().getHostAddress());
+
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            loops[nextLoop].register(channel);
+            nextLoop = (nextLoop + 1) % loops.length;
+        }
+    }
+
+    /**
+     * One selector thread that owns a subset of the connections.
+     * Other threads never touch the selector directly; they queue work and wake it up.
+     */
+    private static class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Read-only views of the frames being written in this round, one per frame rather
+        // than one per connection. Only the loop thread touches them.
+        private final IdentityHashMap<byte[], ByteBuffer> frameViews = new IdentityHashMap<>();
+
+        IoLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "nio-io-" + index);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    NioConnection connection = new NioConnection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    Log.warn("Could not register connection: " + e.getMessage());
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        /**
+         * Returns this loop's view of a shared frame, positioned at the given offset.
+         * Every connection on the loop writing the same broadcast reuses the same view.
+         */
+        ByteBuffer view(byte[] frame, int offset) {
+            ByteBuffer view = frameViews.get(frame);
+            if (view == null) {
+                view = ByteBuffer.wrap(frame).asReadOnlyBuffer();
+                frameViews.put(frame, view);
+            }
+            view.clear().position(offset);
+            return view;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            connection.close();
+                        }
+                    }
+                    frameViews.clear();
+                } catch (IOException e) {
+                    Log.warn("I/O loop error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * A single non-blocking client connection with its own read buffer and outbound queue.
+     * Incoming bytes accumulate until a whole frame has arrived; outgoing frames wait in
+     * the queue and the I/O loop writes them whenever the socket is writable.
+     */
+    private static class NioConnection implements ClientConnection {
+        private final IoLoop loop;
+        private final SocketChannel channel;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final OutboundQueue outbound = Server.newOutboundQueue();
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+        // Frames taken from the queue but not yet fully written, I/O thread only
+        private final byte[][] batch = new byte[OutboundQueue.MAX_BATCH][];
+        private final long[] batchEnqueuedNanos = new long[OutboundQueue.MAX_BATCH];
+        private final ByteBuffer[] gather = new ByteBuffer[OutboundQueue.MAX_BATCH];
+        private int batchStart, batchEnd;
+        private int batchOffset;                  // bytes of batch[batchStart] already written
+        private boolean closeWhenFlushed = false; // I/O thread only
+        private volatile SelectionKey key;
+        private int playerId;
+
+        NioConnection(IoLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        /**
+         * Reads whatever is available and handles every complete frame the client sent.
+         * The first frame is HELLO, every later one is a command.
+         */
+        void onReadable() throws IOException {
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+
+            readBuffer.flip();
+            List<ByteBuffer> frames = new ArrayList<>();
+            ByteBuffer frame;
+            while ((frame = Protocol.nextFrame(readBuffer, Protocol.MAX_CLIENT_FRAME)) != null) {
+                frames.add(frame);
+            }
+            readBuffer.compact();
+
+            for (ByteBuffer f : frames) {
+                if (playerId == 0) {
+                    playerId = Server.joinPlayer(f, this);
+                    if (playerId == 0) {
+                        // Rejected; let the ERROR frame go out before closing
+                        closeWhenFlushed = true;
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                } else {
+                    Server.handleFrame(playerId, f);
+                }
+            }
+        }
+
+        /**
+         * Writes queued frames until the queue is empty or the socket stops accepting data.
+         * A whole batch of frames goes out in one gathering write. Stops listening for
+         * writability once everything has been flushed.
+         */
+        void onWritable() throws IOException {
+            while (true) {
+                if (batchStart == batchEnd) {
+                    batchStart = 0;
+                    batchEnd = outbound.drainTo(batch, batchEnqueuedNanos);
+                    batchOffset = 0;
+                    if (batchEnd == 0) break;
+                }
+
+                int count = 0;
+                for (int i = batchStart; i < batchEnd; i++) {
+                    int offset = i == batchStart ? batchOffset : 0;
+                    gather[count++] = queuedEarlier(i)
+                        ? ByteBuffer.wrap(batch[i], offset, batch[i].length - offset) // same frame twice in one batch
+                        : loop.view(batch[i], offset);
+                }
+                channel.write(gather, 0, count);
+
+                int done = 0;
+                while (done < count && !gather[done].hasRemaining()) {
+                    batch[batchStart + done] = null;
+                    done++;
+                }
+                outbound.recordWritten(batchEnqueuedNanos, batchStart, done);
+                batchStart += done;
+                if (batchStart < batchEnd) {
+                    batchOffset = gather[done].position();
+                    return; // socket send buffer is full, wait for the next OP_WRITE
+                }
+            }
+
+            if (closeWhenFlushed) {
+                close();
+            } else {
+                // Only now may senders ask again: clearing the flag earlier would let a frame
+                // that was queued and drained during this call leave it set with OP_WRITE off
+                key.interestOps(SelectionKey.OP_READ);
+                writeRequested.set(false);
+                if (!outbound.isEmpty()) {
+                    // A frame arrived after we drained; its write request may have been
+                    // overwritten by the line above
+                    key.interestOpsOr(SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        private boolean queuedEarlier(int index) {
+            for (int i = batchStart; i < index; i++) {
+                if (batch[i] == batch[index]) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void send(byte[] frame) {
+            outbound.offerControl(frame);
+            requestWrite();
+        }
+
+        @Override
+        public boolean sendState(byte[] frame, boolean snapshot) {
+            boolean queued = outbound.offerState(frame, snapshot);
+            if (queued) {
+                requestWrite();
+            }
+            return queued;
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return outbound;
+        }
+
+        /**
+         * Asks the owning I/O loop to watch for writability. Selection keys may have their
+         * interest set changed from any thread, so this needs no task on the loop's queue;
+         * only the first request since the last write wakes the selector.
+         */
+        private void requestWrite() {
+            if (!writeRequested.compareAndSet(false, true)) return;
+            SelectionKey k = key;
+            if (k != null && k.isValid() && !closeWhenFlushed) {
+                try {
+                    k.interestOpsOr(SelectionKey.OP_WRITE);
+                } catch (CancelledKeyException e) {
+                    return; // closed meanwhile
+                }
+                loop.selector.wakeup();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            outbound.close();
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            Server.leavePlayer(playerId);
+            Log.info("Player " + playerId + " cleanup completed.");
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
@@ -0,0 +1,308 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of frames waiting to be written to one client, drained by that
+ * client's own writer. A slow client only ever fills its own queue; when it falls
+ * behind, queued state frames are thrown away and the client is resynced with a fresh
+ * snapshot instead of receiving every stale update.
+ *
+ * State frames (snapshots and deltas) count against the capacity. Control frames such as
+ * WELCOME, ACKs, tiles and MAZE_DIFFs are never dropped, but they count too: once more than
+ * {@link #MAX_CONTROL_BYTES} of them are waiting the queue is over its limit, exactly as
+ * if a state frame had been dropped, and a client that stays there is disconnected (see
+ * {@link #isStalled}).
+ *
+ * Writers take frames out in batches so that several can go to the socket in one write.
+ * The frames themselves are shared with every other client's queue and are never copied.
+ */
+public class OutboundQueue {
+    /** Most frames a writer takes out of the queue at once. */
+    public static final int MAX_BATCH = 64;
+    /** Control frame bytes a client may have waiting before it counts as falling behind. */
+    public static final int MAX_CONTROL_BYTES = 4 << 20;
+
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    // A ring of queued frames kept in parallel arrays, so queueing a frame allocates nothing
+    private byte[][] frames;
+    private boolean[] stateFlags;
+    private long[] enqueuedNanos;
+    private int head;
+    private int size;
+    private int stateFrames;
+    private long controlBytes;
+    private boolean full;         // over the limit, since fullSinceNanos, and not drained since
+    private long fullSinceNanos;
+    private boolean closed;
+
+    // Counters, guarded by lock
+    private long droppedFrames;
+    private long writtenFrames;
+    private long writeLatencyTotalNanos;
+    private long writeLatencyMaxNanos;
+
+    public OutboundQueue(int capacity) {
+        this.capacity = capacity;
+        int slots = Integer.highestOneBit(capacity + 8) << 1; // room for a few control frames
+        this.frames = new byte[slots][];
+        this.stateFlags = new boolean[slots];
+        this.enqueuedNanos = new long[slots];
+    }
+
+    /**
+     * Queues a state frame. A snapshot replaces any state frames still waiting, since it
+     * already contains everything they would have told the client.
+     * Returns false if the queue was full: the pending state frames and this one are then
+     * dropped, and the caller must send a snapshot next time.
+     */
+    public boolean offerState(byte[] frame, boolean snapshot) {
+        lock.lock();
+        try {
+            if (closed) return false;
+            if (snapshot) {
+                dropStateFrames();
+            } else if (stateFrames >= capacity) {
+                dropStateFrames();
+                droppedFrames++;
+                markFull();
+                return false;
+            }
+            add(frame, true);
+            stateFrames++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a frame that must be delivered no matter how far behind the client is.
+     */
+    public void offerControl(byte[] frame) {
+        lock.lock();
+        try {
+            if (closed) return;
+            add(frame, false);
+            controlBytes += frame.length;
+            if (controlBytes > MAX_CONTROL_BYTES) {
+                markFull();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void markFull() {
+        if (!full) {
+            full = true;
+            fullSinceNanos = System.nanoTime();
+        }
+    }
+
+    private void add(byte[] frame, boolean state) {
+        if (size == frames.length) {
+            grow();
+        }
+        int slot = (head + size) & (frames.length - 1);
+        frames[slot] = frame;
+        stateFlags[slot] = state;
+        enqueuedNanos[slot] = System.nanoTime();
+        size++;
+        notEmpty.signal();
+    }
+
+    private void grow() {
+        int slots = frames.length << 1;
+        byte[][] newFrames = new byte[slots][];
+        boolean[] newFlags = new boolean[slots];
+        long[] newTimes = new long[slots];
+        for (int i = 0; i < size; i++) {
+            int slot = (head + i) & (frames.length - 1);
+            newFrames[i] = frames[slot];
+            newFlags[i] = stateFlags[slot];
+            newTimes[i] = enqueuedNanos[slot];
+        }
+        frames = newFrames;
+        stateFlags = newFlags;
+        enqueuedNanos = newTimes;
+        head = 0;
+    }
+
+    /** Removes the queued state frames, keeping control frames in order. */
+    private void dropStateFrames() {
+        int mask = frames.length - 1;
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            int from = (head + i) & mask;
+            if (stateFlags[from]) {
+                droppedFrames++;
+                continue;
+            }
+            int to = (head + kept) & mask;
+            frames[to] = frames[from];
+            stateFlags[to] = false;
+            enqueuedNanos[to] = enqueuedNanos[from];
+            kept++;
+        }
+        for (int i = kept; i < size; i++) {
+            frames[(head + i) & mask] = null;
+        }
+        size = kept;
+        stateFrames = 0;
+    }
+
+    /**
+     * Moves as many queued frames as fit into the caller's arrays, oldest first, and
+     * returns how many were moved (0 if the queue is empty). Used by the NIO writer.
+     */
+    public int drainTo(byte[][] batch, long[] batchEnqueuedNanos) {
+        lock.lock();
+        try {
+            return removeFirst(batch, batchEnqueuedNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #drainTo}, but waits until there is at least one frame. Returns 0 once
+     * the queue is closed and empty. Used by the blocking writer thread.
+     */
+    public int takeBatch(byte[][] batch, long[] batchEnqueuedNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (size == 0 && !closed) {
+                notEmpty.await();
+            }
+            return removeFirst(batch, batchEnqueuedNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int removeFirst(byte[][] batch, long[] batchEnqueuedNanos) {
+        int count = Math.min(size, batch.length);
+        int mask = frames.length - 1;
+        for (int i = 0; i < count; i++) {
+            batch[i] = frames[head];
+            batchEnqueuedNanos[i] = enqueuedNanos[head];
+            if (stateFlags[head]) {
+                stateFrames--;
+            } else {
+                controlBytes -= frames[head].length;
+            }
+            frames[head] = null;
+            head = (head + 1) & mask;
+        }
+        size -= count;
+        if (size == 0) {
+            full = false; // the client has caught up
+        }
+        return count;
+    }
+
+    /**
+     * Records that frames taken from this queue have been fully written to the socket.
+     * Takes the enqueue times filled in by {@link #drainTo} or {@link #takeBatch}.
+     */
+    public void recordWritten(long[] batchEnqueuedNanos, int from, int count) {
+        if (count == 0) return;
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            for (int i = from; i < from + count; i++) {
+                long latency = now - batchEnqueuedNanos[i];
+                writeLatencyTotalNanos += latency;
+                writeLatencyMaxNanos = Math.max(writeLatencyMaxNanos, latency);
+            }
+            writtenFrames += count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if the client went over the limit, by dropping state frames or by
+     * having too many control bytes waiting, more than the timeout ago and still hasn't
+     * drained its queue.
+     */
+    public boolean isStalled(long timeoutMillis) {
+        lock.lock();
+        try {
+            return full
+                && System.nanoTime() - fullSinceNanos > TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return size == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting frames. A blocked writer finishes what is queued, then sees null.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getDepth() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedFrames() {
+        lock.lock();
+        try {
+            return droppedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getWrittenFrames() {
+        lock.lock();
+        try {
+            return writtenFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAverageWriteLatencyNanos() {
+        lock.lock();
+        try {
+            return writtenFrames == 0 ? 0 : writeLatencyTotalNanos / writtenFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxWriteLatencyNanos() {
+        lock.lock();
+        try {
+            return writeLatencyMaxNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
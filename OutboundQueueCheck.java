@@ -0,0 +1,162 @@
+import java.util.Arrays;
+
+/**
+ * Checks the rules of {@link OutboundQueue} that a slow client depends on: state frames
+ * past the capacity are dropped together and the caller told to resync, a snapshot
+ * replaces the state frames still waiting, control frames are never dropped and keep
+ * their order, and a queue over its limit, from dropped state frames or from too many
+ * control bytes, counts as stalled until it has been drained. Also checks that batches
+ * come out oldest first, at most {@link OutboundQueue#MAX_BATCH} at a time, and that a
+ * closed queue is drained and then ends.
+ *
+ * It stops at the first check that fails and exits with status 1.
+ *
+ * Usage: java OutboundQueueCheck
+ */
+public class OutboundQueueCheck {
+    private static final int CAPACITY = 4;
+
+    public static void main(String[] args) throws InterruptedException {
+        overflow();
+        snapshot();
+        controlFrames();
+        controlBytes();
+        batches();
+        System.out.println("Every outbound queue check passed");
+    }
+
+    /** Filling the queue works; one more state frame drops them all and stalls the client. */
+    private static void overflow() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            check(queue.offerState(frame(i), false), "state frame " + i + " fits");
+        }
+        check(!queue.isStalled(0), "a full queue isn't stalled yet");
+        check(!queue.offerState(frame(CAPACITY), false), "one past the capacity is refused");
+        check(queue.getDepth() == 0, "the waiting state frames are dropped, got " + queue.getDepth());
+        check(queue.getDroppedFrames() == CAPACITY + 1, "all five count as dropped, got " + queue.getDroppedFrames());
+        Thread.sleep(2);
+        check(queue.isStalled(0), "a queue that dropped frames is over the limit");
+        check(!queue.isStalled(60_000), "but not stalled before the timeout");
+
+        check(queue.offerState(frame(9), true), "the resync snapshot is queued");
+        Thread.sleep(2);
+        check(queue.isStalled(0), "still over the limit until the client drains the queue");
+        take(queue);
+        check(!queue.isStalled(0), "draining the queue clears the limit");
+        System.out.println("overflow: state frames dropped together, stalled until drained");
+    }
+
+    /** A snapshot replaces the waiting state frames, even in a full queue. */
+    private static void snapshot() {
+        OutboundQueue queue = new OutboundQueue(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            queue.offerState(frame(i), false);
+        }
+        check(queue.offerState(frame(7), true), "a snapshot always fits");
+        byte[][] taken = take(queue);
+        check(taken.length == 1 && taken[0][0] == 7, "only the snapshot is left, got " + taken.length + " frames");
+        check(queue.getDroppedFrames() == CAPACITY, "the replaced deltas count as dropped");
+        System.out.println("snapshot: replaces the waiting deltas");
+    }
+
+    /** Control frames survive dropping and snapshots, in the order they were queued. */
+    private static void controlFrames() {
+        OutboundQueue queue = new OutboundQueue(CAPACITY);
+        queue.offerControl(frame(1));
+        queue.offerState(frame(50), false);
+        queue.offerControl(frame(2));
+        for (int i = 0; i < CAPACITY; i++) {
+            queue.offerState(frame(51 + i), false);
+        }
+        queue.offerControl(frame(3));
+        byte[][] taken = take(queue);
+        check(taken.length == 3 && taken[0][0] == 1 && taken[1][0] == 2 && taken[2][0] == 3,
+            "the control frames are left, in order, got " + taken.length + " frames");
+
+        queue.offerControl(frame(4));
+        queue.offerState(frame(60), false);
+        queue.offerState(frame(61), true);
+        queue.offerControl(frame(5));
+        taken = take(queue);
+        check(taken.length == 3 && taken[0][0] == 4 && taken[1][0] == 61 && taken[2][0] == 5,
+            "a snapshot keeps the control frames around it");
+        System.out.println("control frames: never dropped, order kept");
+    }
+
+    /** Too many control bytes put the queue over its limit even with no state frames. */
+    private static void controlBytes() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(CAPACITY);
+        byte[] tile = new byte[64 << 10];
+        int fits = OutboundQueue.MAX_CONTROL_BYTES / tile.length;
+        for (int i = 0; i < fits; i++) {
+            queue.offerControl(tile);
+        }
+        Thread.sleep(2);
+        check(!queue.isStalled(0), "exactly the limit of control bytes is not over it");
+        queue.offerControl(tile);
+        Thread.sleep(2);
+        check(queue.isStalled(0), "one control frame past the limit is over it");
+        check(queue.getDroppedFrames() == 0, "and nothing is dropped");
+        check(queue.getDepth() == fits + 1, "every control frame is still queued, got " + queue.getDepth());
+
+        byte[][] batch = new byte[OutboundQueue.MAX_BATCH][];
+        long[] times = new long[OutboundQueue.MAX_BATCH];
+        queue.drainTo(batch, times);
+        check(queue.isStalled(0), "partly drained is still over the limit");
+        take(queue);
+        check(!queue.isStalled(0), "drained, the limit is cleared");
+        for (int i = 0; i < fits; i++) {
+            queue.offerControl(tile);
+        }
+        Thread.sleep(2);
+        check(!queue.isStalled(0), "the drained bytes no longer count");
+        System.out.println("control bytes: over " + (OutboundQueue.MAX_CONTROL_BYTES >> 20)
+            + " MB waiting stalls the client, drained bytes are forgotten");
+    }
+
+    /** Batches are oldest first and no bigger than MAX_BATCH; a closed queue drains, then ends. */
+    private static void batches() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(1000);
+        int count = OutboundQueue.MAX_BATCH * 2 + 5;
+        for (int i = 0; i < count; i++) {
+            queue.offerControl(frame(i));
+        }
+        queue.close();
+        queue.offerControl(frame(0));
+        check(!queue.offerState(frame(0), false), "a closed queue refuses state frames");
+
+        byte[][] batch = new byte[OutboundQueue.MAX_BATCH][];
+        long[] times = new long[OutboundQueue.MAX_BATCH];
+        int next = 0;
+        int taken;
+        while ((taken = queue.takeBatch(batch, times)) > 0) {
+            check(taken <= OutboundQueue.MAX_BATCH, "a batch holds at most " + OutboundQueue.MAX_BATCH);
+            for (int i = 0; i < taken; i++) {
+                check(batch[i][0] == (byte) next++, "frames come out in order, frame " + (next - 1));
+            }
+        }
+        check(next == count, "everything queued before closing comes out, got " + next + " of " + count);
+        System.out.println("batches: in order, " + OutboundQueue.MAX_BATCH + " at most, closed queue ends");
+    }
+
+    private static byte[] frame(int tag) {
+        return new byte[] { (byte) tag };
+    }
+
+    /** Takes everything queued, in order. */
+    private static byte[][] take(OutboundQueue queue) {
+        byte[][] batch = new byte[OutboundQueue.MAX_BATCH][];
+        long[] times = new long[OutboundQueue.MAX_BATCH];
+        int count = queue.drainTo(batch, times);
+        check(queue.isEmpty(), "the queue fits in one batch");
+        return Arrays.copyOf(batch, count);
+    }
+
+    private static void check(boolean passed, String what) {
+        if (!passed) {
+            System.out.println("FAILED: " + what);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,451 @@
+import java.util.Arrays;
+
+/**
+ * Shortest paths between any two positions of a maze, for hints, auto-pathing and bots.
+ *
+ * A generated maze is perfect, a tree rooted at the exit, so it isn't searched at all.
+ * Each end steps to its neighbour one move nearer the exit, read off the maze's distance
+ * field, the further end first, until the two walks meet: the only path between them, in
+ * time proportional to its length. The finder only reads a field the maze's owner has
+ * already built and kept up to date, on its own thread ({@link Maze#prepareDistances});
+ * without one it searches. Once earthquake regions have given the maze loops, the path
+ * read off the field may be a long way round, and the finder searches too.
+ *
+ * A search is A* or jump-point search. A*'s estimate is the Manhattan distance or, with a
+ * field, the difference between the two ends' distances to the exit if that is more,
+ * which follows the corridors where the Manhattan distance cuts through their walls.
+ * Jump-point search runs along straight lines and only stops where a path can turn. In
+ * the generated mazes, whose corridors are one position wide, it skips along corridors
+ * and over dead ends without queueing every position on the way.
+ *
+ * Each thread has its own finder ({@link #forThread}), with its scratch arrays indexed by
+ * position, y * width + x. They grow to the biggest maze the thread has searched and are
+ * kept, 9 bytes per position, so a search allocates nothing once they have: the open set
+ * is a binary heap in two primitive arrays, and positions are ints, never
+ * {@link Position}s. Use it from the rooms' simulation threads, not from a virtual thread
+ * per connection, which would each get arrays of their own.
+ */
+final class PathFinder {
+    private static final ThreadLocal<PathFinder> SCRATCH = ThreadLocal.withInitial(PathFinder::new);
+    // Steps for each direction, indexed by Protocol.DIR_*: up, right, down, left
+    private static final int[] DX = {0, 1, 0, -1};
+    private static final int[] DY = {-1, 0, 1, 0};
+    private static final byte CLOSED = 0x10; // in from[], once a position has been expanded
+
+    // By position; a position's g and from only count if its stamp is this search's
+    private int[] g = new int[0];        // moves from the start
+    private byte[] from = new byte[0];   // the direction it was reached in, and CLOSED
+    private int[] stamp = new int[0];
+    private int search;
+
+    // The open set, smallest key first. A key is f << 32 | h: the estimated length of the
+    // path through a position, then, among equals, the one nearer the goal
+    private long[] keys = new long[256];
+    private int[] queued = new int[256];
+    private int heapSize;
+    private int[] path = new int[256];   // the last path found, start to goal
+    private int pathLength;              // in moves
+
+    // The search under way
+    private Maze maze;
+    private DistanceField field;         // the maze's, if it is current, else null
+    private int width;
+    private int goalX;
+    private int goalY;
+    private int goalDistance;            // the goal's distance to the exit, or -1 without a field
+    private int exitX;
+    private int exitY;
+
+    private PathFinder() {
+    }
+
+    /** This thread's finder. */
+    static PathFinder forThread() {
+        return SCRATCH.get();
+    }
+
+    /**
+     * Finds a shortest path from (fromX, fromY) to (toX, toY), moving the way players do:
+     * through open positions, and onto the exit. With jumpPoints the search is jump-point
+     * search, otherwise plain A*; both find a path of the same length. A path in a perfect
+     * maze, or to the exit of any maze, is read off the maze's distance field instead, in
+     * time proportional to its length, if the field is current. Nothing here builds or
+     * updates the field, so a query never changes the maze.
+     *
+     * @return the number of moves, or -1 if either end is a wall or there is no path.
+     *         The path itself can then be read with {@link #pathX} and {@link #pathY}
+     *         until the next search on this thread.
+     */
+    int findPath(Maze maze, int fromX, int fromY, int toX, int toY, boolean jumpPoints) {
+        this.maze = maze;
+        this.field = maze.currentDistances();
+        this.width = maze.getWidth();
+        this.goalX = toX;
+        this.goalY = toY;
+        Position exit = maze.getExitPosition();
+        this.exitX = exit.x();
+        this.exitY = exit.y();
+        pathLength = -1;
+        if (!isOpen(fromX, fromY) || !isOpen(toX, toY)) {
+            this.maze = null;
+            this.field = null;
+            return -1;
+        }
+        if (field != null && (toX == exitX && toY == exitY && followDistances(fromX, fromY)
+                || maze.isPerfect() && followTree(fromX, fromY, toX, toY))) {
+            this.maze = null;
+            this.field = null;
+            return pathLength;
+        }
+        goalDistance = field == null ? DistanceField.UNREACHABLE : field.distance(toX, toY);
+        begin((long) width * maze.getHeight());
+
+        int start = fromY * width + fromX;
+        int goal = toY * width + toX;
+        g[start] = 0;
+        from[start] = 0;
+        stamp[start] = search;
+        heapSize = 0;
+        push(start, 0, estimate(fromX, fromY));
+        boolean found = false;
+        while (heapSize > 0) {
+            int position = pop();
+            if ((from[position] & CLOSED) != 0) continue; // reached more cheaply already
+            from[position] |= CLOSED;
+            if (position == goal) {
+                found = true;
+                break;
+            }
+            int x = position % width;
+            int y = position / width;
+            int arrived = position == start ? -1 : from[position] & 3;
+            if (jumpPoints) {
+                expandJumps(position, x, y, arrived);
+            } else {
+                expandNeighbours(position, x, y);
+            }
+        }
+        this.maze = null;
+        this.field = null;
+        if (found) {
+            tracePath(start, goal);
+        }
+        return pathLength;
+    }
+
+    /** The x of step i of the last path found, 0 being the start and its length the goal. */
+    int pathX(int i) {
+        return path[i] % width;
+    }
+
+    /** The y of step i of the last path found. */
+    int pathY(int i) {
+        return path[i] / width;
+    }
+
+    /**
+     * The {@code Protocol.DIR_*} of the first move on the last path found, or -1 if it had
+     * none: no path, or the start was the goal.
+     */
+    int firstDirection() {
+        if (pathLength <= 0) return -1;
+        int step = path[1] - path[0];
+        if (step == 1) return Protocol.DIR_RIGHT;
+        if (step == -1) return Protocol.DIR_LEFT;
+        return step > 0 ? Protocol.DIR_DOWN : Protocol.DIR_UP;
+    }
+
+    /**
+     * Plain A*: every open neighbour.
+     */
+    private void expandNeighbours(int position, int x, int y) {
+        for (int direction = 0; direction < 4; direction++) {
+            int nx = x + DX[direction];
+            int ny = y + DY[direction];
+            if (isOpen(nx, ny)) {
+                reach(position, ny * width + nx, nx, ny, 1, direction);
+            }
+        }
+    }
+
+    /**
+     * Jump-point search on a grid without diagonal moves. Each way out of a position,
+     * except straight back, is followed in a straight line to the next position where a
+     * shortest path may have to turn, and only that is queued. Going sideways, that is the
+     * goal or a position with an opening above or below it that was closed one step back.
+     * Going up or down, it is the goal or any position with an opening beside it, so every
+     * turn sideways is tried from where it starts. Each step only looks at the positions
+     * next to it. Ways that end in a wall are dropped without queueing anything.
+     */
+    private void expandJumps(int position, int x, int y, int arrived) {
+        for (int direction = 0; direction < 4; direction++) {
+            if (arrived >= 0 && direction == (arrived + 2) % 4) continue; // straight back
+            int dx = DX[direction];
+            int dy = DY[direction];
+            int jump = dx != 0 ? jumpSideways(x, y, dx) : jumpUpOrDown(x, y, dy);
+            if (jump >= 0) {
+                int jx = jump % width;
+                int jy = jump / width;
+                reach(position, jump, jx, jy, Math.abs(jx - x) + Math.abs(jy - y), direction);
+            }
+        }
+    }
+
+    private int jumpSideways(int x, int y, int dx) {
+        while (true) {
+            x += dx;
+            if (!isOpen(x, y)) return -1;
+            if (x == goalX && y == goalY
+                    || isOpen(x, y - 1) && !isOpen(x - dx, y - 1)
+                    || isOpen(x, y + 1) && !isOpen(x - dx, y + 1)) {
+                return y * width + x;
+            }
+        }
+    }
+
+    private int jumpUpOrDown(int x, int y, int dy) {
+        while (true) {
+            y += dy;
+            if (!isOpen(x, y)) return -1;
+            if (x == goalX && y == goalY || isOpen(x - 1, y) || isOpen(x + 1, y)) {
+                return y * width + x;
+            }
+        }
+    }
+
+    /**
+     * Queues a position cost moves on from another, unless it has been reached as cheaply.
+     */
+    private void reach(int position, int next, int nx, int ny, int cost, int direction) {
+        int distance = g[position] + cost;
+        if (stamp[next] == search && ((from[next] & CLOSED) != 0 || g[next] <= distance)) return;
+        stamp[next] = search;
+        g[next] = distance;
+        from[next] = (byte) direction;
+        push(next, distance, estimate(nx, ny));
+    }
+
+    /**
+     * Reads a path to the exit off the maze's distance field, one step at a time to a
+     * neighbour a move nearer, without searching. Returns false if the start can't reach
+     * the exit.
+     */
+    private boolean followDistances(int x, int y) {
+        int distance = field.distance(x, y);
+        if (distance < 0) return false;
+        pathLength = distance;
+        if (path.length < distance + 1) {
+            path = new int[Math.max(path.length * 2, distance + 1)];
+        }
+        path[0] = y * width + x;
+        for (int i = 1; i <= pathLength; i++) {
+            distance--;
+            for (int direction = 0; direction < 4; direction++) {
+                int nx = x + DX[direction];
+                int ny = y + DY[direction];
+                if (field.distance(nx, ny) == distance) {
+                    x = nx;
+                    y = ny;
+                    break;
+                }
+            }
+            path[i] = y * width + x;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the path between two positions of a perfect maze off its distance field: each
+     * end walks towards the exit, the one further from it first, until they meet. The
+     * first end's walk fills the path from the front and the second's from the back, and
+     * the gap between them is closed at the end. Returns false if either end can't reach
+     * the exit.
+     */
+    private boolean followTree(int fromX, int fromY, int toX, int toY) {
+        int fromDistance = field.distance(fromX, fromY);
+        int toDistance = field.distance(toX, toY);
+        if (fromDistance < 0 || toDistance < 0) return false;
+        int end = fromDistance + toDistance; // the longest the path can be, through the exit
+        if (path.length < end + 1) {
+            path = new int[Math.max(path.length * 2, end + 1)];
+        }
+        int front = 0;
+        int back = end;
+        int start = fromY * width + fromX;
+        int goal = toY * width + toX;
+        path[front] = start;
+        path[back] = goal;
+        // Each walk goes one move at a time, so they can't pass where they meet. A step
+        // through a passage finds the position beyond it too, which is the walk's next
+        int startBeyond = -1;
+        int goalBeyond = -1;
+        while (start != goal) {
+            if (fromDistance >= toDistance) {
+                if (startBeyond >= 0) {
+                    start = startBeyond;
+                    startBeyond = -1;
+                } else {
+                    int beyond = nearer(start, fromDistance);
+                    if (beyond >= 0) {
+                        startBeyond = beyond;
+                        start = (start + beyond) >> 1; // the passage between them
+                    } else {
+                        start = ~beyond;
+                    }
+                }
+                fromDistance--;
+                path[++front] = start;
+            } else {
+                if (goalBeyond >= 0) {
+                    goal = goalBeyond;
+                    goalBeyond = -1;
+                } else {
+                    int beyond = nearer(goal, toDistance);
+                    if (beyond >= 0) {
+                        goalBeyond = beyond;
+                        goal = (goal + beyond) >> 1;
+                    } else {
+                        goal = ~beyond;
+                    }
+                }
+                toDistance--;
+                path[--back] = goal;
+            }
+        }
+        // path[front] and path[back] are both where the walks met
+        System.arraycopy(path, back + 1, path, front + 1, end - back);
+        pathLength = front + end - back;
+        return true;
+    }
+
+    /**
+     * Where a position at the given distance steps towards the exit. Mostly that is two
+     * moves, through an open passage to the position beyond it two nearer, which is
+     * returned as is. Only those beyond are looked up in the field, since from a cell
+     * they are cells too and the field stores them directly, where a passage's distance
+     * costs four more lookups. Otherwise, next to the exit, it is the neighbour one nearer,
+     * returned as ~position.
+     */
+    private int nearer(int position, int distance) {
+        int x = position % width;
+        int y = position / width;
+        if (distance >= 2) {
+            for (int direction = 0; direction < 4; direction++) {
+                int dx = DX[direction];
+                int dy = DY[direction];
+                if (!maze.isWall(x + dx, y + dy)
+                        && field.distance(x + 2 * dx, y + 2 * dy) == distance - 2) {
+                    return (y + 2 * dy) * width + x + 2 * dx;
+                }
+            }
+        }
+        for (int direction = 0; direction < 4; direction++) {
+            int nx = x + DX[direction];
+            int ny = y + DY[direction];
+            if (field.distance(nx, ny) == distance - 1) {
+                return ~(ny * width + nx);
+            }
+        }
+        throw new IllegalStateException("No neighbour of (" + x + ", " + y + ") is nearer the exit");
+    }
+
+    /**
+     * Follows the directions back from the goal into the path array. A jump's positions
+     * are not in the search, so each is walked back one step at a time until an expanded
+     * position the right number of moves nearer the start: the one it jumped from, or one
+     * on the same line that is as good.
+     */
+    private void tracePath(int start, int goal) {
+        pathLength = g[goal];
+        if (path.length < pathLength + 1) {
+            path = new int[Math.max(path.length * 2, pathLength + 1)];
+        }
+        int position = goal;
+        int i = pathLength;
+        path[i] = position;
+        while (position != start) {
+            int direction = from[position] & 3;
+            int step = DY[direction] * width + DX[direction];
+            int distance = g[position];
+            int back = position;
+            do {
+                back -= step;
+                path[--i] = back;
+                distance--;
+            } while (stamp[back] != search || (from[back] & CLOSED) == 0 || g[back] != distance);
+            position = back;
+        }
+    }
+
+    private boolean isOpen(int x, int y) {
+        return !maze.isWall(x, y) || x == exitX && y == exitY;
+    }
+
+    /**
+     * A lower bound on the moves to the goal: the Manhattan distance, or, with a field, how
+     * much nearer the exit one of the two is than the other, if that is more. No path can
+     * be shorter than that, or the further one would be nearer the exit going through the
+     * other. In a maze that bound follows the corridors, where the Manhattan distance
+     * only knows the straight line.
+     */
+    private int estimate(int x, int y) {
+        int manhattan = Math.abs(x - goalX) + Math.abs(y - goalY);
+        if (goalDistance < 0) return manhattan;
+        int distance = field.distance(x, y);
+        return distance < 0 ? manhattan : Math.max(manhattan, Math.abs(distance - goalDistance));
+    }
+
+    /**
+     * Starts a search, growing the arrays for a bigger maze. The stamps mean nothing has
+     * to be cleared between searches.
+     */
+    private void begin(long positions) {
+        if (positions > stamp.length) {
+            g = new int[(int) positions];
+            from = new byte[(int) positions];
+            stamp = new int[(int) positions];
+            search = 0;
+        }
+        if (++search == Integer.MAX_VALUE) {
+            Arrays.fill(stamp, 0);
+            search = 1;
+        }
+    }
+
+    private void push(int position, int g, int h) {
+        if (heapSize == keys.length) {
+            keys = Arrays.copyOf(keys, heapSize * 2);
+            queued = Arrays.copyOf(queued, heapSize * 2);
+        }
+        long key = (long) (g + h) << 32 | h;
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] <= key) break;
+            keys[i] = keys[parent];
+            queued[i] = queued[parent];
+            i = parent;
+        }
+        keys[i] = key;
+        queued[i] = position;
+    }
+
+    private int pop() {
+        int top = queued[0];
+        long key = keys[--heapSize];
+        int position = queued[heapSize];
+        int i = 0;
+        int half = heapSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < heapSize && keys[child + 1] < keys[child]) child++;
+            if (keys[child] >= key) break;
+            keys[i] = keys[child];
+            queued[i] = queued[child];
+            i = child;
+        }
+        keys[i] = key;
+        queued[i] = position;
+        return top;
+    }
+}
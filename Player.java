@@ -5,18 +5,18 @@ import java.io.Serializable;
  * This class is a simple data structure to hold a player's state.
  */
 public class Player implements Serializable {
-    private static final long serialVersionUID = 1L;
-    private final String id;
+    private static final long serialVersionUID = 2L;
+    private final int id;
     private final String name;
     private Position position;
 
-    public Player(String id, String name, Position startPosition) {
+    public Player(int id, String name, Position startPosition) {
         this.id = id;
         this.name = name;
         this.position = startPosition;
     }
 
-    public String getId() {
+    public int getId() {
         return id;
     }
 
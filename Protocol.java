@@ -0,0 +1,566 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary wire protocol spoken between the server and the clients.
+ *
+ * Every message is a frame: a 4-byte big-endian length, then a one-byte opcode and
+ * its payload (the length covers opcode + payload). Strings are a 2-byte length
+ * followed by UTF-8 bytes. Nothing on the wire is ever deserialized as a Java object.
+ *
+ * Clients may also ask for a UDP side channel in HELLO. Datagrams carry no length prefix:
+ * each is one opcode and its payload, and may be lost, duplicated or reordered, so every
+ * one carries sequence numbers and absolute values (see {@link UdpChannel}).
+ */
+public final class Protocol {
+    /** Bumped whenever the frame layout changes. Sent by the client in HELLO. */
+    public static final int VERSION = 7;
+
+    /** Largest frame a client may send; HELLO with a long name is the biggest. */
+    public static final int MAX_CLIENT_FRAME = 1024;
+    /** Largest frame a server may send; bounds a corrupt length prefix on the client. */
+    public static final int MAX_SERVER_FRAME = 16 * 1024 * 1024;
+    /** Encode buffers larger than this are not kept for reuse. */
+    private static final int MAX_SCRATCH = 64 * 1024;
+
+    // Client -> server
+    public static final byte HELLO = 0x01;   // short version, string name, int roomId, byte flags
+    public static final byte MOVE = 0x02;    // byte direction, int seq
+    public static final byte RESYNC = 0x03;  // no payload; asks for a fresh SNAPSHOT
+    public static final byte LIST_ROOMS = 0x04;  // no payload; answered with ROOM_LIST
+    public static final byte CREATE_ROOM = 0x05; // string name; creates a room and joins it
+    public static final byte JOIN_ROOM = 0x06;   // int roomId; NO_ROOM goes back to the lobby
+
+    // Server -> client
+    public static final byte WELCOME = 0x10; // int playerId, int roomId; sent on every room change
+    public static final byte SNAPSHOT = 0x11; // int version, players (see writePlayers)
+    public static final byte DELTA = 0x12;    // int fromVersion, int toVersion, short count, GameEvents
+    public static final byte WINNER = 0x13;  // string name
+    public static final byte ROOM_LIST = 0x14; // short count, per room: int id, string name, short players, string winner
+    public static final byte MAZE_START = 0x15; // int mazeId, int width, int height, int exitX, int exitY, short tileSize
+    public static final byte MAZE_TILE = 0x16;  // int mazeId, short column, short row, wall bits (see encodeMazeTile)
+    public static final byte ACK = 0x17;        // int seq, int x, int y: where the player stood after that MOVE
+    public static final byte UDP_OFFER = 0x18;  // short port, long token; answers HELLO_UDP
+    public static final byte MAZE_DIFF = 0x19;  // int mazeId, int x, int y, int width, int height, wall bits
+    public static final byte ERROR = 0x1F;   // string message; fatal only if the connection is then closed
+
+    /** Mazes are streamed in square tiles of this many cells a side. */
+    public static final int TILE_SIZE = 32;
+    /** Most cells one MAZE_DIFF carries; bigger changes are sent in bands of rows. */
+    public static final int MAX_DIFF_CELLS = 1 << 20;
+
+    // HELLO flags
+    public static final int HELLO_UDP = 1; // the client would like a UDP side channel
+
+    // UDP datagrams, client -> server
+    public static final byte UDP_BIND = 0x40;  // long token; repeated until UDP_BOUND arrives
+    public static final byte UDP_INPUT = 0x41; // long token, int newestSeq, byte count, count directions (oldest first)
+    // UDP datagrams, server -> client
+    public static final byte UDP_BOUND = 0x50;     // no payload
+    public static final byte UDP_POSITIONS = 0x51; // int roomId, int version, int ackSeq, int x, int y, short count,
+                                                   // count x (int id, int x, int y)
+    public static final int UDP_POSITIONS_HEADER = 23;
+    public static final int UDP_POSITION_ENTRY = 12;
+
+    /** Most moves a UDP_INPUT repeats, newest last. */
+    public static final int UDP_REDUNDANT_INPUTS = 8;
+    /** Datagrams are kept below a typical MTU so they are never fragmented. */
+    public static final int MAX_DATAGRAM = 1200;
+
+    // Room IDs: players in the lobby are in NO_ROOM; the default room always exists
+    public static final int NO_ROOM = 0, DEFAULT_ROOM = 1;
+
+    // Directions carried by MOVE
+    public static final int DIR_UP = 0, DIR_RIGHT = 1, DIR_DOWN = 2, DIR_LEFT = 3;
+
+    private Protocol() {
+    }
+
+    /**
+     * Maps a console command ("up", "down", ...) to a direction, or -1 if it isn't one.
+     */
+    public static int parseDirection(String command) {
+        switch (command.toLowerCase().trim()) {
+            case "up": return DIR_UP;
+            case "right": return DIR_RIGHT;
+            case "down": return DIR_DOWN;
+            case "left": return DIR_LEFT;
+            default: return -1;
+        }
+    }
+
+    // ---- Encoding ----
+
+    public static byte[] encodeHello(String playerName) {
+        return encodeHello(playerName, DEFAULT_ROOM);
+    }
+
+    /**
+     * Encodes a HELLO that asks to go straight into a room, or to stay in the lobby with NO_ROOM.
+     */
+    public static byte[] encodeHello(String playerName, int roomId) {
+        return encodeHello(playerName, roomId, 0);
+    }
+
+    /**
+     * Encodes a HELLO with flags, e.g. {@link #HELLO_UDP}.
+     */
+    public static byte[] encodeHello(String playerName, int roomId, int flags) {
+        Frame frame = Frame.begin(HELLO);
+        frame.writeShort(VERSION);
+        frame.writeString(playerName);
+        frame.writeInt(roomId);
+        frame.write(flags);
+        return frame.toBytes();
+    }
+
+    /**
+     * Encodes a move. The sequence number comes back in an ACK once the server has applied it.
+     */
+    public static byte[] encodeMove(int direction, int seq) {
+        Frame frame = Frame.begin(MOVE);
+        frame.write(direction);
+        frame.writeInt(seq);
+        return frame.toBytes();
+    }
+
+    public static byte[] encodeResync() {
+        return Frame.begin(RESYNC).toBytes();
+    }
+
+    public static byte[] encodeListRooms() {
+        return Frame.begin(LIST_ROOMS).toBytes();
+    }
+
+    public static byte[] encodeCreateRoom(String roomName) {
+        Frame frame = Frame.begin(CREATE_ROOM);
+        frame.writeString(roomName);
+        return frame.toBytes();
+    }
+
+    public static byte[] encodeJoinRoom(int roomId) {
+        Frame frame = Frame.begin(JOIN_ROOM);
+        frame.writeInt(roomId);
+        return frame.toBytes();
+    }
+
+    public static byte[] encodeWelcome(int playerId, int roomId) {
+        Frame frame = Frame.begin(WELCOME);
+        frame.writeInt(playerId);
+        frame.writeInt(roomId);
+        return frame.toBytes();
+    }
+
+    /**
+     * Encodes the full player state. Sent on join and on RESYNC; the maze is sent separately.
+     */
+    public static byte[] encodeSnapshot(int version, Collection<Player> players) {
+        Frame frame = Frame.begin(SNAPSHOT);
+        frame.writeInt(version);
+        writePlayers(frame, players);
+        return frame.toBytes();
+    }
+
+    /**
+     * Announces a new maze. Its walls follow as MAZE_TILE frames; until a tile arrives,
+     * the client treats its cells as walls.
+     */
+    public static byte[] encodeMazeStart(int mazeId, Maze maze) {
+        Frame frame = Frame.begin(MAZE_START);
+        frame.writeInt(mazeId);
+        frame.writeInt(maze.getWidth());
+        frame.writeInt(maze.getHeight());
+        frame.writeInt(maze.getExitPosition().x());
+        frame.writeInt(maze.getExitPosition().y());
+        frame.writeShort(TILE_SIZE);
+        return frame.toBytes();
+    }
+
+    /**
+     * Encodes the events that take a client from one state version to the next.
+     */
+    public static byte[] encodeDelta(int fromVersion, int toVersion, List<GameEvent> events) {
+        Frame frame = Frame.begin(DELTA);
+        frame.writeInt(fromVersion);
+        frame.writeInt(toVersion);
+        frame.writeShort(events.size());
+        for (GameEvent event : events) {
+            frame.write(event.type());
+            frame.writeInt(event.playerId());
+            if (event.type() != GameEvent.LEFT) {
+                frame.writeInt(event.x());
+                frame.writeInt(event.y());
+            }
+            if (event.type() == GameEvent.JOINED) {
+                frame.writeString(event.name());
+            }
+        }
+        return frame.toBytes();
+    }
+
+    /**
+     * Encodes one tile of the maze: int mazeId, short column, short row, then the walls of
+     * the tile packed one bit per cell, row by row. Tiles on the right and bottom edges are
+     * cut off at the maze border, so they hold fewer than TILE_SIZE x TILE_SIZE cells.
+     */
+    public static byte[] encodeMazeTile(int mazeId, Maze maze, int column, int row) {
+        int x0 = column * TILE_SIZE;
+        int y0 = row * TILE_SIZE;
+        int width = Math.min(TILE_SIZE, maze.getWidth() - x0);
+        int height = Math.min(TILE_SIZE, maze.getHeight() - y0);
+        Frame frame = Frame.begin(MAZE_TILE);
+        frame.writeInt(mazeId);
+        frame.writeShort(column);
+        frame.writeShort(row);
+        writeWalls(frame, maze, x0, y0, width, height);
+        return frame.toBytes();
+    }
+
+    /**
+     * Encodes the walls of a rectangle of the maze that changed, such as a region an
+     * earthquake carved again: int mazeId, int x, int y, int width, int height, then the
+     * walls packed one bit per cell, row by row, as in a tile. The rectangle may hold at
+     * most {@link #MAX_DIFF_CELLS} cells.
+     */
+    public static byte[] encodeMazeDiff(int mazeId, Maze maze, int x, int y, int width, int height) {
+        Frame frame = Frame.begin(MAZE_DIFF);
+        frame.writeInt(mazeId);
+        frame.writeInt(x);
+        frame.writeInt(y);
+        frame.writeInt(width);
+        frame.writeInt(height);
+        writeWalls(frame, maze, x, y, width, height);
+        return frame.toBytes();
+    }
+
+    /** Sets the bits straight into the frame instead of building a separate array. */
+    private static void writeWalls(Frame frame, Maze maze, int x0, int y0, int width, int height) {
+        int base = frame.reserve((width * height + 7) / 8);
+        byte[] buf = frame.buf;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (maze.isWall(x0 + x, y0 + y)) {
+                    int i = y * width + x;
+                    buf[base + (i >> 3)] |= 1 << (i & 7);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes int count, then per player: int id, int x, int y, string name.
+     * The map may change while we encode, so the count is patched in afterwards.
+     */
+    private static void writePlayers(Frame frame, Collection<Player> players) {
+        int countAt = frame.reserve(4);
+        int count = 0;
+        for (Player player : players) {
+            Position pos = player.getPosition();
+            frame.writeInt(player.getId());
+            frame.writeInt(pos.x());
+            frame.writeInt(pos.y());
+            frame.writeString(player.getName());
+            count++;
+        }
+        frame.putInt(countAt, count);
+    }
+
+    public static byte[] encodeAck(int seq, Position pos) {
+        Frame frame = Frame.begin(ACK);
+        frame.writeInt(seq);
+        frame.writeInt(pos.x());
+        frame.writeInt(pos.y());
+        return frame.toBytes();
+    }
+
+    public static byte[] encodeUdpOffer(int port, long token) {
+        Frame frame = Frame.begin(UDP_OFFER);
+        frame.writeShort(port);
+        frame.writeInt((int) (token >>> 32));
+        frame.writeInt((int) token);
+        return frame.toBytes();
+    }
+
+    public static byte[] encodeUdpBind(long token) {
+        return ByteBuffer.allocate(9).put(UDP_BIND).putLong(token).array();
+    }
+
+    /**
+     * Encodes a UDP_INPUT repeating the given moves, oldest first; the last one has newestSeq
+     * and each one before it the sequence number before.
+     */
+    public static byte[] encodeUdpInput(long token, int newestSeq, byte[] directions, int count) {
+        ByteBuffer datagram = ByteBuffer.allocate(14 + count);
+        datagram.put(UDP_INPUT).putLong(token).putInt(newestSeq).put((byte) count);
+        datagram.put(directions, 0, count);
+        return datagram.array();
+    }
+
+    /**
+     * Starts a UDP_POSITIONS datagram in the buffer; the caller appends count entries.
+     * Header plus entries must fit in {@link #MAX_DATAGRAM}, so large rooms send several.
+     */
+    public static void writePositionsHeader(ByteBuffer datagram, int roomId, int version, int ackSeq,
+                                            Position own, int count) {
+        datagram.put(UDP_POSITIONS).putInt(roomId).putInt(version).putInt(ackSeq);
+        datagram.putInt(own.x()).putInt(own.y()).putShort((short) count);
+    }
+
+    public static byte[] encodeWinner(String winnerName) {
+        Frame frame = Frame.begin(WINNER);
+        frame.writeString(winnerName);
+        return frame.toBytes();
+    }
+
+    public static byte[] encodeRoomList(List<RoomInfo> rooms) {
+        Frame frame = Frame.begin(ROOM_LIST);
+        frame.writeShort(rooms.size());
+        for (RoomInfo room : rooms) {
+            frame.writeInt(room.id());
+            frame.writeString(room.name());
+            frame.writeShort(Math.min(room.players(), 0xFFFF));
+            frame.writeString(room.winner());
+        }
+        return frame.toBytes();
+    }
+
+    public static byte[] encodeError(String message) {
+        Frame frame = Frame.begin(ERROR);
+        frame.writeString(message);
+        return frame.toBytes();
+    }
+
+    // ---- Decoding ----
+
+    /**
+     * Reads one frame from a blocking stream.
+     * Returns a buffer holding the opcode followed by the payload.
+     */
+    public static ByteBuffer readFrame(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        checkLength(length, maxLength);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return ByteBuffer.wrap(frame);
+    }
+
+    /**
+     * Takes one complete frame out of a non-blocking read buffer (in read mode).
+     * Returns null, leaving the buffer untouched, if the frame hasn't fully arrived yet.
+     */
+    public static ByteBuffer nextFrame(ByteBuffer buf, int maxLength) throws IOException {
+        if (buf.remaining() < 4) return null;
+        int length = buf.getInt(buf.position());
+        checkLength(length, maxLength);
+        if (buf.remaining() < 4 + length) return null;
+
+        byte[] frame = new byte[length];
+        buf.position(buf.position() + 4);
+        buf.get(frame);
+        return ByteBuffer.wrap(frame);
+    }
+
+    private static void checkLength(int length, int maxLength) throws IOException {
+        if (length < 1 || length > maxLength) {
+            throw new IOException("Invalid frame length " + length);
+        }
+    }
+
+    public static String readString(ByteBuffer buf) {
+        int length = buf.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies the wall bits of a MAZE_TILE (positioned after the row) into a maze being
+     * received. The caller has already checked that the tile lies inside the maze.
+     */
+    public static void decodeMazeTile(ByteBuffer buf, Maze maze, int column, int row) {
+        int mazeHeight = maze.getHeight();
+        int mazeWidth = maze.getWidth();
+        int x0 = column * TILE_SIZE;
+        int y0 = row * TILE_SIZE;
+        int width = Math.min(TILE_SIZE, mazeWidth - x0);
+        int height = Math.min(TILE_SIZE, mazeHeight - y0);
+        if (buf.remaining() < (width * height + 7) / 8) {
+            throw new IllegalArgumentException("Short maze tile " + column + "," + row);
+        }
+        readWalls(buf, maze, x0, y0, width, height);
+    }
+
+    /**
+     * Copies the walls of a MAZE_DIFF (positioned after the mazeId) into a maze being
+     * received.
+     *
+     * @throws IllegalArgumentException if the rectangle isn't inside the maze or the
+     *         frame is too short for it
+     */
+    public static void decodeMazeDiff(ByteBuffer buf, Maze maze) {
+        int x0 = buf.getInt();
+        int y0 = buf.getInt();
+        int width = buf.getInt();
+        int height = buf.getInt();
+        if (x0 < 0 || y0 < 0 || width < 0 || height < 0
+                || width > maze.getWidth() - x0 || height > maze.getHeight() - y0
+                || (long) width * height > MAX_DIFF_CELLS) {
+            throw new IllegalArgumentException("Maze diff " + width + "x" + height + " at " + x0 + "," + y0
+                + " is outside the maze");
+        }
+        if (buf.remaining() < (width * height + 7) / 8) {
+            throw new IllegalArgumentException("Short maze diff at " + x0 + "," + y0);
+        }
+        readWalls(buf, maze, x0, y0, width, height);
+    }
+
+    private static void readWalls(ByteBuffer buf, Maze maze, int x0, int y0, int width, int height) {
+        int base = buf.position();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                maze.setWall(x0 + x, y0 + y, (buf.get(base + (i >> 3)) & (1 << (i & 7))) != 0);
+            }
+        }
+        buf.position(base + (width * height + 7) / 8);
+    }
+
+    public static Map<Integer, Player> decodePlayers(ByteBuffer buf) {
+        int count = buf.getInt();
+        Map<Integer, Player> players = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            int id = buf.getInt();
+            Position position = new Position(buf.getInt(), buf.getInt());
+            players.put(id, new Player(id, readString(buf), position));
+        }
+        return players;
+    }
+
+    public static List<RoomInfo> decodeRoomList(ByteBuffer buf) {
+        int count = buf.getShort() & 0xFFFF;
+        List<RoomInfo> rooms = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int id = buf.getInt();
+            String name = readString(buf);
+            int players = buf.getShort() & 0xFFFF;
+            rooms.add(new RoomInfo(id, name, players, readString(buf)));
+        }
+        return rooms;
+    }
+
+    /**
+     * Builds a single frame in memory with big-endian writes, then patches the length prefix.
+     * Each thread reuses one growing scratch buffer, so encoding allocates nothing but the
+     * finished frame; that array is then shared by every client it is sent to.
+     */
+    private static final class Frame {
+        private static final ThreadLocal<Frame> SCRATCH = ThreadLocal.withInitial(Frame::new);
+
+        private byte[] buf = new byte[256];
+        private int size;
+
+        static Frame begin(byte opcode) {
+            Frame frame = SCRATCH.get();
+            frame.size = 0;
+            frame.writeInt(0); // length placeholder
+            frame.write(opcode);
+            return frame;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+            }
+        }
+
+        /** Appends n zero bytes and returns the offset of the first one. */
+        int reserve(int n) {
+            ensure(n);
+            Arrays.fill(buf, size, size + n, (byte) 0);
+            int offset = size;
+            size += n;
+            return offset;
+        }
+
+        void write(int v) {
+            ensure(1);
+            buf[size++] = (byte) v;
+        }
+
+        void writeShort(int v) {
+            ensure(2);
+            buf[size++] = (byte) (v >>> 8);
+            buf[size++] = (byte) v;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            putInt(size, v);
+            size += 4;
+        }
+
+        void putInt(int offset, int v) {
+            buf[offset] = (byte) (v >>> 24);
+            buf[offset + 1] = (byte) (v >>> 16);
+            buf[offset + 2] = (byte) (v >>> 8);
+            buf[offset + 3] = (byte) v;
+        }
+
+        void writeString(String s) {
+            int length = s.length();
+            if (length <= 0xFFFF && isAscii(s)) {
+                // Plain ASCII names are copied char by char without a temporary array
+                ensure(2 + length);
+                writeShort(length);
+                for (int i = 0; i < length; i++) {
+                    buf[size++] = (byte) s.charAt(i);
+                }
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("String too long for the wire: " + bytes.length + " bytes");
+            }
+            writeShort(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private static boolean isAscii(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                if (s.charAt(i) >= 0x80) return false;
+            }
+            return true;
+        }
+
+        byte[] toBytes() {
+            putInt(0, size - 4);
+            byte[] bytes = Arrays.copyOf(buf, size);
+            if (buf.length > MAX_SCRATCH) {
+                buf = new byte[256]; // don't keep a huge snapshot buffer per thread
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Writes an already encoded frame to a blocking stream and flushes it.
+     * Safe to call from several threads sharing one stream.
+     */
+    public static void writeFrame(DataOutputStream out, byte[] frame) throws IOException {
+        synchronized (out) {
+            out.write(frame);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks the wire format of {@link Protocol} by encoding frames and reading them back
+ * the way the server and the clients do: the client's frames field by field, as
+ * {@link Server} does, and the state and maze frames through a {@link ClientGameState}.
+ * Covers the length prefix and partial frames, a non-ASCII name, a snapshot followed by
+ * deltas in and out of order, a maze streamed in tiles that don't divide it evenly and
+ * then patched by a MAZE_DIFF, and the small control frames.
+ *
+ * It stops at the first check that fails and exits with status 1.
+ *
+ * Usage: java ProtocolCheck
+ */
+public class ProtocolCheck {
+    public static void main(String[] args) throws IOException {
+        framing();
+        clientFrames();
+        stateFrames();
+        mazeFrames();
+        controlFrames();
+        System.out.println("Every protocol check passed");
+    }
+
+    /** Frames come out of a read buffer one at a time, only once they have fully arrived. */
+    private static void framing() throws IOException {
+        byte[] move = Protocol.encodeMove(Protocol.DIR_LEFT, 7);
+        byte[] resync = Protocol.encodeResync();
+        check(ByteBuffer.wrap(move).getInt() == move.length - 4, "the length prefix covers opcode and payload");
+
+        ByteBuffer buf = ByteBuffer.allocate(move.length + resync.length);
+        buf.put(move, 0, move.length - 1).flip();
+        check(Protocol.nextFrame(buf, Protocol.MAX_CLIENT_FRAME) == null, "a partial frame waits");
+        check(buf.position() == 0, "and leaves the buffer untouched");
+        buf.compact().put(move, move.length - 1, 1).put(resync).flip();
+        ByteBuffer first = Protocol.nextFrame(buf, Protocol.MAX_CLIENT_FRAME);
+        ByteBuffer second = Protocol.nextFrame(buf, Protocol.MAX_CLIENT_FRAME);
+        check(first != null && first.get() == Protocol.MOVE, "the completed frame comes out first");
+        check(second != null && second.get() == Protocol.RESYNC && !second.hasRemaining(),
+            "then the one behind it");
+        check(Protocol.nextFrame(buf, Protocol.MAX_CLIENT_FRAME) == null, "and nothing after them");
+
+        rejected(ByteBuffer.allocate(4).putInt(0, 0), "an empty frame");
+        rejected(ByteBuffer.allocate(4).putInt(0, Protocol.MAX_CLIENT_FRAME + 1), "a frame over the limit");
+        rejected(ByteBuffer.allocate(4).putInt(0, -1), "a negative length");
+        System.out.println("framing: partial frames wait, bad lengths are refused");
+    }
+
+    /** HELLO, MOVE and the lobby commands, read back as the server reads them. */
+    private static void clientFrames() throws IOException {
+        String name = "Zo\u00eb \u8ff7\u8def";
+        ByteBuffer hello = open(Protocol.encodeHello(name, 42, Protocol.HELLO_UDP), Protocol.HELLO);
+        check(hello.getShort() == Protocol.VERSION, "HELLO carries the protocol version");
+        check(Protocol.readString(hello).equals(name), "a non-ASCII name survives");
+        check(hello.getInt() == 42, "HELLO carries the room");
+        check(hello.get() == Protocol.HELLO_UDP && !hello.hasRemaining(), "HELLO ends with its flags");
+
+        ByteBuffer plain = open(Protocol.encodeHello("bob"), Protocol.HELLO);
+        plain.getShort();
+        check(Protocol.readString(plain).equals("bob") && plain.getInt() == Protocol.DEFAULT_ROOM
+            && plain.get() == 0, "a plain HELLO asks for the default room without UDP");
+
+        ByteBuffer move = open(Protocol.encodeMove(Protocol.DIR_DOWN, 123456789), Protocol.MOVE);
+        check(move.get() == Protocol.DIR_DOWN && move.getInt() == 123456789 && !move.hasRemaining(),
+            "MOVE carries its direction and sequence number");
+        ByteBuffer join = open(Protocol.encodeJoinRoom(Protocol.NO_ROOM), Protocol.JOIN_ROOM);
+        check(join.getInt() == Protocol.NO_ROOM, "JOIN_ROOM carries the room");
+        ByteBuffer create = open(Protocol.encodeCreateRoom("room with a view"), Protocol.CREATE_ROOM);
+        check(Protocol.readString(create).equals("room with a view"), "CREATE_ROOM carries the name");
+        check(!open(Protocol.encodeListRooms(), Protocol.LIST_ROOMS).hasRemaining(), "LIST_ROOMS is empty");
+        System.out.println("client frames: HELLO, MOVE and lobby commands read back");
+    }
+
+    /**
+     * A snapshot, then deltas: one that follows on is applied, a stale one is ignored, and
+     * one that skips a version is refused so the client asks for a resync.
+     */
+    private static void stateFrames() {
+        ClientGameState state = new ClientGameState();
+        List<Player> players = List.of(new Player(1, "ann", new Position(1, 1)),
+            new Player(2, "Bj\u00f6rn", new Position(3, 5)));
+        state.applySnapshot(open(Protocol.encodeSnapshot(10, players), Protocol.SNAPSHOT));
+        check(state.getVersion() == 10, "the snapshot sets the version");
+        check(state.getPlayers().size() == 2 && state.getPlayers().get(2).getName().equals("Bj\u00f6rn")
+            && state.getPlayers().get(2).getPosition().equals(new Position(3, 5)), "the snapshot's players");
+
+        byte[] delta = Protocol.encodeDelta(10, 11, List.of(
+            GameEvent.moved(1, new Position(1, 3)),
+            GameEvent.joined(new Player(3, "cy", new Position(5, 5))),
+            GameEvent.left(2)));
+        check(state.applyDelta(open(delta, Protocol.DELTA)), "a delta that follows on is applied");
+        Map<Integer, Player> after = state.getPlayers();
+        check(state.getVersion() == 11, "the delta moves the version on");
+        check(after.keySet().equals(Set.of(1, 3)), "JOINED and LEFT, got " + after.keySet());
+        check(after.get(1).getPosition().equals(new Position(1, 3)), "MOVED");
+        check(after.get(3).getName().equals("cy") && after.get(3).getPosition().equals(new Position(5, 5)),
+            "the joined player's name and position");
+
+        check(state.applyDelta(open(delta, Protocol.DELTA)) && state.getVersion() == 11,
+            "a delta the client already has is ignored");
+        byte[] gap = Protocol.encodeDelta(12, 13, List.of(GameEvent.left(1)));
+        check(!state.applyDelta(open(gap, Protocol.DELTA)), "a delta after a missed one is refused");
+        check(state.getVersion() == 11 && state.getPlayers().containsKey(1), "and changes nothing");
+
+        state.applySnapshot(open(Protocol.encodeSnapshot(20, List.of()), Protocol.SNAPSHOT));
+        check(state.getVersion() == 20 && state.getPlayers().isEmpty(), "a resync snapshot replaces everything");
+        byte[] older = Protocol.encodeDelta(15, 16,
+            List.of(GameEvent.joined(new Player(9, "old", new Position(1, 1)))));
+        check(state.applyDelta(open(older, Protocol.DELTA)) && state.getPlayers().isEmpty(),
+            "a delta from before the snapshot is ignored");
+        System.out.println("state frames: snapshot, deltas in order, stale and missing ones");
+    }
+
+    /**
+     * Streams a maze whose sides aren't a multiple of the tile size, carves a region and
+     * sends the difference, checking the client's copy against the server's each time.
+     */
+    private static void mazeFrames() {
+        Maze maze = new Maze(101, 75, 7);
+        ClientGameState state = new ClientGameState();
+        state.applyMazeStart(open(Protocol.encodeMazeStart(3, maze), Protocol.MAZE_START));
+        Maze copy = state.getMaze();
+        check(copy.getWidth() == 101 && copy.getHeight() == 75
+            && copy.getExitPosition().equals(maze.getExitPosition()), "MAZE_START carries the size and exit");
+        check(copy.isWall(1, 1), "positions of tiles that haven't arrived are walls");
+
+        int columns = (maze.getWidth() + Protocol.TILE_SIZE - 1) / Protocol.TILE_SIZE;
+        int rows = (maze.getHeight() + Protocol.TILE_SIZE - 1) / Protocol.TILE_SIZE;
+        for (int row = rows - 1; row >= 0; row--) {
+            for (int column = 0; column < columns; column++) {
+                check(!state.isMazeComplete(), "the maze isn't complete before its last tile");
+                state.applyMazeTile(open(Protocol.encodeMazeTile(3, maze, column, row), Protocol.MAZE_TILE));
+            }
+        }
+        check(state.isMazeComplete(), "every tile arrived");
+        sameWalls(maze, copy, "after the tiles");
+        state.applyMazeTile(open(Protocol.encodeMazeTile(2, new Maze(101, 75, 8), 0, 0), Protocol.MAZE_TILE));
+        sameWalls(maze, copy, "after a tile of an older maze");
+
+        MazeRegion region = new MazeRegion(21, 11, 41, 31, 99);
+        maze.carveRegion(region, region.carve(MazeGenerator.byName("dfs")));
+        state.applyMazeDiff(open(Protocol.encodeMazeDiff(3, maze, 20, 10, 43, 33), Protocol.MAZE_DIFF));
+        sameWalls(maze, copy, "after the MAZE_DIFF");
+
+        byte[] outside = Protocol.encodeMazeDiff(3, maze, 80, 60, 30, 10);
+        try {
+            state.applyMazeDiff(open(outside, Protocol.MAZE_DIFF));
+            check(false, "a MAZE_DIFF reaching outside the maze is refused");
+        } catch (IllegalArgumentException expected) {
+            // the encoder doesn't check; the decoder must
+        }
+        System.out.println("maze frames: " + columns * rows + " tiles and a diff rebuild the maze exactly");
+    }
+
+    /** The small frames that carry one or two values. */
+    private static void controlFrames() {
+        ByteBuffer welcome = open(Protocol.encodeWelcome(5, 6), Protocol.WELCOME);
+        check(welcome.getInt() == 5 && welcome.getInt() == 6, "WELCOME carries the player and room");
+        ByteBuffer ack = open(Protocol.encodeAck(-2, new Position(7, 9)), Protocol.ACK);
+        check(ack.getInt() == -2 && ack.getInt() == 7 && ack.getInt() == 9, "ACK carries the seq and position");
+        long token = 0x8123456789ABCDEFL;
+        ByteBuffer offer = open(Protocol.encodeUdpOffer(54321, token), Protocol.UDP_OFFER);
+        check((offer.getShort() & 0xFFFF) == 54321 && offer.getLong() == token,
+            "UDP_OFFER carries a port over 32767 and a token with its top bit set");
+
+        List<RoomInfo> rooms = List.of(new RoomInfo(1, "lobby-ish", 70000, ""), new RoomInfo(9, "\u00fcn\u00ef", 3, "ann"));
+        List<RoomInfo> decoded = Protocol.decodeRoomList(open(Protocol.encodeRoomList(rooms), Protocol.ROOM_LIST));
+        check(decoded.size() == 2 && decoded.get(0).players() == 0xFFFF && decoded.get(1).equals(rooms.get(1)),
+            "ROOM_LIST round-trips, player counts capped at 65535, got " + decoded);
+        check(Protocol.readString(open(Protocol.encodeWinner("ann"), Protocol.WINNER)).equals("ann"), "WINNER");
+        check(Protocol.readString(open(Protocol.encodeError("no"), Protocol.ERROR)).equals("no"), "ERROR");
+
+        byte[] directions = { Protocol.DIR_UP, Protocol.DIR_LEFT, Protocol.DIR_DOWN };
+        ByteBuffer input = ByteBuffer.wrap(Protocol.encodeUdpInput(token, 100, directions, 2));
+        check(input.get() == Protocol.UDP_INPUT && input.getLong() == token && input.getInt() == 100
+            && input.get() == 2 && input.get() == Protocol.DIR_UP && input.get() == Protocol.DIR_LEFT
+            && !input.hasRemaining(), "UDP_INPUT carries only the moves asked for");
+        System.out.println("control frames: WELCOME, ACK, UDP_OFFER, ROOM_LIST, WINNER, ERROR, UDP_INPUT");
+    }
+
+    /** Takes the frame out of its length prefix and returns it positioned after the opcode. */
+    private static ByteBuffer open(byte[] frame, byte opcode) {
+        ByteBuffer buf;
+        try {
+            buf = Protocol.nextFrame(ByteBuffer.wrap(frame), Protocol.MAX_SERVER_FRAME);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        check(buf != null && buf.remaining() == frame.length - 4, "the frame is exactly its length prefix");
+        check(buf.get() == opcode, "opcode 0x" + Integer.toHexString(opcode));
+        return buf;
+    }
+
+    private static void rejected(ByteBuffer buf, String what) {
+        try {
+            Protocol.nextFrame(buf, Protocol.MAX_CLIENT_FRAME);
+            check(false, what + " is refused");
+        } catch (IOException expected) {
+            // refused
+        }
+    }
+
+    private static void sameWalls(Maze expected, Maze actual, String when) {
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                check(expected.isWall(x, y) == actual.isWall(x, y), "the wall at (" + x + ", " + y + ") " + when);
+            }
+        }
+    }
+
+    private static void check(boolean passed, String what) {
+        if (!passed) {
+            System.out.println("FAILED: " + what);
+            System.exit(1);
+        }
+    }
+}
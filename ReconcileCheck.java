@@ -0,0 +1,189 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Checks the client's prediction of its own moves in {@link ClientGameState}: a move
+ * shows straight away, an ACK that agrees keeps the moves still in flight on top of it,
+ * one that disagrees starts again from the server's position and replays them, an old
+ * ACK is ignored, and once every move is acknowledged the player is shown exactly where
+ * the server has them. Also checks UDP_POSITIONS datagrams: those for another room or an
+ * older state are dropped, and a DELTA's moves that a datagram has already overtaken are
+ * skipped. The maze is streamed to the client in tiles, as a server would send it.
+ *
+ * It stops at the first check that fails and exits with status 1.
+ *
+ * Usage: java ReconcileCheck
+ */
+public class ReconcileCheck {
+    private static final int ME = 1;
+    private static final int OTHER = 2;
+    private static final int ROOM = 1;
+
+    public static void main(String[] args) {
+        Maze maze = new Maze(41, 31, 5);
+        beforeWelcome();
+        acks(maze);
+        udpPositions(maze);
+        roomChange(maze);
+        System.out.println("Every reconciliation check passed");
+    }
+
+    /** Nothing is predicted until the client knows which player it is. */
+    private static void beforeWelcome() {
+        ClientGameState state = new ClientGameState();
+        int seq = state.predictMove(Protocol.DIR_RIGHT);
+        check(seq == 1 && state.predictMove(Protocol.DIR_RIGHT) == 2, "moves are numbered from 1");
+        check(state.getPlayers().isEmpty(), "no player is shown before the snapshot");
+        System.out.println("before welcome: moves numbered, nothing predicted");
+    }
+
+    /** Three moves in flight, then ACKs that agree, disagree, come late and catch up. */
+    private static void acks(Maze maze) {
+        Position start = new Position(1, 1);
+        ClientGameState state = joined(maze, start, 3);
+        int[] directions = walk(maze, start, 3);
+        Position[] predicted = new Position[4];
+        predicted[0] = start;
+        for (int i = 0; i < 3; i++) {
+            check(state.predictMove(directions[i]) == i + 1, "move " + (i + 1) + " gets seq " + (i + 1));
+            predicted[i + 1] = maze.step(predicted[i], directions[i]);
+            check(me(state).equals(predicted[i + 1]), "move " + (i + 1) + " shows before the server answers");
+        }
+
+        state.applyAck(ack(1, predicted[1]));
+        check(me(state).equals(predicted[3]), "an ACK that agrees keeps the two moves in flight, got " + me(state));
+        check(state.getLastAckSeq() == 1 && state.getCorrections() == 0, "and corrects nothing");
+
+        // The server had a wall where the client didn't: move 2 left the player where they were
+        state.applyAck(ack(2, predicted[1]));
+        Position replayed = maze.step(predicted[1], directions[2]);
+        check(me(state).equals(replayed), "move 3 is replayed from where the server has the player, got "
+            + me(state) + " instead of " + replayed);
+        check(state.getCorrections() == 1, "the wrong guess counts as a correction");
+
+        state.applyAck(ack(1, start));
+        check(me(state).equals(replayed) && state.getLastAckSeq() == 2, "an older ACK is ignored");
+
+        Position server = new Position(1, 1);
+        state.applyAck(ack(3, server));
+        check(me(state).equals(server), "with every move acknowledged the server's position is shown");
+        state.applySnapshot(snapshot(9, new Position(3, 1), new Position(5, 5)));
+        check(me(state).equals(new Position(3, 1)), "so a snapshot that moves the player shows straight away");
+        System.out.println("acks: agreeing, disagreeing, late and final ACKs reconcile");
+    }
+
+    /** UDP_POSITIONS for another room or an older state are dropped; newer ones win over a DELTA. */
+    private static void udpPositions(Maze maze) {
+        Position start = new Position(1, 1);
+        ClientGameState state = joined(maze, start, 5);
+        int direction = walk(maze, start, 1)[0];
+        Position next = maze.step(start, direction);
+        state.predictMove(direction);
+
+        state.applyPositions(positions(ROOM + 1, 6, 1, next, new Position(9, 9)));
+        check(other(state).equals(new Position(5, 5)), "positions for another room are dropped");
+        state.applyPositions(positions(ROOM, 4, 1, next, new Position(9, 9)));
+        check(other(state).equals(new Position(5, 5)), "positions older than the snapshot are dropped");
+
+        state.applyPositions(positions(ROOM, 7, 1, next, new Position(7, 7)));
+        check(other(state).equals(new Position(7, 7)), "newer positions move the other players");
+        check(me(state).equals(next) && state.getLastAckSeq() == 1, "and acknowledge our move");
+        state.applyPositions(positions(ROOM, 6, 0, start, new Position(5, 5)));
+        check(other(state).equals(new Position(7, 7)), "positions older than ones applied are dropped");
+
+        byte[] delta = Protocol.encodeDelta(5, 6, List.of(
+            GameEvent.moved(OTHER, new Position(5, 7)),
+            GameEvent.joined(new Player(3, "cy", new Position(1, 3)))));
+        check(state.applyDelta(open(delta)), "a DELTA behind the datagrams still follows on");
+        check(other(state).equals(new Position(7, 7)), "its MOVED, which the datagrams overtook, is skipped");
+        check(state.getPlayers().containsKey(3) && state.getVersion() == 6, "its JOINED is applied");
+        System.out.println("udp positions: other rooms and older states dropped, overtaken moves skipped");
+    }
+
+    /** A WELCOME to another room forgets the moves made in the old one. */
+    private static void roomChange(Maze maze) {
+        Position start = new Position(1, 1);
+        ClientGameState state = joined(maze, start, 1);
+        state.predictMove(walk(maze, start, 1)[0]);
+        state.applyAck(ack(1, start));
+        state.predictMove(walk(maze, start, 1)[0]);
+        state.setMyPlayerId(ME, ROOM + 1);
+        state.applySnapshot(snapshot(1, new Position(3, 3), new Position(5, 5)));
+        check(me(state).equals(new Position(3, 3)), "no move from the old room is replayed in the new one");
+        check(state.getLastAckSeq() == 0, "and the acknowledgements start again");
+        System.out.println("room change: moves in flight forgotten");
+    }
+
+    /**
+     * A client that has been welcomed as player 1, received the whole maze and a snapshot
+     * of itself at start and player 2 at (5, 5).
+     */
+    private static ClientGameState joined(Maze maze, Position start, int version) {
+        ClientGameState state = new ClientGameState();
+        state.setMyPlayerId(ME, ROOM);
+        state.applyMazeStart(open(Protocol.encodeMazeStart(1, maze)));
+        int columns = (maze.getWidth() + Protocol.TILE_SIZE - 1) / Protocol.TILE_SIZE;
+        int rows = (maze.getHeight() + Protocol.TILE_SIZE - 1) / Protocol.TILE_SIZE;
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                state.applyMazeTile(open(Protocol.encodeMazeTile(1, maze, column, row)));
+            }
+        }
+        state.applySnapshot(snapshot(version, start, new Position(5, 5)));
+        return state;
+    }
+
+    /** Directions for moves that each take the player somewhere, never straight back. */
+    private static int[] walk(Maze maze, Position start, int moves) {
+        int[] directions = new int[moves];
+        Position pos = start;
+        int back = -1;
+        for (int i = 0; i < moves; i++) {
+            int direction = 0;
+            while (direction == back || maze.step(pos, direction).equals(pos)) {
+                direction++;
+            }
+            directions[i] = direction;
+            pos = maze.step(pos, direction);
+            back = (direction + 2) % 4;
+        }
+        return directions;
+    }
+
+    private static ByteBuffer snapshot(int version, Position me, Position other) {
+        List<Player> players = List.of(new Player(ME, "me", me), new Player(OTHER, "other", other));
+        return open(Protocol.encodeSnapshot(version, players));
+    }
+
+    private static ByteBuffer ack(int seq, Position pos) {
+        return open(Protocol.encodeAck(seq, pos));
+    }
+
+    private static ByteBuffer positions(int roomId, int version, int ackSeq, Position own, Position other) {
+        ByteBuffer datagram = ByteBuffer.allocate(Protocol.MAX_DATAGRAM);
+        Protocol.writePositionsHeader(datagram, roomId, version, ackSeq, own, 1);
+        datagram.putInt(OTHER).putInt(other.x()).putInt(other.y());
+        datagram.flip().get(); // the opcode
+        return datagram;
+    }
+
+    /** The frame without its length prefix and opcode. */
+    private static ByteBuffer open(byte[] frame) {
+        return ByteBuffer.wrap(frame, 5, frame.length - 5).slice();
+    }
+
+    private static Position me(ClientGameState state) {
+        return state.getPlayers().get(ME).getPosition();
+    }
+
+    private static Position other(ClientGameState state) {
+        return state.getPlayers().get(OTHER).getPosition();
+    }
+
+    private static void check(boolean passed, String what) {
+        if (!passed) {
+            System.out.println("FAILED: " + what);
+            System.exit(1);
+        }
+    }
+}
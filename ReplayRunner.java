@@ -0,0 +1,273 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Plays a match recorded by a server started with --record again, headless and as fast as
+ * one thread can, and checks that it comes out the same.
+ *
+ * The recording is decoded up front. A fresh {@link GameRoom} is then built from the
+ * recorded seed and settings and fed the recorded joins, leaves and moves, with every
+ * client's frames thrown away, so what is measured is the room itself: applying moves,
+ * encoding updates and building earthquake mazes or regions, which run on the same
+ * thread here. After each tick the room's state hash is compared with the recorded one,
+ * and the replay stops at the first tick that differs.
+ *
+ * That makes it two tools in one: run it on a recording after changing the simulation to
+ * check the change didn't alter the game, and with --repeat to measure how much CPU the
+ * same match costs before and after.
+ *
+ * Usage: java ReplayRunner FILE [--repeat=1]
+ */
+public class ReplayRunner {
+
+    public static void main(String[] args) throws IOException {
+        Path file = null;
+        int repeat = 1;
+        for (String arg : args) {
+            if (arg.startsWith("--repeat=")) {
+                repeat = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+            } else if (!arg.startsWith("--") && file == null) {
+                file = Paths.get(arg);
+            } else {
+                file = null;
+                break;
+            }
+        }
+        if (file == null || repeat < 1) {
+            System.err.println("Usage: java ReplayRunner FILE [--repeat=1]");
+            return;
+        }
+
+        Recording recording = Recording.read(file);
+        RoomSettings settings = recording.settings;
+        System.out.printf("Room %d (%s), seed %d, %dx%d %s maze, view radius %s, earthquakes %s%n",
+            recording.roomId, recording.roomName, recording.seed, settings.mazeWidth(), settings.mazeHeight(),
+            settings.mazeGenerator().name(),
+            settings.viewRadius() > 0 ? settings.viewRadius() : "off",
+            settings.earthquakeRegions() > 0
+                ? "carve " + settings.earthquakeRegions() + " regions of " + settings.earthquakeRegionSize()
+                : settings.mazeBuffer() > 0 ? "replace the maze from a buffer of " + settings.mazeBuffer()
+                : "replace the maze");
+        System.out.printf("%d ticks, %d joins, %d leaves, %d moves, %d earthquakes%n",
+            recording.ticks, recording.count(MatchRecorder.JOIN), recording.count(MatchRecorder.LEAVE),
+            recording.count(MatchRecorder.MOVE), recording.count(MatchRecorder.EARTHQUAKE));
+        if (recording.truncated) {
+            System.out.println("The recording ends part way through a tick (the server stopped); "
+                + "replaying the complete ticks.");
+        }
+
+        Log.setLevel(Log.Level.WARN); // the room logs every join and earthquake
+        long moves = recording.count(MatchRecorder.MOVE);
+        for (int run = 1; run <= repeat; run++) {
+            Result result = replay(recording);
+            double seconds = result.elapsedNanos / 1e9;
+            System.out.printf("run %d: %d ticks in %.1f ms (%.0f ticks/s, %.0f moves/s, %.1f ms CPU)%n",
+                run, result.ticks, result.elapsedNanos / 1e6, result.ticks / seconds,
+                result.divergedTick < 0 ? moves / seconds : 0, result.cpuNanos / 1e6);
+            if (result.divergedTick >= 0) {
+                System.out.printf("Diverged at tick %d: the recording has state %016x, the replay %016x%n",
+                    result.divergedTick, result.expectedHash, result.actualHash);
+                System.exit(1);
+            }
+        }
+        System.out.println("Every tick matches the recording.");
+    }
+
+    /**
+     * Replays the whole recording into a new room, timing it on this thread's clock and CPU.
+     */
+    private static Result replay(Recording recording) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuStart = threads.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+
+        // Earthquakes build their maze straight away, ready for the tick that swaps it in
+        GameRoom room = new GameRoom(recording.roomId, recording.roomName, recording.settings,
+            recording.seed, Runnable::run);
+        ClientConnection connection = new DiscardingConnection();
+        boolean swapMaze = false;
+        boolean earthquake = false;
+        int tick = 0;
+        for (int i = 0; i < recording.size; i++) {
+            switch (recording.types[i]) {
+                case MatchRecorder.JOIN -> room.join(recording.playerIds[i], recording.names[i], connection);
+                case MatchRecorder.LEAVE -> room.leave(recording.playerIds[i]);
+                case MatchRecorder.MOVE -> room.queueMove(recording.playerIds[i], (int) recording.values[i], i);
+                case MatchRecorder.MAZE, MatchRecorder.REGIONS -> swapMaze = true;
+                case MatchRecorder.EARTHQUAKE -> earthquake = true;
+                case MatchRecorder.TICK -> {
+                    room.replayTick(swapMaze, earthquake);
+                    swapMaze = false;
+                    earthquake = false;
+                    long hash = room.stateHash();
+                    if (hash != recording.values[i]) {
+                        return new Result(tick, System.nanoTime() - start,
+                            threads.getCurrentThreadCpuTime() - cpuStart, tick, recording.values[i], hash);
+                    }
+                    tick++;
+                }
+                default -> throw new IllegalStateException("Unknown record type " + recording.types[i]);
+            }
+        }
+        return new Result(tick, System.nanoTime() - start, threads.getCurrentThreadCpuTime() - cpuStart, -1, 0, 0);
+    }
+
+    /**
+     * How one replay went. The diverged tick is -1 if every tick matched.
+     */
+    private record Result(int ticks, long elapsedNanos, long cpuNanos, int divergedTick,
+                          long expectedHash, long actualHash) {
+    }
+
+    /**
+     * A recording decoded into flat arrays, one entry per record, so the replay loop does
+     * no parsing. Records after the last complete tick are left out.
+     */
+    private static final class Recording {
+        int roomId;
+        String roomName;
+        long seed;
+        RoomSettings settings;
+        int ticks;
+        boolean truncated;
+
+        int size;
+        byte[] types = new byte[1024];
+        int[] playerIds = new int[1024];
+        long[] values = new long[1024];  // direction, maze seed or state hash
+        String[] names = new String[1024];
+
+        static Recording read(Path file) throws IOException {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+            Recording recording = new Recording();
+            try {
+                if (in.getInt() != MatchRecorder.MAGIC) {
+                    throw new IOException(file + " is not a match recording");
+                }
+                int format = in.getInt();
+                if (format < 1 || format > MatchRecorder.FORMAT) {
+                    throw new IOException(file + " has recording format " + format
+                        + ", this build reads " + MatchRecorder.FORMAT);
+                }
+                recording.roomId = in.getInt();
+                recording.seed = in.getLong();
+                int width = in.getInt();
+                int height = in.getInt();
+                int viewRadius = in.getInt();
+                int tilesPerTick = in.getInt();
+                recording.roomName = getString(in);
+                MazeGenerator generator = format == 1 ? MazeGenerator.DEPTH_FIRST : MazeGenerator.byId(in.get());
+                RoomSettings defaults = RoomSettings.DEFAULT;
+                int regions = format < 3 ? defaults.earthquakeRegions() : in.getInt();
+                int regionSize = format < 3 ? defaults.earthquakeRegionSize() : in.getInt();
+                int mazeBuffer = format < 4 ? 0 : in.getInt(); // older rooms built each maze when needed
+                recording.settings = new RoomSettings(width, height, viewRadius, tilesPerTick, generator,
+                    regions, regionSize, mazeBuffer);
+            } catch (BufferUnderflowException e) {
+                throw new IOException(file + " is too short to be a match recording");
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + ": " + e.getMessage());
+            }
+
+            int lastTickEnd = 0;
+            try {
+                while (in.hasRemaining()) {
+                    byte type = in.get();
+                    int playerId = 0;
+                    long value = 0;
+                    String name = null;
+                    switch (type) {
+                        case MatchRecorder.JOIN -> {
+                            playerId = in.getInt();
+                            name = getString(in);
+                        }
+                        case MatchRecorder.LEAVE -> playerId = in.getInt();
+                        case MatchRecorder.MOVE -> {
+                            playerId = in.getInt();
+                            value = in.get();
+                        }
+                        case MatchRecorder.MAZE, MatchRecorder.TICK -> value = in.getLong();
+                        case MatchRecorder.EARTHQUAKE, MatchRecorder.REGIONS -> {
+                        }
+                        default -> throw new IOException(file + " has an unknown record type " + type
+                            + " at byte " + (in.position() - 1));
+                    }
+                    recording.add(type, playerId, value, name);
+                    if (type == MatchRecorder.TICK) {
+                        lastTickEnd = recording.size;
+                        recording.ticks++;
+                    }
+                }
+            } catch (BufferUnderflowException e) {
+                recording.truncated = true;
+            }
+            if (recording.size > lastTickEnd) {
+                recording.truncated = true;
+                recording.size = lastTickEnd;
+            }
+            return recording;
+        }
+
+        private void add(byte type, int playerId, long value, String name) {
+            if (size == types.length) {
+                int capacity = size * 2;
+                types = Arrays.copyOf(types, capacity);
+                playerIds = Arrays.copyOf(playerIds, capacity);
+                values = Arrays.copyOf(values, capacity);
+                names = Arrays.copyOf(names, capacity);
+            }
+            types[size] = type;
+            playerIds[size] = playerId;
+            values[size] = value;
+            names[size] = name;
+            size++;
+        }
+
+        long count(byte type) {
+            long n = 0;
+            for (int i = 0; i < size; i++) {
+                if (types[i] == type) n++;
+            }
+            return n;
+        }
+
+        private static String getString(ByteBuffer in) {
+            byte[] bytes = new byte[in.getShort() & 0xFFFF];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * A replayed player's connection: frames are accepted and thrown away.
+     */
+    private static final class DiscardingConnection implements ClientConnection {
+        private final OutboundQueue queue = new OutboundQueue(1);
+
+        @Override
+        public void send(byte[] frame) {
+        }
+
+        @Override
+        public boolean sendState(byte[] frame, boolean snapshot) {
+            return true;
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return queue;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
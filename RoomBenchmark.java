@@ -0,0 +1,196 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many rooms and players the simulation threads can carry.
+ *
+ * For each room count it fills every room with simulated players that each send one move
+ * per tick straight into their room, with no sockets involved, so the numbers cover the
+ * game rules, encoding and queueing but not the network. It then reports how many of the
+ * scheduled ticks actually ran, how much CPU the simulation threads used and the
+ * resulting capacity: moves applied per CPU-second, and so how many players (rooms x
+ * players per room) one core can keep up with at the tick rate. A "ticks run" figure well
+ * below 100% means the simulation threads are saturated.
+ *
+ * Usage: java RoomBenchmark [--rooms=1,4,16,64] [--players=8] [--sim-threads=N]
+ *        [--tick-rate=30] [--seconds=10] [--view-radius=0]
+ *
+ * With --view-radius the rooms filter each client's updates by distance, so the cost of
+ * the spatial index and the per-client encoding shows up in the CPU figures.
+ */
+public class RoomBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] roomCounts = {1, 4, 16, 64};
+        int playersPerRoom = 8;
+        int simThreads = Runtime.getRuntime().availableProcessors();
+        int tickRate = 30;
+        int seconds = 10;
+        int viewRadius = 0;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--rooms=")) {
+                String[] parts = value.split(",");
+                roomCounts = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    roomCounts[i] = Integer.parseInt(parts[i].trim());
+                }
+            } else if (arg.startsWith("--players=")) {
+                playersPerRoom = Integer.parseInt(value);
+            } else if (arg.startsWith("--sim-threads=")) {
+                simThreads = Integer.parseInt(value);
+            } else if (arg.startsWith("--tick-rate=")) {
+                tickRate = Integer.parseInt(value);
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(value);
+            } else if (arg.startsWith("--view-radius=")) {
+                viewRadius = Integer.parseInt(value);
+            } else {
+                System.err.println("Usage: java RoomBenchmark [--rooms=1,4,16,64] [--players=8]"
+                    + " [--sim-threads=N] [--tick-rate=30] [--seconds=10] [--view-radius=0]");
+                return;
+            }
+        }
+
+        System.out.printf("%d simulation threads, %d players per room, %d Hz, %d s per run, view radius %s%n",
+            simThreads, playersPerRoom, tickRate, seconds, viewRadius > 0 ? viewRadius : "off");
+        System.out.printf("%6s %8s %10s %10s %10s %16s %14s%n",
+            "rooms", "players", "ticks run", "overruns", "cpu cores", "moves/cpu-s", "players/core");
+        for (int rooms : roomCounts) {
+            run(rooms, playersPerRoom, simThreads, tickRate, seconds, viewRadius);
+        }
+    }
+
+    private static void run(int roomCount, int playersPerRoom, int simThreads, int tickRate, int seconds,
+            int viewRadius) throws InterruptedException {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // the rooms log every move
+
+        ExecutorService background = Executors.newFixedThreadPool(2);
+        Lobby lobby = new Lobby(simThreads, tickRate, roomCount,
+            RoomSettings.DEFAULT.withViewRadius(viewRadius), background, 42);
+        List<GameRoom> rooms = new ArrayList<>();
+        rooms.add(lobby.getRoom(Protocol.DEFAULT_ROOM));
+        while (rooms.size() < roomCount) {
+            rooms.add(lobby.createRoom("Room " + rooms.size()));
+        }
+
+        List<int[]> players = new ArrayList<>(); // {roomIndex, playerId}
+        for (int r = 0; r < roomCount; r++) {
+            for (int p = 0; p < playersPerRoom; p++) {
+                int playerId = lobby.connect("bot-" + r + "-" + p, new DiscardingConnection());
+                lobby.joinRoom(playerId, rooms.get(r).getId());
+                players.add(new int[] {r, playerId});
+            }
+        }
+
+        // Every player sends one move per tick
+        Random random = new Random(42);
+        ScheduledExecutorService driver = Executors.newSingleThreadScheduledExecutor();
+        long period = 1_000_000_000L / tickRate;
+        driver.scheduleAtFixedRate(() -> {
+            for (int[] player : players) {
+                rooms.get(player[0]).queueMove(player[1], random.nextInt(4), 0);
+            }
+        }, 0, period, TimeUnit.NANOSECONDS);
+
+        Thread.sleep(2000); // warm up
+        long ticksBefore = totalTicks(lobby);
+        long overrunsBefore = totalOverruns(lobby);
+        long movesBefore = totalMoves(lobby);
+        long cpuBefore = simCpuNanos();
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        long elapsed = System.nanoTime() - start;
+        long cpu = simCpuNanos() - cpuBefore;
+        long ticks = totalTicks(lobby) - ticksBefore;
+        long overruns = totalOverruns(lobby) - overrunsBefore;
+        long moves = totalMoves(lobby) - movesBefore;
+
+        driver.shutdownNow();
+        lobby.shutdown();
+        background.shutdownNow();
+        System.setOut(console);
+
+        long expectedTicks = (long) roomCount * tickRate * elapsed / 1_000_000_000L;
+        double cores = (double) cpu / elapsed;
+        double movesPerCpuSecond = cpu == 0 ? 0 : moves / (cpu / 1e9);
+        // Each player sends one move per tick, so a core keeps up with this many players
+        System.out.printf("%6d %8d %9.1f%% %10d %10.2f %16.0f %14.0f%n",
+            roomCount, roomCount * playersPerRoom, 100.0 * ticks / expectedTicks, overruns, cores,
+            movesPerCpuSecond, movesPerCpuSecond / tickRate);
+    }
+
+    private static long totalTicks(Lobby lobby) {
+        long ticks = 0;
+        for (int i = 0; i < lobby.getSimThreadCount(); i++) {
+            ticks += lobby.getTickStats(i).getTicks();
+        }
+        return ticks;
+    }
+
+    private static long totalMoves(Lobby lobby) {
+        long moves = 0;
+        for (int i = 0; i < lobby.getSimThreadCount(); i++) {
+            moves += lobby.getTickStats(i).getCommands();
+        }
+        return moves;
+    }
+
+    private static long totalOverruns(Lobby lobby) {
+        long overruns = 0;
+        for (int i = 0; i < lobby.getSimThreadCount(); i++) {
+            overruns += lobby.getTickStats(i).getOverruns();
+        }
+        return overruns;
+    }
+
+    /**
+     * Total CPU time used so far by the lobby's simulation threads.
+     */
+    private static long simCpuNanos() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("sim-")) {
+                long cpu = threads.getThreadCpuTime(thread.getId());
+                if (cpu > 0) total += cpu;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * A simulated player's connection: frames are accepted and thrown away.
+     */
+    private static final class DiscardingConnection implements ClientConnection {
+        private final OutboundQueue queue = new OutboundQueue(1);
+
+        @Override
+        public void send(byte[] frame) {
+        }
+
+        @Override
+        public boolean sendState(byte[] frame, boolean snapshot) {
+            return true;
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return queue;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,6 @@
+/**
+ * A line of the room list sent to players in the lobby.
+ * The winner is empty while nobody has reached the exit.
+ */
+public record RoomInfo(int id, String name, int players, String winner) {
+}
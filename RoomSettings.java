@@ -0,0 +1,44 @@
+/**
+ * Settings shared by every room on the server.
+ *
+ * @param mazeWidth    maze width in cells, including the outer walls
+ * @param mazeHeight   maze height in cells
+ * @param viewRadius   how many cells each player sees in every direction; 0 sees everyone
+ * @param tilesPerTick most maze tiles streamed to one client per tick
+ * @param mazeGenerator how new mazes are carved
+ * @param earthquakeRegions how many regions each earthquake carves again in place; 0 replaces the whole maze
+ * @param earthquakeRegionSize width and height of those regions, in maze positions
+ * @param mazeBuffer mazes each room keeps built and encoded for its next earthquakes; 0 builds each when it is due
+ */
+public record RoomSettings(int mazeWidth, int mazeHeight, int viewRadius, int tilesPerTick,
+                           MazeGenerator mazeGenerator, int earthquakeRegions, int earthquakeRegionSize,
+                           int mazeBuffer) {
+
+    /** The classic 21x11 depth-first maze, everyone visible, replaced whole by earthquakes. */
+    public static final RoomSettings DEFAULT = new RoomSettings(21, 11, 0, 64, MazeGenerator.DEPTH_FIRST, 0, 32, 1);
+
+    public RoomSettings withViewRadius(int radius) {
+        return new RoomSettings(mazeWidth, mazeHeight, radius, tilesPerTick, mazeGenerator,
+            earthquakeRegions, earthquakeRegionSize, mazeBuffer);
+    }
+
+    public RoomSettings withMazeSize(int width, int height) {
+        return new RoomSettings(width, height, viewRadius, tilesPerTick, mazeGenerator,
+            earthquakeRegions, earthquakeRegionSize, mazeBuffer);
+    }
+
+    public RoomSettings withMazeGenerator(MazeGenerator generator) {
+        return new RoomSettings(mazeWidth, mazeHeight, viewRadius, tilesPerTick, generator,
+            earthquakeRegions, earthquakeRegionSize, mazeBuffer);
+    }
+
+    public RoomSettings withEarthquakeRegions(int count, int size) {
+        return new RoomSettings(mazeWidth, mazeHeight, viewRadius, tilesPerTick, mazeGenerator, count, size,
+            mazeBuffer);
+    }
+
+    public RoomSettings withMazeBuffer(int mazes) {
+        return new RoomSettings(mazeWidth, mazeHeight, viewRadius, tilesPerTick, mazeGenerator,
+            earthquakeRegions, earthquakeRegionSize, mazes);
+    }
+}
@@ -1,40 +1,70 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.BindException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.Scanner;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The server for the LAN Maze Escape Game.
- * This class handles client connections, game logic, and broadcasting the game state.
+ * This class accepts client connections and hands their frames to the {@link Lobby},
+ * which runs the game rooms.
  */
 public class Server {
     private static final int PORT = 12345;
-    private static final int MAZE_WIDTH = 21;
-    private static final int MAZE_HEIGHT = 11;
-    private static volatile Maze maze = new Maze(MAZE_WIDTH, MAZE_HEIGHT);
-    private static final Map<String, Player> players = new ConcurrentHashMap<>();
-    private static final Map<String, ObjectOutputStream> clientOutputs = new ConcurrentHashMap<>();
-    private static final ExecutorService pool = Executors.newCachedThreadPool();
+    private static Lobby lobby;
+    private static int sendQueueCapacity = 64;
+    private static int slowClientTimeoutMillis = 5000;
+    private static ExecutorService pool = Executors.newCachedThreadPool();
+    private static ServerOptions.Threads handlerThreads = ServerOptions.Threads.PLATFORM;
+    private static UdpChannel udp; // null unless started with --udp
+    private static final ServerMetrics metrics = new ServerMetrics();
+    private static GameJournal journal; // null unless started with --journal
+    private static Path recordDirectory; // null unless started with --record
 
     public static void main(String[] args) {
+        ServerOptions options;
         try {
-            String bindIP = args.length > 0 ? args[0] : "0.0.0.0";
+            options = ServerOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(ServerOptions.USAGE);
+            return;
+        }
+        Log.setLevel(options.getLogLevel());
+        pool = createHandlerPool(options.getThreads());
+        sendQueueCapacity = options.getSendQueue();
+        slowClientTimeoutMillis = options.getSlowClientTimeout();
+
+        try {
+            String bindIP = options.getBindAddress();
+            InetSocketAddress bindAddress = "0.0.0.0".equals(bindIP)
+                ? new InetSocketAddress(PORT) // listen on all interfaces
+                : new InetSocketAddress(InetAddress.getByName(bindIP), PORT);
+
+            ServerSocketChannel nioChannel = null;
             ServerSocket serverSocket;
-            if ("0.0.0.0".equals(bindIP)) {
-                serverSocket = new ServerSocket(PORT); // listen on all interfaces
+            if (options.getEngine() == ServerOptions.Engine.NIO) {
+                nioChannel = ServerSocketChannel.open();
+                nioChannel.bind(bindAddress, 50);
+                serverSocket = nioChannel.socket();
             } else {
-                serverSocket = new ServerSocket(PORT, 50, InetAddress.getByName(bindIP));
+                serverSocket = new ServerSocket();
+                serverSocket.bind(bindAddress, 50);
             }
 
             // Try to show a helpful address for other machines
@@ -45,64 +75,225 @@ public class Server {
                 localIp = bindIP.equals("0.0.0.0") ? "<all interfaces>" : bindIP;
             }
 
-            System.out.println("Server started on " + localIp + ":" + PORT + " (bound to " + bindIP + ")");
-            System.out.println("Waiting for players to connect...");
+            Log.info("Server started on " + localIp + ":" + PORT + " (bound to " + bindIP
+                + ", engine " + options.getEngine().name().toLowerCase()
+                + ", " + handlerThreads.name().toLowerCase() + " threads"
+                + ", " + options.getTickRate() + " Hz tick"
+                + ", " + options.getSimThreads() + " simulation threads"
+                + ", " + options.getRoomSettings().mazeGenerator().name() + " mazes"
+                + (options.getRoomSettings().earthquakeRegions() > 0
+                    ? ", earthquakes carve " + options.getRoomSettings().earthquakeRegions() + " regions of "
+                        + options.getRoomSettings().earthquakeRegionSize()
+                    : options.getRoomSettings().mazeBuffer() > 0
+                        ? ", maze buffer " + options.getRoomSettings().mazeBuffer() : "")
+                + (options.isUdpEnabled() ? ", UDP movement" : "") + ", seed " + options.getSeed() + ")");
+            Log.info("Waiting for players to connect...");
 
-            // Start earthquake timer (every 30 seconds)
-            Timer earthquakeTimer = new Timer();
-            earthquakeTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    triggerEarthquake();
-                }
-            }, 30000, 30000);
+            // Rooms that were open when the server last stopped come back from the journal,
+            // before any room is created, so every room journals from its first tick
+            Map<Integer, GameJournal.RecoveredRoom> recovered = Map.of();
+            if (options.getJournalDirectory() != null) {
+                Path journalDirectory = Paths.get(options.getJournalDirectory());
+                recovered = GameJournal.recover(journalDirectory);
+                journal = new GameJournal(journalDirectory);
+                journal.expectRooms(recovered.keySet());
+                Log.info("Journal in " + journalDirectory.toAbsolutePath() + ", " + recovered.size()
+                    + " rooms to restore");
+            }
+
+            if (options.getRecordDirectory() != null) {
+                recordDirectory = Paths.get(options.getRecordDirectory());
+            }
+
+            // Each room ticks on one of the lobby's simulation threads; earthquake mazes
+            // are built on the handler pool
+            lobby = new Lobby(options.getSimThreads(), options.getTickRate(), options.getMaxRooms(),
+                options.getRoomSettings(), pool, options.getSeed(), recovered);
+            if (options.isUdpEnabled()) {
+                udp = new UdpChannel(bindAddress, lobby);
+                new Thread(udp, "udp").start();
+            }
+            metrics.start(lobby);
+            if (options.getMetricsPort() > 0) {
+                metrics.startHttp(options.getMetricsPort());
+            }
+            ScheduledExecutorService statsTimer = Executors.newSingleThreadScheduledExecutor(
+                r -> new Thread(r, "server-stats"));
+            statsTimer.scheduleAtFixedRate(() -> Log.info(lobby.summarize()),
+                60, 60, TimeUnit.SECONDS);
+            statsTimer.scheduleAtFixedRate(metrics::sample, 1, 1, TimeUnit.SECONDS);
+            if (journal != null) {
+                statsTimer.scheduleAtFixedRate(journal::force, 1, 1, TimeUnit.SECONDS);
+                statsTimer.scheduleAtFixedRate(lobby::closeAbandonedRooms, 10, 10, TimeUnit.SECONDS);
+            }
+
+            if (nioChannel != null) {
+                new NioServer(nioChannel, options.getIoThreads()).run();
+                return;
+            }
 
             while (true) {
                 Socket client = serverSocket.accept();
-                System.out.println("Player connected from " + client.getInetAddress().getHostAddress());
+                Log.info("Player connected from " + client.getInetAddress().getHostAddress());
                 pool.execute(new ClientHandler(client));
             }
         } catch (BindException be) {
-            System.err.println("Port " + PORT + " is already in use or binding failed: " + be.getMessage());
-            be.printStackTrace();
+            Log.error("Port " + PORT + " is already in use or binding failed: " + be.getMessage(), be);
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("Server failed: " + e, e);
         }
     }
 
     /**
-     * Broadcasts the current game state to all connected clients.
-     * This method is synchronized to prevent concurrent modification of the clientOutputs map.
+     * Creates the executor that runs one ClientHandler per player.
+     * Virtual threads need Java 21; the factory is looked up reflectively so the server
+     * still compiles and runs with platform threads on older JDKs.
      */
-    public static synchronized void broadcastGameState() {
-        // Send fresh objects to all clients (fixes Java serialization caching)
-        for (ObjectOutputStream out : clientOutputs.values()) {
+    private static ExecutorService createHandlerPool(ServerOptions.Threads threads) {
+        if (threads == ServerOptions.Threads.VIRTUAL) {
             try {
-                out.reset(); // Force fresh object state
-                out.writeObject(maze);
-                out.writeObject(players);
-                out.flush();
-            } catch (IOException e) {
-                System.err.println("Error broadcasting game state: " + e.getMessage());
+                ExecutorService virtualPool = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                handlerThreads = ServerOptions.Threads.VIRTUAL;
+                return virtualPool;
+            } catch (ReflectiveOperationException e) {
+                Log.warn("Virtual threads need Java 21 or newer, falling back to platform threads.");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Creates the outbound queue for a new connection, sized from the command line.
+     */
+    static OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(sendQueueCapacity);
+    }
+
+    /**
+     * How long a client may keep dropping frames before it is disconnected.
+     */
+    static int getSlowClientTimeoutMillis() {
+        return slowClientTimeoutMillis;
+    }
+
+    /**
+     * The UDP side channel, or null if the server wasn't started with --udp.
+     */
+    static UdpChannel getUdp() {
+        return udp;
+    }
+
+    /**
+     * The game journal, or null if the server wasn't started with --journal.
+     */
+    static GameJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Where new rooms record their matches, or null if the server wasn't started with --record.
+     */
+    static Path getRecordDirectory() {
+        return recordDirectory;
+    }
+
+    /**
+     * The server's metrics. The rooms record their timings here even when no server is
+     * running, e.g. in benchmarks.
+     */
+    static ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Handles the HELLO frame of a new connection: checks the protocol version, registers
+     * the player with the lobby, offers them the UDP channel if they asked for it and it
+     * is enabled, and puts them in the room they asked for.
+     * Returns the generated player ID, or 0 if the client was rejected.
+     */
+    static int joinPlayer(ByteBuffer hello, ClientConnection connection) {
+        if (hello.get() != Protocol.HELLO) {
+            Log.warn("Expected HELLO from new connection. Terminating connection.");
+            return 0;
+        }
+        int version = hello.getShort();
+        if (version != Protocol.VERSION) {
+            connection.send(Protocol.encodeError("Unsupported protocol version " + version
+                + ", server speaks " + Protocol.VERSION));
+            return 0;
+        }
+        String playerName = Protocol.readString(hello);
+        int roomId = hello.getInt();
+        int flags = hello.get();
+
+        int playerId = lobby.connect(playerName, connection);
+        if ((flags & Protocol.HELLO_UDP) != 0 && udp != null) {
+            connection.send(Protocol.encodeUdpOffer(udp.getPort(), udp.register(playerId)));
+        }
+        lobby.joinRoom(playerId, roomId); // sends WELCOME; the room's next tick sends the snapshot
+        return playerId;
+    }
+
+    /**
+     * Handles one frame from a player who has already said HELLO. Game commands go to
+     * the player's room and are ignored in the lobby. Unknown opcodes are a protocol error
+     * and end the connection.
+     */
+    static void handleFrame(int playerId, ByteBuffer frame) throws IOException {
+        byte opcode = frame.get();
+        switch (opcode) {
+            case Protocol.MOVE: {
+                GameRoom room = lobby.roomOf(playerId);
+                if (room != null) {
+                    int direction = frame.get();
+                    room.queueMove(playerId, direction, frame.getInt());
+                }
+                break;
             }
+            case Protocol.RESYNC: {
+                GameRoom room = lobby.roomOf(playerId);
+                if (room != null) {
+                    room.requestSnapshot(playerId);
+                }
+                break;
+            }
+            case Protocol.LIST_ROOMS:
+                lobby.listRooms(playerId);
+                break;
+            case Protocol.CREATE_ROOM:
+                lobby.createRoom(playerId, Protocol.readString(frame));
+                break;
+            case Protocol.JOIN_ROOM:
+                lobby.joinRoom(playerId, frame.getInt());
+                break;
+            default:
+                throw new IOException("Unexpected opcode 0x" + Integer.toHexString(opcode & 0xFF));
         }
     }
 
     /**
-     * Triggers an earthquake that regenerates the maze.
+     * Removes a disconnected player. Everyone in their room hears about it on the next tick.
      */
-    private static void triggerEarthquake() {
-        System.out.println("Earthquake! The maze is shifting...");
-        maze = new Maze(MAZE_WIDTH, MAZE_HEIGHT);
-        broadcastGameState();
+    static void leavePlayer(int playerId) {
+        if (playerId == 0) return;
+        if (udp != null) {
+            udp.unregister(playerId);
+        }
+        lobby.disconnect(playerId);
     }
-    
+
     /**
-     * Inner class to handle individual client connections and game commands.
+     * Inner class to handle individual client connections on the blocking engine.
+     * Each connection gets a reader thread, which blocks reading the next frame, and a
+     * writer thread that drains the connection's outbound queue.
      */
-    private static class ClientHandler implements Runnable {
+    private static class ClientHandler implements Runnable, ClientConnection {
         private final Socket socket;
-        private String playerId;
+        private final OutboundQueue outbound = newOutboundQueue();
+        private final CountDownLatch writerDone = new CountDownLatch(1);
+        private DataOutputStream out;
+        private int playerId;
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
@@ -110,142 +301,89 @@ public class Server {
 
         @Override
         public void run() {
-              // Deadlock fix: Create ObjectOutputStream BEFORE ObjectInputStream
-              try (ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                  ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-                
-                // Read and set player name
-                String playerName = null;
-                try {
-                    Object obj = in.readObject();
-                    if (obj instanceof String) {
-                        playerName = (String) obj;
-                    } else {
-                        System.err.println("Received an invalid object instead of player name. Terminating connection.");
-                        return;
-                    }
-                } catch (ClassNotFoundException e) {
-                    System.err.println("Invalid object received for player name: " + e.getMessage());
-                    return; // Terminate this handler
-                }
-                
-                this.playerId = "player_" + System.nanoTime(); // Generate unique ID
-                
-                Position startPos = findStartLocation();
-                players.put(playerId, new Player(playerId, playerName, startPos));
-                clientOutputs.put(playerId, out);
+            // The streams are closed with the socket in close(), not when this block ends, so
+            // that the writer can still flush an ERROR frame after a rejected HELLO
+            try {
+                this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                pool.execute(this::writeLoop);
 
-                System.out.println("Player " + playerName + " connected.");
-                broadcastGameState();
+                // The first frame must be HELLO with the protocol version and player name
+                this.playerId = joinPlayer(Protocol.readFrame(in, Protocol.MAX_CLIENT_FRAME), this);
+                if (playerId == 0) {
+                    return;
+                }
 
                 // Keep connection alive and listen for commands
                 while (!socket.isClosed()) {
-                    try {
-                        String command = (String) in.readObject();
-                        processCommand(command);
-                        broadcastGameState();
-                    } catch (ClassNotFoundException e) {
-                        System.err.println("Invalid object received: " + e.getMessage());
-                        break; // Exit loop on invalid data
-                    } catch (IOException e) {
-                        // Connection closed by client
-                        break;
-                    }
+                    handleFrame(playerId, Protocol.readFrame(in, Protocol.MAX_CLIENT_FRAME));
                 }
 
-            } catch (IOException e) {
-                System.err.println("Player " + playerId + " disconnected: " + e.getMessage());
+            } catch (IOException | RuntimeException e) {
+                Log.info("Player " + playerId + " disconnected: " + e.getMessage());
             } finally {
-                // Clean up resources
-                players.remove(playerId);
-                clientOutputs.remove(playerId);
+                // Let the writer flush what's queued (e.g. an ERROR frame), then clean up
+                outbound.close();
                 try {
-                    socket.close();
-                } catch (IOException e) {
-                    // Ignore
+                    writerDone.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
-                broadcastGameState();
-                System.out.println("Player " + playerId + " cleanup completed.");
+                close();
+                leavePlayer(playerId);
+                Log.info("Player " + playerId + " cleanup completed.");
             }
         }
 
         /**
-         * Processes a command received from a client.
+         * Writes queued frames until the queue is closed. Everything queued is taken out
+         * as one batch and flushed together, so a burst of frames goes out in as few
+         * packets as possible.
          */
-        private void processCommand(String command) {
-            Player player = players.get(playerId);
-            if (player == null) return;
-
-            Position currentPos = player.getPosition();
-            Position newPos = currentPos;
-            Position exitPos = maze.getExitPosition();
-
-            // Debug: print received command and positions
-            System.out.println(">>> Command from " + player.getName() +
-                " = " + command +
-                " current=" + currentPos);
-
-            // Game logic: Move player if command is valid and not a wall, or if it's the exit cell
-            switch (command.toLowerCase().trim()) {
-                case "up":
-                    newPos = new Position(currentPos.x(), currentPos.y() - 1);
-                    break;
-                case "down":
-                    newPos = new Position(currentPos.x(), currentPos.y() + 1);
-                    break;
-                case "left":
-                    newPos = new Position(currentPos.x() - 1, currentPos.y());
-                    break;
-                case "right":
-                    newPos = new Position(currentPos.x() + 1, currentPos.y());
-                    break;
-            }
-
-            // Debug: print attempted move and wall check
-            System.out.println(">>> Attempting move to " + newPos +
-                " isWall=" + maze.isWall(newPos.x(), newPos.y()));
-
-            // Allow move if not a wall OR it's the exit cell
-            if (!newPos.equals(currentPos) &&
-                (!maze.isWall(newPos.x(), newPos.y()) || newPos.equals(exitPos))) {
-                player.setPosition(newPos);
-                System.out.println(">>> " + player.getName() + " moved to " + newPos);
-
-                // Check for win condition
-                if (newPos.equals(exitPos)) {
-                    System.out.println("Player " + player.getName() + " reached the exit!");
-                    broadcastWinner(player.getName());
-                    // Don't shutdown pool immediately, allow graceful disconnect
+        private void writeLoop() {
+            byte[][] batch = new byte[OutboundQueue.MAX_BATCH][];
+            long[] enqueuedNanos = new long[OutboundQueue.MAX_BATCH];
+            try {
+                int count;
+                while ((count = outbound.takeBatch(batch, enqueuedNanos)) > 0) {
+                    for (int i = 0; i < count; i++) {
+                        out.write(batch[i]);
+                        batch[i] = null;
+                    }
+                    if (count < OutboundQueue.MAX_BATCH || outbound.isEmpty()) {
+                        out.flush();
+                    }
+                    outbound.recordWritten(enqueuedNanos, 0, count);
                 }
-            } else {
-                System.out.println(">>> " + player.getName() + " move blocked");
+                out.flush();
+            } catch (IOException | InterruptedException e) {
+                close(); // wakes the reader, which cleans up
+            } finally {
+                writerDone.countDown();
             }
         }
-        
-        /**
-         * Finds a random empty space for a new player to spawn.
-         */
-        private Position findStartLocation() {
-            int x, y;
-            do {
-                x = (int) (Math.random() * maze.getWidth());
-                y = (int) (Math.random() * maze.getHeight());
-            } while (maze.isWall(x, y) || maze.getExitPosition().equals(new Position(x, y)));
-            return new Position(x, y);
+
+        @Override
+        public void send(byte[] frame) {
+            outbound.offerControl(frame);
         }
-        
-        /**
-         * Broadcasts a winner message to all clients.
-         */
-        private void broadcastWinner(String winnerName) {
-            String winMessage = "WINNER: " + winnerName;
-            for (ObjectOutputStream out : clientOutputs.values()) {
-                try {
-                    out.writeObject(winMessage);
-                    out.flush(); // Ensure message is sent immediately
-                } catch (IOException e) {
-                    System.err.println("Error broadcasting winner: " + e.getMessage());
-                }
+
+        @Override
+        public boolean sendState(byte[] frame, boolean snapshot) {
+            return outbound.offerState(frame, snapshot);
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return outbound;
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
             }
         }
     }
@@ -0,0 +1,433 @@
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Counters and timers for the running server, published over JMX and, with
+ * --metrics-port, as a Prometheus text page on http://127.0.0.1:PORT/metrics.
+ *
+ * The rooms record into the timers from their simulation threads. Recording is a
+ * System.nanoTime() pair, a short scan for the bucket and a few {@link LongAdder}
+ * increments, so the timers can stay on in production. Everything else (players, queue
+ * depths, GC) is read when a scrape or a JMX client asks for it.
+ *
+ * The MXBean also holds the server's log level, so move tracing can be switched on and
+ * off while the server runs.
+ *
+ * Allocation is estimated from the heap: what it held before each collection less what
+ * the previous one left, plus its growth since the last collection.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    private static final long[] DURATION_BOUNDS_NANOS = {
+        1_000L, 5_000L, 10_000L, 50_000L, 100_000L, 500_000L, 1_000_000L, 5_000_000L, 10_000_000L,
+        50_000_000L, 100_000_000L, 500_000_000L, 1_000_000_000L, 5_000_000_000L
+    };
+    private static final long[] SIZE_BOUNDS_BYTES = {
+        64, 256, 1024, 4096, 16384, 65536, 262144, 1048576
+    };
+
+    /** Time to apply one queued move. */
+    final Histogram processCommand = new Histogram(DURATION_BOUNDS_NANOS);
+    /** Time to encode and queue one room's state for its clients, once per tick. */
+    final Histogram broadcast = new Histogram(DURATION_BOUNDS_NANOS);
+    /** Bytes of state frames queued by one broadcast, summed over its clients; empty broadcasts are skipped. */
+    final Histogram broadcastBytes = new Histogram(SIZE_BOUNDS_BYTES);
+    /** Time an earthquake holds up its room's tick: swapping in the new maze, or copying in its regions. */
+    final Histogram earthquake = new Histogram(DURATION_BOUNDS_NANOS);
+    /** Time to build an earthquake's new maze, or to carve its regions, off the simulation threads. */
+    final Histogram mazeBuild = new Histogram(DURATION_BOUNDS_NANOS);
+    /** Time from an earthquake being due to its new walls going out. */
+    final Histogram earthquakeLatency = new Histogram(DURATION_BOUNDS_NANOS);
+    /** Bytes of MAZE_DIFF frames an in-place earthquake sends each client. */
+    final Histogram earthquakeDiffBytes = new Histogram(SIZE_BOUNDS_BYTES);
+    /** Time to append one room's tick to the journal. */
+    final Histogram journal = new Histogram(DURATION_BOUNDS_NANOS);
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final Set<String> heapPools = new HashSet<>();
+    private volatile Lobby lobby;
+
+    // Allocation estimate, guarded by this
+    private long allocatedAtLastGc;
+    private long heapAfterLastGc;
+
+    // Rates over the last second, written by sample()
+    private long lastSampleNanos;
+    private long lastCommands;
+    private long lastAllocated;
+    private volatile double commandsPerSecond;
+    private volatile double allocationBytesPerSecond;
+
+    /**
+     * Starts reading the lobby and the JVM, and registers the MXBean. Until this is called
+     * (e.g. in benchmarks that run rooms without a server) the timers still record.
+     */
+    public void start(Lobby lobby) {
+        this.lobby = lobby;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPools.add(pool.getName());
+            }
+        }
+        synchronized (this) {
+            heapAfterLastGc = memory.getHeapMemoryUsage().getUsed();
+        }
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                ((NotificationEmitter) gc).addNotificationListener((n, handback) -> onGc(n), null, null);
+            }
+        }
+        lastSampleNanos = System.nanoTime();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("lanmaze:type=Server"));
+        } catch (JMException e) {
+            Log.warn("Could not register the metrics MXBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serves the metrics in Prometheus text format on the loopback interface.
+     */
+    public void startHttp(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", this::serve);
+        http.start(); // requests are answered on the server's own dispatcher thread
+        Log.info("Metrics on http://127.0.0.1:" + port + "/metrics");
+    }
+
+    /**
+     * Updates the per-second rates. Called once a second by the server's stats timer.
+     */
+    void sample() {
+        long now = System.nanoTime();
+        long commands = processCommand.getCount();
+        long allocated = getAllocatedBytes();
+        double seconds = (now - lastSampleNanos) / 1e9;
+        if (seconds > 0) {
+            commandsPerSecond = (commands - lastCommands) / seconds;
+            allocationBytesPerSecond = (allocated - lastAllocated) / seconds;
+        }
+        lastSampleNanos = now;
+        lastCommands = commands;
+        lastAllocated = allocated;
+    }
+
+    private void onGc(Notification notification) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        GarbageCollectionNotificationInfo info =
+            GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        long before = heapUsed(info.getGcInfo().getMemoryUsageBeforeGc());
+        long after = heapUsed(info.getGcInfo().getMemoryUsageAfterGc());
+        synchronized (this) {
+            allocatedAtLastGc += Math.max(0, before - heapAfterLastGc);
+            heapAfterLastGc = after;
+        }
+    }
+
+    private long heapUsed(Map<String, MemoryUsage> pools) {
+        long used = 0;
+        for (Map.Entry<String, MemoryUsage> pool : pools.entrySet()) {
+            if (heapPools.contains(pool.getKey())) {
+                used += pool.getValue().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format.
+     */
+    String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        gauge(out, "lanmaze_connected_players", "Players connected to the server.", getConnectedPlayers());
+        gauge(out, "lanmaze_rooms", "Rooms hosted by the server.", getRooms());
+        gauge(out, "lanmaze_ready_mazes", "Mazes built ahead for the rooms' next earthquakes.", getReadyMazes());
+        counter(out, "lanmaze_commands_total", "Moves applied by the rooms.", getCommandsTotal());
+        gauge(out, "lanmaze_commands_per_second", "Moves applied over the last second.", commandsPerSecond);
+        processCommand.write(out, "lanmaze_process_command_seconds",
+            "Time to apply one queued move.", 1e9);
+        broadcast.write(out, "lanmaze_broadcast_seconds",
+            "Time to encode and queue one room's game state, once per tick.", 1e9);
+        broadcastBytes.write(out, "lanmaze_broadcast_bytes",
+            "Bytes of state frames queued by one broadcast, over all its clients.", 1);
+        earthquake.write(out, "lanmaze_earthquake_seconds",
+            "Time an earthquake holds up its room's tick, swapping in the new maze or copying in its regions.", 1e9);
+        mazeBuild.write(out, "lanmaze_maze_build_seconds",
+            "Time to build an earthquake's new maze, or to carve its regions, in the background.", 1e9);
+        earthquakeLatency.write(out, "lanmaze_earthquake_latency_seconds",
+            "Time from an earthquake being due to its new walls going out.", 1e9);
+        earthquakeDiffBytes.write(out, "lanmaze_earthquake_diff_bytes",
+            "Bytes of MAZE_DIFF frames an in-place earthquake sends each client.", 1);
+        journal.write(out, "lanmaze_journal_append_seconds", "Time to append one room's tick to the journal.", 1e9);
+
+        out.append("# HELP lanmaze_client_queue_depth Frames waiting in a player's outbound queue.\n")
+            .append("# TYPE lanmaze_client_queue_depth gauge\n");
+        for (Map.Entry<Integer, Integer> depth : getClientQueueDepths().entrySet()) {
+            out.append("lanmaze_client_queue_depth{player=\"").append(depth.getKey()).append("\"} ")
+                .append(depth.getValue()).append('\n');
+        }
+
+        out.append("# HELP jvm_gc_collections_total Garbage collections, by collector.\n")
+            .append("# TYPE jvm_gc_collections_total counter\n");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            out.append("jvm_gc_collections_total{gc=\"").append(gc.getName()).append("\"} ")
+                .append(Math.max(0, gc.getCollectionCount())).append('\n');
+        }
+        out.append("# HELP jvm_gc_collection_seconds_total Time spent in garbage collection, by collector.\n")
+            .append("# TYPE jvm_gc_collection_seconds_total counter\n");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            out.append("jvm_gc_collection_seconds_total{gc=\"").append(gc.getName()).append("\"} ")
+                .append(format(Math.max(0, gc.getCollectionTime()) / 1000.0)).append('\n');
+        }
+        counter(out, "jvm_allocated_bytes_total", "Heap bytes allocated, estimated from collections.",
+            getAllocatedBytes());
+        gauge(out, "jvm_allocation_bytes_per_second", "Heap bytes allocated over the last second.",
+            allocationBytesPerSecond);
+        gauge(out, "jvm_heap_used_bytes", "Heap in use.", memory.getHeapMemoryUsage().getUsed());
+        return out.toString();
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, double value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+            .append("# TYPE ").append(name).append(" gauge\n")
+            .append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+            .append("# TYPE ").append(name).append(" counter\n")
+            .append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15
+            ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    @Override
+    public int getConnectedPlayers() {
+        Lobby lobby = this.lobby;
+        return lobby == null ? 0 : lobby.getPlayerCount();
+    }
+
+    @Override
+    public int getRooms() {
+        Lobby lobby = this.lobby;
+        return lobby == null ? 0 : lobby.getRoomCount();
+    }
+
+    @Override
+    public int getReadyMazes() {
+        Lobby lobby = this.lobby;
+        return lobby == null ? 0 : lobby.getReadyMazeCount();
+    }
+
+    @Override
+    public long getCommandsTotal() {
+        return processCommand.getCount();
+    }
+
+    @Override
+    public double getCommandsPerSecond() {
+        return commandsPerSecond;
+    }
+
+    @Override
+    public double getAverageProcessCommandMicros() {
+        return processCommand.getMean() / 1000.0;
+    }
+
+    @Override
+    public long getBroadcastsTotal() {
+        return broadcast.getCount();
+    }
+
+    @Override
+    public double getAverageBroadcastMicros() {
+        return broadcast.getMean() / 1000.0;
+    }
+
+    @Override
+    public double getAverageBroadcastBytes() {
+        return broadcastBytes.getMean();
+    }
+
+    @Override
+    public long getBroadcastBytesTotal() {
+        return broadcastBytes.getSum();
+    }
+
+    @Override
+    public long getEarthquakesTotal() {
+        return earthquakeLatency.getCount();
+    }
+
+    @Override
+    public double getAverageEarthquakeMillis() {
+        return earthquake.getMean() / 1_000_000.0;
+    }
+
+    @Override
+    public double getAverageMazeBuildMillis() {
+        return mazeBuild.getMean() / 1_000_000.0;
+    }
+
+    @Override
+    public double getAverageEarthquakeDiffBytes() {
+        return earthquakeDiffBytes.getMean();
+    }
+
+    @Override
+    public double getAverageEarthquakeLatencyMillis() {
+        return earthquakeLatency.getMean() / 1_000_000.0;
+    }
+
+    @Override
+    public Map<Integer, Integer> getClientQueueDepths() {
+        Lobby lobby = this.lobby;
+        return lobby == null ? Map.of() : lobby.getQueueDepths();
+    }
+
+    @Override
+    public int getMaxClientQueueDepth() {
+        int max = 0;
+        for (int depth : getClientQueueDepths().values()) {
+            max = Math.max(max, depth);
+        }
+        return max;
+    }
+
+    @Override
+    public long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    @Override
+    public long getGcTimeMillis() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    @Override
+    public synchronized long getAllocatedBytes() {
+        if (heapPools.isEmpty()) return 0; // not started
+        long growth = memory.getHeapMemoryUsage().getUsed() - heapAfterLastGc;
+        return allocatedAtLastGc + Math.max(0, growth);
+    }
+
+    @Override
+    public double getAllocationBytesPerSecond() {
+        return allocationBytesPerSecond;
+    }
+
+    @Override
+    public String getLogLevel() {
+        return Log.getLevel().name();
+    }
+
+    @Override
+    public void setLogLevel(String level) {
+        Log.setLevel(Log.Level.valueOf(level.trim().toUpperCase()));
+        Log.info("Log level set to " + Log.getLevel());
+    }
+
+    /**
+     * A histogram with fixed bucket bounds, safe to record into from any thread. Durations
+     * are recorded in nanoseconds and exported in seconds.
+     */
+    static final class Histogram {
+        private final long[] bounds;
+        private final LongAdder[] buckets; // one per bound, plus one for larger values
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            count.increment();
+            sum.add(value);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        long getSum() {
+            return sum.sum();
+        }
+
+        double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        /**
+         * Writes the histogram with cumulative buckets. Values are divided by the unit,
+         * e.g. 1e9 to turn nanoseconds into seconds.
+         */
+        void write(StringBuilder out, String name, String help, double unit) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = i < bounds.length ? format(bounds[i] / unit) : "+Inf";
+                out.append(name).append("_bucket{le=\"").append(le).append("\"} ")
+                    .append(cumulative).append('\n');
+            }
+            // Read separately from the buckets, so under load the three may be a few records apart
+            out.append(name).append("_sum ").append(format(sum.sum() / unit)).append('\n')
+                .append(name).append("_count ").append(count.sum()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import java.util.Map;
+
+/**
+ * The server's metrics and log level as seen over JMX, registered as {@code lanmaze:type=Server}.
+ * Totals count from server start; rates cover the last second.
+ */
+public interface ServerMetricsMXBean {
+
+    int getConnectedPlayers();
+
+    int getRooms();
+
+    /** Mazes built ahead for the rooms' next earthquakes. */
+    int getReadyMazes();
+
+    /** Moves applied by the rooms since the server started. */
+    long getCommandsTotal();
+
+    double getCommandsPerSecond();
+
+    double getAverageProcessCommandMicros();
+
+    long getBroadcastsTotal();
+
+    double getAverageBroadcastMicros();
+
+    /** Bytes queued per broadcast that sent anything, summed over its clients. */
+    double getAverageBroadcastBytes();
+
+    long getBroadcastBytesTotal();
+
+    long getEarthquakesTotal();
+
+    /** Time an earthquake holds up its room's tick, swapping in the new maze or regions. */
+    double getAverageEarthquakeMillis();
+
+    /** Time to build an earthquake's maze or regions in the background; with a maze buffer, built ahead. */
+    double getAverageMazeBuildMillis();
+
+    /** Time from an earthquake being due to its new walls going out. */
+    double getAverageEarthquakeLatencyMillis();
+
+    /** Bytes of MAZE_DIFF frames each in-place earthquake sent one client. */
+    double getAverageEarthquakeDiffBytes();
+
+    /** Frames waiting in each connected player's outbound queue, by player ID. */
+    Map<Integer, Integer> getClientQueueDepths();
+
+    int getMaxClientQueueDepth();
+
+    long getGcCount();
+
+    long getGcTimeMillis();
+
+    /** Bytes allocated on the heap since the server started, estimated from collections. */
+    long getAllocatedBytes();
+
+    double getAllocationBytesPerSecond();
+
+    /** The server's log level: DEBUG, INFO, WARN or ERROR. */
+    String getLogLevel();
+
+    /** Changes the log level at runtime, e.g. to DEBUG to trace every move. */
+    void setLogLevel(String level);
+}
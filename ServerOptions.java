@@ -0,0 +1,208 @@
+import java.util.Random;
+
+/**
+ * Command line options for the server.
+ */
+public class ServerOptions {
+    public static final String USAGE = "Usage: java Server [bind_ip] [--engine=blocking|nio] [--io-threads=N]"
+        + " [--threads=platform|virtual] [--tick-rate=HZ] [--send-queue=FRAMES] [--slow-client-timeout=MS]"
+        + " [--sim-threads=N] [--max-rooms=N] [--view-radius=CELLS]"
+        + " [--maze-size=WIDTHxHEIGHT] [--tiles-per-tick=N] [--udp]"
+        + " [--metrics-port=PORT] [--log-level=debug|info|warn|error] [--journal=DIR]"
+        + " [--seed=N] [--record=DIR] [--maze-generator=dfs|kruskal|wilson|eller]"
+        + " [--earthquake-regions=N] [--earthquake-region-size=CELLS] [--maze-buffer=N]";
+
+    /** The connection handling model used by the server. */
+    public enum Engine { BLOCKING, NIO }
+
+    /** The kind of thread each blocking ClientHandler runs on. */
+    public enum Threads { PLATFORM, VIRTUAL }
+
+    private String bindAddress = "0.0.0.0";
+    private Engine engine = Engine.BLOCKING;
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private Threads threads = Threads.PLATFORM;
+    private int tickRate = 30;
+    private int sendQueue = 64;
+    private int slowClientTimeout = 5000;
+    private int simThreads = Runtime.getRuntime().availableProcessors();
+    private int maxRooms = 64;
+    private int viewRadius = 0;
+    private int mazeWidth = RoomSettings.DEFAULT.mazeWidth();
+    private int mazeHeight = RoomSettings.DEFAULT.mazeHeight();
+    private int tilesPerTick = RoomSettings.DEFAULT.tilesPerTick();
+    private MazeGenerator mazeGenerator = RoomSettings.DEFAULT.mazeGenerator();
+    private int earthquakeRegions = RoomSettings.DEFAULT.earthquakeRegions();
+    private int earthquakeRegionSize = RoomSettings.DEFAULT.earthquakeRegionSize();
+    private int mazeBuffer = RoomSettings.DEFAULT.mazeBuffer();
+    private boolean udp = false;
+    private int metricsPort = 0;
+    private Log.Level logLevel = Log.Level.INFO;
+    private String journalDirectory = null;
+    private long seed = new Random().nextLong();
+    private String recordDirectory = null;
+
+    /**
+     * Parses the command line. The first argument that isn't an option is the bind address.
+     */
+    public static ServerOptions parse(String[] args) {
+        ServerOptions options = new ServerOptions();
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                options.engine = Engine.valueOf(value(arg).toUpperCase());
+            } else if (arg.startsWith("--io-threads=")) {
+                options.ioThreads = positiveInt(arg);
+            } else if (arg.startsWith("--threads=")) {
+                options.threads = Threads.valueOf(value(arg).toUpperCase());
+            } else if (arg.startsWith("--tick-rate=")) {
+                options.tickRate = positiveInt(arg);
+            } else if (arg.startsWith("--send-queue=")) {
+                options.sendQueue = positiveInt(arg);
+            } else if (arg.startsWith("--slow-client-timeout=")) {
+                options.slowClientTimeout = positiveInt(arg);
+            } else if (arg.startsWith("--sim-threads=")) {
+                options.simThreads = positiveInt(arg);
+            } else if (arg.startsWith("--max-rooms=")) {
+                options.maxRooms = positiveInt(arg);
+            } else if (arg.startsWith("--view-radius=")) {
+                options.viewRadius = nonNegativeInt(arg);
+            } else if (arg.startsWith("--maze-size=")) {
+                String[] size = value(arg).toLowerCase().split("x");
+                if (size.length != 2) {
+                    throw new IllegalArgumentException("Expected WIDTHxHEIGHT: " + arg);
+                }
+                options.mazeWidth = Integer.parseInt(size[0].trim());
+                options.mazeHeight = Integer.parseInt(size[1].trim());
+                if (options.mazeWidth < 5 || options.mazeHeight < 5) {
+                    throw new IllegalArgumentException("The maze must be at least 5x5: " + arg);
+                }
+            } else if (arg.startsWith("--maze-generator=")) {
+                options.mazeGenerator = MazeGenerator.byName(value(arg));
+            } else if (arg.startsWith("--earthquake-regions=")) {
+                options.earthquakeRegions = nonNegativeInt(arg);
+            } else if (arg.startsWith("--earthquake-region-size=")) {
+                options.earthquakeRegionSize = positiveInt(arg);
+            } else if (arg.startsWith("--maze-buffer=")) {
+                options.mazeBuffer = nonNegativeInt(arg);
+            } else if (arg.startsWith("--tiles-per-tick=")) {
+                options.tilesPerTick = positiveInt(arg);
+            } else if (arg.equals("--udp")) {
+                options.udp = true;
+            } else if (arg.startsWith("--metrics-port=")) {
+                options.metricsPort = positiveInt(arg);
+            } else if (arg.startsWith("--journal=")) {
+                options.journalDirectory = value(arg);
+            } else if (arg.startsWith("--seed=")) {
+                options.seed = Long.parseLong(value(arg));
+            } else if (arg.startsWith("--record=")) {
+                options.recordDirectory = value(arg);
+            } else if (arg.startsWith("--log-level=")) {
+                options.logLevel = Log.Level.valueOf(value(arg).toUpperCase());
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            } else {
+                options.bindAddress = arg;
+            }
+        }
+        return options;
+    }
+
+    private static String value(String arg) {
+        return arg.substring(arg.indexOf('=') + 1);
+    }
+
+    private static int positiveInt(String arg) {
+        int n = Integer.parseInt(value(arg));
+        if (n <= 0) {
+            throw new IllegalArgumentException("Expected a positive number: " + arg);
+        }
+        return n;
+    }
+
+    private static int nonNegativeInt(String arg) {
+        int n = Integer.parseInt(value(arg));
+        if (n < 0) {
+            throw new IllegalArgumentException("Expected zero or a positive number: " + arg);
+        }
+        return n;
+    }
+
+    public String getBindAddress() {
+        return bindAddress;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public Threads getThreads() {
+        return threads;
+    }
+
+    /** Simulation ticks per second. */
+    public int getTickRate() {
+        return tickRate;
+    }
+
+    /** Maximum number of state frames waiting to be written to one client. */
+    public int getSendQueue() {
+        return sendQueue;
+    }
+
+    /** How long a client may keep dropping frames before it is disconnected, in milliseconds. */
+    public int getSlowClientTimeout() {
+        return slowClientTimeout;
+    }
+
+    /** Number of threads the game rooms are spread over. */
+    public int getSimThreads() {
+        return simThreads;
+    }
+
+    /** Most rooms the server hosts at once, the default room included. */
+    public int getMaxRooms() {
+        return maxRooms;
+    }
+
+    /** Whether clients may move over a UDP side channel on the same port number. */
+    public boolean isUdpEnabled() {
+        return udp;
+    }
+
+    /** Local port of the Prometheus metrics page, or 0 for none. */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /** The initial log level; DEBUG traces every move. */
+    public Log.Level getLogLevel() {
+        return logLevel;
+    }
+
+    /** Where the game journal is kept, or null to run without one. */
+    public String getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    /** Where the rooms' seeds come from; random unless given, and logged at startup. */
+    public long getSeed() {
+        return seed;
+    }
+
+    /** Where each new room records its match for replaying, or null to record nothing. */
+    public String getRecordDirectory() {
+        return recordDirectory;
+    }
+
+    /**
+     * The settings every room is created with.
+     */
+    public RoomSettings getRoomSettings() {
+        return new RoomSettings(mazeWidth, mazeHeight, viewRadius, tilesPerTick, mazeGenerator,
+            earthquakeRegions, earthquakeRegionSize, mazeBuffer);
+    }
+}
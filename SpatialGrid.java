@@ -0,0 +1,106 @@
+import java.util.Arrays;
+
+/**
+ * A uniform grid over the maze for finding the players near a position.
+ *
+ * The maze is divided into square buckets of {@code cellSize} maze cells, and each player
+ * is filed in the bucket holding their position. A query only looks at the buckets that
+ * overlap the search square, so with the bucket size equal to the view radius every query
+ * touches at most 3 x 3 buckets. The grid is rebuilt from scratch every tick, which is a
+ * pass over the players to clear it and another to fill it; everything lives in int
+ * arrays that are reused between ticks.
+ */
+public class SpatialGrid {
+    private final int width;
+    private final int height;
+    private final int cellSize;
+    private final int columns;
+    private final int[] bucketHeads; // first entry in each bucket, or -1
+    private int[] next = new int[64];  // next entry in the same bucket, or -1
+    private int[] ids = new int[64];
+    private int[] xs = new int[64];
+    private int[] ys = new int[64];
+    private int size;
+    private int[] results = new int[64];
+
+    public SpatialGrid(int width, int height, int cellSize) {
+        this.width = width;
+        this.height = height;
+        this.cellSize = Math.max(1, cellSize);
+        this.columns = (width + this.cellSize - 1) / this.cellSize;
+        int rows = (height + this.cellSize - 1) / this.cellSize;
+        this.bucketHeads = new int[columns * rows];
+        Arrays.fill(bucketHeads, -1);
+    }
+
+    /** Returns true if this grid covers a maze of the given size. */
+    public boolean fits(int mazeWidth, int mazeHeight) {
+        return width == mazeWidth && height == mazeHeight;
+    }
+
+    /**
+     * Empties the grid. Only the buckets that hold entries are reset, so clearing costs
+     * as much as the players in it, however big the maze is.
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            bucketHeads[bucket(xs[i], ys[i])] = -1;
+        }
+        size = 0;
+    }
+
+    public void add(int id, int x, int y) {
+        if (size == ids.length) {
+            int capacity = size * 2;
+            next = Arrays.copyOf(next, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+        }
+        int bucket = bucket(x, y);
+        ids[size] = id;
+        xs[size] = x;
+        ys[size] = y;
+        next[size] = bucketHeads[bucket];
+        bucketHeads[bucket] = size;
+        size++;
+    }
+
+    private int bucket(int x, int y) {
+        int column = Math.min(Math.max(x, 0), width - 1) / cellSize;
+        int row = Math.min(Math.max(y, 0), height - 1) / cellSize;
+        return row * columns + column;
+    }
+
+    /**
+     * Finds every entry within {@code radius} cells of (x, y) on both axes, i.e. inside the
+     * square viewport centred there. Returns how many were found; their IDs are the first
+     * entries of {@link #getResults()}, in no particular order.
+     */
+    public int query(int x, int y, int radius) {
+        int firstColumn = Math.max(0, x - radius) / cellSize;
+        int lastColumn = Math.min(width - 1, x + radius) / cellSize;
+        int firstRow = Math.max(0, y - radius) / cellSize;
+        int lastRow = Math.min(height - 1, y + radius) / cellSize;
+
+        int count = 0;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                for (int i = bucketHeads[row * columns + column]; i >= 0; i = next[i]) {
+                    if (Math.abs(xs[i] - x) <= radius && Math.abs(ys[i] - y) <= radius) {
+                        if (count == results.length) {
+                            results = Arrays.copyOf(results, count * 2);
+                        }
+                        results[count++] = ids[i];
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /** The IDs found by the last {@link #query}. Overwritten by the next query. */
+    public int[] getResults() {
+        return results;
+    }
+}
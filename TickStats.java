@@ -0,0 +1,86 @@
+/**
+ * Timing of the server's simulation ticks, split into applying queued commands,
+ * encoding state frames and sending them. Totals cover the ticks since the last summary,
+ * so the periodic log line shows how close each tick comes to its time budget.
+ */
+public class TickStats {
+    private final int tickRate;
+    private final long periodNanos;
+
+    private long ticks;
+    private long overruns;
+    private long commands;
+    private long applyTotal, applyMax;
+    private long encodeTotal, encodeMax;
+    private long sendTotal, sendMax;
+
+    public TickStats(int tickRate) {
+        this.tickRate = tickRate;
+        this.periodNanos = 1_000_000_000L / tickRate;
+    }
+
+    /**
+     * Records one tick. A tick that takes longer than its period is counted as an overrun.
+     */
+    public synchronized void record(int commandCount, long applyNanos, long encodeNanos, long sendNanos) {
+        ticks++;
+        commands += commandCount;
+        applyTotal += applyNanos;
+        applyMax = Math.max(applyMax, applyNanos);
+        encodeTotal += encodeNanos;
+        encodeMax = Math.max(encodeMax, encodeNanos);
+        sendTotal += sendNanos;
+        sendMax = Math.max(sendMax, sendNanos);
+        if (applyNanos + encodeNanos + sendNanos > periodNanos) {
+            overruns++;
+        }
+    }
+
+    /** Ticks recorded since the last summary. */
+    public synchronized long getTicks() {
+        return ticks;
+    }
+
+    /** Commands applied since the last summary. */
+    public synchronized long getCommands() {
+        return commands;
+    }
+
+    /** Overruns recorded since the last summary. */
+    public synchronized long getOverruns() {
+        return overruns;
+    }
+
+    public int getTickRate() {
+        return tickRate;
+    }
+
+    public long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    /**
+     * Returns a one-line summary of the ticks since the previous call and starts a new window.
+     */
+    public synchronized String summarizeAndReset() {
+        String summary = String.format(
+            "Tick stats: %d ticks @ %d Hz, %.1f commands/tick, apply avg %s max %s, "
+                + "encode avg %s max %s, send avg %s max %s, %d overruns",
+            ticks, tickRate, ticks == 0 ? 0.0 : (double) commands / ticks,
+            micros(average(applyTotal)), micros(applyMax),
+            micros(average(encodeTotal)), micros(encodeMax),
+            micros(average(sendTotal)), micros(sendMax),
+            overruns);
+        ticks = overruns = commands = 0;
+        applyTotal = applyMax = encodeTotal = encodeMax = sendTotal = sendMax = 0;
+        return summary;
+    }
+
+    private long average(long total) {
+        return ticks == 0 ? 0 : total / ticks;
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1fus", nanos / 1000.0);
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Carves a big maze on several threads: the grid is cut into square tiles, each tile is
+ * carved on its own by a {@link ForkJoinPool} worker, and the tiles are then joined into
+ * one maze.
+ *
+ * The maze's cells are the positions with both coordinates odd, and a tile is a square of
+ * {@link #TILE_CELLS} of them. Each tile gets the same depth-first search as a small maze,
+ * kept inside the tile and seeded from the maze's seed and the tile's index, so within a
+ * tile there is exactly one path between any two cells. The walls between tiles are left
+ * standing until every tile is done. Then the tile borders are shuffled and taken in turn,
+ * keeping a union-find of the tiles already joined: a border between two tiles that aren't
+ * joined yet gets one opening at a random cell along it, and a border between joined tiles
+ * stays shut. That is Kruskal's algorithm over the tiles, so the tiles form a tree, and the
+ * whole maze is still perfect, with one path from any cell, the start and the exit
+ * included, to any other.
+ *
+ * The walls are one bit per cell, 64 to a word, and two threads must not write the same
+ * word. A tile only writes inside itself and never its own border row or column, so tiles
+ * in different tile rows are always a full maze row or more apart; tiles side by side are
+ * not, so the tiles are carved in two passes, even tile columns first, then odd ones.
+ * Tiles in the same pass are then at least a whole tile, {@code 2 * TILE_CELLS} bits,
+ * apart. For the same reason the maze must be at least {@link #MIN_WIDTH} wide.
+ *
+ * The maze depends only on the size and seed, not on how many threads carve it.
+ */
+final class TiledMazeGenerator {
+    // Cells along a tile's side; a tile is 2 * TILE_CELLS positions wide, which must be at least 64
+    static final int TILE_CELLS = 128;
+    // Narrower mazes have tiles in different rows sharing words
+    static final int MIN_WIDTH = 64;
+    // Spreads the tiles' seeds apart (the 64-bit golden ratio)
+    private static final long TILE_SEED_STEP = 0x9E3779B97F4A7C15L;
+
+    private TiledMazeGenerator() {
+    }
+
+    /**
+     * Carves a maze into walls that are all set, with the tiles spread over the pool.
+     */
+    static void carve(long[] walls, int width, int height, long seed, ForkJoinPool pool) {
+        if (width < MIN_WIDTH) {
+            throw new IllegalArgumentException("A tiled maze must be at least " + MIN_WIDTH + " wide");
+        }
+        int columns = width / 2;  // cells across: x = 1, 3, ... < width
+        int rows = height / 2;    // cells down
+        int tileColumns = (columns + TILE_CELLS - 1) / TILE_CELLS;
+        int tileRows = (rows + TILE_CELLS - 1) / TILE_CELLS;
+
+        Tiles tiles = new Tiles(walls, width, height, seed, tileColumns, tileRows);
+        for (int pass = 0; pass < 2 && pass < tileColumns; pass++) {
+            int passColumns = (tileColumns - pass + 1) / 2;
+            pool.invoke(new CarveTiles(tiles, pass, 0, passColumns * tileRows));
+        }
+        stitch(walls, width, seed, columns, rows, tileColumns, tileRows);
+    }
+
+    /**
+     * Opens one wall in each border the shuffled Kruskal pass picks, joining the tiles
+     * into a tree.
+     */
+    private static void stitch(long[] walls, int width, long seed, int columns, int rows,
+                               int tileColumns, int tileRows) {
+        // A border is the tile on its left or top, times two, plus 1 if it is the bottom one
+        int tileCount = tileColumns * tileRows;
+        int[] borders = new int[2 * tileCount];
+        int count = 0;
+        for (int tile = 0; tile < tileCount; tile++) {
+            if (tile % tileColumns < tileColumns - 1) borders[count++] = tile * 2;
+            if (tile / tileColumns < tileRows - 1) borders[count++] = tile * 2 + 1;
+        }
+        Random random = new Random(seed);
+        for (int i = count - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int temp = borders[i];
+            borders[i] = borders[j];
+            borders[j] = temp;
+        }
+
+        int[] parent = new int[tileCount];
+        for (int tile = 0; tile < tileCount; tile++) {
+            parent[tile] = tile;
+        }
+        for (int i = 0, joined = 0; i < count && joined < tileCount - 1; i++) {
+            int tile = borders[i] >>> 1;
+            boolean bottom = (borders[i] & 1) != 0;
+            int other = bottom ? tile + tileColumns : tile + 1;
+            int a = find(parent, tile);
+            int b = find(parent, other);
+            if (a == b) continue;
+            parent[a] = b;
+            joined++;
+
+            int tileX = tile % tileColumns * TILE_CELLS;
+            int tileY = tile / tileColumns * TILE_CELLS;
+            int x, y;
+            if (bottom) {
+                x = 2 * (tileX + random.nextInt(Math.min(TILE_CELLS, columns - tileX))) + 1;
+                y = 2 * (tileY + TILE_CELLS);
+            } else {
+                x = 2 * (tileX + TILE_CELLS);
+                y = 2 * (tileY + random.nextInt(Math.min(TILE_CELLS, rows - tileY))) + 1;
+            }
+            Maze.clearWall(walls, y * width + x);
+        }
+    }
+
+    private static int find(int[] parent, int tile) {
+        while (parent[tile] != tile) {
+            parent[tile] = parent[parent[tile]];
+            tile = parent[tile];
+        }
+        return tile;
+    }
+
+    /**
+     * What every tile of one maze shares.
+     */
+    private record Tiles(long[] walls, int width, int height, long seed, int columns, int rows) {
+
+        /** Carves the tile at a tile column and row, inside its bounds and from its first cell. */
+        void carve(int column, int row) {
+            int minX = 2 * column * TILE_CELLS;
+            int minY = 2 * row * TILE_CELLS;
+            int maxX = Math.min(minX + 2 * TILE_CELLS, width);
+            int maxY = Math.min(minY + 2 * TILE_CELLS, height);
+            Random random = new Random(seed + (long) (row * columns + column) * TILE_SEED_STEP);
+            DepthFirstMazeGenerator.carvePath(walls, width, minX, minY, maxX, maxY, minX + 1, minY + 1, random);
+        }
+    }
+
+    /**
+     * Carves a range of one pass's tiles, splitting it in half until it is one tile. The
+     * pass's tiles are numbered along each tile row, every other tile column.
+     */
+    private static final class CarveTiles extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Tiles tiles;
+        private final int pass;
+        private final int from;
+        private final int to;
+
+        CarveTiles(Tiles tiles, int pass, int from, int to) {
+            this.tiles = tiles;
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new CarveTiles(tiles, pass, from, middle), new CarveTiles(tiles, pass, middle, to));
+                return;
+            }
+            int passColumns = (tiles.columns() - pass + 1) / 2;
+            tiles.carve(pass + 2 * (from % passColumns), from / passColumns);
+        }
+    }
+}
@@ -0,0 +1,419 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares moving over TCP with moving over the UDP side channel on a lossy link.
+ *
+ * Runs an in-process relay between the bots and a server started with --udp, which delays
+ * everything by a fixed time and loses a share of it, then runs the same bots twice: once
+ * with every move and ACK on TCP and once with moves and positions on UDP. Each bot moves
+ * at a steady rate and records how long each move took to be acknowledged, which is how
+ * long a predicted move stays unconfirmed and how late a correction arrives.
+ *
+ * The relay can't drop real TCP segments, so it models what loss does to a TCP stream: a
+ * lost chunk arrives after a retransmission timeout instead, and everything behind it on
+ * the connection waits for it (head-of-line blocking). Datagrams are simply dropped, or
+ * delayed and delivered in whatever order they come out.
+ *
+ * Usage: java UdpBenchmark [--host=localhost] [--clients=8] [--loss=0.05] [--delay=20]
+ *                          [--seconds=20] [--move-interval=100]
+ */
+public class UdpBenchmark {
+    private static final int PORT = 12345;
+    private static final long TCP_RTO_MILLIS = 200; // Linux's minimum retransmission timeout
+    private static final long WARMUP_MILLIS = 2000;
+
+    private static String host = "localhost";
+    private static double loss = 0.05;
+    private static long delayMillis = 20;
+
+    public static void main(String[] args) throws Exception {
+        int clientCount = 8;
+        int seconds = 20;
+        int moveIntervalMillis = 100;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--host=")) {
+                host = value;
+            } else if (arg.startsWith("--clients=")) {
+                clientCount = Integer.parseInt(value);
+            } else if (arg.startsWith("--loss=")) {
+                loss = Double.parseDouble(value);
+            } else if (arg.startsWith("--delay=")) {
+                delayMillis = Long.parseLong(value);
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(value);
+            } else if (arg.startsWith("--move-interval=")) {
+                moveIntervalMillis = Integer.parseInt(value);
+            } else {
+                System.err.println("Usage: java UdpBenchmark [--host=localhost] [--clients=8] [--loss=0.05]"
+                    + " [--delay=20] [--seconds=20] [--move-interval=100]");
+                return;
+            }
+        }
+
+        TcpRelay tcpRelay = new TcpRelay();
+        UdpRelay udpRelay = new UdpRelay();
+        System.out.printf("%d clients, one move every %d ms, %.1f%% loss, %d ms one-way delay, %d s per run%n",
+            clientCount, moveIntervalMillis, loss * 100, delayMillis, seconds);
+        System.out.printf("%-10s %8s %8s %10s %10s %10s %10s %12s%n",
+            "", "moves", "acked", "p50 ms", "p95 ms", "p99 ms", "max ms", "corrections");
+        for (boolean useUdp : new boolean[] { false, true }) {
+            List<Bot> bots = new ArrayList<>();
+            for (int i = 0; i < clientCount; i++) {
+                Bot bot = new Bot((useUdp ? "udp-" : "tcp-") + i, useUdp, tcpRelay.getPort(),
+                    udpRelay.getPort(), moveIntervalMillis, seconds);
+                bots.add(bot);
+                new Thread(bot, bot.name).start();
+            }
+            for (Bot bot : bots) {
+                bot.done.await();
+            }
+            report(useUdp ? "udp" : "tcp only", bots);
+        }
+        System.exit(0);
+    }
+
+    private static void report(String label, List<Bot> bots) {
+        List<Long> latencies = new ArrayList<>();
+        long moves = 0, corrections = 0, unbound = 0;
+        for (Bot bot : bots) {
+            synchronized (bot) {
+                latencies.addAll(bot.ackNanos);
+            }
+            moves += bot.moves;
+            corrections += bot.state.getCorrections();
+            if (bot.useUdp && !bot.wasBound) unbound++;
+        }
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        if (sorted.length == 0) {
+            System.out.printf("%-10s %8d %8d%n", label, moves, 0);
+            return;
+        }
+        System.out.printf("%-10s %8d %8d %10.1f %10.1f %10.1f %10.1f %12d%n", label, moves, sorted.length,
+            percentile(sorted, 50) / 1e6, percentile(sorted, 95) / 1e6, percentile(sorted, 99) / 1e6,
+            sorted[sorted.length - 1] / 1e6, corrections);
+        if (unbound > 0) {
+            System.out.println("  (" + unbound + " bots never got a UDP binding and moved over TCP)");
+        }
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    private static boolean lost() {
+        return ThreadLocalRandom.current().nextDouble() < loss;
+    }
+
+    /**
+     * A client that moves in random directions and times each move until it is acknowledged.
+     */
+    private static final class Bot implements Runnable {
+        final String name;
+        final boolean useUdp;
+        final int tcpPort, udpPort, moveIntervalMillis, seconds;
+        final ClientGameState state = new ClientGameState();
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<Long> ackNanos = new ArrayList<>(); // guarded by this
+        private final Map<Integer, Long> sentNanos = new ConcurrentHashMap<>();
+        private int lastRecordedSeq; // guarded by this
+        volatile ClientUdpChannel udp;
+        volatile boolean wasBound;
+        long moves;
+
+        Bot(String name, boolean useUdp, int tcpPort, int udpPort, int moveIntervalMillis, int seconds) {
+            this.name = name;
+            this.useUdp = useUdp;
+            this.tcpPort = tcpPort;
+            this.udpPort = udpPort;
+            this.moveIntervalMillis = moveIntervalMillis;
+            this.seconds = seconds;
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = new Socket("localhost", tcpPort)) {
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                Protocol.writeFrame(out, Protocol.encodeHello(name, Protocol.DEFAULT_ROOM,
+                    useUdp ? Protocol.HELLO_UDP : 0));
+                Thread reader = new Thread(() -> readLoop(in), name + "-reader");
+                reader.setDaemon(true);
+                reader.start();
+
+                Thread.sleep(WARMUP_MILLIS);
+                Random random = new Random();
+                long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+                while (System.nanoTime() < end) {
+                    int direction = random.nextInt(4);
+                    int seq = state.predictMove(direction);
+                    sentNanos.put(seq, System.nanoTime());
+                    ClientUdpChannel udp = this.udp;
+                    if (udp != null && udp.sendMove(direction, seq)) {
+                        wasBound = true;
+                    } else {
+                        Protocol.writeFrame(out, Protocol.encodeMove(direction, seq));
+                    }
+                    moves++;
+                    Thread.sleep(moveIntervalMillis);
+                }
+                Thread.sleep(TCP_RTO_MILLIS * 4); // let the last acknowledgements arrive
+            } catch (IOException | InterruptedException e) {
+                System.err.println(name + ": " + e);
+            } finally {
+                if (udp != null) {
+                    udp.close();
+                }
+                done.countDown();
+            }
+        }
+
+        private void readLoop(DataInputStream in) {
+            try {
+                while (true) {
+                    ByteBuffer frame = Protocol.readFrame(in, Protocol.MAX_SERVER_FRAME);
+                    switch (frame.get()) {
+                        case Protocol.WELCOME -> state.setMyPlayerId(frame.getInt(), frame.getInt());
+                        case Protocol.UDP_OFFER -> {
+                            frame.getShort(); // the server's port; we go through the relay
+                            udp = ClientUdpChannel.open("localhost", udpPort, frame.getLong(), state,
+                                this::recordAcks);
+                        }
+                        case Protocol.MAZE_START -> state.applyMazeStart(frame);
+                        case Protocol.MAZE_TILE -> state.applyMazeTile(frame);
+                        case Protocol.MAZE_DIFF -> state.applyMazeDiff(frame);
+                        case Protocol.SNAPSHOT -> state.applySnapshot(frame);
+                        case Protocol.DELTA -> state.applyDelta(frame);
+                        case Protocol.ACK -> {
+                            state.applyAck(frame);
+                            recordAcks();
+                        }
+                        default -> {
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // Connection closed at the end of the run
+            }
+        }
+
+        /** Records the latency of every move acknowledged since the last call. */
+        private synchronized void recordAcks() {
+            long now = System.nanoTime();
+            int acked = state.getLastAckSeq();
+            for (int seq = lastRecordedSeq + 1; seq <= acked; seq++) {
+                Long sent = sentNanos.remove(seq);
+                if (sent != null) {
+                    ackNanos.add(now - sent);
+                }
+            }
+            lastRecordedSeq = Math.max(lastRecordedSeq, acked);
+        }
+    }
+
+    /**
+     * Relays TCP connections to the server through a delayed, lossy pipe in each direction.
+     */
+    private static final class TcpRelay {
+        private final ServerSocket listener = new ServerSocket(0);
+
+        TcpRelay() throws IOException {
+            Thread acceptor = new Thread(this::acceptLoop, "tcp-relay");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return listener.getLocalPort();
+        }
+
+        private void acceptLoop() {
+            try {
+                while (true) {
+                    Socket client = listener.accept();
+                    Socket server = new Socket(host, PORT);
+                    client.setTcpNoDelay(true);
+                    server.setTcpNoDelay(true);
+                    pipe(client, server);
+                    pipe(server, client);
+                }
+            } catch (IOException e) {
+                System.err.println("TCP relay stopped: " + e);
+            }
+        }
+
+        /**
+         * Copies one direction of a connection. Each chunk read is delivered after the delay,
+         * or after a retransmission timeout on top if it is "lost", and never before the
+         * chunk ahead of it.
+         */
+        private static void pipe(Socket from, Socket to) {
+            LinkedBlockingQueue<Chunk> inFlight = new LinkedBlockingQueue<>();
+            Thread reader = new Thread(() -> {
+                long lastDeliveryNanos = 0;
+                try {
+                    InputStream in = from.getInputStream();
+                    byte[] buffer = new byte[16 * 1024];
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        long delay = delayMillis + (lost() ? TCP_RTO_MILLIS : 0);
+                        long deliver = Math.max(lastDeliveryNanos, System.nanoTime() + delay * 1_000_000);
+                        lastDeliveryNanos = deliver;
+                        inFlight.add(new Chunk(Arrays.copyOf(buffer, n), deliver));
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+                inFlight.add(new Chunk(null, lastDeliveryNanos));
+            });
+            Thread writer = new Thread(() -> {
+                try {
+                    OutputStream out = to.getOutputStream();
+                    while (true) {
+                        Chunk chunk = inFlight.take();
+                        long wait = chunk.deliverNanos() - System.nanoTime();
+                        if (wait > 0) {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                        if (chunk.bytes() == null) break;
+                        out.write(chunk.bytes());
+                        out.flush();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // Closed
+                }
+                closeQuietly(from);
+                closeQuietly(to);
+            });
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        private record Chunk(byte[] bytes, long deliverNanos) {
+        }
+
+        private static void closeQuietly(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Relays datagrams to and from the server's UDP port, dropping some and delaying the rest.
+     * Each client gets its own socket towards the server, so the server sees one address per
+     * client as it would without the relay.
+     */
+    private static final class UdpRelay {
+        private final DatagramChannel clientSide = DatagramChannel.open();
+        private final Map<SocketAddress, DatagramChannel> serverSides = new ConcurrentHashMap<>();
+        private final ScheduledExecutorService delivery = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "udp-relay-delivery");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        UdpRelay() throws IOException {
+            clientSide.bind(new InetSocketAddress("localhost", 0));
+            Thread receiver = new Thread(this::fromClients, "udp-relay");
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+
+        int getPort() throws IOException {
+            return ((InetSocketAddress) clientSide.getLocalAddress()).getPort();
+        }
+
+        private void fromClients() {
+            ByteBuffer buffer = ByteBuffer.allocate(Protocol.MAX_DATAGRAM);
+            try {
+                while (true) {
+                    buffer.clear();
+                    SocketAddress client = clientSide.receive(buffer);
+                    buffer.flip();
+                    DatagramChannel serverSide = serverSides.get(client);
+                    if (serverSide == null) {
+                        serverSide = DatagramChannel.open();
+                        serverSide.connect(new InetSocketAddress(host, PORT));
+                        serverSides.put(client, serverSide);
+                        DatagramChannel channel = serverSide;
+                        Thread thread = new Thread(() -> fromServer(channel, client), "udp-relay-" + client);
+                        thread.setDaemon(true);
+                        thread.start();
+                    }
+                    forward(buffer, serverSide, null);
+                }
+            } catch (IOException e) {
+                System.err.println("UDP relay stopped: " + e);
+            }
+        }
+
+        private void fromServer(DatagramChannel serverSide, SocketAddress client) {
+            ByteBuffer buffer = ByteBuffer.allocate(Protocol.MAX_DATAGRAM);
+            try {
+                while (true) {
+                    buffer.clear();
+                    try {
+                        serverSide.read(buffer);
+                    } catch (PortUnreachableException e) {
+                        continue; // the server isn't listening (yet); like a lost datagram
+                    }
+                    buffer.flip();
+                    forward(buffer, clientSide, client);
+                }
+            } catch (ClosedChannelException e) {
+                // Done
+            } catch (IOException e) {
+                System.err.println("UDP relay stopped: " + e);
+            }
+        }
+
+        /** Drops the datagram, or sends a copy of it after the delay. */
+        private void forward(ByteBuffer datagram, DatagramChannel channel, SocketAddress to) {
+            if (lost()) return;
+            ByteBuffer copy = ByteBuffer.allocate(datagram.remaining()).put(datagram).flip();
+            delivery.schedule(() -> {
+                try {
+                    if (to == null) {
+                        channel.write(copy);
+                    } else {
+                        channel.send(copy, to);
+                    }
+                } catch (IOException e) {
+                    // Lost
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
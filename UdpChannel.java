@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The optional UDP side channel for movement, next to each player's TCP connection.
+ *
+ * A client that asks for it in HELLO is offered a random token over TCP (UDP_OFFER) and
+ * sends UDP_BIND with that token from its UDP socket until it hears UDP_BOUND; the server
+ * then knows which address the player's datagrams come from. After that the client sends
+ * its moves as UDP_INPUT and its room answers each tick with UDP_POSITIONS instead of
+ * ACK frames. Joining, the maze, JOINED/LEFT and the winner still go over TCP.
+ *
+ * Datagrams may be lost, duplicated or reordered, so nothing here is ever retransmitted:
+ * every UDP_INPUT repeats the client's last few unacknowledged moves and the server applies
+ * only those newer than the last one it applied, and every UDP_POSITIONS carries absolute
+ * positions and the state version they belong to, so the client keeps the newest and
+ * drops the rest. A lost packet costs one tick rather than a retransmission timeout, and
+ * never holds back the packets behind it the way a lost TCP segment does.
+ */
+public class UdpChannel implements Runnable {
+    private final DatagramChannel channel;
+    private final Lobby lobby;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<Long, Binding> byToken = new ConcurrentHashMap<>();
+    private final Map<Integer, Binding> byPlayer = new ConcurrentHashMap<>();
+
+    /**
+     * One player's UDP binding. The address is only known once a UDP_BIND has arrived.
+     */
+    private static final class Binding {
+        final int playerId;
+        final long token;
+        volatile SocketAddress address;
+        volatile int lastInputSeq;            // newest move handed to the room; receive thread only writes
+        volatile boolean positionsRequested;  // an input arrived, so answer even if nothing changed
+
+        Binding(int playerId, long token) {
+            this.playerId = playerId;
+            this.token = token;
+        }
+    }
+
+    public UdpChannel(InetSocketAddress bindAddress, Lobby lobby) throws IOException {
+        this.channel = DatagramChannel.open();
+        this.channel.bind(bindAddress);
+        this.lobby = lobby;
+    }
+
+    /** The local port clients should send their datagrams to. */
+    public int getPort() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates a binding for a player who asked for UDP and returns the token to offer them.
+     */
+    public long register(int playerId) {
+        long token;
+        Binding binding;
+        do {
+            token = random.nextLong();
+            binding = new Binding(playerId, token);
+        } while (byToken.putIfAbsent(token, binding) != null);
+        byPlayer.put(playerId, binding);
+        return token;
+    }
+
+    /** Forgets a player's binding when they disconnect. */
+    public void unregister(int playerId) {
+        Binding binding = byPlayer.remove(playerId);
+        if (binding != null) {
+            byToken.remove(binding.token);
+        }
+    }
+
+    /** Returns true once the player's UDP_BIND has arrived, so their updates can go by UDP. */
+    public boolean isBound(int playerId) {
+        Binding binding = byPlayer.get(playerId);
+        return binding != null && binding.address != null;
+    }
+
+    /**
+     * Returns true, once, if the player has sent input since the last call, so their room
+     * answers with positions even when nothing has changed (the client is still waiting
+     * for an acknowledgement, so the last answer was probably lost).
+     */
+    public boolean takePositionsRequest(int playerId) {
+        Binding binding = byPlayer.get(playerId);
+        if (binding == null || !binding.positionsRequested) return false;
+        binding.positionsRequested = false;
+        return true;
+    }
+
+    /**
+     * Sends a datagram to a bound player. Returns false if they have no UDP address yet.
+     * A full socket buffer just drops the datagram, like any other lost packet.
+     */
+    public boolean send(int playerId, ByteBuffer datagram) {
+        Binding binding = byPlayer.get(playerId);
+        SocketAddress address = binding == null ? null : binding.address;
+        if (address == null) return false;
+        try {
+            channel.send(datagram, address);
+        } catch (IOException e) {
+            // Lost, as far as the client can tell
+        }
+        return true;
+    }
+
+    /**
+     * Receives datagrams until the channel is closed. Anything malformed or carrying an
+     * unknown token is ignored.
+     */
+    @Override
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(Protocol.MAX_DATAGRAM);
+        ByteBuffer bound = ByteBuffer.wrap(new byte[] { Protocol.UDP_BOUND });
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                SocketAddress from = channel.receive(buffer);
+                buffer.flip();
+                if (buffer.remaining() < 9) continue;
+                byte opcode = buffer.get();
+                Binding binding = byToken.get(buffer.getLong());
+                if (binding == null) continue;
+
+                if (opcode == Protocol.UDP_BIND) {
+                    binding.address = from;
+                    channel.send(bound.rewind(), from);
+                } else if (opcode == Protocol.UDP_INPUT && from.equals(binding.address)) {
+                    applyInput(binding, buffer);
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                Log.warn("UDP receive failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Hands the moves in a UDP_INPUT to the player's room, skipping those that an earlier
+     * datagram already delivered.
+     */
+    private void applyInput(Binding binding, ByteBuffer input) {
+        int newestSeq = input.getInt();
+        int count = input.get() & 0xFF;
+        if (count > Protocol.UDP_REDUNDANT_INPUTS || input.remaining() < count) return;
+        binding.positionsRequested = true;
+        if (newestSeq <= binding.lastInputSeq) return; // duplicate or reordered
+        GameRoom room = lobby.roomOf(binding.playerId);
+        if (room == null) return;
+        for (int i = 0; i < count; i++) {
+            int direction = input.get();
+            int seq = newestSeq - count + 1 + i;
+            if (seq > binding.lastInputSeq) {
+                room.queueMove(binding.playerId, direction, seq);
+            }
+        }
+        binding.lastInputSeq = newestSeq;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.Random;
+
+/**
+ * Wilson's algorithm: starting from a maze of one cell, each cell not in it yet sets off on
+ * a random walk until it reaches the maze, and the walk, with its loops cut out, is carved
+ * in. Every perfect maze of the size is then equally likely, so the mazes have none of the
+ * other generators' biases.
+ *
+ * The walk only has to remember the direction it last left each cell in: going over a
+ * cell again overwrites it, which is what cuts the loop out. That is a byte per cell.
+ * The first walks have a small maze to find, so they wander; it is the slowest generator.
+ */
+final class WilsonMazeGenerator implements MazeGenerator {
+    // Steps in cells for each direction: down, up, right, left
+    private static final int[] DX = {0, 0, 1, -1};
+    private static final int[] DY = {1, -1, 0, 0};
+
+    @Override
+    public int id() {
+        return 2;
+    }
+
+    @Override
+    public String name() {
+        return "wilson";
+    }
+
+    @Override
+    public void carve(long[] walls, int width, int height, long seed) {
+        int columns = width / 2;
+        int rows = height / 2;
+        if (columns == 0 || rows == 0) return;
+        Random random = new Random(seed);
+        byte[] exits = new byte[columns * rows];
+
+        Maze.clearWall(walls, width + 1); // the maze starts as the top-left cell
+        for (int start = 0; start < exits.length; start++) {
+            int column = start % columns;
+            int row = start / columns;
+            if (isOpen(walls, width, column, row)) continue;
+
+            // Walk until the maze is reached, noting the way out of each cell
+            while (!isOpen(walls, width, column, row)) {
+                int direction;
+                int nextColumn;
+                int nextRow;
+                do {
+                    direction = random.nextInt(4);
+                    nextColumn = column + DX[direction];
+                    nextRow = row + DY[direction];
+                } while (nextColumn < 0 || nextColumn >= columns || nextRow < 0 || nextRow >= rows);
+                exits[row * columns + column] = (byte) direction;
+                column = nextColumn;
+                row = nextRow;
+            }
+
+            // Follow the last way out of each cell from the start, carving as it goes
+            column = start % columns;
+            row = start / columns;
+            while (!isOpen(walls, width, column, row)) {
+                int direction = exits[row * columns + column];
+                int x = 2 * column + 1;
+                int y = 2 * row + 1;
+                Maze.clearWall(walls, y * width + x);
+                Maze.clearWall(walls, (y + DY[direction]) * width + x + DX[direction]);
+                column += DX[direction];
+                row += DY[direction];
+            }
+        }
+    }
+
+    private static boolean isOpen(long[] walls, int width, int column, int row) {
+        int i = (2 * row + 1) * width + 2 * column + 1;
+        return (walls[i >>> 6] >>> i & 1) == 0;
+    }
+}
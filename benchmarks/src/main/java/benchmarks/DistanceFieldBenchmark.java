@@ -0,0 +1,82 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The maze's distance-to-exit field: building it for a whole maze, looking up random
+ * positions, and updating it after a 32x32 part of the maze changed. The update is done
+ * on an unchanged maze, which still forgets and searches again everything a real change
+ * there could have reached, so it costs the same.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class DistanceFieldBenchmark {
+    private static final int LOOKUPS = 4096;
+    private static final int REGION = 32;
+
+    @Param({ "1001x1001", "4001x4001", "10001x10001" })
+    public String size;
+
+    private Object maze;
+    private int width;
+    private int height;
+    private final int[] xs = new int[LOOKUPS];
+    private final int[] ys = new int[LOOKUPS];
+    private int next;
+
+    @Setup
+    public void buildMaze() throws Throwable {
+        String[] parts = size.split("x");
+        width = Integer.parseInt(parts[0]);
+        height = Integer.parseInt(parts[1]);
+        maze = (Object) Game.NEW_MAZE.invokeExact(width, height, 42L);
+        Random random = new Random(42);
+        for (int i = 0; i < LOOKUPS; i++) {
+            xs[i] = random.nextInt(width);
+            ys[i] = random.nextInt(height);
+        }
+        int distance = (int) Game.DISTANCE_TO_EXIT.invokeExact(maze, 1, 1); // builds the maze's field
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object build() throws Throwable {
+        return (Object) Game.NEW_DISTANCE_FIELD.invokeExact(maze);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(LOOKUPS)
+    public int lookup() throws Throwable {
+        int sum = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            sum += (int) Game.DISTANCE_TO_EXIT.invokeExact(maze, xs[i], ys[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void update() throws Throwable {
+        int i = next++ & (LOOKUPS - 1);
+        int x = Math.min(xs[i], width - REGION);
+        int y = Math.min(ys[i], height - REGION);
+        Game.UPDATE_DISTANCES.invokeExact(maze, x, y, x + REGION, y + REGION);
+    }
+}
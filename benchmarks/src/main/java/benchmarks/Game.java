@@ -0,0 +1,208 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Handles on the game's classes.
+ *
+ * The game lives in the default package, which Java code in any other package cannot
+ * import, and JMH refuses benchmarks in the default package. So the benchmarks reach the
+ * game through method handles looked up once, here. They are static finals, so the JIT
+ * treats them as constants and inlines the calls as if they were written directly; the
+ * only overhead left is a cast from Object.
+ */
+final class Game {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final Class<?> MAZE = load("Maze");
+    private static final Class<?> MAZE_GENERATOR = load("MazeGenerator");
+    private static final Class<?> POSITION = load("Position");
+    private static final Class<?> PLAYER = load("Player");
+    private static final Class<?> GAME_EVENT = load("GameEvent");
+    private static final Class<?> ROOM_SETTINGS = load("RoomSettings");
+    private static final Class<?> GAME_ROOM = load("GameRoom");
+
+    /** new Maze(int width, int height, long seed) */
+    static final MethodHandle NEW_MAZE = constructor(MAZE, int.class, int.class, long.class);
+    /** new Maze(int width, int height, long seed, MazeGenerator generator) */
+    static final MethodHandle NEW_MAZE_WITH_GENERATOR =
+        constructor(MAZE, int.class, int.class, long.class, MAZE_GENERATOR);
+    /** MazeGenerator.byName(String name) */
+    static final MethodHandle MAZE_GENERATOR_BY_NAME =
+        staticMethod(MAZE_GENERATOR, "byName", MAZE_GENERATOR, String.class);
+    /** mazeGenerator.carve(long[] walls, int width, int height, long seed) */
+    static final MethodHandle CARVE =
+        virtual(MAZE_GENERATOR, "carve", void.class, long[].class, int.class, int.class, long.class);
+    /** new DepthFirstMazeGenerator(long tiledCells, ForkJoinPool pool), which is package-private */
+    static final MethodHandle NEW_DEPTH_FIRST_GENERATOR =
+        privateConstructor(load("DepthFirstMazeGenerator"), long.class, ForkJoinPool.class);
+    /** EllerMazeGenerator.stream(int width, int height, long seed, ObjIntConsumer sink), which is package-private */
+    static final MethodHandle ELLER_STREAM = privateStaticMethod(load("EllerMazeGenerator"), "stream",
+        void.class, int.class, int.class, long.class, ObjIntConsumer.class);
+    /** maze.isWall(int x, int y) */
+    static final MethodHandle IS_WALL = virtual(MAZE, "isWall", boolean.class, int.class, int.class);
+    /** maze.distanceToExit(int x, int y) */
+    static final MethodHandle DISTANCE_TO_EXIT = virtual(MAZE, "distanceToExit", int.class, int.class, int.class);
+    /** maze.updateDistances(int minX, int minY, int maxX, int maxY), which is package-private */
+    static final MethodHandle UPDATE_DISTANCES =
+        privateVirtual(MAZE, "updateDistances", void.class, int.class, int.class, int.class, int.class);
+    /** maze.prepareDistances(), which is package-private */
+    static final MethodHandle PREPARE_DISTANCES = privateVirtual(MAZE, "prepareDistances", void.class);
+    /** new DistanceField(Maze maze), which is package-private */
+    static final MethodHandle NEW_DISTANCE_FIELD = privateConstructor(load("DistanceField"), MAZE);
+    /** maze.getExitPosition() */
+    static final MethodHandle EXIT_POSITION = virtual(MAZE, "getExitPosition", POSITION);
+    /** position.x() */
+    static final MethodHandle POSITION_X = virtual(POSITION, "x", int.class);
+    /** position.y() */
+    static final MethodHandle POSITION_Y = virtual(POSITION, "y", int.class);
+    /** maze.setWall(int x, int y, boolean wall), which is package-private */
+    static final MethodHandle SET_WALL =
+        privateVirtual(MAZE, "setWall", void.class, int.class, int.class, boolean.class);
+    /** PathFinder.forThread(), which is package-private */
+    static final MethodHandle PATH_FINDER_FOR_THREAD =
+        privateStaticMethod(load("PathFinder"), "forThread", load("PathFinder"));
+    /** pathFinder.findPath(Maze maze, int fromX, int fromY, int toX, int toY, boolean jumpPoints), which is package-private */
+    static final MethodHandle FIND_PATH = privateVirtual(load("PathFinder"), "findPath", int.class,
+        MAZE, int.class, int.class, int.class, int.class, boolean.class);
+    /** new MazeRegion(int x, int y, int width, int height, long seed), which is package-private */
+    static final MethodHandle NEW_MAZE_REGION = privateConstructor(load("MazeRegion"),
+        int.class, int.class, int.class, int.class, long.class);
+    /** mazeRegion.carve(MazeGenerator generator), which is package-private */
+    static final MethodHandle CARVE_MAZE_REGION =
+        privateVirtual(load("MazeRegion"), "carve", long[].class, MAZE_GENERATOR);
+    /** maze.carveRegion(MazeRegion region, long[] carved), which is package-private */
+    static final MethodHandle CARVE_REGION =
+        privateVirtual(MAZE, "carveRegion", void.class, load("MazeRegion"), long[].class);
+    /** Protocol.encodeMazeDiff(int mazeId, Maze maze, int x, int y, int width, int height) */
+    static final MethodHandle ENCODE_MAZE_DIFF = staticMethod(load("Protocol"), "encodeMazeDiff", byte[].class,
+        int.class, MAZE, int.class, int.class, int.class, int.class);
+    /** Protocol.decodeMazeDiff(ByteBuffer buf, Maze maze) */
+    static final MethodHandle DECODE_MAZE_DIFF =
+        staticMethod(load("Protocol"), "decodeMazeDiff", void.class, ByteBuffer.class, MAZE);
+    /** new Maze(int width, int height, Position exitPosition), a maze as a client receives it */
+    static final MethodHandle NEW_RECEIVED_MAZE = constructor(MAZE, int.class, int.class, POSITION);
+    /** new Position(int x, int y) */
+    static final MethodHandle NEW_POSITION = constructor(POSITION, int.class, int.class);
+    /** new Player(int id, String name, Position position) */
+    static final MethodHandle NEW_PLAYER = constructor(PLAYER, int.class, String.class, POSITION);
+    /** GameEvent.moved(int playerId, Position position) */
+    static final MethodHandle MOVED = staticMethod(GAME_EVENT, "moved", GAME_EVENT, int.class, POSITION);
+    /** Protocol.encodeSnapshot(int version, Collection players) */
+    static final MethodHandle ENCODE_SNAPSHOT =
+        staticMethod(load("Protocol"), "encodeSnapshot", byte[].class, int.class, Collection.class);
+    /** Protocol.encodeDelta(int fromVersion, int toVersion, List events) */
+    static final MethodHandle ENCODE_DELTA =
+        staticMethod(load("Protocol"), "encodeDelta", byte[].class, int.class, int.class, List.class);
+    /** RoomSettings.DEFAULT.withMazeSize(int width, int height) */
+    static final MethodHandle ROOM_SETTINGS_WITH_MAZE_SIZE = withMazeSize();
+    /** new GameRoom(int id, String name, RoomSettings settings, long seed, Executor background) */
+    static final MethodHandle NEW_GAME_ROOM =
+        constructor(GAME_ROOM, int.class, String.class, ROOM_SETTINGS, long.class, Executor.class);
+    /** gameRoom.findStartLocation(), which is private */
+    static final MethodHandle FIND_START_LOCATION = privateVirtual(GAME_ROOM, "findStartLocation", POSITION);
+
+    private Game() {
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("The game's classes are not on the class path", e);
+        }
+    }
+
+    /** A constructor, typed to take its parameters and return Object. */
+    private static MethodHandle constructor(Class<?> type, Class<?>... parameters) {
+        try {
+            return erase(LOOKUP.findConstructor(type, MethodType.methodType(void.class, parameters)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle privateConstructor(Class<?> type, Class<?>... parameters) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(type, LOOKUP);
+            return erase(lookup.findConstructor(type, MethodType.methodType(void.class, parameters)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle virtual(Class<?> type, String name, Class<?> returns, Class<?>... parameters) {
+        try {
+            return erase(LOOKUP.findVirtual(type, name, MethodType.methodType(returns, parameters)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle privateVirtual(Class<?> type, String name, Class<?> returns, Class<?>... parameters) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(type, LOOKUP);
+            return erase(lookup.findVirtual(type, name, MethodType.methodType(returns, parameters)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle staticMethod(Class<?> type, String name, Class<?> returns, Class<?>... parameters) {
+        try {
+            return erase(LOOKUP.findStatic(type, name, MethodType.methodType(returns, parameters)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle privateStaticMethod(Class<?> type, String name, Class<?> returns,
+                                                    Class<?>... parameters) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(type, LOOKUP);
+            return erase(lookup.findStatic(type, name, MethodType.methodType(returns, parameters)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle withMazeSize() {
+        try {
+            Object defaults = LOOKUP.findStaticGetter(ROOM_SETTINGS, "DEFAULT", ROOM_SETTINGS).invoke();
+            MethodHandle with = LOOKUP.findVirtual(ROOM_SETTINGS, "withMazeSize",
+                MethodType.methodType(ROOM_SETTINGS, int.class, int.class));
+            return erase(with.bindTo(defaults));
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Replaces the game's own types in a handle's signature with Object, so benchmarks can
+     * call it with invokeExact without naming them.
+     */
+    private static MethodHandle erase(MethodHandle handle) {
+        return handle.asType(erase(handle.type()));
+    }
+
+    private static MethodType erase(MethodType type) {
+        MethodType erased = type;
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (isGameType(type.parameterType(i))) {
+                erased = erased.changeParameterType(i, Object.class);
+            }
+        }
+        return isGameType(type.returnType()) ? erased.changeReturnType(Object.class) : erased;
+    }
+
+    private static boolean isGameType(Class<?> type) {
+        return !type.isPrimitive() && !type.isArray() && type.getPackageName().isEmpty();
+    }
+}
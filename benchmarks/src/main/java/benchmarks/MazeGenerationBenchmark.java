@@ -0,0 +1,46 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long {@code new Maze(width, height, seed)} takes, from the classic 21x11 up to
+ * 10001x10001. Each call takes the next seed, so the JIT can't treat the maze as the same
+ * every time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class MazeGenerationBenchmark {
+    @Param({ "21x11", "101x101", "1001x1001", "4001x4001", "10001x10001" })
+    public String size;
+
+    private int width;
+    private int height;
+    private long seed;
+
+    @Setup
+    public void parseSize() {
+        String[] parts = size.split("x");
+        width = Integer.parseInt(parts[0]);
+        height = Integer.parseInt(parts[1]);
+    }
+
+    @Benchmark
+    public Object generate() throws Throwable {
+        return (Object) Game.NEW_MAZE.invokeExact(width, height, seed++);
+    }
+}
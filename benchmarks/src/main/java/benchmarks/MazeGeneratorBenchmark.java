@@ -0,0 +1,86 @@
+package benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjIntConsumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * How long each {@code MazeGenerator} takes to carve a maze's walls, without the rest of
+ * what {@code new Maze} does, and how long Eller's takes to stream one row by row without
+ * keeping it. Divide the cells by the time for cells per second. Run with
+ * {@code -prof gc} for the memory: every generator allocates its working arrays up front
+ * and keeps them to the end, so the bytes allocated per operation
+ * ({@code gc.alloc.rate.norm}) are also the most heap it uses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class MazeGeneratorBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Generators {
+        @Param({ "dfs", "kruskal", "wilson", "eller" })
+        public String generator;
+
+        @Param({ "101x101", "1001x1001", "4001x4001" })
+        public String size;
+
+        int width;
+        int height;
+        long seed;
+        Object mazeGenerator;
+
+        @Setup
+        public void setUp() throws Throwable {
+            String[] parts = size.split("x");
+            width = Integer.parseInt(parts[0]);
+            height = Integer.parseInt(parts[1]);
+            mazeGenerator = (Object) Game.MAZE_GENERATOR_BY_NAME.invokeExact(generator);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Rows {
+        @Param({ "101x101", "1001x1001", "4001x4001" })
+        public String size;
+
+        int width;
+        int height;
+        long seed;
+
+        @Setup
+        public void setUp() {
+            String[] parts = size.split("x");
+            width = Integer.parseInt(parts[0]);
+            height = Integer.parseInt(parts[1]);
+        }
+    }
+
+    @Benchmark
+    public long[] generate(Generators state) throws Throwable {
+        long[] walls = new long[(int) (((long) state.width * state.height + 63) >>> 6)];
+        Arrays.fill(walls, -1L);
+        Game.CARVE.invokeExact(state.mazeGenerator, walls, state.width, state.height, state.seed++);
+        return walls;
+    }
+
+    @Benchmark
+    public void streamEller(Rows state, Blackhole blackhole) throws Throwable {
+        ObjIntConsumer<long[]> sink = (row, y) -> blackhole.consume(row[0]);
+        Game.ELLER_STREAM.invokeExact(state.width, state.height, state.seed++, sink);
+    }
+}
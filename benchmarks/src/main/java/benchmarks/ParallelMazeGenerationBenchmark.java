@@ -0,0 +1,63 @@
+package benchmarks;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long a big maze takes to carve in tiles on a pool of 1 to 8 threads, against the
+ * single depth-first search (threads = 0). The speed-up can't exceed the machine's cores,
+ * so compare runs on the same machine only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class ParallelMazeGenerationBenchmark {
+    @Param({ "2001x2001", "4001x4001", "10001x10001" })
+    public String size;
+
+    @Param({ "0", "1", "2", "4", "8" })
+    public int threads;
+
+    private int width;
+    private int height;
+    private long seed;
+    private ForkJoinPool pool;
+    private Object generator;
+
+    @Setup
+    public void setUp() throws Throwable {
+        String[] parts = size.split("x");
+        width = Integer.parseInt(parts[0]);
+        height = Integer.parseInt(parts[1]);
+        pool = threads > 0 ? new ForkJoinPool(threads) : null;
+        // Tile every maze on the pool, or none
+        generator = (Object) Game.NEW_DEPTH_FIRST_GENERATOR.invokeExact(threads > 0 ? 0L : Long.MAX_VALUE, pool);
+    }
+
+    @TearDown
+    public void shutDown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public Object generate() throws Throwable {
+        return (Object) Game.NEW_MAZE_WITH_GENERATOR.invokeExact(width, height, seed++, generator);
+    }
+}
@@ -0,0 +1,162 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Shortest paths from random open positions. The goal is another random open position
+ * ("any"), or one within 32 positions on both axes, as for a bot chasing a player it can
+ * see ("near"). The "maze" layout is a generated maze, which is perfect, so the path is
+ * read off its distance field and jumpPoints makes no difference. "quaked" is the same
+ * maze after 64 earthquake regions of 32x32 positions have given it loops, and "open" is
+ * the same size with every inner wall knocked down but one in ten, scattered, the kind
+ * of area jump points are for; both are searched, with A* or with jump points. The
+ * setup builds the two mazes' distance fields, as a room's simulation thread would;
+ * "open" isn't made of cells and passages, so it has none. {@code toExit} finds paths
+ * to the exit, which are read off the distance field in any maze. Run with
+ * {@code -prof gc} to see that a query allocates nothing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class PathFindingBenchmark {
+    private static final int QUERIES = 1024;
+
+    @State(Scope.Thread)
+    public static class Searches {
+        @Param({ "101x101", "1001x1001" })
+        public String size;
+
+        @Param({ "maze", "quaked", "open" })
+        public String layout;
+
+        @Param({ "false", "true" })
+        public boolean jumpPoints;
+
+        @Param({ "any", "near" })
+        public String goal;
+
+        Object maze;
+        Object pathFinder;
+        final int[] queries = new int[QUERIES * 4]; // fromX, fromY, toX, toY
+        int next;
+
+        @Setup
+        public void setUp() throws Throwable {
+            String[] parts = size.split("x");
+            int width = Integer.parseInt(parts[0]);
+            int height = Integer.parseInt(parts[1]);
+            maze = (Object) Game.NEW_MAZE.invokeExact(width, height, 42L);
+            Random random = new Random(42);
+            if (layout.equals("open")) {
+                for (int y = 1; y < height - 1; y++) {
+                    for (int x = 1; x < width - 1; x++) {
+                        Game.SET_WALL.invokeExact(maze, x, y, random.nextInt(10) == 0);
+                    }
+                }
+            } else if (layout.equals("quaked")) {
+                Object generator = (Object) Game.MAZE_GENERATOR_BY_NAME.invokeExact("dfs");
+                for (int i = 0; i < 64; i++) {
+                    int x = 2 * random.nextInt((width - 1) / 2 - 15) + 1;
+                    int y = 2 * random.nextInt((height - 1) / 2 - 15) + 1;
+                    Object region = (Object) Game.NEW_MAZE_REGION.invokeExact(x, y, 31, 31, random.nextLong());
+                    long[] carved = (long[]) Game.CARVE_MAZE_REGION.invokeExact(region, generator);
+                    Game.CARVE_REGION.invokeExact(maze, region, carved);
+                }
+            }
+            if (!layout.equals("open")) {
+                Game.PREPARE_DISTANCES.invokeExact(maze);
+            }
+            for (int i = 0; i < queries.length; i += 4) {
+                int from = openPosition(maze, random, width, height, -1, -1);
+                queries[i] = from >>> 16;
+                queries[i + 1] = from & 0xFFFF;
+                int to = goal.equals("near")
+                    ? openPosition(maze, random, width, height, queries[i], queries[i + 1])
+                    : openPosition(maze, random, width, height, -1, -1);
+                queries[i + 2] = to >>> 16;
+                queries[i + 3] = to & 0xFFFF;
+            }
+            pathFinder = (Object) Game.PATH_FINDER_FOR_THREAD.invokeExact();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ToExit {
+        @Param({ "101x101", "1001x1001" })
+        public String size;
+
+        Object maze;
+        Object pathFinder;
+        int exitX;
+        int exitY;
+        final int[] starts = new int[QUERIES * 2];
+        int next;
+
+        @Setup
+        public void setUp() throws Throwable {
+            String[] parts = size.split("x");
+            int width = Integer.parseInt(parts[0]);
+            int height = Integer.parseInt(parts[1]);
+            maze = (Object) Game.NEW_MAZE.invokeExact(width, height, 42L);
+            Object exit = (Object) Game.EXIT_POSITION.invokeExact(maze);
+            exitX = (int) Game.POSITION_X.invokeExact(exit);
+            exitY = (int) Game.POSITION_Y.invokeExact(exit);
+            Game.PREPARE_DISTANCES.invokeExact(maze);
+            Random random = new Random(42);
+            for (int i = 0; i < starts.length; i += 2) {
+                int start = openPosition(maze, random, width, height, -1, -1);
+                starts[i] = start >>> 16;
+                starts[i + 1] = start & 0xFFFF;
+            }
+            pathFinder = (Object) Game.PATH_FINDER_FOR_THREAD.invokeExact();
+        }
+    }
+
+    /**
+     * A random open position, x << 16 | y; within 32 of (nearX, nearY) on both axes if
+     * nearX isn't -1.
+     */
+    private static int openPosition(Object maze, Random random, int width, int height, int nearX, int nearY) throws Throwable {
+        int x;
+        int y;
+        do {
+            if (nearX >= 0) {
+                x = Math.max(0, Math.min(width - 1, nearX + random.nextInt(65) - 32));
+                y = Math.max(0, Math.min(height - 1, nearY + random.nextInt(65) - 32));
+            } else {
+                x = random.nextInt(width);
+                y = random.nextInt(height);
+            }
+        } while ((boolean) Game.IS_WALL.invokeExact(maze, x, y));
+        return x << 16 | y;
+    }
+
+    @Benchmark
+    public int findPath(Searches state) throws Throwable {
+        int i = (state.next++ & (QUERIES - 1)) * 4;
+        int[] queries = state.queries;
+        return (int) Game.FIND_PATH.invokeExact(state.pathFinder, state.maze,
+            queries[i], queries[i + 1], queries[i + 2], queries[i + 3], state.jumpPoints);
+    }
+
+    @Benchmark
+    public int toExit(ToExit state) throws Throwable {
+        int i = (state.next++ & (QUERIES - 1)) * 2;
+        return (int) Game.FIND_PATH.invokeExact(state.pathFinder, state.maze,
+            state.starts[i], state.starts[i + 1], state.exitX, state.exitY, false);
+    }
+}
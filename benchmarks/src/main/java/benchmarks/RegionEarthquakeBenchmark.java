@@ -0,0 +1,107 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * An earthquake that carves regions of the maze again in place, one region at a time:
+ * carving it off the simulation thread, copying it into the maze on the simulation
+ * thread, encoding the MAZE_DIFF every client gets, and a client copying that into its
+ * own maze. The maze has its distance field built, and copying a region in only marks it
+ * stale; {@code applyThenLookup} also looks a distance up afterwards, which is what the
+ * next reader of the field pays to bring it up to date. The regions are square, region
+ * positions a side, at random places in a depth-first maze; the maze keeps the changes,
+ * as a room's does from one earthquake to the next.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class RegionEarthquakeBenchmark {
+    private static final int REGIONS = 64;
+
+    @Param({ "1001x1001", "4001x4001" })
+    public String size;
+
+    @Param({ "32", "128" })
+    public int region;
+
+    private Object maze;
+    private Object receivedMaze;
+    private Object generator;
+    private final Object[] regions = new Object[REGIONS];
+    private final long[][] carved = new long[REGIONS][];
+    private final int[] xs = new int[REGIONS];
+    private final int[] ys = new int[REGIONS];
+    private final ByteBuffer[] diffs = new ByteBuffer[REGIONS]; // after the opcode and mazeId
+    private int side; // positions, odd
+    private int next;
+
+    @Setup
+    public void buildMaze() throws Throwable {
+        String[] parts = size.split("x");
+        int width = Integer.parseInt(parts[0]);
+        int height = Integer.parseInt(parts[1]);
+        maze = (Object) Game.NEW_MAZE.invokeExact(width, height, 42L);
+        generator = (Object) Game.MAZE_GENERATOR_BY_NAME.invokeExact("dfs");
+        int cells = (region + 1) / 2;
+        side = 2 * cells - 1;
+        Random random = new Random(42);
+        for (int i = 0; i < REGIONS; i++) {
+            xs[i] = 2 * random.nextInt((width - 1) / 2 - cells + 1) + 1;
+            ys[i] = 2 * random.nextInt((height - 1) / 2 - cells + 1) + 1;
+            regions[i] = (Object) Game.NEW_MAZE_REGION.invokeExact(xs[i], ys[i], side, side, random.nextLong());
+            carved[i] = (long[]) Game.CARVE_MAZE_REGION.invokeExact(regions[i], generator);
+            byte[] diff = (byte[]) Game.ENCODE_MAZE_DIFF.invokeExact(1, maze, xs[i], ys[i], side, side);
+            diffs[i] = ByteBuffer.wrap(diff, 9, diff.length - 9).slice();
+        }
+        int distance = (int) Game.DISTANCE_TO_EXIT.invokeExact(maze, 1, 1); // builds the maze's field
+        Object exit = (Object) Game.EXIT_POSITION.invokeExact(maze);
+        receivedMaze = (Object) Game.NEW_RECEIVED_MAZE.invokeExact(width, height, exit);
+    }
+
+    @Benchmark
+    public long[] carve() throws Throwable {
+        return (long[]) Game.CARVE_MAZE_REGION.invokeExact(regions[next++ & (REGIONS - 1)], generator);
+    }
+
+    @Benchmark
+    public void apply() throws Throwable {
+        int i = next++ & (REGIONS - 1);
+        Game.CARVE_REGION.invokeExact(maze, regions[i], carved[i]);
+    }
+
+    @Benchmark
+    public int applyThenLookup() throws Throwable {
+        int i = next++ & (REGIONS - 1);
+        Game.CARVE_REGION.invokeExact(maze, regions[i], carved[i]);
+        return (int) Game.DISTANCE_TO_EXIT.invokeExact(maze, xs[i], ys[i]);
+    }
+
+    @Benchmark
+    public void decodeDiff() throws Throwable {
+        ByteBuffer diff = diffs[next++ & (REGIONS - 1)];
+        diff.rewind();
+        Game.DECODE_MAZE_DIFF.invokeExact(diff, receivedMaze);
+    }
+
+    @Benchmark
+    public byte[] encodeDiff() throws Throwable {
+        int i = next++ & (REGIONS - 1);
+        return (byte[]) Game.ENCODE_MAZE_DIFF.invokeExact(1, maze, xs[i], ys[i], side, side);
+    }
+}
@@ -0,0 +1,46 @@
+package benchmarks;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long {@code GameRoom.findStartLocation} takes to pick a spawn cell, which it does
+ * by trying random cells until one is open. The room is never started, so nothing ticks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class StartLocationBenchmark {
+    @Param({ "21x11", "1001x1001" })
+    public String size;
+
+    private Object room;
+
+    @Setup
+    public void createRoom() throws Throwable {
+        String[] parts = size.split("x");
+        Object settings = (Object) Game.ROOM_SETTINGS_WITH_MAZE_SIZE.invokeExact(
+            Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+        Executor inline = Runnable::run;
+        room = (Object) Game.NEW_GAME_ROOM.invokeExact(1, "bench", settings, 42L, inline);
+    }
+
+    @Benchmark
+    public Object findStartLocation() throws Throwable {
+        return (Object) Game.FIND_START_LOCATION.invokeExact(room);
+    }
+}
@@ -0,0 +1,57 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of encoding what {@code GameRoom.broadcastGameState} sends each tick: a SNAPSHOT of
+ * every player, and a DELTA in which every player moved (the worst case; each is encoded
+ * once per tick and shared by all clients).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateEncodingBenchmark {
+    @Param({ "1", "10", "100", "500" })
+    public int players;
+
+    private final Collection<Object> snapshotPlayers = new ArrayList<>();
+    private final List<Object> moves = new ArrayList<>();
+
+    @Setup
+    public void createPlayers() throws Throwable {
+        Random random = new Random(42);
+        for (int id = 1; id <= players; id++) {
+            Object position = (Object) Game.NEW_POSITION.invokeExact(random.nextInt(1001), random.nextInt(1001));
+            snapshotPlayers.add((Object) Game.NEW_PLAYER.invokeExact(id, "player-" + id, position));
+            moves.add((Object) Game.MOVED.invokeExact(id, position));
+        }
+    }
+
+    @Benchmark
+    public byte[] snapshot() throws Throwable {
+        return (byte[]) Game.ENCODE_SNAPSHOT.invokeExact(7, (Collection) snapshotPlayers);
+    }
+
+    @Benchmark
+    public byte[] delta() throws Throwable {
+        return (byte[]) Game.ENCODE_DELTA.invokeExact(6, 7, (List) moves);
+    }
+}
@@ -0,0 +1,87 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of one {@code Maze.isWall} lookup, at random cells (what spawning and the
+ * other players' moves look like on a big maze, mostly cache misses) and cell after cell
+ * along the rows (what drawing and encoding tiles look like).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class WallLookupBenchmark {
+    private static final int LOOKUPS = 4096;
+
+    @Param({ "21x11", "1001x1001", "4001x4001" })
+    public String size;
+
+    private Object maze;
+    private int width;
+    private int height;
+    private final int[] xs = new int[LOOKUPS];
+    private final int[] ys = new int[LOOKUPS];
+    private int cursorX, cursorY; // next cell of the sequential walk, row by row
+
+    @Setup
+    public void buildMaze() throws Throwable {
+        String[] parts = size.split("x");
+        width = Integer.parseInt(parts[0]);
+        height = Integer.parseInt(parts[1]);
+        maze = (Object) Game.NEW_MAZE.invokeExact(width, height, 42L);
+        Random random = new Random(42);
+        for (int i = 0; i < LOOKUPS; i++) {
+            xs[i] = random.nextInt(width);
+            ys[i] = random.nextInt(height);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int randomAccess() throws Throwable {
+        int walls = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            if ((boolean) Game.IS_WALL.invokeExact(maze, xs[i], ys[i])) {
+                walls++;
+            }
+        }
+        return walls;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int sequentialAccess() throws Throwable {
+        int walls = 0;
+        int x = cursorX, y = cursorY;
+        for (int i = 0; i < LOOKUPS; i++) {
+            if ((boolean) Game.IS_WALL.invokeExact(maze, x, y)) {
+                walls++;
+            }
+            if (++x == width) {
+                x = 0;
+                if (++y == height) {
+                    y = 0;
+                }
+            }
+        }
+        cursorX = x;
+        cursorY = y;
+        return walls;
+    }
+}